@@ -0,0 +1,102 @@
+package com.example.guardian;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Regola di allarme sull'uso del microfono. Le regole vengono compilate da
+ * {@link AlertRulesEngine} in una tabella per package.
+ *
+ * Formato testuale, una regola per riga ({@code #} per i commenti):
+ * <pre>
+ * bg30     background 30 *
+ * bg5-x    background 5 com.example.x
+ * screen   screen_off * allow=com.whatsapp,com.google.android.dialer
+ * </pre>
+ * dove {@code *} indica tutte le app.
+ */
+public class AlertRule {
+
+    // Registrazione in background continuativa oltre la soglia
+    public static final int TYPE_BACKGROUND = 1;
+    // Registrazione con lo schermo spento, per app non in allowlist
+    public static final int TYPE_SCREEN_OFF = 2;
+
+    public static final String ALL_PACKAGES = "*";
+
+    public static final String DEFAULT_RULES =
+            "background-30s background 30 *\n"
+                    + "screen-off screen_off *\n";
+
+    public final String id;
+    public final int type;
+    // null per tutte le app
+    public final String packageName;
+    public final long thresholdMs;
+    public final Set<String> allowlist;
+
+    private AlertRule(String id, int type, String packageName, long thresholdMs, Set<String> allowlist) {
+        this.id = id;
+        this.type = type;
+        this.packageName = packageName;
+        this.thresholdMs = thresholdMs;
+        this.allowlist = allowlist;
+    }
+
+    public static AlertRule background(String id, String packageName, long thresholdMs) {
+        return new AlertRule(id, TYPE_BACKGROUND, packageName, thresholdMs, Collections.<String>emptySet());
+    }
+
+    public static AlertRule screenOff(String id, String packageName, Set<String> allowlist) {
+        return new AlertRule(id, TYPE_SCREEN_OFF, packageName, 0, allowlist);
+    }
+
+    public boolean appliesToAll() {
+        return packageName == null;
+    }
+
+    /**
+     * Legge le regole dal formato testuale; le righe non valide vengono ignorate.
+     */
+    public static List<AlertRule> parse(String spec) {
+        List<AlertRule> rules = new ArrayList<>();
+        if (spec == null) return rules;
+
+        for (String line : spec.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+
+            String[] parts = line.split("\\s+");
+            try {
+                if (parts.length >= 3 && "background".equals(parts[1])) {
+                    long seconds = Long.parseLong(parts[2]);
+                    String packageName = parts.length > 3 ? packageOrAll(parts[3]) : null;
+                    rules.add(background(parts[0], packageName, seconds * 1000));
+                } else if (parts.length >= 2 && "screen_off".equals(parts[1])) {
+                    String packageName = null;
+                    Set<String> allowlist = new HashSet<>();
+                    for (int i = 2; i < parts.length; i++) {
+                        if (parts[i].startsWith("allow=")) {
+                            for (String allowed : parts[i].substring(6).split(",")) {
+                                if (!allowed.isEmpty()) allowlist.add(allowed);
+                            }
+                        } else {
+                            packageName = packageOrAll(parts[i]);
+                        }
+                    }
+                    rules.add(screenOff(parts[0], packageName, allowlist));
+                }
+            } catch (NumberFormatException e) {
+                // Soglia non valida: la regola viene ignorata
+            }
+        }
+        return rules;
+    }
+
+    private static String packageOrAll(String value) {
+        return ALL_PACKAGES.equals(value) ? null : value;
+    }
+}
@@ -0,0 +1,166 @@
+package com.example.guardian;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Icone delle app per le righe del log. Il PackageManager e il disegno dell'icona
+ * restano su un thread in background; l'icona viene ridisegnata alla dimensione della
+ * riga e tenuta in una LRU limitata in byte, così il bind di una riga costa al più una
+ * lettura dalla cache.
+ *
+ * Ogni ImageView ha al massimo una richiesta in corso (nel tag {@link R.id#app_icon}):
+ * un nuovo bind o il riciclo del ViewHolder la annullano, e un'icona arrivata tardi non
+ * finisce mai sulla riga sbagliata.
+ *
+ * Sotto pressione di memoria è la prima cache a essere ridotta, vedi
+ * {@link MemoryBudgetRegistry}.
+ */
+public class AppIconLoader implements MemoryBudgetRegistry.Cache {
+
+    private static final String TAG = "AppIconLoader";
+    // Un ottavo della memoria della UI, al massimo 4 MB (~70 icone da 40dp a xxhdpi)
+    private static final int MAX_CACHE_BYTES = 4 * 1024 * 1024;
+
+    private final PackageManager packageManager;
+    private final int iconSize;
+    private final int maxBytes;
+    private final LruCache<String, Bitmap> cache;
+    private final ExecutorService loader = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Statistiche, per il dump: le richieste dal thread principale, i caricamenti dal loader
+    private int requests;
+    private int hits;
+    private int cancelled;
+    private int loads;
+    private int failures;
+    private long loadNanos;
+
+    public AppIconLoader(Context context, int iconSize, int memoryClassMb) {
+        this.packageManager = context.getPackageManager();
+        this.iconSize = iconSize;
+        this.maxBytes = Math.min(MAX_CACHE_BYTES, memoryClassMb * 1024 * 1024 / 8);
+        this.cache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String packageName, Bitmap bitmap) {
+                return bitmap.getAllocationByteCount();
+            }
+        };
+    }
+
+    /**
+     * Mostra l'icona del package: subito se è in cache, altrimenti il segnaposto e poi
+     * l'icona quando è pronta. Da chiamare sul thread principale.
+     */
+    public void load(ImageView view, String packageName) {
+        cancel(view);
+        requests++;
+        Bitmap cached = cache.get(packageName);
+        if (cached != null) {
+            hits++;
+            view.setImageBitmap(cached);
+            return;
+        }
+
+        view.setImageResource(android.R.drawable.sym_def_app_icon);
+        Request request = new Request(view, packageName);
+        view.setTag(R.id.app_icon, request);
+        request.future = loader.submit(request);
+    }
+
+    /**
+     * Annulla la richiesta in corso per la vista (ViewHolder riciclato).
+     */
+    public void cancel(ImageView view) {
+        Request request = (Request) view.getTag(R.id.app_icon);
+        if (request == null) return;
+        view.setTag(R.id.app_icon, null);
+        request.cancelled = true;
+        request.future.cancel(false);
+        cancelled++;
+    }
+
+    @Override
+    public long sizeBytes() {
+        return cache.size();
+    }
+
+    @Override
+    public void trimTo(long maxBytes) {
+        cache.trimToSize((int) Math.min(maxBytes, this.maxBytes));
+        Log.d(TAG, "Trimmed icon cache to " + cache.size() / 1024 + "KB");
+    }
+
+    public void shutdown() {
+        loader.shutdownNow();
+        cache.evictAll();
+    }
+
+    private Bitmap render(String packageName) {
+        Bitmap cached = cache.get(packageName);
+        if (cached != null) return cached; // caricata da una richiesta precedente
+
+        long start = System.nanoTime();
+        Drawable icon;
+        try {
+            icon = packageManager.getApplicationIcon(packageName);
+        } catch (PackageManager.NameNotFoundException e) {
+            failures++;
+            return null;
+        }
+        // Ridisegnata alla dimensione della riga: le icone adattive e quelle xxxhdpi
+        // sarebbero molto più grandi di quanto mostrato
+        Bitmap bitmap = Bitmap.createBitmap(iconSize, iconSize, Bitmap.Config.ARGB_8888);
+        icon.setBounds(0, 0, iconSize, iconSize);
+        icon.draw(new Canvas(bitmap));
+        cache.put(packageName, bitmap);
+        loads++;
+        loadNanos += System.nanoTime() - start;
+        return bitmap;
+    }
+
+    public String describeStats() {
+        return String.format(Locale.US, "%d/%dKB, requests=%d, hits=%d, loads=%d (avg %.2fms), failures=%d, "
+                        + "cancelled=%d, evictions=%d", cache.size() / 1024, maxBytes / 1024, requests, hits,
+                loads, loads > 0 ? loadNanos / 1e6 / loads : 0.0, failures, cancelled, cache.evictionCount());
+    }
+
+    private class Request implements Runnable {
+        final ImageView view;
+        final String packageName;
+        Future<?> future;
+        volatile boolean cancelled;
+
+        Request(ImageView view, String packageName) {
+            this.view = view;
+            this.packageName = packageName;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) return;
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            Bitmap bitmap = render(packageName);
+            if (bitmap == null || cancelled) return;
+            mainHandler.post(() -> {
+                if (cancelled || view.getTag(R.id.app_icon) != this) return;
+                view.setTag(R.id.app_icon, null);
+                view.setImageBitmap(bitmap);
+            });
+        }
+    }
+}
@@ -0,0 +1,395 @@
+package com.example.guardian;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.AtomicFile;
+import android.util.Log;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cache persistente delle etichette delle app (package, versionCode, lingua) e dei
+ * package degli uid, così dopo un boot o un riavvio del servizio le prime rilevazioni
+ * risolvono i nomi senza chiamate al PackageManager.
+ *
+ * Il file viene mappato in memoria in {@link #load()}. Le voci caricate vengono usate
+ * subito e verificate in background alla prima richiesta (versionCode e package
+ * dell'uid); i broadcast dei package le invalidano e le ricaricano in background, un
+ * cambio di lingua scarta tutte le etichette. Le modifiche vengono scritte da un thread
+ * dedicato, raggruppate in una sola scrittura ogni {@link #WRITE_DELAY} ms.
+ *
+ * Sotto pressione di memoria ({@link MemoryBudgetRegistry}) le voci in memoria vengono
+ * scartate: le richieste successive ricadono sul PackageManager e il file viene riletto
+ * in background, anche prima della scrittura successiva così non perde voci.
+ *
+ * Formato: magic, versione, lingua, poi le etichette (package, versionCode, etichetta)
+ * e gli uid (uid, package); stringhe con lunghezza a 16 bit e UTF-8.
+ */
+public class AppLabelCache implements MemoryBudgetRegistry.Cache {
+
+    private static final String TAG = "AppLabelCache";
+    private static final String FILE_NAME = "app_labels.bin";
+    private static final int MAGIC = 0x47524c42; // "GRLB"
+    private static final int VERSION = 1;
+    // Oltre questo numero di voci il file è considerato corrotto
+    private static final int MAX_ENTRIES = 16384;
+    static final long WRITE_DELAY = 10 * 1000;
+    // Le verifiche aspettano la fine dell'avvio, per non competere con le prime rilevazioni
+    private static final long VERIFY_DELAY = 5 * 1000;
+    // Stima dell'occupazione di una voce oltre ai caratteri (oggetti, nodo della mappa)
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    private final PackageManager packageManager;
+    private final AtomicFile file;
+    private final ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor();
+    private final Map<String, Entry> labels = new ConcurrentHashMap<>();
+    private final Map<Integer, String> uidPackages = new ConcurrentHashMap<>();
+    // Voci già verificate in questo processo
+    private final Set<String> verified = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Set<Integer> verifiedUids = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+    // Voci scartate da trimTo: il file va riletto prima di riscriverlo
+    private final AtomicBoolean reloadNeeded = new AtomicBoolean();
+    private final AtomicInteger trimGeneration = new AtomicInteger();
+    private volatile Locale locale = Locale.getDefault();
+
+    // Statistiche, per il dump; hits, misses e il primo caricamento dal thread degli
+    // eventi, il resto dal worker
+    private long loadMicros = -1;
+    private int loadedLabels;
+    private int hits;
+    private int misses;
+    private int refreshed;
+    private int writes;
+    private int lastWriteBytes;
+    private int trims;
+
+    public AppLabelCache(Context context) {
+        packageManager = context.getPackageManager();
+        file = new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+    }
+
+    /**
+     * Carica in modo sincrono il file mappato in memoria; un file illeggibile o di
+     * un'altra lingua lascia la cache vuota (solo le etichette, gli uid restano).
+     */
+    public void load() {
+        long start = SystemClock.elapsedRealtimeNanos();
+        // openRead recupera anche il backup di una scrittura interrotta
+        try (FileInputStream in = file.openRead(); FileChannel channel = in.getChannel()) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                Log.w(TAG, "Discarding label cache with unknown format");
+                return;
+            }
+            byte[] scratch = new byte[256];
+            boolean sameLocale = locale.toLanguageTag().equals(readString(buffer, scratch));
+
+            int count = readCount(buffer);
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                entries.add(new Entry(readString(buffer, scratch), buffer.getLong(), readString(buffer, scratch)));
+            }
+            count = readCount(buffer);
+            Map<Integer, String> uids = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                int uid = buffer.getInt();
+                uids.put(uid, readString(buffer, scratch));
+            }
+
+            // Tutto o niente: un file troncato non lascia voci a metà
+            if (sameLocale) {
+                for (Entry entry : entries) {
+                    labels.putIfAbsent(entry.packageName, entry);
+                }
+                loadedLabels = entries.size();
+            }
+            for (Map.Entry<Integer, String> uid : uids.entrySet()) {
+                uidPackages.putIfAbsent(uid.getKey(), uid.getValue());
+            }
+        } catch (FileNotFoundException e) {
+            return;
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            Log.w(TAG, "Discarding unreadable label cache", e);
+        }
+        loadMicros = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+        Log.d(TAG, "Loaded " + labels.size() + " labels and " + uidPackages.size() + " uids in "
+                + loadMicros + "us");
+    }
+
+    /**
+     * Etichetta dell'app nella lingua corrente; il nome del package se non è installata.
+     */
+    public String getLabel(String packageName) {
+        Locale current = Locale.getDefault();
+        if (!current.equals(locale)) {
+            // Le etichette dipendono dalla lingua: si ricomincia da capo
+            locale = current;
+            labels.clear();
+            verified.clear();
+            scheduleWrite();
+        }
+
+        Entry entry = labels.get(packageName);
+        if (entry != null) {
+            hits++;
+            if (verified.add(packageName)) {
+                worker.schedule(() -> refresh(packageName), VERIFY_DELAY, TimeUnit.MILLISECONDS);
+            }
+            return entry.label;
+        }
+
+        misses++;
+        reloadAfterTrim();
+        entry = resolve(packageName);
+        if (entry == null) return packageName;
+        labels.put(packageName, entry);
+        verified.add(packageName);
+        scheduleWrite();
+        return entry.label;
+    }
+
+    /**
+     * Package dell'uid (il primo, per gli uid condivisi), o null se sconosciuto.
+     */
+    public String getPackageForUid(int uid) {
+        String cached = uidPackages.get(uid);
+        if (cached != null) {
+            if (verifiedUids.add(uid)) {
+                worker.schedule(() -> refreshUid(uid), VERIFY_DELAY, TimeUnit.MILLISECONDS);
+            }
+            return cached;
+        }
+
+        reloadAfterTrim();
+        String packageName = resolveUid(uid);
+        if (packageName != null) {
+            uidPackages.put(uid, packageName);
+            verifiedUids.add(uid);
+            scheduleWrite();
+        }
+        return packageName;
+    }
+
+    /**
+     * Scarta le voci di un package installato, aggiornato o rimosso (e del suo uid, se
+     * noto) e le ricarica in background se il package esiste ancora.
+     */
+    public void invalidate(String packageName, int uid) {
+        labels.remove(packageName);
+        if (uid >= 0) {
+            uidPackages.remove(uid);
+        }
+        worker.execute(() -> refresh(packageName));
+    }
+
+    /**
+     * Scrive subito le modifiche in attesa (sul thread dedicato).
+     */
+    public void flush() {
+        if (writeScheduled.getAndSet(false)) {
+            worker.execute(this::write);
+        }
+    }
+
+    @Override
+    public long sizeBytes() {
+        long bytes = 0;
+        for (Entry entry : labels.values()) {
+            bytes += ENTRY_OVERHEAD_BYTES + 2L * (entry.packageName.length() + entry.label.length());
+        }
+        for (String packageName : uidPackages.values()) {
+            bytes += ENTRY_OVERHEAD_BYTES + 2L * packageName.length();
+        }
+        return bytes;
+    }
+
+    /**
+     * Le voci non hanno un ordine d'uso: sopra {@code maxBytes} vengono scartate tutte.
+     */
+    @Override
+    public void trimTo(long maxBytes) {
+        if (sizeBytes() <= maxBytes) return;
+        reloadNeeded.set(true);
+        trimGeneration.incrementAndGet();
+        labels.clear();
+        uidPackages.clear();
+        verified.clear();
+        verifiedUids.clear();
+        trims++;
+    }
+
+    // Alla prima richiesta dopo una riduzione il file viene riletto in background
+    private void reloadAfterTrim() {
+        if (reloadNeeded.compareAndSet(true, false)) {
+            worker.execute(this::load);
+        }
+    }
+
+    private void refresh(String packageName) {
+        Entry entry = resolve(packageName);
+        Entry cached = labels.get(packageName);
+        if (entry == null) {
+            if (cached != null) {
+                labels.remove(packageName);
+                scheduleWrite();
+            }
+            return;
+        }
+        if (cached == null || cached.versionCode != entry.versionCode || !cached.label.equals(entry.label)) {
+            labels.put(packageName, entry);
+            refreshed++;
+            scheduleWrite();
+        }
+    }
+
+    private void refreshUid(int uid) {
+        String packageName = resolveUid(uid);
+        if (packageName == null) {
+            if (uidPackages.remove(uid) != null) scheduleWrite();
+        } else if (!packageName.equals(uidPackages.put(uid, packageName))) {
+            refreshed++;
+            scheduleWrite();
+        }
+    }
+
+    private Entry resolve(String packageName) {
+        try {
+            PackageInfo info = packageManager.getPackageInfo(packageName, 0);
+            long versionCode = Build.VERSION.SDK_INT >= Build.VERSION_CODES.P
+                    ? info.getLongVersionCode() : info.versionCode;
+            String label = packageManager.getApplicationLabel(info.applicationInfo).toString();
+            return new Entry(packageName, versionCode, label);
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
+    }
+
+    private String resolveUid(int uid) {
+        String[] packages = packageManager.getPackagesForUid(uid);
+        return (packages != null && packages.length > 0) ? packages[0] : null;
+    }
+
+    private void scheduleWrite() {
+        if (writeScheduled.compareAndSet(false, true)) {
+            worker.schedule(() -> {
+                if (writeScheduled.getAndSet(false)) write();
+            }, WRITE_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void write() {
+        int generation = trimGeneration.get();
+        if (reloadNeeded.compareAndSet(true, false)) {
+            load();
+        }
+        FileOutputStream fos = null;
+        try {
+            byte[] data = serialize();
+            if (generation != trimGeneration.get()) {
+                // Ridotta durante la serializzazione: si riscrive dopo averla riletta
+                scheduleWrite();
+                return;
+            }
+            fos = file.startWrite();
+            fos.write(data);
+            file.finishWrite(fos);
+            writes++;
+            lastWriteBytes = data.length;
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing label cache", e);
+            if (fos != null) {
+                file.failWrite(fos);
+            }
+        }
+    }
+
+    private byte[] serialize() throws IOException {
+        List<Entry> entries = new ArrayList<>(labels.values());
+        List<Map.Entry<Integer, String>> uids = new ArrayList<>(uidPackages.entrySet());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + entries.size() * 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeString(out, locale.toLanguageTag());
+        out.writeInt(entries.size());
+        for (Entry entry : entries) {
+            writeString(out, entry.packageName);
+            out.writeLong(entry.versionCode);
+            writeString(out, entry.label);
+        }
+        out.writeInt(uids.size());
+        for (Map.Entry<Integer, String> uid : uids) {
+            out.writeInt(uid.getKey());
+            writeString(out, uid.getValue());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, 0xffff);
+        out.writeShort(length);
+        out.write(bytes, 0, length);
+    }
+
+    private static String readString(ByteBuffer buffer, byte[] scratch) {
+        int length = buffer.getShort() & 0xffff;
+        byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+        buffer.get(bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static int readCount(ByteBuffer buffer) {
+        int count = buffer.getInt();
+        if (count < 0 || count > MAX_ENTRIES) {
+            throw new IllegalArgumentException("Bad entry count " + count);
+        }
+        return count;
+    }
+
+    public String describeStats() {
+        return String.format(Locale.US, "%d labels, %d uids (%s), loaded %d in %dus, hits=%d, misses=%d, "
+                        + "refreshed=%d, writes=%d (%d bytes), trims=%d", labels.size(), uidPackages.size(),
+                locale.toLanguageTag(), loadedLabels, loadMicros, hits, misses, refreshed, writes, lastWriteBytes,
+                trims);
+    }
+
+    private static class Entry {
+        final String packageName;
+        final long versionCode;
+        final String label;
+
+        Entry(String packageName, long versionCode, String label) {
+            this.packageName = packageName;
+            this.versionCode = versionCode;
+            this.label = label;
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package com.example.guardian;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Calcola il tempo di registrazione in background di ogni sessione, incrociando gli
+ * intervalli delle sessioni con gli intervalli in cui l'app era in foreground.
+ *
+ * Per ogni app si mantiene il tempo foreground cumulativo F(t); la parte in foreground
+ * di una sessione [s, e) è F(e) - F(s). In modalità live F avanza a ogni evento (O(1));
+ * in modalità batch gli eventi vengono ordinati una volta per (package, tempo) e
+ * scorsi con una sweep line, per un costo totale O(n log n).
+ *
+ * In modalità live lo stato foreground è unico per app e condiviso da tutte le
+ * operazioni di {@link SensitiveOp}: ogni operazione aggiunge solo l'inizio della propria
+ * sessione.
+ */
+public class BackgroundRecordingAnalyzer {
+
+    // Ordine degli eventi allo stesso istante: prima si chiude, poi si apre
+    private static final int EVENT_SESSION_END = 0;
+    private static final int EVENT_FOREGROUND_OFF = 1;
+    private static final int EVENT_FOREGROUND_ON = 2;
+    private static final int EVENT_SESSION_START = 3;
+
+    private final Map<String, AppState> apps = new HashMap<>();
+
+    // ---- Modalità live: gli eventi devono arrivare in ordine di tempo ----
+
+    public void onForegroundChanged(String packageName, long timestamp, boolean foreground) {
+        AppState state = stateFor(packageName);
+        state.advance(timestamp);
+        state.foreground = foreground;
+    }
+
+    public void onSessionStart(String packageName, int op, long timestamp) {
+        AppState state = stateFor(packageName);
+        state.advance(timestamp);
+        if (state.sessionStart == null) {
+            state.sessionStart = new long[SensitiveOp.COUNT];
+            state.foregroundAtStart = new long[SensitiveOp.COUNT];
+        }
+        state.sessionStart[op] = timestamp;
+        state.foregroundAtStart[op] = state.foregroundCumulative;
+        state.recording |= 1 << op;
+    }
+
+    /**
+     * Riprende una sessione salvata: {@code foregroundMs} è il tempo in foreground da
+     * {@code start} a {@code stateTime}, istante da cui l'app è in {@code foreground}.
+     */
+    public void restoreSession(String packageName, int op, long start, long foregroundMs, long stateTime,
+                               boolean foreground) {
+        AppState state = stateFor(packageName);
+        boolean latest = stateTime >= state.lastTimestamp;
+        state.advance(stateTime);
+        if (latest) {
+            state.foreground = foreground;
+        }
+        if (state.sessionStart == null) {
+            state.sessionStart = new long[SensitiveOp.COUNT];
+            state.foregroundAtStart = new long[SensitiveOp.COUNT];
+        }
+        state.sessionStart[op] = start;
+        state.foregroundAtStart[op] = state.foregroundCumulative - foregroundMs;
+        state.recording |= 1 << op;
+    }
+
+    /**
+     * Chiude la sessione dell'app per l'operazione; ritorna null se non c'era una
+     * sessione aperta.
+     */
+    public SessionResult onSessionEnd(String packageName, int op, long timestamp) {
+        AppState state = apps.get(packageName);
+        if (state == null || !state.isRecording(op)) return null;
+
+        state.advance(timestamp);
+        state.recording &= ~(1 << op);
+        return new SessionResult(packageName, state.sessionStart[op], timestamp,
+                state.foregroundCumulative - state.foregroundAtStart[op]);
+    }
+
+    public boolean isForeground(String packageName) {
+        AppState state = apps.get(packageName);
+        return state != null && state.foreground;
+    }
+
+    /**
+     * Tempo in background della sessione in corso fino a {@code now}.
+     */
+    public long backgroundMs(String packageName, int op, long now) {
+        AppState state = apps.get(packageName);
+        if (state == null || !state.isRecording(op)) return 0;
+
+        long foregroundMs = state.foregroundCumulative - state.foregroundAtStart[op];
+        if (state.foreground) {
+            foregroundMs += Math.max(0, now - state.lastTimestamp);
+        }
+        return Math.max(0, now - state.sessionStart[op] - foregroundMs);
+    }
+
+    /**
+     * Stato foreground di ogni app nota, con l'istante fino a cui è stato contato.
+     */
+    public List<AppForeground> getForegroundStates() {
+        List<AppForeground> states = new ArrayList<>(apps.size());
+        for (Map.Entry<String, AppState> entry : apps.entrySet()) {
+            AppState state = entry.getValue();
+            states.add(new AppForeground(entry.getKey(), state.foreground, state.lastTimestamp));
+        }
+        return states;
+    }
+
+    private AppState stateFor(String packageName) {
+        AppState state = apps.get(packageName);
+        if (state == null) {
+            state = new AppState();
+            apps.put(packageName, state);
+        }
+        return state;
+    }
+
+    private static class AppState {
+        boolean foreground;
+        // Un bit per operazione con una sessione aperta
+        int recording;
+        long lastTimestamp;
+        long foregroundCumulative;
+        // Per operazione, allocati alla prima sessione dell'app
+        long[] sessionStart;
+        long[] foregroundAtStart;
+
+        boolean isRecording(int op) {
+            return (recording & (1 << op)) != 0;
+        }
+
+        void advance(long timestamp) {
+            if (lastTimestamp != 0 && foreground && timestamp > lastTimestamp) {
+                foregroundCumulative += timestamp - lastTimestamp;
+            }
+            lastTimestamp = Math.max(lastTimestamp, timestamp);
+        }
+    }
+
+    // ---- Modalità batch ----
+
+    /**
+     * Incrocia sessioni e intervalli foreground. Le sessioni di una stessa app non si
+     * sovrappongono; gli intervalli foreground possono sovrapporsi.
+     */
+    public static List<SessionResult> join(List<Interval> sessions, List<Interval> foreground) {
+        Event[] events = new Event[2 * (sessions.size() + foreground.size())];
+        int n = 0;
+        for (Interval s : sessions) {
+            events[n++] = new Event(s.packageName, s.start, EVENT_SESSION_START);
+            events[n++] = new Event(s.packageName, s.end, EVENT_SESSION_END);
+        }
+        for (Interval f : foreground) {
+            events[n++] = new Event(f.packageName, f.start, EVENT_FOREGROUND_ON);
+            events[n++] = new Event(f.packageName, f.end, EVENT_FOREGROUND_OFF);
+        }
+        return sweep(events, n);
+    }
+
+    private static List<SessionResult> sweep(Event[] events, int count) {
+        Arrays.sort(events, 0, count, (a, b) -> {
+            int c = a.packageName.compareTo(b.packageName);
+            if (c != 0) return c;
+            c = Long.compare(a.timestamp, b.timestamp);
+            return c != 0 ? c : Integer.compare(a.kind, b.kind);
+        });
+
+        List<SessionResult> results = new ArrayList<>();
+        String current = null;
+        int foregroundDepth = 0;
+        long foregroundCumulative = 0;
+        long lastTimestamp = 0;
+        long sessionStart = -1;
+        long foregroundAtStart = 0;
+
+        for (int i = 0; i < count; i++) {
+            Event e = events[i];
+            if (!e.packageName.equals(current)) {
+                current = e.packageName;
+                foregroundDepth = 0;
+                foregroundCumulative = 0;
+                lastTimestamp = e.timestamp;
+                sessionStart = -1;
+            }
+
+            if (foregroundDepth > 0) {
+                foregroundCumulative += e.timestamp - lastTimestamp;
+            }
+            lastTimestamp = e.timestamp;
+
+            switch (e.kind) {
+                case EVENT_FOREGROUND_ON:
+                    foregroundDepth++;
+                    break;
+                case EVENT_FOREGROUND_OFF:
+                    if (foregroundDepth > 0) foregroundDepth--;
+                    break;
+                case EVENT_SESSION_START:
+                    sessionStart = e.timestamp;
+                    foregroundAtStart = foregroundCumulative;
+                    break;
+                case EVENT_SESSION_END:
+                    if (sessionStart >= 0) {
+                        results.add(new SessionResult(current, sessionStart, e.timestamp,
+                                foregroundCumulative - foregroundAtStart));
+                        sessionStart = -1;
+                    }
+                    break;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Ricostruisce dallo storico le sessioni del microfono che iniziano in [from, to) e ne
+     * calcola il tempo in background. Sessioni e intervalli non chiusi vengono tagliati a {@code to}.
+     *
+     * Anche i record precedenti a {@code from} vengono letti, solo per lo stato
+     * foreground delle app all'inizio dell'intervallo: un'app può essere entrata in
+     * foreground prima di {@code from}. Lo storico raw copre al più la retention della
+     * compattazione, quindi la lettura resta limitata.
+     */
+    public static List<SessionResult> joinHistory(HistorySource history, long from, long to) throws IOException {
+        List<Interval> sessions = new ArrayList<>();
+        List<Interval> foreground = new ArrayList<>();
+        Map<String, Long> openSessions = new HashMap<>();
+        Map<String, Long> openForeground = new HashMap<>();
+
+        history.scan(to, (type, timestamp, packageName) -> {
+            boolean before = timestamp < from;
+            switch (type) {
+                case MicHistoryStore.TYPE_SESSION_START:
+                    if (!before) openSessions.put(packageName, timestamp);
+                    break;
+                case MicHistoryStore.TYPE_SESSION_END:
+                    if (!before) close(openSessions, sessions, packageName, timestamp);
+                    break;
+                case MicHistoryStore.TYPE_APP_FOREGROUND:
+                    if (!openForeground.containsKey(packageName)) {
+                        openForeground.put(packageName, timestamp);
+                    }
+                    break;
+                case MicHistoryStore.TYPE_APP_BACKGROUND:
+                    if (before) {
+                        openForeground.remove(packageName);
+                    } else {
+                        close(openForeground, foreground, packageName, timestamp);
+                    }
+                    break;
+            }
+        });
+        for (Map.Entry<String, Long> open : openSessions.entrySet()) {
+            sessions.add(new Interval(open.getKey(), open.getValue(), to));
+        }
+        for (Map.Entry<String, Long> open : openForeground.entrySet()) {
+            foreground.add(new Interval(open.getKey(), open.getValue(), to));
+        }
+
+        List<SessionResult> results = join(sessions, foreground);
+        List<SessionResult> inRange = new ArrayList<>(results.size());
+        for (SessionResult result : results) {
+            if (result.start >= from) inRange.add(result);
+        }
+        return inRange;
+    }
+
+    /**
+     * Storico letto da {@link #joinHistory}, senza dipendere da come e dove è salvato
+     * (vedi {@link MicHistoryStore}).
+     */
+    public interface HistorySource {
+        /**
+         * Consegna i record del microfono con timestamp minore di {@code to}, dal più
+         * vecchio.
+         */
+        void scan(long to, HistorySink sink) throws IOException;
+    }
+
+    public interface HistorySink {
+        /**
+         * @param type uno dei {@code MicHistoryStore.TYPE_*}
+         */
+        void onRecord(byte type, long timestamp, String packageName);
+    }
+
+    private static void close(Map<String, Long> open, List<Interval> out, String packageName, long end) {
+        Long start = open.remove(packageName);
+        if (start != null && end >= start) {
+            out.add(new Interval(packageName, start, end));
+        }
+    }
+
+    private static class Event {
+        final String packageName;
+        final long timestamp;
+        final int kind;
+
+        Event(String packageName, long timestamp, int kind) {
+            this.packageName = packageName;
+            this.timestamp = timestamp;
+            this.kind = kind;
+        }
+    }
+
+    public static class Interval {
+        public final String packageName;
+        public final long start;
+        public final long end;
+
+        public Interval(String packageName, long start, long end) {
+            this.packageName = packageName;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    public static class AppForeground {
+        public final String packageName;
+        public final boolean foreground;
+        public final long since;
+
+        public AppForeground(String packageName, boolean foreground, long since) {
+            this.packageName = packageName;
+            this.foreground = foreground;
+            this.since = since;
+        }
+    }
+
+    public static class SessionResult {
+        public final String packageName;
+        public final long start;
+        public final long end;
+        public final long foregroundMs;
+        public final long backgroundMs;
+
+        public SessionResult(String packageName, long start, long end, long foregroundMs) {
+            this.packageName = packageName;
+            this.start = start;
+            this.end = end;
+            this.foregroundMs = foregroundMs;
+            this.backgroundMs = Math.max(0, end - start - foregroundMs);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.example.guardian;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Persistenza dei profili d'uso di {@link AppBaselines} tramite {@link AtomicFile}.
+ *
+ * Lo stato viene serializzato dal chiamante e scritto su un thread dedicato; come per
+ * {@link SessionCheckpoint}, conta solo l'ultimo snapshot in attesa.
+ */
+public class BaselineStore {
+
+    private static final String TAG = "BaselineStore";
+    private static final String FILE_NAME = "app_baselines.bin";
+
+    private final AtomicFile file;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+    private final AtomicReference<byte[]> pending = new AtomicReference<>();
+
+    public BaselineStore(Context context) {
+        file = new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+    }
+
+    /**
+     * Salva in modo asincrono i profili, se sono cambiati dall'ultimo salvataggio.
+     */
+    public void save(AppBaselines baselines) {
+        if (!baselines.isDirty()) return;
+        if (pending.getAndSet(baselines.toByteArray()) == null) {
+            writer.execute(() -> write(pending.getAndSet(null)));
+        }
+    }
+
+    private void write(byte[] data) {
+        FileOutputStream fos = null;
+        try {
+            fos = file.startWrite();
+            fos.write(data);
+            file.finishWrite(fos);
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing app baselines", e);
+            if (fos != null) {
+                file.failWrite(fos);
+            }
+        }
+    }
+
+    /**
+     * Legge i profili salvati in modo sincrono; senza file o con un file illeggibile
+     * riparte da profili vuoti.
+     */
+    public AppBaselines restore() {
+        AppBaselines baselines = new AppBaselines(TimeZone.getDefault());
+        try {
+            // readFully recupera anche il backup di una scrittura interrotta
+            baselines.restore(file.readFully());
+            Log.d(TAG, "Restored baselines for " + baselines.size() + " apps");
+        } catch (FileNotFoundException e) {
+            return baselines;
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable app baselines", e);
+            baselines = new AppBaselines(TimeZone.getDefault());
+        }
+        return baselines;
+    }
+}
@@ -0,0 +1,591 @@
+package com.example.guardian;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Pipeline di rilevamento: dagli snapshot dei client che registrano e dagli UsageEvents
+ * ricava le sessioni di utilizzo del microfono, il loro stato foreground/background e
+ * gli aggiornamenti per la UI.
+ *
+ * Le altre operazioni sensibili ({@link SensitiveOp}) passano per la stessa pipeline:
+ * ogni operazione ha solo il proprio debounce e le proprie sessioni, mentre UsageEvents
+ * (un solo cursore), stato foreground, risoluzione dei package e tick sono condivisi.
+ * Un'operazione senza app attive non costa nulla al tick. Regole di allarme e profili
+ * d'uso restano del microfono.
+ *
+ * Non dipende da Android: gli ingressi arrivano da {@link EventSources} e le uscite vanno
+ * al {@link Listener}, così la stessa pipeline gira nel servizio e in
+ * {@link TraceReplayer}. Gli ingressi possono essere salvati in una traccia con
+ * {@link #setTraceRecorder(TraceRecorder)}.
+ */
+public class DetectionPipeline {
+
+    public static final long CALLBACK_QUIET_WINDOW = 150; // silenzio che chiude una raffica
+    public static final long CALLBACK_MAX_DELAY = 500; // ritardo massimo garantito
+    private static final long ACTIVE_WINDOW = 10000; // attiva se usata negli ultimi 10 secondi
+    private static final long MAX_USAGE_EVENTS_WINDOW = 60 * 60 * 1000; // 1 ora
+
+    public interface Listener {
+        /**
+         * @param op           operazione della sessione, vedi {@link SensitiveOp}
+         * @param anomalyScore sorpresa in bit rispetto al profilo dell'app, 0 senza profilo
+         */
+        void onSessionStarted(int op, String packageName, long timestamp, boolean isForeground, float anomalyScore);
+
+        void onSessionStateChanged(int op, String packageName, long timestamp, boolean isForeground);
+
+        void onSessionEnded(int op, String packageName, long timestamp, boolean isForeground,
+                            BackgroundRecordingAnalyzer.SessionResult result, float anomalyScore);
+
+        void onAppForegroundChanged(String packageName, long timestamp, boolean isForeground);
+
+        /**
+         * Campioni di tutte le operazioni attive, uno per app e operazione.
+         */
+        void onUsage(List<UsageSample> samples);
+
+        /**
+         * Inizio della sessione più vecchia e nomi delle app, su tutte le operazioni.
+         */
+        void onSessionsChanged(long sessionStart, String[] appNames);
+
+        void onActiveAppsChanged(int op, List<String> activeApps);
+    }
+
+    private final EventSources.Clock clock;
+    private final EventSources.PackageResolver resolver;
+    private final EventSources.UsageEventSource usageEvents;
+    private final EventSources.Logger logger;
+    private final Listener listener;
+    private final String ownPackage;
+    private final OpChannel[] channels = new OpChannel[SensitiveOp.COUNT];
+
+    // Stato condiviso dalle operazioni (protetto dal lock della pipeline)
+    private final BackgroundRecordingAnalyzer analyzer = new BackgroundRecordingAnalyzer();
+    // Ultimo UsageEvent di ogni app, per stabilire se è attiva
+    private final Map<String, Long> lastUsageEvent = new HashMap<>();
+    private boolean sessionsChanged = false;
+    private long usageEventsCursor = 0;
+    // Gli UsageEvents precedenti aggiornano solo lo stato foreground, vedi setUsageHistoryStart
+    private long usageHistoryStart = 0;
+    // Ultimo istante in cui le sessioni ripristinate erano sicuramente attive, e fino al
+    // quale i loro avvisi sono già stati inviati; -1 se ignoto
+    private long restoredAliveAt = -1;
+    private final EventSources.UsageEventSink usageSink = this::onUsageEvent;
+
+    private volatile TraceRecorder traceRecorder;
+    private volatile AlertRulesEngine alertEngine;
+    private volatile AppBaselines baselines;
+    private volatile PackageFilter packageFilter;
+
+    public DetectionPipeline(EventSources.Clock clock, EventSources.Timer timer,
+                             EventSources.PackageResolver resolver, EventSources.UsageEventSource usageEvents,
+                             EventSources.Logger logger, String ownPackage, Listener listener) {
+        this.clock = clock;
+        this.resolver = resolver;
+        this.usageEvents = usageEvents;
+        this.logger = logger;
+        this.ownPackage = ownPackage;
+        this.listener = listener;
+        for (int op = 0; op < SensitiveOp.COUNT; op++) {
+            channels[op] = new OpChannel(op, timer);
+        }
+    }
+
+    public void setTraceRecorder(TraceRecorder recorder) {
+        if (recorder != null) {
+            synchronized (this) {
+                // Dopo le sessioni, perché il loro stato foreground può essere meno recente
+                long now = clock.now();
+                recorder.recordOpenSessions(now, getOpenSessions());
+                recorder.recordUsageState(now, usageEventsCursor, analyzer.getForegroundStates());
+            }
+        }
+        traceRecorder = recorder;
+    }
+
+    public TraceRecorder getTraceRecorder() {
+        return traceRecorder;
+    }
+
+    /**
+     * Regole di allarme valutate a ogni transizione di sessione; null per disattivarle.
+     */
+    public synchronized void setAlertEngine(AlertRulesEngine engine) {
+        if (engine != null) {
+            // Le sessioni già aperte entrano subito nel nuovo motore, senza ripetere gli
+            // avvisi inviati prima del riavvio
+            long now = clock.now();
+            for (SessionEntry entry : channels[SensitiveOp.MICROPHONE].openSessions.values()) {
+                engine.onSessionRestored(entry, restoredAliveAt, now);
+            }
+        }
+        alertEngine = engine;
+    }
+
+    public AlertRulesEngine getAlertEngine() {
+        return alertEngine;
+    }
+
+    /**
+     * Profili d'uso delle app, aggiornati alla fine di ogni sessione; null per non
+     * calcolare i punteggi di anomalia.
+     */
+    public void setBaselines(AppBaselines baselines) {
+        this.baselines = baselines;
+    }
+
+    public AppBaselines getBaselines() {
+        return baselines;
+    }
+
+    /**
+     * Filtro applicato ai package appena risolti, prima di ogni altra elaborazione;
+     * null per riportare tutti i package.
+     */
+    public void setPackageFilter(PackageFilter filter) {
+        this.packageFilter = filter;
+    }
+
+    public PackageFilter getPackageFilter() {
+        return packageFilter;
+    }
+
+    /**
+     * Ripristina le sessioni aperte salvate prima di un riavvio, prima di qualsiasi callback.
+     */
+    public void restore(List<SessionEntry> sessions) {
+        restore(sessions, -1);
+    }
+
+    /**
+     * Come {@link #restore(List)}, ma le sessioni che il primo snapshot della loro
+     * operazione non trova più attive si chiudono ad {@code aliveAt} (ultimo checkpoint o
+     * heartbeat), non all'istante del riavvio: il servizio non sa quando sono finite
+     * mentre era fermo.
+     */
+    public synchronized void restore(List<SessionEntry> sessions, long aliveAt) {
+        restoredAliveAt = aliveAt;
+        for (SessionEntry entry : sessions) {
+            if (!SensitiveOp.isValid(entry.op)) continue;
+            OpChannel channel = channels[entry.op];
+            channel.openSessions.put(entry.packageName, entry);
+            channel.restored.add(entry.packageName);
+            if (!channel.activeApps.contains(entry.packageName)) {
+                channel.activeApps.add(entry.packageName);
+            }
+            analyzer.restoreSession(entry.packageName, entry.op, entry.startTime, entry.foregroundMs,
+                    entry.stateTime, entry.isForeground);
+        }
+        sessionsChanged |= !sessions.isEmpty();
+    }
+
+    /**
+     * Riprende la lettura degli UsageEvents e lo stato foreground delle app registrati
+     * all'inizio di una traccia.
+     */
+    public synchronized void restoreUsageState(long cursor, List<BackgroundRecordingAnalyzer.AppForeground> states) {
+        usageEventsCursor = cursor;
+        for (BackgroundRecordingAnalyzer.AppForeground state : states) {
+            analyzer.onForegroundChanged(state.packageName, state.since, state.foreground);
+        }
+    }
+
+    /**
+     * Gli UsageEvents prima di {@code start} aggiornano lo stato foreground delle app ma
+     * non arrivano a {@link Listener#onAppForegroundChanged}: fino a lì lo storico lo
+     * scrive il backfill del periodo in cui il servizio era fermo.
+     */
+    public synchronized void setUsageHistoryStart(long start) {
+        usageHistoryStart = start;
+    }
+
+    /**
+     * Nuovo insieme di client che registrano, identificati dall'uid. Va chiamato sempre
+     * dallo stesso thread del timer.
+     */
+    public void onRecordingConfigChanged(int[] clientUids) {
+        onOpActiveChanged(SensitiveOp.MICROPHONE, clientUids);
+    }
+
+    /**
+     * Nuovo insieme di uid che stanno usando l'operazione. Va chiamato sempre dallo
+     * stesso thread del timer.
+     */
+    public void onOpActiveChanged(int op, int[] clientUids) {
+        if (!SensitiveOp.isValid(op)) return;
+
+        TraceRecorder recorder = traceRecorder;
+        PackageFilter filter = packageFilter;
+
+        List<String> apps = new ArrayList<>(clientUids.length);
+        int[] traced = recorder != null ? new int[clientUids.length] : null;
+        int tracedCount = 0;
+        for (int uid : clientUids) {
+            String packageName = resolvePackage(recorder, uid);
+            // I package filtrati si fermano qui, e restano fuori anche dalla traccia:
+            // il replay senza filtro dà le stesse uscite
+            if (packageName != null && filter != null && filter.isIgnored(packageName)) continue;
+
+            if (traced != null) {
+                traced[tracedCount++] = uid;
+            }
+            if (packageName != null && !packageName.equals(ownPackage)) {
+                apps.add(packageName);
+            }
+        }
+        if (recorder != null) {
+            recorder.recordRecordingConfig(op, clock.now(),
+                    tracedCount == traced.length ? traced : Arrays.copyOf(traced, tracedCount));
+        }
+
+        // Le raffiche di callback vengono accorpate prima della catena completa
+        channels[op].debouncer.onSnapshot(apps);
+    }
+
+    /**
+     * Emette subito lo snapshot in sospeso. Va chiamato dal thread del timer.
+     */
+    public void flush() {
+        TraceRecorder recorder = traceRecorder;
+        if (recorder != null) {
+            recorder.recordFlush(clock.now());
+        }
+        for (OpChannel channel : channels) {
+            channel.debouncer.flush();
+        }
+    }
+
+    /**
+     * Controllo periodico delle app che stanno usando un'operazione.
+     */
+    public synchronized void tick() {
+        boolean active = hasActiveApps();
+        if (!active && !sessionsChanged) return;
+
+        TraceRecorder recorder = traceRecorder;
+        if (recorder != null) {
+            recorder.recordTick(clock.now());
+        }
+        if (active) {
+            // Un solo aggiornamento per tutte le operazioni
+            long now = clock.now();
+            pollForegroundEvents(now);
+            List<UsageSample> samples = new ArrayList<>();
+            for (OpChannel channel : channels) {
+                addUsageSamples(channel, channel.activeApps, now, samples);
+            }
+            listener.onUsage(samples);
+        }
+        flushSessionUpdate();
+    }
+
+    public synchronized boolean hasActiveApps() {
+        for (OpChannel channel : channels) {
+            if (!channel.activeApps.isEmpty()) return true;
+        }
+        return false;
+    }
+
+    public synchronized List<String> getActiveApps(int op) {
+        return new ArrayList<>(channels[op].activeApps);
+    }
+
+    public synchronized List<SessionEntry> getOpenSessions() {
+        List<SessionEntry> sessions = new ArrayList<>();
+        for (OpChannel channel : channels) {
+            sessions.addAll(channel.openSessions.values());
+        }
+        return sessions;
+    }
+
+    public void configureDebouncer(long quietWindowMs, long maxDelayMs) {
+        for (OpChannel channel : channels) {
+            channel.debouncer.configure(quietWindowMs, maxDelayMs);
+        }
+    }
+
+    public String describeDebouncerStats() {
+        StringBuilder sb = new StringBuilder(channels[SensitiveOp.MICROPHONE].debouncer.describeStats());
+        for (int op = SensitiveOp.MICROPHONE + 1; op < SensitiveOp.COUNT; op++) {
+            sb.append("; ").append(SensitiveOp.name(op)).append(": ").append(channels[op].debouncer.describeStats());
+        }
+        return sb.toString();
+    }
+
+    private synchronized void applySnapshot(OpChannel channel, RecordingCallbackDebouncer.Snapshot snapshot) {
+        List<String> apps = snapshot.recordingApps;
+        if (snapshot.burstSize > 1) {
+            logger.log("Coalesced burst of " + snapshot.burstSize + " " + SensitiveOp.name(channel.op)
+                    + " callbacks over " + (snapshot.settledTime - snapshot.firstCallbackTime) + "ms");
+        }
+
+        // Ogni fronte della raffica, all'istante del suo callback
+        List<String> startedInBurst = new ArrayList<>();
+        for (RecordingCallbackDebouncer.Edge edge : snapshot.edges) {
+            if (edge.recording) {
+                if (!channel.activeApps.contains(edge.packageName)) {
+                    channel.activeApps.add(edge.packageName);
+                    pollForegroundEvents(edge.timestamp);
+                    recordSessionState(channel, edge.packageName, edge.timestamp,
+                            analyzer.isForeground(edge.packageName));
+                    startedInBurst.add(edge.packageName);
+                }
+            } else if (channel.activeApps.remove(edge.packageName)) {
+                if (startedInBurst.remove(edge.packageName)) {
+                    recordShortSession(channel, edge.packageName, edge.timestamp);
+                } else {
+                    recordSessionEnd(channel, edge.packageName, edge.timestamp);
+                }
+            }
+        }
+
+        // Le app ancora diverse (sessioni ripristinate, filtro cambiato) si allineano ora
+        if (!snapshot.edges.isEmpty() || !channel.activeApps.equals(apps)) {
+            recordEndedSessions(channel, apps);
+            channel.activeApps.clear();
+            channel.activeApps.addAll(apps);
+
+            if (!apps.isEmpty()) {
+                logger.log("Active " + SensitiveOp.name(channel.op) + " apps detected: " + apps);
+                long now = clock.now();
+                pollForegroundEvents(now);
+                List<UsageSample> samples = new ArrayList<>(apps.size());
+                addUsageSamples(channel, apps, now, samples);
+                listener.onUsage(samples);
+            }
+            listener.onActiveAppsChanged(channel.op, new ArrayList<>(apps));
+        }
+        channel.restored.clear();
+        flushSessionUpdate();
+    }
+
+    private void recordEndedSessions(OpChannel channel, List<String> apps) {
+        long now = clock.now();
+        for (String packageName : channel.activeApps) {
+            if (!apps.contains(packageName)) {
+                recordSessionEnd(channel, packageName, restoredEnd(channel, packageName, now));
+            }
+        }
+    }
+
+    // Fine di una sessione ripristinata che non è più attiva, mai prima del suo ultimo stato
+    private long restoredEnd(OpChannel channel, String packageName, long now) {
+        SessionEntry session = channel.openSessions.get(packageName);
+        if (restoredAliveAt < 0 || session == null || !channel.restored.contains(packageName)) return now;
+        return Math.min(now, Math.max(restoredAliveAt, session.stateTime));
+    }
+
+    private void recordSessionEnd(OpChannel channel, String packageName, long timestamp) {
+        SessionEntry session = channel.openSessions.remove(packageName);
+        if (session == null) return;
+        sessionsChanged = true;
+
+        pollForegroundEvents(timestamp);
+        BackgroundRecordingAnalyzer.SessionResult result = analyzer.onSessionEnd(packageName, channel.op, timestamp);
+        float score = 0;
+        if (channel.op == SensitiveOp.MICROPHONE) {
+            AlertRulesEngine engine = alertEngine;
+            if (engine != null) {
+                engine.onSessionEnded(packageName, timestamp);
+            }
+            AppBaselines profiles = baselines;
+            score = profiles != null ? profiles.onSessionEnded(packageName, session.startTime, timestamp) : 0;
+        }
+        listener.onSessionEnded(channel.op, packageName, timestamp, session.isForeground, result, score);
+    }
+
+    /**
+     * Sessione iniziata e terminata all'interno di una raffica di callback: la UI riceve
+     * anche il campione dell'inizio, che altrimenti non vedrebbe mai.
+     */
+    private void recordShortSession(OpChannel channel, String packageName, long end) {
+        SessionEntry session = channel.openSessions.get(packageName);
+        if (session != null) {
+            List<UsageSample> samples = new ArrayList<>(1);
+            samples.add(new UsageSample(channel.op, packageName, appName(packageName), session.startTime,
+                    session.isForeground, session.isForeground, 0,
+                    anomalyScore(channel, packageName, session.startTime)));
+            listener.onUsage(samples);
+        }
+        recordSessionEnd(channel, packageName, end);
+        logger.log("Short " + SensitiveOp.name(channel.op) + " session inside callback burst: " + packageName);
+    }
+
+    private void recordSessionState(OpChannel channel, String packageName, long timestamp, boolean isForeground) {
+        boolean microphone = channel.op == SensitiveOp.MICROPHONE;
+        SessionEntry previous = channel.openSessions.get(packageName);
+        if (previous == null) {
+            channel.openSessions.put(packageName,
+                    new SessionEntry(channel.op, packageName, timestamp, isForeground));
+            sessionsChanged = true;
+            analyzer.onSessionStart(packageName, channel.op, timestamp);
+            AlertRulesEngine engine = alertEngine;
+            if (microphone && engine != null) {
+                engine.onSessionStarted(packageName, timestamp, isForeground);
+            }
+            AppBaselines profiles = baselines;
+            float score = microphone && profiles != null ? profiles.scoreStart(packageName, timestamp) : 0;
+            listener.onSessionStarted(channel.op, packageName, timestamp, isForeground, score);
+        } else if (previous.isForeground != isForeground) {
+            long foregroundMs = timestamp - previous.startTime - analyzer.backgroundMs(packageName, channel.op, timestamp);
+            channel.openSessions.put(packageName, new SessionEntry(channel.op, packageName,
+                    previous.startTime, isForeground, timestamp, Math.max(0, foregroundMs)));
+            AlertRulesEngine engine = alertEngine;
+            if (microphone && engine != null) {
+                engine.onSessionStateChanged(packageName, timestamp, isForeground);
+            }
+            listener.onSessionStateChanged(channel.op, packageName, timestamp, isForeground);
+        }
+    }
+
+    /**
+     * Notifica l'inizio della sessione corrente solo quando l'insieme delle sessioni
+     * cambia: la durata viene calcolata localmente dalla UI.
+     */
+    private void flushSessionUpdate() {
+        if (!sessionsChanged) return;
+        sessionsChanged = false;
+
+        long sessionStart = 0;
+        int count = 0;
+        for (OpChannel channel : channels) {
+            count += channel.openSessions.size();
+        }
+        String[] appNames = new String[count];
+        int i = 0;
+        for (OpChannel channel : channels) {
+            for (SessionEntry entry : channel.openSessions.values()) {
+                sessionStart = sessionStart == 0 ? entry.startTime : Math.min(sessionStart, entry.startTime);
+                String appName = appName(entry.packageName);
+                appNames[i++] = channel.op == SensitiveOp.MICROPHONE
+                        ? appName : appName + " (" + SensitiveOp.label(channel.op) + ")";
+            }
+        }
+        listener.onSessionsChanged(sessionStart, appNames);
+    }
+
+    // Gli UsageEvents vanno già letti fino a now
+    private void addUsageSamples(OpChannel channel, List<String> apps, long now, List<UsageSample> samples) {
+        for (String packageName : apps) {
+            boolean isForeground = analyzer.isForeground(packageName);
+            Long lastEvent = lastUsageEvent.get(packageName);
+            boolean isActive = isForeground || (lastEvent != null && now - lastEvent < ACTIVE_WINDOW);
+
+            recordSessionState(channel, packageName, now, isForeground);
+            UsageSample sample = new UsageSample(channel.op, packageName, appName(packageName), now,
+                    isActive, isForeground, analyzer.backgroundMs(packageName, channel.op, now),
+                    anomalyScore(channel, packageName, now));
+            samples.add(sample);
+        }
+    }
+
+    // Punteggio della sessione aperta dell'app, durata fin qui compresa
+    private float anomalyScore(OpChannel channel, String packageName, long now) {
+        AppBaselines profiles = baselines;
+        SessionEntry session = channel.openSessions.get(packageName);
+        if (channel.op != SensitiveOp.MICROPHONE || profiles == null || session == null) return 0;
+        return profiles.scoreOpen(packageName, session.startTime, now);
+    }
+
+    /**
+     * Legge gli UsageEvents arrivati dall'ultima lettura e aggiorna lo stato foreground
+     * delle app.
+     */
+    private void pollForegroundEvents(long now) {
+        long from = Math.max(usageEventsCursor, now - MAX_USAGE_EVENTS_WINDOW);
+        if (from >= now) return;
+
+        TraceRecorder recorder = traceRecorder;
+        if (recorder != null) {
+            recorder.recordUsageQuery(now, from, usageEvents, usageSink);
+        } else {
+            usageEvents.query(from, now, usageSink);
+        }
+        usageEventsCursor = now;
+    }
+
+    private void onUsageEvent(String packageName, long timestamp, int type) {
+        lastUsageEvent.put(packageName, timestamp);
+        boolean wasForeground = analyzer.isForeground(packageName);
+
+        boolean live = timestamp >= usageHistoryStart;
+        if (type == EventSources.USAGE_ACTIVITY_RESUMED && !wasForeground) {
+            analyzer.onForegroundChanged(packageName, timestamp, true);
+            if (live) {
+                listener.onAppForegroundChanged(packageName, timestamp, true);
+            }
+        } else if ((type == EventSources.USAGE_ACTIVITY_PAUSED
+                || type == EventSources.USAGE_ACTIVITY_STOPPED) && wasForeground) {
+            analyzer.onForegroundChanged(packageName, timestamp, false);
+            if (live) {
+                listener.onAppForegroundChanged(packageName, timestamp, false);
+            }
+        }
+    }
+
+    private String resolvePackage(TraceRecorder recorder, int uid) {
+        String packageName = resolver.packageForUid(uid);
+        if (recorder != null) {
+            recorder.recordPackage(uid, packageName);
+        }
+        return packageName;
+    }
+
+    private String appName(String packageName) {
+        String appName = resolver.appName(packageName);
+        TraceRecorder recorder = traceRecorder;
+        if (recorder != null) {
+            recorder.recordAppName(packageName, appName);
+        }
+        return appName;
+    }
+
+    // Debounce e sessioni di una singola operazione
+    private final class OpChannel {
+        final int op;
+        final RecordingCallbackDebouncer debouncer;
+        final List<String> activeApps = new ArrayList<>();
+        final Map<String, SessionEntry> openSessions = new HashMap<>();
+        // Sessioni ripristinate non ancora confrontate con uno snapshot
+        final Set<String> restored = new HashSet<>();
+
+        OpChannel(int op, EventSources.Timer timer) {
+            this.op = op;
+            this.debouncer = new RecordingCallbackDebouncer(timer, clock,
+                    CALLBACK_QUIET_WINDOW, CALLBACK_MAX_DELAY, snapshot -> applySnapshot(this, snapshot));
+        }
+    }
+
+    /**
+     * Stato di un'app che sta usando un'operazione, a un dato istante.
+     */
+    public static class UsageSample {
+        public final int op;
+        public final String packageName;
+        public final String appName;
+        public final long timestamp;
+        public final boolean isActive;
+        public final boolean isForeground;
+        public final long backgroundMs;
+        public final float anomalyScore;
+
+        public UsageSample(int op, String packageName, String appName, long timestamp,
+                           boolean isActive, boolean isForeground, long backgroundMs, float anomalyScore) {
+            this.op = op;
+            this.packageName = packageName;
+            this.appName = appName;
+            this.timestamp = timestamp;
+            this.isActive = isActive;
+            this.isForeground = isForeground;
+            this.backgroundMs = backgroundMs;
+            this.anomalyScore = anomalyScore;
+        }
+    }
+}
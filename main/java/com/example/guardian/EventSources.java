@@ -0,0 +1,53 @@
+package com.example.guardian;
+
+/**
+ * Sorgenti di eventi della pipeline di rilevamento, separate dalle API Android.
+ *
+ * Sul dispositivo sono implementate dal servizio (AudioManager, UsageStatsManager,
+ * PackageManager, Handler); in {@link TraceReplayer} vengono alimentate da una traccia
+ * registrata, con un orologio virtuale.
+ */
+public final class EventSources {
+
+    // Tipi di UsageEvents rilevanti per la pipeline (stessi valori di UsageEvents.Event)
+    public static final int USAGE_ACTIVITY_RESUMED = 1;
+    public static final int USAGE_ACTIVITY_PAUSED = 2;
+    public static final int USAGE_ACTIVITY_STOPPED = 23;
+
+    private EventSources() {
+    }
+
+    public interface Clock {
+        long now();
+    }
+
+    public interface Timer {
+        void schedule(Runnable task, long delayMs);
+
+        void cancel(Runnable task);
+    }
+
+    public interface PackageResolver {
+        /**
+         * Package dell'uid, o null se sconosciuto.
+         */
+        String packageForUid(int uid);
+
+        String appName(String packageName);
+    }
+
+    public interface UsageEventSource {
+        /**
+         * Consegna in ordine di tempo gli eventi in [from, to).
+         */
+        void query(long from, long to, UsageEventSink sink);
+    }
+
+    public interface UsageEventSink {
+        void onUsageEvent(String packageName, long timestamp, int type);
+    }
+
+    public interface Logger {
+        void log(String message);
+    }
+}
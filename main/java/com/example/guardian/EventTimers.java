@@ -0,0 +1,164 @@
+package com.example.guardian;
+
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Tutti i timer del thread degli eventi su una sola {@link TimerWheel}: al timer di base
+ * (l'Handler del thread, sul dispositivo) arriva al più un risveglio in sospeso, sempre
+ * per la scadenza più vicina. Le scadenze che cadono nello stesso tick vengono eseguite
+ * nello stesso risveglio.
+ *
+ * Implementa anche {@link EventSources.Timer}, per i componenti che pianificano dei
+ * Runnable: il loro Timeout viene creato una volta e riusato. Va usato da un solo
+ * thread, lo stesso del timer di base.
+ */
+public class EventTimers implements EventSources.Timer {
+
+    private final EventSources.Clock clock;
+    private final EventSources.Timer wakeupTimer;
+    private final long tickMs;
+    private final TimerWheel wheel;
+    private final Map<Runnable, TimerWheel.Timeout> runnableTimeouts = new IdentityHashMap<>();
+    private final Runnable wakeupTask = this::onWakeup;
+    // Istante del risveglio in sospeso sul timer di base, MAX_VALUE se nessuno
+    private long armedAt = Long.MAX_VALUE;
+    // Durante un advance il riarmo è rimandato alla fine
+    private boolean advancing;
+
+    // Statistiche
+    private long wakeups;
+    private long idleWakeups;
+    private long rearms;
+
+    public EventTimers(EventSources.Clock clock, EventSources.Timer wakeupTimer, long tickMs) {
+        this.clock = clock;
+        this.wakeupTimer = wakeupTimer;
+        this.tickMs = tickMs;
+        this.wheel = new TimerWheel(tickMs, clock.now());
+    }
+
+    public void schedule(TimerWheel.Timeout timeout, long deadline) {
+        cancel(timeout);
+        wheel.schedule(timeout, deadline);
+        armAt(tickCeiling(deadline));
+    }
+
+    public void schedulePeriodic(TimerWheel.Timeout timeout, long firstDeadline, long periodMs) {
+        cancel(timeout);
+        wheel.schedulePeriodic(timeout, firstDeadline, periodMs);
+        armAt(tickCeiling(firstDeadline));
+    }
+
+    public void cancel(TimerWheel.Timeout timeout) {
+        if (!timeout.isScheduled()) return;
+        long due = tickCeiling(timeout.getDeadline());
+        wheel.cancel(timeout);
+        if (due <= armedAt) {
+            // Era il timer del risveglio armato: lo sposta sulla nuova scadenza più vicina
+            disarm();
+            armAt(wheel.nextWakeup());
+        }
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMs) {
+        TimerWheel.Timeout timeout = runnableTimeouts.get(task);
+        if (timeout == null) {
+            timeout = new TimerWheel.Timeout(task);
+            runnableTimeouts.put(task, timeout);
+        }
+        schedule(timeout, clock.now() + delayMs);
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        TimerWheel.Timeout timeout = runnableTimeouts.get(task);
+        if (timeout != null) {
+            cancel(timeout);
+        }
+    }
+
+    /**
+     * Esegue le scadenze raggiunte entro {@code now} e riarma il risveglio. Sul
+     * dispositivo lo chiama il risveglio stesso; senza timer di base (benchmark,
+     * replay) va chiamato da chi fa avanzare il tempo.
+     */
+    public void advance(long now) {
+        if (armedAt <= now) {
+            armedAt = Long.MAX_VALUE;
+        }
+        runDue(now);
+        armAt(wheel.nextWakeup());
+    }
+
+    public int pending() {
+        return wheel.size();
+    }
+
+    /**
+     * Riarma il risveglio sulla scadenza più vicina, dimenticando quello in sospeso: per
+     * quando il timer di base lo ha perso (es. thread degli eventi sostituito).
+     */
+    public void rearm() {
+        advancing = false;
+        wakeupTimer.cancel(wakeupTask);
+        armedAt = Long.MAX_VALUE;
+        armAt(wheel.nextWakeup());
+    }
+
+    public long getWakeups() {
+        return wakeups;
+    }
+
+    public String describeStats() {
+        return String.format(Locale.US, "pending=%d, fired=%d, wakeups=%d (idle %d), rearms=%d, nextIn=%s",
+                wheel.size(), wheel.getFired(), wakeups, idleWakeups, rearms,
+                armedAt == Long.MAX_VALUE ? "-" : Math.max(0, armedAt - clock.now()) + "ms");
+    }
+
+    private void onWakeup() {
+        armedAt = Long.MAX_VALUE;
+        wakeups++;
+        if (runDue(clock.now()) == 0) {
+            // Solo cascade, o risveglio di un timer già cancellato
+            idleWakeups++;
+        }
+        armAt(wheel.nextWakeup());
+    }
+
+    private int runDue(long now) {
+        advancing = true;
+        try {
+            return wheel.advance(now);
+        } finally {
+            advancing = false;
+        }
+    }
+
+    private void disarm() {
+        if (armedAt != Long.MAX_VALUE) {
+            wakeupTimer.cancel(wakeupTask);
+            armedAt = Long.MAX_VALUE;
+        }
+    }
+
+    private long tickCeiling(long time) {
+        return (time + tickMs - 1) / tickMs * tickMs;
+    }
+
+    /**
+     * Anticipa il risveglio se {@code next} viene prima di quello armato; mai più di uno
+     * armato. Un nuovo timer basta confrontarlo con il risveglio armato: la scansione
+     * della ruota serve solo dopo un risveglio.
+     */
+    private void armAt(long next) {
+        if (advancing || next >= armedAt) return;
+
+        disarm();
+        armedAt = next;
+        rearms++;
+        wakeupTimer.schedule(wakeupTask, Math.max(0, next - clock.now()));
+    }
+}
@@ -0,0 +1,91 @@
+package com.example.guardian;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Job in background che compatta lo storico del microfono.
+ * Gira solo con dispositivo inattivo e in carica; se le condizioni vengono meno il
+ * lavoro si interrompe e riprende alla prossima esecuzione.
+ */
+public class HistoryCompactionJobService extends JobService {
+
+    private static final String TAG = "HistoryCompactionJob";
+    private static final int JOB_ID = 2001;
+    private static final long JOB_PERIOD = 12 * 60 * 60 * 1000; // 12 ore
+
+    static final String PREFS_NAME = "history_compaction";
+
+    private volatile boolean stopRequested = false;
+
+    public static void schedule(Context context) {
+        JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (jobScheduler == null || jobScheduler.getPendingJob(JOB_ID) != null) {
+            return;
+        }
+
+        JobInfo job = new JobInfo.Builder(JOB_ID, new ComponentName(context, HistoryCompactionJobService.class))
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .setPeriodic(JOB_PERIOD)
+                .setPersisted(true)
+                .build();
+
+        if (jobScheduler.schedule(job) == JobScheduler.RESULT_SUCCESS) {
+            Log.d(TAG, "Compaction job scheduled");
+        }
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        stopRequested = false;
+        new Thread(() -> {
+            MicHistoryStore store = MicHistoryStore.getInstance(this);
+            HistoryCompactor.Report report = new HistoryCompactor(store)
+                    .run(System.currentTimeMillis(), () -> stopRequested);
+
+            if (report.completed) {
+                saveReport(report);
+            }
+            // Se interrotto, chiede di essere rieseguito per riprendere il lavoro
+            jobFinished(params, !report.completed);
+        }, TAG).start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        stopRequested = true;
+        return true;
+    }
+
+    private void saveReport(HistoryCompactor.Report report) {
+        getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putLong("last_run", System.currentTimeMillis())
+                .putInt("segments_compacted", report.segmentsCompacted)
+                .putInt("summaries_deleted", report.summariesDeleted)
+                .putLong("bytes_reclaimed", report.bytesReclaimed)
+                .putLong("time_spent_ms", report.durationMs)
+                .apply();
+    }
+
+    static String describeLastReport(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        if (!prefs.contains("last_run")) {
+            return "never run";
+        }
+        return String.format(java.util.Locale.US,
+                "lastRun=%d, segments=%d, summariesDeleted=%d, bytesReclaimed=%d, timeSpent=%dms",
+                prefs.getLong("last_run", 0),
+                prefs.getInt("segments_compacted", 0),
+                prefs.getInt("summaries_deleted", 0),
+                prefs.getLong("bytes_reclaimed", 0),
+                prefs.getLong("time_spent_ms", 0));
+    }
+}
@@ -0,0 +1,311 @@
+package com.example.guardian;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Selezione delle query di {@link HistoryProvider}: un sottoinsieme di SQL sufficiente
+ * per filtrare lo storico, valutato direttamente sui record letti dai segmenti.
+ * <pre>
+ * timestamp &gt;= ? AND timestamp &lt; ? AND package = 'com.example' AND op != 'camera'
+ * </pre>
+ * Condizioni {@code colonna operatore valore} unite da {@code AND}; il valore è
+ * {@code ?} (dai selectionArgs, in ordine), un numero o una stringa tra apici. Le colonne
+ * numeriche accettano tutti i confronti, quelle testuali solo {@code =} e {@code !=}.
+ *
+ * I limiti sulla colonna del tempo e l'uguaglianza sul package vengono esposti a parte,
+ * per saltare interi segmenti e scartare i record prima di costruire la riga.
+ */
+public class HistorySelection {
+
+    public static final int EQ = 0;
+    public static final int NE = 1;
+    public static final int LT = 2;
+    public static final int LE = 3;
+    public static final int GT = 4;
+    public static final int GE = 5;
+
+    /**
+     * Valori della riga corrente, per indice di colonna.
+     */
+    public interface Values {
+        long getLong(int column);
+
+        String getString(int column);
+    }
+
+    private final List<Condition> conditions;
+
+    private HistorySelection(List<Condition> conditions) {
+        this.conditions = conditions;
+    }
+
+    /**
+     * Interpreta la selezione sulle colonne indicate ({@code numeric[i]} se la colonna è
+     * numerica). Lancia IllegalArgumentException per colonne, operatori o valori non
+     * supportati, come farebbe SQLite.
+     */
+    public static HistorySelection parse(String selection, String[] selectionArgs, String[] columns,
+                                         boolean[] numeric) {
+        List<Condition> conditions = new ArrayList<>();
+        if (selection == null || selection.trim().isEmpty()) {
+            return new HistorySelection(conditions);
+        }
+
+        Tokenizer tokens = new Tokenizer(selection);
+        int nextArg = 0;
+        while (true) {
+            String name = tokens.next();
+            int column = indexOf(columns, name);
+            if (column < 0) throw new IllegalArgumentException("Unknown column " + name);
+
+            int cmp = parseOperator(tokens.next());
+            if (!numeric[column] && cmp != EQ && cmp != NE) {
+                throw new IllegalArgumentException("Unsupported comparison on " + name);
+            }
+
+            String value = tokens.next();
+            if ("?".equals(value)) {
+                if (selectionArgs == null || nextArg >= selectionArgs.length) {
+                    throw new IllegalArgumentException("Missing selection argument " + (nextArg + 1));
+                }
+                value = selectionArgs[nextArg++];
+            } else if (tokens.wasQuoted()) {
+                // Già senza apici
+            } else if (!numeric[column]) {
+                throw new IllegalArgumentException("Expected a string for " + name);
+            }
+
+            Condition condition = new Condition(column, cmp);
+            if (numeric[column]) {
+                try {
+                    condition.number = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Expected a number for " + name + ": " + value);
+                }
+            } else {
+                condition.text = value;
+            }
+            conditions.add(condition);
+
+            if (!tokens.hasNext()) break;
+            String and = tokens.next();
+            if (!"AND".equalsIgnoreCase(and)) {
+                throw new IllegalArgumentException("Only AND is supported, found " + and);
+            }
+        }
+        return new HistorySelection(conditions);
+    }
+
+    /**
+     * Aggiunge una condizione (usato per i parametri dell'URI).
+     */
+    public HistorySelection and(int column, int cmp, long number) {
+        Condition condition = new Condition(column, cmp);
+        condition.number = number;
+        conditions.add(condition);
+        return this;
+    }
+
+    public HistorySelection and(int column, int cmp, String text) {
+        Condition condition = new Condition(column, cmp);
+        condition.text = text;
+        conditions.add(condition);
+        return this;
+    }
+
+    public boolean matches(Values values) {
+        for (int i = 0; i < conditions.size(); i++) {
+            Condition condition = conditions.get(i);
+            if (condition.text != null) {
+                boolean equal = condition.text.equals(values.getString(condition.column));
+                if (equal != (condition.cmp == EQ)) return false;
+            } else if (!compare(values.getLong(condition.column), condition.cmp, condition.number)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Limite inferiore incluso della colonna numerica, Long.MIN_VALUE se non vincolata.
+     */
+    public long lowerBound(int column) {
+        long bound = Long.MIN_VALUE;
+        for (Condition condition : conditions) {
+            if (condition.column != column || condition.text != null) continue;
+            if (condition.cmp == GE || condition.cmp == EQ) {
+                bound = Math.max(bound, condition.number);
+            } else if (condition.cmp == GT && condition.number < Long.MAX_VALUE) {
+                bound = Math.max(bound, condition.number + 1);
+            }
+        }
+        return bound;
+    }
+
+    /**
+     * Limite superiore escluso della colonna numerica, Long.MAX_VALUE se non vincolata.
+     */
+    public long upperBound(int column) {
+        long bound = Long.MAX_VALUE;
+        for (Condition condition : conditions) {
+            if (condition.column != column || condition.text != null) continue;
+            if (condition.cmp == LT) {
+                bound = Math.min(bound, condition.number);
+            } else if ((condition.cmp == LE || condition.cmp == EQ) && condition.number < Long.MAX_VALUE) {
+                bound = Math.min(bound, condition.number + 1);
+            }
+        }
+        return bound;
+    }
+
+    /**
+     * Valore richiesto per uguaglianza sulla colonna testuale, null se non vincolata.
+     */
+    public String equalTo(int column) {
+        for (Condition condition : conditions) {
+            if (condition.column == column && condition.text != null && condition.cmp == EQ) {
+                return condition.text;
+            }
+        }
+        return null;
+    }
+
+    public boolean references(int column) {
+        for (Condition condition : conditions) {
+            if (condition.column == column) return true;
+        }
+        return false;
+    }
+
+    private static boolean compare(long value, int cmp, long number) {
+        switch (cmp) {
+            case EQ:
+                return value == number;
+            case NE:
+                return value != number;
+            case LT:
+                return value < number;
+            case LE:
+                return value <= number;
+            case GT:
+                return value > number;
+            default:
+                return value >= number;
+        }
+    }
+
+    private static int parseOperator(String token) {
+        switch (token) {
+            case "=":
+            case "==":
+                return EQ;
+            case "!=":
+            case "<>":
+                return NE;
+            case "<":
+                return LT;
+            case "<=":
+                return LE;
+            case ">":
+                return GT;
+            case ">=":
+                return GE;
+            default:
+                throw new IllegalArgumentException("Unsupported operator " + token);
+        }
+    }
+
+    static int indexOf(String[] columns, String name) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].equalsIgnoreCase(name)) return i;
+        }
+        return -1;
+    }
+
+    private static class Condition {
+        final int column;
+        final int cmp;
+        long number;
+        String text;
+
+        Condition(int column, int cmp) {
+            this.column = column;
+            this.cmp = cmp;
+        }
+    }
+
+    // Parole, operatori, numeri, '?' e stringhe tra apici ('' per un apice)
+    private static class Tokenizer {
+        private final String text;
+        private int position;
+        private boolean quoted;
+
+        Tokenizer(String text) {
+            this.text = text;
+        }
+
+        boolean hasNext() {
+            skipSpaces();
+            return position < text.length();
+        }
+
+        boolean wasQuoted() {
+            return quoted;
+        }
+
+        String next() {
+            skipSpaces();
+            quoted = false;
+            if (position >= text.length()) {
+                throw new IllegalArgumentException("Unexpected end of selection: " + text);
+            }
+
+            char c = text.charAt(position);
+            int start = position;
+            if (c == '\'') {
+                StringBuilder sb = new StringBuilder();
+                position++;
+                while (true) {
+                    if (position >= text.length()) {
+                        throw new IllegalArgumentException("Unterminated string in selection: " + text);
+                    }
+                    char ch = text.charAt(position++);
+                    if (ch == '\'') {
+                        if (position < text.length() && text.charAt(position) == '\'') {
+                            sb.append('\'');
+                            position++;
+                        } else {
+                            break;
+                        }
+                    } else {
+                        sb.append(ch);
+                    }
+                }
+                quoted = true;
+                return sb.toString();
+            }
+            if ("=!<>".indexOf(c) >= 0) {
+                while (position < text.length() && "=!<>".indexOf(text.charAt(position)) >= 0) position++;
+            } else if (c == '?') {
+                position++;
+            } else {
+                while (position < text.length() && isWordChar(text.charAt(position))) position++;
+                if (position == start) {
+                    throw new IllegalArgumentException(String.format(Locale.US,
+                            "Unexpected '%c' in selection: %s", c, text));
+                }
+            }
+            return text.substring(start, position);
+        }
+
+        private void skipSpaces() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) position++;
+        }
+
+        private static boolean isWordChar(char c) {
+            return Character.isLetterOrDigit(c) || c == '_' || c == '.' || c == '-';
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.example.guardian;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Budget di memoria delle cache del processo. Ogni cache si registra con una priorità,
+ * una stima della propria dimensione e un modo per ridursi; a ogni
+ * {@link ComponentCallbacks2#onTrimMemory} le cache vengono ridotte dalla priorità più
+ * bassa finché il totale non rientra nella quota del budget prevista per quel livello.
+ *
+ * Il budget è un ottavo della memory class. Ridurre è idempotente (conta solo il totale
+ * rispetto alla quota), quindi servizio e attività nello stesso processo possono
+ * inoltrare entrambi lo stesso livello.
+ */
+public class MemoryBudgetRegistry {
+
+    private static final String TAG = "MemoryBudget";
+
+    // Ricreabili senza costo per il servizio (es. icone della UI)
+    public static final int PRIORITY_DISPOSABLE = 0;
+    // Ricreabili con chiamate al sistema o letture da disco (es. etichette)
+    public static final int PRIORITY_REBUILDABLE = 1;
+    // Stato recente che non si può ricostruire (es. aggiornamenti per la UI)
+    public static final int PRIORITY_RECENT = 2;
+
+    public interface Cache {
+        /**
+         * Stima dei byte occupati.
+         */
+        long sizeBytes();
+
+        /**
+         * Si riduce al più a {@code maxBytes} (0 per svuotarsi); può liberare di più.
+         */
+        void trimTo(long maxBytes);
+    }
+
+    private static class Registration {
+        final String name;
+        final int priority;
+        final Cache cache;
+        int trims;
+        long freedBytes;
+
+        Registration(String name, int priority, Cache cache) {
+            this.name = name;
+            this.priority = priority;
+            this.cache = cache;
+        }
+    }
+
+    private static MemoryBudgetRegistry instance;
+
+    private final long budgetBytes;
+    // Ordinate per priorità crescente
+    private final List<Registration> registrations = new ArrayList<>();
+    private int lastTrimLevel = -1;
+    private int trimCalls;
+
+    public static synchronized MemoryBudgetRegistry getInstance(Context context) {
+        if (instance == null) {
+            ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+            instance = new MemoryBudgetRegistry(activityManager.getMemoryClass() * 1024L * 1024 / 8);
+        }
+        return instance;
+    }
+
+    MemoryBudgetRegistry(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Registra una cache; un nome già registrato viene sostituito (es. attività ricreata).
+     */
+    public synchronized void register(String name, int priority, Cache cache) {
+        unregister(name);
+        int index = 0;
+        while (index < registrations.size() && registrations.get(index).priority <= priority) {
+            index++;
+        }
+        registrations.add(index, new Registration(name, priority, cache));
+    }
+
+    public synchronized void unregister(String name) {
+        for (int i = 0; i < registrations.size(); i++) {
+            if (registrations.get(i).name.equals(name)) {
+                registrations.remove(i);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Riduce le cache fino alla quota del livello, dalla priorità più bassa; le cache
+     * sopra la priorità massima del livello non vengono toccate.
+     */
+    public synchronized void onTrimMemory(int level) {
+        lastTrimLevel = level;
+        trimCalls++;
+        int maxPriority = maxPriority(level);
+        long excess = totalBytes() - allowedBytes(level);
+        for (Registration registration : registrations) {
+            if (excess <= 0 || registration.priority > maxPriority) break;
+
+            long size = registration.cache.sizeBytes();
+            if (size == 0) continue;
+            registration.cache.trimTo(Math.max(0, size - excess));
+            long freed = size - registration.cache.sizeBytes();
+            registration.trims++;
+            registration.freedBytes += freed;
+            excess -= freed;
+            Log.d(TAG, "Trimmed " + registration.name + " by " + freed / 1024 + "KB (level " + level + ")");
+        }
+    }
+
+    // Quota del budget che deve restare dopo la riduzione
+    private long allowedBytes(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return 0;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return budgetBytes / 4;
+        }
+        return budgetBytes / 2;
+    }
+
+    // Lo stato recente si perde solo quando il processo sta per essere terminato
+    private static int maxPriority(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) return PRIORITY_RECENT;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return PRIORITY_REBUILDABLE;
+        }
+        return PRIORITY_DISPOSABLE;
+    }
+
+    private long totalBytes() {
+        long total = 0;
+        for (Registration registration : registrations) {
+            total += registration.cache.sizeBytes();
+        }
+        return total;
+    }
+
+    public synchronized List<String> describe() {
+        List<String> lines = new ArrayList<>(registrations.size() + 1);
+        lines.add(String.format(Locale.US, "%dKB of %dKB budget, trims=%d (last level %d)",
+                totalBytes() / 1024, budgetBytes / 1024, trimCalls, lastTrimLevel));
+        for (Registration registration : registrations) {
+            lines.add(String.format(Locale.US, "%s (priority %d): %dKB, trims=%d, freed=%dKB", registration.name,
+                    registration.priority, registration.cache.sizeBytes() / 1024, registration.trims,
+                    registration.freedBytes / 1024));
+        }
+        return lines;
+    }
+}
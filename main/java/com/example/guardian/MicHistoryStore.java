@@ -0,0 +1,462 @@
+package com.example.guardian;
+
+import android.content.Context;
+import android.util.Log;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Storico su disco degli eventi del microfono e delle altre operazioni sensibili
+ * ({@link SensitiveOp}), distinte dai flag dei record.
+ *
+ * Gli eventi vengono accodati in segmenti "raw" append-only (history/raw/seg-&lt;ts&gt;.bin),
+ * ruotati per dimensione o età. I segmenti chiusi vengono poi compattati in riepiloghi
+ * giornalieri per app da {@link HistoryCompactor}.
+ */
+public class MicHistoryStore implements BackgroundRecordingAnalyzer.HistorySource {
+
+    private static final String TAG = "MicHistoryStore";
+
+    static final String HISTORY_DIR = "history";
+    static final String RAW_DIR = "raw";
+    static final String SUMMARY_DIR = "summary";
+    static final String SEGMENT_PREFIX = "seg-";
+    static final String SUMMARY_PREFIX = "sum-";
+    static final String FILE_SUFFIX = ".bin";
+    static final String DELETE_SUFFIX = ".del";
+    // Segmento scritto fuori dal flusso live e non ancora completo: ignorato da letture e compattazione
+    static final String PENDING_SUFFIX = ".part";
+
+    private static final long SEGMENT_MAX_BYTES = 64 * 1024; // 64 KB
+    private static final long SEGMENT_MAX_AGE = 60 * 60 * 1000; // 1 ora
+
+    // Tipi di record
+    public static final byte TYPE_SESSION_START = 1;
+    public static final byte TYPE_SESSION_END = 2;
+    public static final byte TYPE_FOREGROUND = 3;
+    public static final byte TYPE_BACKGROUND = 4;
+    // Intervalli foreground/background delle app (indipendenti dalle sessioni)
+    public static final byte TYPE_APP_FOREGROUND = 5;
+    public static final byte TYPE_APP_BACKGROUND = 6;
+
+    // Flag dei record
+    public static final byte FLAG_FOREGROUND = 0x01;
+    public static final byte FLAG_BACKFILLED = 0x02;
+    // Sessione fuori dal profilo d'uso dell'app (vedi AppBaselines)
+    public static final byte FLAG_ANOMALOUS = 0x04;
+    // Operazione della sessione (SensitiveOp) nei bit 4-5: i record senza sono del microfono
+    private static final int FLAG_OP_SHIFT = 4;
+    private static final int FLAG_OP_MASK = 0x30;
+
+    private static MicHistoryStore instance;
+
+    private final File rawDir;
+    private final File summaryDir;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+
+    private SegmentWriter out;
+    private long currentSegmentStart;
+    // Vedi MonitoringProfile.DURABILITY_*
+    private volatile int durability = MonitoringProfile.DURABILITY_FLUSH;
+
+    public static synchronized MicHistoryStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new MicHistoryStore(new File(context.getFilesDir(), HISTORY_DIR));
+        }
+        return instance;
+    }
+
+    MicHistoryStore(File baseDir) {
+        rawDir = new File(baseDir, RAW_DIR);
+        summaryDir = new File(baseDir, SUMMARY_DIR);
+        rawDir.mkdirs();
+        summaryDir.mkdirs();
+    }
+
+    File getRawDir() {
+        return rawDir;
+    }
+
+    File getSummaryDir() {
+        return summaryDir;
+    }
+
+    /**
+     * Flag che etichettano un record con l'operazione della sessione.
+     */
+    public static byte opFlags(int op) {
+        return (byte) ((op << FLAG_OP_SHIFT) & FLAG_OP_MASK);
+    }
+
+    /**
+     * Accoda un evento; la scrittura avviene sul thread dedicato dello storico.
+     */
+    public void append(byte type, long timestamp, String packageName, byte flags) {
+        writer.execute(() -> {
+            try {
+                writeRecord(type, timestamp, packageName, flags);
+            } catch (IOException e) {
+                Log.e(TAG, "Error writing history record", e);
+                closeSegment();
+            }
+        });
+    }
+
+    /**
+     * Chiude il segmento corrente, in modo che diventi compattabile.
+     */
+    public void flush() {
+        writer.execute(this::closeSegment);
+    }
+
+    /**
+     * Quanto ogni record è al sicuro appena scritto: sincronizzato sul disco, passato
+     * al sistema (sopravvive alla terminazione del processo) o lasciato nel buffer fino
+     * a {@link #flushPending()}, alla rotazione o alla chiusura del segmento.
+     */
+    public void setDurability(int durability) {
+        this.durability = durability;
+    }
+
+    /**
+     * Passa al sistema i record rimasti nel buffer.
+     */
+    public void flushPending() {
+        writer.execute(() -> {
+            if (out == null) return;
+            try {
+                out.flush();
+            } catch (IOException e) {
+                Log.e(TAG, "Error flushing history segment", e);
+                closeSegment();
+            }
+        });
+    }
+
+    private void writeRecord(byte type, long timestamp, String packageName, byte flags) throws IOException {
+        if (out == null
+                || out.size() >= SEGMENT_MAX_BYTES
+                || timestamp - currentSegmentStart >= SEGMENT_MAX_AGE) {
+            rotate(timestamp);
+        }
+
+        out.write(type, timestamp, packageName, flags);
+        int mode = durability;
+        if (mode == MonitoringProfile.DURABILITY_SYNC) {
+            out.sync();
+        } else if (mode == MonitoringProfile.DURABILITY_FLUSH) {
+            out.flush();
+        }
+    }
+
+    private void rotate(long timestamp) throws IOException {
+        closeSegment();
+
+        // I nomi dei segmenti devono essere crescenti anche se l'orologio torna indietro
+        long start = Math.max(timestamp, latestSegmentId() + 1);
+        out = openSegment(start);
+        currentSegmentStart = out.segmentId;
+    }
+
+    private void closeSegment() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Error closing segment " + out.file, e);
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * Apre un nuovo segmento con id libero a partire da {@code startHint}. Usato anche
+     * fuori dal flusso live (es. backfill) per scrivere eventi con timestamp passati
+     * in un segmento collocato correttamente nella timeline.
+     */
+    synchronized SegmentWriter openSegment(long startHint) throws IOException {
+        long id = startHint;
+        File file = segmentFile(id);
+        while (pendingFile(id).exists() || !file.createNewFile()) {
+            id++;
+            file = segmentFile(id);
+        }
+        return new SegmentWriter(file, id);
+    }
+
+    /**
+     * Come {@link #openSegment}, ma il segmento resta invisibile a letture e
+     * compattazione finché non viene chiuso e pubblicato con {@link #publishSegment}.
+     */
+    synchronized SegmentWriter openPendingSegment(long startHint) throws IOException {
+        long id = startHint;
+        while (segmentFile(id).exists() || !pendingFile(id).createNewFile()) {
+            id++;
+        }
+        return new SegmentWriter(pendingFile(id), id);
+    }
+
+    /**
+     * Rende visibile un segmento aperto con {@link #openPendingSegment}, già chiuso.
+     */
+    synchronized boolean publishSegment(SegmentWriter segment) {
+        return segment.file.renameTo(segmentFile(segment.segmentId));
+    }
+
+    /**
+     * Cancella i segmenti rimasti incompleti da un processo terminato; va chiamato
+     * quando nessun segmento è in scrittura con {@link #openPendingSegment}.
+     */
+    void discardPendingSegments() {
+        File[] pending = rawDir.listFiles((d, name) -> name.endsWith(PENDING_SUFFIX));
+        if (pending == null) return;
+        for (File f : pending) {
+            f.delete();
+        }
+    }
+
+    private File segmentFile(long id) {
+        return new File(rawDir, SEGMENT_PREFIX + id + FILE_SUFFIX);
+    }
+
+    private File pendingFile(long id) {
+        return new File(rawDir, SEGMENT_PREFIX + id + FILE_SUFFIX + PENDING_SUFFIX);
+    }
+
+    private long latestSegmentId() {
+        File[] segments = listSegments();
+        return segments.length > 0 ? segmentId(segments[segments.length - 1]) : 0;
+    }
+
+    /**
+     * Segmenti raw ordinati dal più vecchio al più recente.
+     */
+    File[] listSegments() {
+        return listSorted(rawDir, SEGMENT_PREFIX);
+    }
+
+    /**
+     * Riepiloghi ordinati dal giorno più vecchio al più recente.
+     */
+    File[] listSummaries() {
+        return listSorted(summaryDir, SUMMARY_PREFIX);
+    }
+
+    @Override
+    public void scan(long to, BackgroundRecordingAnalyzer.HistorySink sink) throws IOException {
+        Record record = new Record();
+        for (File segment : listSegments()) {
+            if (segmentId(segment) >= to) break;
+
+            try (SegmentReader reader = new SegmentReader(segment)) {
+                while (reader.next(record)) {
+                    if (record.timestamp < to && record.op() == SensitiveOp.MICROPHONE) {
+                        sink.onRecord(record.type, record.timestamp, record.packageName);
+                    }
+                }
+            }
+        }
+    }
+
+    long totalBytes() {
+        long total = 0;
+        for (File f : listSegments()) total += f.length();
+        for (File f : listSummaries()) total += f.length();
+        return total;
+    }
+
+    private static File[] listSorted(File dir, String prefix) {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(prefix) && name.endsWith(FILE_SUFFIX));
+        if (files == null) return new File[0];
+        Arrays.sort(files, (a, b) -> Long.compare(segmentId(a), segmentId(b)));
+        return files;
+    }
+
+    static long segmentId(File file) {
+        String name = file.getName();
+        int start = name.indexOf('-') + 1;
+        int end = name.length() - FILE_SUFFIX.length();
+        try {
+            return Long.parseLong(name.substring(start, end));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Cancellazione atomica: il file viene prima rinominato (operazione atomica) e poi
+     * rimosso. Un eventuale ".del" rimasto da un processo terminato viene ripulito da
+     * {@link #purgePendingDeletes()}.
+     */
+    static boolean deleteAtomically(File file) {
+        File tombstone = new File(file.getPath() + DELETE_SUFFIX);
+        if (!file.renameTo(tombstone)) {
+            return !file.exists();
+        }
+        tombstone.delete();
+        return true;
+    }
+
+    void purgePendingDeletes() {
+        purgePendingDeletes(rawDir);
+        purgePendingDeletes(summaryDir);
+    }
+
+    private static void purgePendingDeletes(File dir) {
+        File[] pending = dir.listFiles((d, name) -> name.endsWith(DELETE_SUFFIX));
+        if (pending == null) return;
+        for (File f : pending) {
+            f.delete();
+        }
+    }
+
+    // Record mutabile riutilizzato durante le scansioni, per non allocare un record per evento;
+    // il nome del pacchetto è comunque una stringa nuova a ogni lettura
+    public static class Record {
+        public byte type;
+        public long timestamp;
+        public String packageName;
+        public byte flags;
+
+        public boolean isForeground() {
+            return (flags & FLAG_FOREGROUND) != 0;
+        }
+
+        public int op() {
+            return (flags & FLAG_OP_MASK) >> FLAG_OP_SHIFT;
+        }
+    }
+
+    public static class SegmentWriter implements Closeable {
+        final File file;
+        final long segmentId;
+        private final FileOutputStream fos;
+        private final DataOutputStream out;
+
+        SegmentWriter(File file, long segmentId) throws IOException {
+            this.file = file;
+            this.segmentId = segmentId;
+            fos = new FileOutputStream(file, true);
+            out = new DataOutputStream(new BufferedOutputStream(fos));
+        }
+
+        public void write(byte type, long timestamp, String packageName, byte flags) throws IOException {
+            out.writeByte(type);
+            out.writeLong(timestamp);
+            out.writeUTF(packageName);
+            out.writeByte(flags);
+        }
+
+        public int size() {
+            return out.size();
+        }
+
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        // Anche sul disco, non solo al sistema
+        public void sync() throws IOException {
+            out.flush();
+            fos.getFD().sync();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Lettore sequenziale di un segmento raw. Un record troncato in coda (processo
+     * terminato durante la scrittura) viene ignorato.
+     */
+    public static class SegmentReader implements Closeable {
+        private final CountingInputStream counter;
+        private final DataInputStream in;
+
+        public SegmentReader(File segment) throws IOException {
+            this(segment, 0);
+        }
+
+        /**
+         * Riprende la lettura da una posizione ottenuta con {@link #position()}.
+         */
+        public SegmentReader(File segment, long offset) throws IOException {
+            FileInputStream file = new FileInputStream(segment);
+            if (offset > 0) {
+                file.getChannel().position(offset);
+            }
+            counter = new CountingInputStream(new BufferedInputStream(file), offset);
+            in = new DataInputStream(counter);
+        }
+
+        public boolean next(Record record) throws IOException {
+            try {
+                record.type = in.readByte();
+                record.timestamp = in.readLong();
+                record.packageName = in.readUTF();
+                record.flags = in.readByte();
+                return true;
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Posizione nel file del prossimo record.
+         */
+        public long position() {
+            return counter.count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    // Conta i byte consumati dal DataInputStream (il buffer sottostante legge in anticipo)
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in, long start) {
+            super(in);
+            this.count = start;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
@@ -1,173 +1,1150 @@
 package com.example.guardian;
 
+import android.app.AppOpsManager;
 import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
-import android.app.usage.UsageStats;
+import android.app.usage.UsageEvents;
 import android.app.usage.UsageStatsManager;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.ApplicationInfo;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.media.AudioManager;
 import android.media.AudioRecordingConfiguration;
+import android.os.BatteryManager;
 import android.os.Build;
+import android.os.Debug;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.Process;
+import android.os.SystemClock;
+import android.system.ErrnoException;
 import android.util.Log;
 import androidx.core.app.NotificationCompat;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 public class MicrophoneMonitoringService extends Service {
 
     private static final String TAG = "MicMonitorService";
     private static final String CHANNEL_ID = "MicrophoneMonitoringChannel";
+    private static final String ALERT_CHANNEL_ID = "MicrophoneAlertsChannel";
     private static final int NOTIFICATION_ID = 1001;
-    private static final long MONITORING_INTERVAL = 1000; // 1 secondo
-    private static final long USAGE_STATS_INTERVAL = 5000; // 5 secondi per usage stats
+    private static final int ALERT_SUMMARY_NOTIFICATION_ID = 1002;
+    private static final String ALERT_GROUP = "com.example.guardian.ALERTS";
+    private static final String ALERT_PREFS = "alert_rules";
+    private static final String KEY_ALERT_RULES = "rules";
+    private static final long TIMER_TICK = 10; // granularità dei timer del thread degli eventi
+    private static final long EVENT_THREAD_JOIN_TIMEOUT = 2000;
+    // Bit di sorpresa oltre i quali una sessione è insolita per l'app (~64 volte meno probabile)
+    private static final float ANOMALY_THRESHOLD = 6f;
+    // Avvisi: 3 per app, poi uno ogni 10 minuti; 5 in tutto, poi uno ogni 15 secondi
+    private static final int ALERT_APP_BURST = 3;
+    private static final long ALERT_APP_REFILL = 10 * 60 * 1000;
+    private static final int ALERT_GLOBAL_BURST = 5;
+    private static final long ALERT_GLOBAL_REFILL = 15 * 1000;
+    // Senza soppressioni per questo tempo il riepilogo riparte da zero
+    private static final long ALERT_STORM_QUIET = 30 * 60 * 1000;
+    // Attesa prima del riepilogo, per raccogliere gli avvisi soppressi vicini
+    private static final long ALERT_SUMMARY_DELAY = 5 * 1000;
+
+    // Il servizio non è esportato: da adb si usano i comandi di dump, vedi runDumpCommand.
+    // adb shell dumpsys activity service com.example.guardian/.MicrophoneMonitoringService trace start|stop
+    //     (.MonitorProcessService se abilitato)
+    public static final String ACTION_TRACE_START = "com.example.guardian.action.TRACE_START";
+    public static final String ACTION_TRACE_STOP = "com.example.guardian.action.TRACE_STOP";
+    private static final String TRACE_DIR = "traces";
+
+    // adb shell "dumpsys activity service com.example.guardian/.MicrophoneMonitoringService
+    //     package-filter 'deny com.google.android.*' 'allow com.google.android.apps.recorder'"
+    public static final String ACTION_SET_PACKAGE_FILTER = "com.example.guardian.action.SET_PACKAGE_FILTER";
+    public static final String EXTRA_FILTER_RULES = "rules";
+    private static final String FILTER_PREFS = "package_filter";
+    private static final String KEY_FILTER_RULES = "rules";
+
+    // adb shell dumpsys activity service com.example.guardian/.MicrophoneMonitoringService
+    //     profile realtime|balanced|battery_saver
+    public static final String ACTION_SET_PROFILE = "com.example.guardian.action.SET_PROFILE";
+    public static final String EXTRA_PROFILE = "profile";
+    private static final String PROFILE_PREFS = "monitoring_profile";
+    private static final String KEY_PROFILE = "profile";
+    // Sotto questa carica si passa al profilo a basso consumo, come con il risparmio energetico
+    private static final int LOW_BATTERY_PERCENT = 15;
+
+    // Il servizio nel processo :monitor (MonitorProcessService) è attivo se abilitato:
+    // adb shell pm enable com.example.guardian/.MonitorProcessService
+    private static final String STATE_REGION_NAME = "guardian-monitor-state";
+
+    // Nomi delle cache nel MemoryBudgetRegistry del processo
+    private static final String LABEL_CACHE_NAME = "app labels";
+    private static final String UPDATE_BUFFER_NAME = "usage updates";
+
+    // Operazioni AppOps osservate oltre al microfono (che passa dai callback di AudioManager)
+    private static final String[] WATCHED_APP_OPS = {
+            AppOpsManager.OPSTR_CAMERA, AppOpsManager.OPSTR_FINE_LOCATION, AppOpsManager.OPSTR_COARSE_LOCATION
+    };
 
     private AudioManager audioManager;
-    private UsageStatsManager usageStatsManager;
-    private PackageManager packageManager;
-    private ScheduledExecutorService scheduler;
-    private Handler mainHandler;
+    private AppOpsManager appOpsManager;
+    // Risolto al primo uso: non serve per registrare i callback
+    private volatile UsageStatsManager usageStatsManager;
+    // Callback, broadcast e timer del servizio girano tutti su questo thread; il watchdog
+    // lo sostituisce se si blocca, con timer e pipeline nuovi (vedi rebuildEventThread)
+    private volatile HandlerThread eventThread;
+    private volatile Handler eventHandler;
+    private volatile EventTimers timers;
+    // Stanno nella ruota di timers e vengono ricreati con lei, vedi createTimers
+    private TimerWheel.Timeout tickTimeout;
+    private TimerWheel.Timeout heartbeatTimeout;
+    private TimerWheel.Timeout alertSummaryTimeout;
+    private TimerWheel.Timeout notificationTimeout;
+    // Risvegli dei timer dei thread sostituiti, per il conteggio dei profili
+    private volatile long retiredWakeups = 0;
+    private AlertRateLimiter alertLimiter;
+    // Letto anche dal watchdog, per aggiungere lo stato di salute alla notifica
+    private volatile String notificationContent;
+    // Testo in attesa dell'intervallo minimo del profilo, e istante dell'ultimo aggiornamento
+    private String pendingNotificationContent;
+    private long lastNotificationAt = 0;
     private NotificationManager notificationManager;
+    private MicHistoryStore historyStore;
+    private AppLabelCache labelCache;
+    private SessionCheckpoint sessionCheckpoint;
+    private BaselineStore baselineStore;
+    // Creato dopo la registrazione dei callback (thread principale), letto dall'heartbeat
+    private volatile UsageGapBackfill usageGapBackfill;
+    private volatile DetectionPipeline pipeline;
+    // Stato letto dalla UI, anche da un altro processo; null se non è stato possibile crearlo
+    private volatile MonitorStateRegion stateRegion;
+    private MonitorStateRegion.StateBinder stateBinder;
+    private boolean isStateRegionCreated = false;
+    // Ultima sessione pubblicata, per inizializzare la regione se viene creata dopo
+    private volatile long lastSessionStart = 0;
+    private volatile String[] lastSessionApps = new String[0];
+
+    // Letto anche dal thread del watchdog
+    private volatile boolean isMonitoring = false;
+    // Profilo in uso (letto dal dump) e scelto dall'utente; il risparmio energetico e la
+    // batteria scarica impongono BATTERY_SAVER. Thread degli eventi
+    private volatile MonitoringProfile profile = MonitoringProfile.BALANCED;
+    private volatile MonitoringProfile selectedProfile = MonitoringProfile.BALANCED;
+    private volatile boolean powerSaveMode = false;
+    private volatile boolean batteryLow = false;
+    private final ProfileCosts profileCosts = new ProfileCosts();
+    private volatile long callbackCount = 0;
+    // Callback registrati (thread degli eventi), per applicare subito un nuovo profilo
+    private boolean isCallbackRegistered = false;
+    private boolean isProfileApplied = false;
+    private boolean isWatchingAppOps = false;
 
-    private boolean isMonitoring = false;
-    private List<String> currentRecordingApps = new ArrayList<>();
+    // Watchdog: controlla da un thread proprio che thread degli eventi, timer e callback
+    // siano vivi, con una sonda nella coda e un timer sulla ruota a ogni controllo
+    private final HealthWatchdog watchdog = new HealthWatchdog();
+    private HandlerThread watchdogThread;
+    private volatile Handler watchdogHandler;
+    private final Runnable healthCheck = this::checkHealth;
+    private TimerWheel.Timeout watchdogTimeout;
+    // Scadenza (ora), elapsedRealtime e uptime del timer del watchdog, per separare il
+    // ritardo dal sonno profondo
+    private long watchdogDeadline;
+    private long watchdogScheduledElapsed;
+    private long watchdogScheduledUptime;
+    // Ultimi uid riportati dal callback (ordinati) e controlli consecutivi in disaccordo
+    private int[] lastCallbackUids = new int[0];
+    private int callbackMismatches = 0;
+    // Problema segnalato nella notifica, null se in salute
+    private volatile String healthProblem;
     private long lastUsageStatsCheck = 0;
+    // Uid attivi per ogni operazione AppOps osservata, in ordine (thread degli eventi)
+    private final Map<String, Set<Integer>> activeAppOps = new HashMap<>();
+    // App attive per operazione, per il testo della notifica (thread degli eventi)
+    private final int[] activeAppCounts = new int[SensitiveOp.COUNT];
+
+    // Tempi di avvio, per misurare il riavvio a caldo
+    private long createdAt;
+    // Ora dell'avvio: il backfill copre lo storico fino a qui, la pipeline da qui in poi
+    private long serviceStart;
+    private long restartToReadyMs = -1;
+    private long processStartToReadyMs = -1;
+    private StartupTimings startupTimings;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private boolean isDeferredInitDone = false;
+    private boolean isAlertChannelCreated = false;
+    private int restoredSessions = 0;
+    // Primo avvio ricevuto da MonitoringStarter (elapsedRealtime), per la latenza dal boot
+    private String startReason;
+    private long startReceivedAt = -1;
+    private long startRequestedAt = -1;
+    private int duplicateStarts = 0;
+
+    // Stato dello schermo, per le regole di allarme a schermo spento
+    private final BroadcastReceiver screenReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (!isEventThreadOwner()) return;
+            AlertRulesEngine engine = pipeline.getAlertEngine();
+            if (engine != null) {
+                engine.onScreenChanged(Intent.ACTION_SCREEN_ON.equals(intent.getAction()), System.currentTimeMillis());
+            }
+        }
+    };
+
+    // Risparmio energetico e batteria scarica: decidono se imporre il profilo a basso consumo
+    private final BroadcastReceiver powerReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String action = intent.getAction();
+            if (PowerManager.ACTION_POWER_SAVE_MODE_CHANGED.equals(action)) {
+                PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+                powerSaveMode = powerManager != null && powerManager.isPowerSaveMode();
+            } else {
+                batteryLow = Intent.ACTION_BATTERY_LOW.equals(action);
+            }
+            applyProfile();
+        }
+    };
+
+    // App installate, aggiornate o rimosse: le loro etichette e i loro uid vanno riletti
+    private final BroadcastReceiver packageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (intent.getData() == null) return;
+            labelCache.invalidate(intent.getData().getSchemeSpecificPart(), intent.getIntExtra(Intent.EXTRA_UID, -1));
+        }
+    };
 
     // Callback per il monitoraggio delle registrazioni audio
     private AudioManager.AudioRecordingCallback audioRecordingCallback = new AudioManager.AudioRecordingCallback() {
         @Override
         public void onRecordingConfigChanged(List<AudioRecordingConfiguration> configs) {
             super.onRecordingConfigChanged(configs);
+            if (!isEventThreadOwner()) return;
+            callbackCount++;
+            watchdog.onCallback(SystemClock.uptimeMillis());
             handleAudioRecordingChange(configs);
         }
     };
 
+    // Fotocamera e posizione: senza WATCH_APPOPS il sistema riporta solo la nostra app
+    private final AppOpsManager.OnOpActiveChangedListener appOpsListener = new AppOpsManager.OnOpActiveChangedListener() {
+        @Override
+        public void onOpActiveChanged(String op, int uid, String packageName, boolean active) {
+            if (!isEventThreadOwner()) return;
+            callbackCount++;
+            watchdog.onCallback(SystemClock.uptimeMillis());
+            handleAppOpActiveChanged(op, uid, active);
+        }
+    };
+
     @Override
     public void onCreate() {
         super.onCreate();
+        createdAt = SystemClock.elapsedRealtime();
+        serviceStart = System.currentTimeMillis();
+        startupTimings = new StartupTimings();
 
-        audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
-        usageStatsManager = (UsageStatsManager) getSystemService(Context.USAGE_STATS_SERVICE);
-        packageManager = getPackageManager();
+        // Percorso critico: foreground, poi sessioni e callback sul thread degli eventi.
+        // Il resto (etichette, UsageStats, receiver, job, regione condivisa, regole)
+        // viene dopo, vedi initDeferred e initRules
         notificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-        mainHandler = new Handler(getMainLooper());
-
         createNotificationChannel();
         startForeground(NOTIFICATION_ID, createNotification("Servizio di monitoraggio attivo"));
+        startupTimings.mark("foreground");
+
+        // Le etichette si caricano sul thread degli eventi prima dei callback, vedi sotto
+        labelCache = new AppLabelCache(this);
+        MemoryBudgetRegistry memoryBudget = MemoryBudgetRegistry.getInstance(this);
+        memoryBudget.register(LABEL_CACHE_NAME, MemoryBudgetRegistry.PRIORITY_REBUILDABLE, labelCache);
+        memoryBudget.register(UPDATE_BUFFER_NAME, MemoryBudgetRegistry.PRIORITY_RECENT,
+                UsageUpdateBuffer.getInstance());
+
+        audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
+        appOpsManager = (AppOpsManager) getSystemService(Context.APP_OPS_SERVICE);
+        eventThread = new HandlerThread("MicMonitorEvents");
+        eventThread.start();
+        eventHandler = new Handler(eventThread.getLooper());
+        timers = createTimers();
+        alertLimiter = new AlertRateLimiter(ALERT_APP_BURST, ALERT_APP_REFILL, ALERT_GLOBAL_BURST,
+                ALERT_GLOBAL_REFILL, ALERT_STORM_QUIET, System.currentTimeMillis());
+        // Solo i riferimenti ai file: le letture avvengono sul thread degli eventi
+        historyStore = MicHistoryStore.getInstance(this);
+        sessionCheckpoint = new SessionCheckpoint(this);
+        baselineStore = new BaselineStore(this);
+        pipeline = createPipeline();
+        pipeline.setUsageHistoryStart(serviceStart);
+
+        // Ripristina etichette, sessioni aperte e filtro prima di ricevere qualsiasi callback:
+        // i callback arrivano sul thread degli eventi, dopo questo messaggio. Il file delle
+        // etichette è mappato e si legge in microsecondi ("loaded ... in" nel dump), meno
+        // delle chiamate al PackageManager che altrimenti farebbero i primi callback
+        eventHandler.post(() -> {
+            labelCache.load();
+            startupTimings.mark("labels");
+            pipeline.setPackageFilter(loadPackageFilter());
+            selectedProfile = loadProfile();
+            applyProfile();
+            restoredSessions = restoreSessions(-1);
+            startupTimings.mark("sessions");
+        });
 
+        startupTimings.mark("created");
         Log.d(TAG, "Service created");
     }
 
+    /**
+     * Profili d'uso e regole di allarme, sul thread degli eventi subito dopo la
+     * registrazione dei callback: la pipeline funziona anche senza, con punteggi e
+     * allarmi disattivati per pochi millisecondi.
+     */
+    private void initRules() {
+        pipeline.setBaselines(baselineStore.restore());
+        AlertRulesEngine engine = new AlertRulesEngine(loadAlertRules(), timers, this::showAlert);
+        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        if (powerManager != null && !powerManager.isInteractive()) {
+            engine.onScreenChanged(false, System.currentTimeMillis());
+        }
+        pipeline.setAlertEngine(engine);
+        startupTimings.mark("rules");
+    }
+
+    /**
+     * Lavoro dell'avvio che non serve a rilevare, sul thread principale dopo la
+     * registrazione dei callback.
+     */
+    private void initDeferred() {
+        if (isDeferredInitDone || !isMonitoring) return;
+        isDeferredInitDone = true;
+
+        registerEventReceivers();
+        readPowerState();
+
+        ensureStateRegion();
+        HistoryCompactionJobService.schedule(this);
+
+        // Ricostruisce in background gli intervalli delle app mentre il servizio era fermo
+        usageGapBackfill = new UsageGapBackfill(this, getUsageStatsManager(), historyStore);
+        usageGapBackfill.start(serviceStart);
+        startupTimings.mark("deferred");
+    }
+
+    // I broadcast arrivano sul thread degli eventi corrente
+    private void registerEventReceivers() {
+        IntentFilter packageFilter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
+        registerReceiver(packageReceiver, packageFilter, null, eventHandler);
+
+        IntentFilter screenFilter = new IntentFilter(Intent.ACTION_SCREEN_OFF);
+        screenFilter.addAction(Intent.ACTION_SCREEN_ON);
+        registerReceiver(screenReceiver, screenFilter, null, eventHandler);
+
+        IntentFilter powerFilter = new IntentFilter(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED);
+        powerFilter.addAction(Intent.ACTION_BATTERY_LOW);
+        powerFilter.addAction(Intent.ACTION_BATTERY_OKAY);
+        registerReceiver(powerReceiver, powerFilter, null, eventHandler);
+    }
+
+    private UsageStatsManager getUsageStatsManager() {
+        if (usageStatsManager == null) {
+            usageStatsManager = (UsageStatsManager) getSystemService(Context.USAGE_STATS_SERVICE);
+        }
+        return usageStatsManager;
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && startReason == null && intent.hasExtra(MonitoringStarter.EXTRA_START_REASON)) {
+            startReason = intent.getStringExtra(MonitoringStarter.EXTRA_START_REASON);
+            startReceivedAt = intent.getLongExtra(MonitoringStarter.EXTRA_RECEIVED_AT, -1);
+            startRequestedAt = intent.getLongExtra(MonitoringStarter.EXTRA_REQUESTED_AT, -1);
+        }
         if (!isMonitoring) {
             startMonitoring();
+        } else if (intent == null || intent.getAction() == null) {
+            // Avvio ripetuto (boot e attività, più receiver): niente da rifare
+            duplicateStarts++;
+            Log.d(TAG, "Already monitoring, ignoring start request");
+        }
+        if (intent != null && ACTION_TRACE_START.equals(intent.getAction())) {
+            startTrace();
+        } else if (intent != null && ACTION_TRACE_STOP.equals(intent.getAction())) {
+            stopTrace();
+        } else if (intent != null && ACTION_SET_PACKAGE_FILTER.equals(intent.getAction())) {
+            setPackageFilter(intent.getStringExtra(EXTRA_FILTER_RULES));
+        } else if (intent != null && ACTION_SET_PROFILE.equals(intent.getAction())) {
+            setProfile(intent.getStringExtra(EXTRA_PROFILE));
         }
         return START_STICKY; // Riavvia automaticamente se terminato dal sistema
     }
 
     @Override
     public IBinder onBind(Intent intent) {
-        return null; // Servizio non vincolato
+        // Il bind serve solo a consegnare la regione condivisa alla UI
+        ensureStateRegion();
+        return stateBinder;
     }
 
     @Override
     public void onDestroy() {
         stopMonitoring();
+        quitEventThread();
+        if (watchdogThread != null) {
+            watchdogThread.quit();
+        }
+        saveBaselines();
+        stopTrace();
+        historyStore.flush();
+        if (isDeferredInitDone) {
+            unregisterReceiver(packageReceiver);
+            unregisterReceiver(powerReceiver);
+        }
+        labelCache.flush();
+        MemoryBudgetRegistry memoryBudget = MemoryBudgetRegistry.getInstance(this);
+        memoryBudget.unregister(LABEL_CACHE_NAME);
+        memoryBudget.unregister(UPDATE_BUFFER_NAME);
+        if (stateRegion != null) {
+            stateRegion.close();
+        }
         super.onDestroy();
         Log.d(TAG, "Service destroyed");
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        MemoryBudgetRegistry.getInstance(this).onTrimMemory(level);
+    }
+
+    /**
+     * Timer del thread degli eventi: debounce dei callback, soglie degli allarmi, controllo
+     * periodico e heartbeat condividono un solo messaggio in sospeso sull'Handler. Crea
+     * anche i Timeout del servizio, che appartengono alla ruota nuova.
+     */
+    private EventTimers createTimers() {
+        tickTimeout = new TimerWheel.Timeout(owned(this::checkActiveApps));
+        heartbeatTimeout = new TimerWheel.Timeout(owned(this::updateUsageStats));
+        alertSummaryTimeout = new TimerWheel.Timeout(owned(this::showAlertSummary));
+        notificationTimeout = new TimerWheel.Timeout(owned(this::showPendingNotification));
+        watchdogTimeout = new TimerWheel.Timeout(owned(this::onWatchdogTimer));
+        EventSources.Timer wakeup = new EventSources.Timer() {
+            @Override
+            public void schedule(Runnable task, long delayMs) {
+                eventHandler.postDelayed(task, delayMs);
+            }
+
+            @Override
+            public void cancel(Runnable task) {
+                eventHandler.removeCallbacks(task);
+            }
+        };
+        return new EventTimers(System::currentTimeMillis, wakeup, TIMER_TICK);
+    }
+
+    /**
+     * Collega la pipeline di rilevamento alle sorgenti Android e ne riporta le uscite
+     * nello storico, nel checkpoint, nella notifica e verso l'attività.
+     */
+    private DetectionPipeline createPipeline() {
+        EventSources.PackageResolver resolver = new EventSources.PackageResolver() {
+            @Override
+            public String packageForUid(int uid) {
+                return getPackageNameFromUid(uid);
+            }
+
+            @Override
+            public String appName(String packageName) {
+                return getAppName(packageName);
+            }
+        };
+
+        return new DetectionPipeline(System::currentTimeMillis, timers, resolver, this::queryUsageEvents,
+                message -> Log.d(TAG, message), getPackageName(), new DetectionPipeline.Listener() {
+            @Override
+            public void onSessionStarted(int op, String packageName, long timestamp, boolean isForeground,
+                                         float anomalyScore) {
+                if (!isEventThreadOwner()) return;
+                historyStore.append(MicHistoryStore.TYPE_SESSION_START, timestamp, packageName,
+                        historyFlags(op, isForeground, anomalyScore));
+                saveCheckpoint();
+                if (anomalyScore >= ANOMALY_THRESHOLD) {
+                    Log.w(TAG, String.format("Unusual session start: %s (score %.1f)", packageName, anomalyScore));
+                }
+            }
+
+            @Override
+            public void onSessionStateChanged(int op, String packageName, long timestamp, boolean isForeground) {
+                if (!isEventThreadOwner()) return;
+                historyStore.append(isForeground ? MicHistoryStore.TYPE_FOREGROUND : MicHistoryStore.TYPE_BACKGROUND,
+                        timestamp, packageName, historyFlags(op, isForeground, 0));
+                saveCheckpoint();
+            }
+
+            @Override
+            public void onSessionEnded(int op, String packageName, long timestamp, boolean isForeground,
+                                       BackgroundRecordingAnalyzer.SessionResult result, float anomalyScore) {
+                if (!isEventThreadOwner()) return;
+                historyStore.append(MicHistoryStore.TYPE_SESSION_END, timestamp, packageName,
+                        historyFlags(op, isForeground, anomalyScore));
+                saveCheckpoint();
+                if (result != null) {
+                    Log.d(TAG, String.format("Session ended: %s %s - %dms total, %dms in background, score %.1f",
+                            SensitiveOp.name(op), packageName, result.end - result.start, result.backgroundMs,
+                            anomalyScore));
+                }
+            }
+
+            @Override
+            public void onAppForegroundChanged(String packageName, long timestamp, boolean isForeground) {
+                if (!isEventThreadOwner()) return;
+                historyStore.append(isForeground ? MicHistoryStore.TYPE_APP_FOREGROUND : MicHistoryStore.TYPE_APP_BACKGROUND,
+                        timestamp, packageName, historyFlags(isForeground));
+            }
+
+            @Override
+            public void onUsage(List<DetectionPipeline.UsageSample> samples) {
+                if (!isEventThreadOwner()) return;
+                List<MicrophoneUsageInfo> usageInfoList = new ArrayList<>(samples.size());
+                for (DetectionPipeline.UsageSample sample : samples) {
+                    usageInfoList.add(new MicrophoneUsageInfo(sample.packageName, sample.appName,
+                            sample.timestamp, sample.isActive, sample.isForeground, sample.backgroundMs,
+                            sample.anomalyScore, sample.op));
+                }
+                sendUsageInfoToActivity(usageInfoList);
+            }
+
+            @Override
+            public void onSessionsChanged(long sessionStart, String[] appNames) {
+                if (!isEventThreadOwner()) return;
+                sendSessionUpdate(sessionStart, appNames);
+            }
+
+            @Override
+            public void onActiveAppsChanged(int op, List<String> activeApps) {
+                if (!isEventThreadOwner()) return;
+                activeAppCounts[op] = activeApps.size();
+                if (stateRegion != null) {
+                    stateRegion.publishActiveCounts(activeAppCounts);
+                }
+                updateTickTimer(pipeline.hasActiveApps());
+                updateNotification(describeActiveApps());
+            }
+        });
+    }
+
     private void startMonitoring() {
         if (isMonitoring) return;
 
         Log.d(TAG, "Starting microphone monitoring");
         isMonitoring = true;
 
-        // Registra il callback per le registrazioni audio
+        eventHandler.post(() -> {
+            updateNotification("Monitoraggio attivo - Nessuna registrazione");
+            registerRecordingCallback();
+            startWatchingAppOps(profile);
+            isCallbackRegistered = true;
+            markReady();
+            updateTickTimer(pipeline.hasActiveApps());
+            scheduleHeartbeat();
+            startWatchdog();
+
+            // Da qui in poi niente è sul percorso critico
+            initRules();
+            mainHandler.post(this::initDeferred);
+        });
+    }
+
+    private void stopMonitoring() {
+        if (!isMonitoring) return;
+
+        Log.d(TAG, "Stopping microphone monitoring");
+        isMonitoring = false;
+
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-            audioManager.registerAudioRecordingCallback(audioRecordingCallback, mainHandler);
+            audioManager.unregisterAudioRecordingCallback(audioRecordingCallback);
+        }
+        if (isDeferredInitDone) {
+            unregisterReceiver(screenReceiver);
+        }
+        eventHandler.post(() -> {
+            isCallbackRegistered = false;
+            stopWatchingAppOps();
+            pipeline.flush();
+            timers.cancel(tickTimeout);
+            timers.cancel(heartbeatTimeout);
+            timers.cancel(watchdogTimeout);
+        });
+        if (watchdogHandler != null) {
+            watchdogHandler.removeCallbacks(healthCheck);
         }
 
-        // Avvia il monitoraggio periodico
-        scheduler = Executors.newScheduledThreadPool(2);
+        if (usageGapBackfill != null) {
+            usageGapBackfill.stop();
+        }
+    }
 
-        // Controllo periodico delle app attive
-        scheduler.scheduleAtFixedRate(this::checkActiveApps, 0, MONITORING_INTERVAL, TimeUnit.MILLISECONDS);
+    // Thread degli eventi
+    private void registerRecordingCallback() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) return;
+        audioManager.registerAudioRecordingCallback(audioRecordingCallback, eventHandler);
 
-        // Controllo meno frequente delle usage stats
-        scheduler.scheduleAtFixedRate(this::updateUsageStats, 0, USAGE_STATS_INTERVAL, TimeUnit.MILLISECONDS);
+        // Riconcilia subito le sessioni ripristinate con le registrazioni attive:
+        // il callback non viene invocato alla registrazione
+        List<AudioRecordingConfiguration> configs = audioManager.getActiveRecordingConfigurations();
+        if (!isEventThreadOwner()) return;
+        handleAudioRecordingChange(configs);
+        pipeline.flush();
+    }
 
-        updateNotification("Monitoraggio attivo - Nessuna registrazione");
+    /**
+     * Il thread degli eventi sostituito esce dal messaggio bloccato in un punto qualsiasi
+     * e la sua coda viene scartata: prima di toccare pipeline, timer, notifica o storico
+     * dopo una chiamata che può bloccarsi, il codice del thread degli eventi controlla di
+     * essere ancora il thread corrente, altrimenti lascia perdere.
+     */
+    private boolean isEventThreadOwner() {
+        return Thread.currentThread() == eventThread;
     }
 
-    private void stopMonitoring() {
+    // I Timeout restano nella ruota del thread sostituito, che può ancora eseguirli
+    private Runnable owned(Runnable task) {
+        return () -> {
+            if (isEventThreadOwner()) task.run();
+        };
+    }
+
+    private void startWatchdog() {
+        if (watchdogThread == null) {
+            watchdogThread = new HandlerThread("MicMonitorWatchdog");
+            watchdogThread.start();
+            watchdogHandler = new Handler(watchdogThread.getLooper());
+        }
+        watchdog.start(SystemClock.uptimeMillis());
+        scheduleWatchdogTimer();
+        watchdogHandler.removeCallbacks(healthCheck);
+        watchdogHandler.postDelayed(healthCheck, profile.watchdogIntervalMs);
+    }
+
+    // Timer singolo, ripianificato a ogni scatto: dopo il sonno non recupera gli scatti persi
+    private void scheduleWatchdogTimer() {
+        watchdogDeadline = System.currentTimeMillis() + profile.watchdogIntervalMs;
+        watchdogScheduledElapsed = SystemClock.elapsedRealtime();
+        watchdogScheduledUptime = SystemClock.uptimeMillis();
+        timers.schedule(watchdogTimeout, watchdogDeadline);
+    }
+
+    private void onWatchdogTimer() {
+        long uptime = SystemClock.uptimeMillis();
+        long slept = (SystemClock.elapsedRealtime() - watchdogScheduledElapsed) - (uptime - watchdogScheduledUptime);
+        watchdog.onTimer(System.currentTimeMillis() - watchdogDeadline, slept, uptime);
+        scheduleWatchdogTimer();
+    }
+
+    /**
+     * Controllo periodico sul thread del watchdog: misura la sonda precedente, ne mette
+     * una nuova nella coda degli eventi e avvia il recupero se qualcosa è fermo.
+     */
+    private void checkHealth() {
         if (!isMonitoring) return;
+        long now = SystemClock.uptimeMillis();
+        int action = watchdog.check(now, profile.watchdogIntervalMs);
+        if (action == HealthWatchdog.ACTION_REBUILD_THREAD) {
+            mainHandler.post(this::rebuildEventThread);
+        } else if (action == HealthWatchdog.ACTION_REARM_TIMERS) {
+            eventHandler.post(this::rearmTimers);
+        }
 
-        Log.d(TAG, "Stopping microphone monitoring");
-        isMonitoring = false;
+        long postedAt = watchdog.beginProbe(now);
+        if (postedAt >= 0) {
+            eventHandler.post(() -> onHealthProbe(postedAt));
+        }
+
+        String problem = watchdog.getProblem();
+        if (problem == null ? healthProblem != null : !problem.equals(healthProblem)) {
+            if (problem != null) {
+                Log.w(TAG, "Monitoring health: " + problem);
+            } else {
+                Log.d(TAG, "Monitoring health restored");
+            }
+            healthProblem = problem;
+            refreshNotification();
+        }
+        watchdogHandler.postDelayed(healthCheck, profile.watchdogIntervalMs);
+    }
+
+    // Thread degli eventi
+    private void onHealthProbe(long postedAt) {
+        watchdog.onProbe(postedAt, SystemClock.uptimeMillis());
+        checkRecordingCallback();
+    }
+
+    /**
+     * Confronta le registrazioni attive con le ultime riportate dal callback: se
+     * differiscono per due controlli di fila il callback si è perso (es. dopo un
+     * riavvio dell'audio server) e viene registrato di nuovo.
+     */
+    private void checkRecordingCallback() {
+        if (!isCallbackRegistered || Build.VERSION.SDK_INT < Build.VERSION_CODES.N) return;
+        int[] active = clientUids(audioManager.getActiveRecordingConfigurations());
+        if (!isEventThreadOwner()) return;
+        Arrays.sort(active);
+        if (Arrays.equals(active, lastCallbackUids)) {
+            callbackMismatches = 0;
+            return;
+        }
+        // Un callback può essere ancora in arrivo: si aspetta il controllo successivo
+        if (++callbackMismatches < 2) return;
+
+        Log.w(TAG, "Recording callback out of date, registering it again");
+        callbackMismatches = 0;
+        audioManager.unregisterAudioRecordingCallback(audioRecordingCallback);
+        registerRecordingCallback();
+        watchdog.onCallbackRestored();
+    }
+
+    private void rearmTimers() {
+        timers.rearm();
+        if (!watchdogTimeout.isScheduled()) {
+            scheduleWatchdogTimer();
+        }
+        watchdog.onTimersRearmed(SystemClock.uptimeMillis());
+        Log.w(TAG, "Event timers rearmed: " + timers.describeStats());
+    }
+
+    /**
+     * Sostituisce il thread degli eventi bloccato: callback, receiver e timer passano a
+     * un thread nuovo. Il vecchio thread scarta i messaggi in coda ed esce quando il
+     * messaggio bloccato finisce; fino ad allora tiene la sua pipeline e i suoi timer, e
+     * non tocca più lo stato del servizio (vedi isEventThreadOwner). Thread principale.
+     */
+    private void rebuildEventThread() {
+        if (!isMonitoring) return;
+        Log.w(TAG, "Event thread stalled, rebuilding it");
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
             audioManager.unregisterAudioRecordingCallback(audioRecordingCallback);
         }
+        HandlerThread stalled = eventThread;
+        HandlerThread thread = new HandlerThread("MicMonitorEvents");
+        thread.start();
+        eventHandler = new Handler(thread.getLooper());
+        eventThread = thread;
+        stalled.quit();
+        if (isDeferredInitDone) {
+            unregisterReceiver(packageReceiver);
+            unregisterReceiver(screenReceiver);
+            unregisterReceiver(powerReceiver);
+            registerEventReceivers();
+        }
+        // Fino alla sonda rimasta in coda il vecchio thread ha elaborato sessioni e avvisi
+        long uptime = SystemClock.uptimeMillis();
+        long stalledSince = watchdog.getStalledSince();
+        long aliveAt = stalledSince >= 0 ? System.currentTimeMillis() - (uptime - stalledSince) : -1;
+        watchdog.onThreadRebuilt(uptime);
+        eventHandler.post(() -> restartEventLoop(aliveAt));
+    }
+
+    /**
+     * Primo messaggio del thread nuovo. Pipeline e timer del thread bloccato possono
+     * essere a metà di un aggiornamento (e la pipeline tenerne il lock): se ne creano di
+     * nuovi dal checkpoint delle sessioni aperte, con filtro, profilo e regole, e il
+     * callback li riconcilia con le registrazioni attive. Una traccia in corso si ferma,
+     * perché il vecchio thread può ancora scriverci.
+     *
+     * @param aliveAt ultimo istante in cui il vecchio thread elaborava i messaggi, -1 se ignoto
+     */
+    private void restartEventLoop(long aliveAt) {
+        TraceRecorder trace = pipeline.getTraceRecorder();
+        retiredWakeups += timers.getWakeups();
+        timers = createTimers();
+        pipeline = createPipeline();
+        // Lo storico del vecchio thread arriva fino a un istante ignoto: si riparte da ora
+        pipeline.setUsageHistoryStart(System.currentTimeMillis());
+        pipeline.setPackageFilter(loadPackageFilter());
+        pipeline.configureDebouncer(profile.callbackQuietWindowMs, profile.callbackMaxDelayMs);
+        restoreSessions(aliveAt);
+        initRules();
+        for (int op : new int[]{SensitiveOp.CAMERA, SensitiveOp.LOCATION}) {
+            publishAppOp(op);
+        }
+
+        // L'executor delle AppOps punta ancora al vecchio Handler
+        if (isWatchingAppOps) {
+            stopWatchingAppOps();
+            startWatchingAppOps(profile);
+        }
+        registerRecordingCallback();
+        updateTickTimer(pipeline.hasActiveApps());
+        scheduleHeartbeat();
+        scheduleWatchdogTimer();
+        if (pendingNotificationContent != null) {
+            timers.schedule(notificationTimeout, lastNotificationAt + profile.notificationIntervalMs);
+        }
+        if (trace != null && !trace.isClosed()) {
+            // I metodi della traccia sono sincronizzati e dopo la chiusura non scrivono più
+            try {
+                trace.close();
+                Log.w(TAG, "Trace stopped by event thread rebuild: " + trace.getFile() + ", "
+                        + trace.getRecords() + " records");
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to close trace", e);
+            }
+        }
+        Log.w(TAG, "Event loop restored from checkpoint: " + pipeline.getOpenSessions().size() + " open sessions");
+    }
+
+    private void refreshNotification() {
+        String content = notificationContent;
+        notificationManager.notify(NOTIFICATION_ID, createNotification(
+                content != null ? content : "Monitoraggio attivo - Nessuna registrazione"));
+    }
+
+    /**
+     * Il controllo periodico serve solo mentre qualche app registra: senza registrazioni
+     * il thread degli eventi si sveglia solo per callback, broadcast e heartbeat.
+     */
+    private void updateTickTimer(boolean recording) {
+        if (recording == tickTimeout.isScheduled()) return;
+
+        if (recording) {
+            timers.schedulePeriodic(tickTimeout, System.currentTimeMillis() + profile.tickIntervalMs,
+                    profile.tickIntervalMs);
+        } else {
+            timers.cancel(tickTimeout);
+        }
+    }
+
+    // Il backfill scrive l'heartbeat al massimo una volta al minuto, anche con un profilo più rapido
+    private void scheduleHeartbeat() {
+        timers.schedulePeriodic(heartbeatTimeout, System.currentTimeMillis() + profile.heartbeatIntervalMs,
+                profile.heartbeatIntervalMs);
+    }
+
+    /**
+     * Applica il profilo scelto, o quello a basso consumo se il sistema risparmia energia,
+     * senza toccare le sessioni aperte. Thread degli eventi.
+     */
+    private void applyProfile() {
+        if (!isEventThreadOwner()) return;
+        MonitoringProfile next = powerSaveMode || batteryLow ? MonitoringProfile.BATTERY_SAVER : selectedProfile;
+        MonitoringProfile previous = profile;
+        if (next == previous && isProfileApplied) return;
+        isProfileApplied = true;
+
+        profileCosts.switchTo(next.name, SystemClock.elapsedRealtime(), Process.getElapsedCpuTime(), wakeupCount());
+        profile = next;
+        pipeline.configureDebouncer(next.callbackQuietWindowMs, next.callbackMaxDelayMs);
+        historyStore.setDurability(next.historyDurability);
+        if (previous.historyDurability == MonitoringProfile.DURABILITY_BUFFERED) {
+            historyStore.flushPending();
+        }
+        if (isCallbackRegistered) {
+            updateAppOpsWatching(previous, next);
+            if (tickTimeout.isScheduled()) {
+                timers.cancel(tickTimeout);
+                updateTickTimer(true);
+            }
+            scheduleHeartbeat();
+            scheduleWatchdogTimer();
+        }
+        if (notificationTimeout.isScheduled()) {
+            timers.schedule(notificationTimeout, lastNotificationAt + next.notificationIntervalMs);
+        }
+        Log.d(TAG, "Monitoring profile: " + next + (next != selectedProfile ? " (power saving)" : ""));
+    }
 
-        if (scheduler != null && !scheduler.isShutdown()) {
-            scheduler.shutdown();
+    private MonitoringProfile loadProfile() {
+        MonitoringProfile loaded = MonitoringProfile.forName(getSharedPreferences(PROFILE_PREFS, MODE_PRIVATE)
+                .getString(KEY_PROFILE, null));
+        return loaded != null ? loaded : MonitoringProfile.BALANCED;
+    }
+
+    /**
+     * Profilo scelto dall'utente, anche a servizio fermo.
+     */
+    public static String getSelectedProfile(Context context) {
+        return context.getSharedPreferences(PROFILE_PREFS, MODE_PRIVATE)
+                .getString(KEY_PROFILE, MonitoringProfile.BALANCED.name);
+    }
+
+    /**
+     * Salva il profilo scelto senza avviare il servizio; vale dal prossimo avvio.
+     */
+    public static void saveSelectedProfile(Context context, String name) {
+        if (MonitoringProfile.forName(name) == null) return;
+        context.getSharedPreferences(PROFILE_PREFS, MODE_PRIVATE).edit().putString(KEY_PROFILE, name).apply();
+    }
+
+    private void setProfile(String name) {
+        MonitoringProfile selected = MonitoringProfile.forName(name);
+        if (selected == null) {
+            Log.w(TAG, "Unknown monitoring profile: " + name);
+            return;
+        }
+        saveSelectedProfile(this, name);
+        eventHandler.post(() -> {
+            selectedProfile = selected;
+            applyProfile();
+        });
+    }
+
+    // Stato iniziale: i broadcast arrivano solo ai cambiamenti
+    private void readPowerState() {
+        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        boolean saving = powerManager != null && powerManager.isPowerSaveMode();
+        Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        boolean low = false;
+        if (battery != null) {
+            int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            boolean plugged = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+            low = !plugged && level >= 0 && scale > 0 && level * 100 / scale <= LOW_BATTERY_PERCENT;
+        }
+        boolean batteryLowNow = low;
+        eventHandler.post(() -> {
+            powerSaveMode = saving;
+            batteryLow = batteryLowNow;
+            applyProfile();
+        });
+    }
+
+    private long wakeupCount() {
+        return retiredWakeups + timers.getWakeups() + callbackCount;
+    }
+
+    private void startWatchingAppOps(MonitoringProfile watched) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.R || appOpsManager == null || isWatchingAppOps) return;
+        List<String> ops = new ArrayList<>(WATCHED_APP_OPS.length);
+        for (String appOp : WATCHED_APP_OPS) {
+            if (watched.watches(sensitiveOpFor(appOp))) {
+                ops.add(appOp);
+            }
+        }
+        if (ops.isEmpty()) return;
+        appOpsManager.startWatchingActive(ops.toArray(new String[0]), eventHandler::post, appOpsListener);
+        isWatchingAppOps = true;
+    }
+
+    private void stopWatchingAppOps() {
+        if (!isWatchingAppOps) return;
+        appOpsManager.stopWatchingActive(appOpsListener);
+        isWatchingAppOps = false;
+    }
+
+    /**
+     * Registra di nuovo l'osservazione delle AppOps solo se cambiano le operazioni: le
+     * sessioni delle operazioni non più osservate vengono chiuse ora.
+     */
+    private void updateAppOpsWatching(MonitoringProfile previous, MonitoringProfile next) {
+        boolean changed = false;
+        for (int op = 0; op < SensitiveOp.COUNT; op++) {
+            changed |= previous.watches(op) != next.watches(op);
+        }
+        if (!changed) return;
+
+        stopWatchingAppOps();
+        for (String appOp : WATCHED_APP_OPS) {
+            int op = sensitiveOpFor(appOp);
+            if (!next.watches(op) && activeAppOps.remove(appOp) != null) {
+                pipeline.onOpActiveChanged(op, new int[0]);
+            }
+        }
+        startWatchingAppOps(next);
+    }
+
+    // Esegue i messaggi già in coda (flush compreso) prima di chiudere il thread
+    private void quitEventThread() {
+        eventThread.quitSafely();
+        try {
+            eventThread.join(EVENT_THREAD_JOIN_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
     private void handleAudioRecordingChange(List<AudioRecordingConfiguration> configs) {
-        List<String> recordingApps = new ArrayList<>();
+        int[] clientUids = clientUids(configs);
+        lastCallbackUids = clientUids.clone();
+        Arrays.sort(lastCallbackUids);
+        pipeline.onRecordingConfigChanged(clientUids);
+    }
 
+    private static int[] clientUids(List<AudioRecordingConfiguration> configs) {
+        int[] clientUids = new int[configs.size()];
+        int count = 0;
         for (AudioRecordingConfiguration config : configs) {
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-                int clientUid = config.getClientAudioSource();
-                String packageName = getPackageNameFromUid(clientUid);
-                if (packageName != null && !packageName.equals(getPackageName())) {
-                    recordingApps.add(packageName);
-                }
+                clientUids[count++] = config.getClientAudioSource();
             }
         }
+        return count == clientUids.length ? clientUids : Arrays.copyOf(clientUids, count);
+    }
 
-        // Aggiorna la lista delle app che stanno registrando
-        synchronized (currentRecordingApps) {
-            if (!currentRecordingApps.equals(recordingApps)) {
-                currentRecordingApps.clear();
-                currentRecordingApps.addAll(recordingApps);
+    /**
+     * Le posizioni fine e approssimativa sono la stessa operazione: la pipeline riceve
+     * l'unione dei loro uid, come snapshot completo al pari del microfono.
+     */
+    private void handleAppOpActiveChanged(String appOp, int uid, boolean active) {
+        Set<Integer> uids = activeAppOps.get(appOp);
+        if (uids == null) {
+            uids = new TreeSet<>();
+            activeAppOps.put(appOp, uids);
+        }
+        if (!(active ? uids.add(uid) : uids.remove(uid))) return;
+        publishAppOp(sensitiveOpFor(appOp));
+    }
 
-                if (!recordingApps.isEmpty()) {
-                    Log.d(TAG, "Recording apps detected: " + recordingApps);
-                    handleMicrophoneUsage(recordingApps);
-                    updateNotification("Registrazione attiva: " + recordingApps.size() + " app");
-                } else {
-                    updateNotification("Monitoraggio attivo - Nessuna registrazione");
-                }
+    private void publishAppOp(int op) {
+        Set<Integer> union = new TreeSet<>();
+        for (Map.Entry<String, Set<Integer>> entry : activeAppOps.entrySet()) {
+            if (sensitiveOpFor(entry.getKey()) == op) {
+                union.addAll(entry.getValue());
+            }
+        }
+        int[] clientUids = new int[union.size()];
+        int i = 0;
+        for (int activeUid : union) {
+            clientUids[i++] = activeUid;
+        }
+        pipeline.onOpActiveChanged(op, clientUids);
+    }
+
+    private static int sensitiveOpFor(String appOp) {
+        return AppOpsManager.OPSTR_CAMERA.equals(appOp) ? SensitiveOp.CAMERA : SensitiveOp.LOCATION;
+    }
+
+    private String describeActiveApps() {
+        int total = 0;
+        for (int count : activeAppCounts) {
+            total += count;
+        }
+        if (total == 0) return "Monitoraggio attivo - Nessuna registrazione";
+        if (total == activeAppCounts[SensitiveOp.MICROPHONE]) return "Registrazione attiva: " + total + " app";
+
+        List<String> parts = new ArrayList<>(SensitiveOp.COUNT);
+        for (int op = 0; op < SensitiveOp.COUNT; op++) {
+            if (activeAppCounts[op] > 0) {
+                parts.add(SensitiveOp.label(op) + " (" + activeAppCounts[op] + " app)");
             }
         }
+        return "In uso: " + String.join(", ", parts);
+    }
+
+    /**
+     * Sorgente degli UsageEvents per la pipeline: solo i tipi che cambiano lo stato
+     * foreground delle app.
+     */
+    private void queryUsageEvents(long from, long to, EventSources.UsageEventSink sink) {
+        UsageStatsManager manager = getUsageStatsManager();
+        if (manager == null) return;
+
+        UsageEvents events = manager.queryEvents(from, to);
+        UsageEvents.Event event = new UsageEvents.Event();
+        while (events != null && events.hasNextEvent()) {
+            events.getNextEvent(event);
+            int type = event.getEventType();
+            if (type == UsageEvents.Event.ACTIVITY_RESUMED
+                    || type == UsageEvents.Event.ACTIVITY_PAUSED
+                    || type == UsageEvents.Event.ACTIVITY_STOPPED) {
+                sink.onUsageEvent(event.getPackageName(), event.getTimeStamp(), type);
+            }
+        }
+    }
+
+    /**
+     * Invia all'attività l'inizio della sessione corrente: la durata viene calcolata
+     * localmente dalla UI.
+     */
+    private void sendSessionUpdate(long sessionStart, String[] appNames) {
+        long seq = UsageUpdateBuffer.getInstance().publishSession(sessionStart, appNames);
+        lastSessionStart = sessionStart;
+        lastSessionApps = appNames;
+        if (stateRegion != null) {
+            stateRegion.publishSession(sessionStart, appNames);
+        }
+
+        Intent intent = new Intent("MICROPHONE_SESSION_UPDATE");
+        intent.putExtra("seq", seq);
+        intent.putExtra("session_start", sessionStart);
+        intent.putExtra("active_apps", appNames);
+        LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
+    }
+
+    private void saveCheckpoint() {
+        sessionCheckpoint.save(pipeline.getOpenSessions());
+    }
+
+    /**
+     * Riprende le sessioni del checkpoint. Quelle finite mentre il servizio era fermo si
+     * chiudono all'ultimo istante in cui era vivo (salvataggio o heartbeat), quelle di un
+     * boot precedente subito nello storico. Lo stesso istante delimita gli avvisi già
+     * inviati per le sessioni riprese.
+     *
+     * @param aliveHint altro istante noto in cui il servizio era vivo, -1 se nessuno
+     * @return sessioni riprese
+     */
+    private int restoreSessions(long aliveHint) {
+        SessionCheckpoint.Restored restored = sessionCheckpoint.restore();
+        long aliveAt = Math.max(Math.max(restored.savedAt, UsageGapBackfill.getLastAlive(this)), aliveHint);
+        for (SessionEntry entry : restored.staleSessions) {
+            historyStore.append(MicHistoryStore.TYPE_SESSION_END, Math.max(aliveAt, entry.stateTime),
+                    entry.packageName, historyFlags(entry.op, entry.isForeground, 0));
+        }
+        pipeline.restore(restored.sessions, aliveAt);
+        if (!restored.staleSessions.isEmpty()) {
+            Log.d(TAG, "Closed " + restored.staleSessions.size() + " sessions from a previous boot at " + aliveAt);
+            saveCheckpoint();
+        }
+        if (!restored.sessions.isEmpty()) {
+            Log.d(TAG, "Restored " + restored.sessions.size() + " open sessions from checkpoint");
+        }
+        return restored.sessions.size();
+    }
+
+    private void markReady() {
+        long now = SystemClock.elapsedRealtime();
+        restartToReadyMs = now - createdAt;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            processStartToReadyMs = now - Process.getStartElapsedRealtime();
+        }
+        Log.d(TAG, "Monitoring ready: onCreate+" + restartToReadyMs + "ms, process start+"
+                + processStartToReadyMs + "ms, restored sessions: " + restoredSessions);
+        MonitoringStarter.recordLive(this, startReason, startReceivedAt, startRequestedAt, createdAt, now);
+    }
+
+    private static byte historyFlags(boolean isForeground) {
+        return isForeground ? MicHistoryStore.FLAG_FOREGROUND : 0;
+    }
+
+    private static byte historyFlags(int op, boolean isForeground, float anomalyScore) {
+        byte flags = (byte) (historyFlags(isForeground) | MicHistoryStore.opFlags(op));
+        return anomalyScore >= ANOMALY_THRESHOLD ? (byte) (flags | MicHistoryStore.FLAG_ANOMALOUS) : flags;
     }
 
     private void checkActiveApps() {
         try {
-            synchronized (currentRecordingApps) {
-                if (!currentRecordingApps.isEmpty()) {
-                    // Se ci sono app che stanno registrando, controlla quali sono attive
-                    List<String> activeApps = getActiveApplications();
-                    handleMicrophoneUsage(currentRecordingApps, activeApps);
-                }
-            }
+            pipeline.tick();
         } catch (Exception e) {
             Log.e(TAG, "Error checking active apps", e);
         }
@@ -176,101 +1153,396 @@ public class MicrophoneMonitoringService extends Service {
     private void updateUsageStats() {
         // Aggiorna le statistiche di utilizzo meno frequentemente
         lastUsageStatsCheck = System.currentTimeMillis();
+        watchdog.onHeartbeat(SystemClock.uptimeMillis());
+        UsageGapBackfill backfill = usageGapBackfill;
+        if (backfill != null) {
+            backfill.heartbeat(lastUsageStatsCheck);
+        }
+        saveBaselines();
+        if (profile.historyDurability == MonitoringProfile.DURABILITY_BUFFERED) {
+            historyStore.flushPending();
+        }
+        if (stateRegion != null) {
+            stateRegion.publishMemory(Process.myPid(), readResidentKb());
+        }
     }
 
-    private List<String> getActiveApplications() {
-        List<String> activeApps = new ArrayList<>();
-
-        if (usageStatsManager != null) {
-            long currentTime = System.currentTimeMillis();
-            long startTime = currentTime - 10000; // Ultimi 10 secondi
-
-            List<UsageStats> usageStatsList = usageStatsManager.queryUsageStats(
-                    UsageStatsManager.INTERVAL_BEST, startTime, currentTime);
-
-            if (usageStatsList != null && !usageStatsList.isEmpty()) {
-                // Ordina per ultimo utilizzo
-                Collections.sort(usageStatsList, new Comparator<UsageStats>() {
-                    @Override
-                    public int compare(UsageStats us1, UsageStats us2) {
-                        return Long.compare(us2.getLastTimeUsed(), us1.getLastTimeUsed());
-                    }
-                });
+    /**
+     * Crea la regione condivisa al primo bind o dopo l'avvio, pubblicando lo stato già
+     * noto. Solo dal thread principale.
+     */
+    private void ensureStateRegion() {
+        if (isStateRegionCreated) return;
+        isStateRegionCreated = true;
+        try {
+            MonitorStateRegion region = MonitorStateRegion.create(STATE_REGION_NAME);
+            stateBinder = new MonitorStateRegion.StateBinder(region);
+            region.publishMemory(Process.myPid(), readResidentKb());
+            region.publishSession(lastSessionStart, lastSessionApps);
+            region.publishActiveCounts(activeAppCounts);
+            stateRegion = region;
+        } catch (ErrnoException e) {
+            Log.e(TAG, "Unable to create state region", e);
+        }
+    }
 
-                // Prendi le app più recentemente utilizzate
-                for (int i = 0; i < Math.min(5, usageStatsList.size()); i++) {
-                    UsageStats stats = usageStatsList.get(i);
-                    if (stats.getLastTimeUsed() > startTime) {
-                        activeApps.add(stats.getPackageName());
-                    }
+    // Memoria residente del processo (VmRSS), -1 se non leggibile
+    private static long readResidentKb() {
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.substring(6).trim().split("\\s+")[0]);
                 }
             }
+        } catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "Unable to read resident memory", e);
         }
+        return -1;
+    }
 
-        return activeApps;
+    /**
+     * Classe del servizio da avviare: {@link MonitorProcessService} nel processo
+     * {@code :monitor} se abilitato, altrimenti questo servizio nel processo dell'app.
+     */
+    public static Class<? extends MicrophoneMonitoringService> serviceClass(Context context) {
+        return isSeparateProcess(context) ? MonitorProcessService.class : MicrophoneMonitoringService.class;
     }
 
-    private void handleMicrophoneUsage(List<String> recordingApps) {
-        List<String> activeApps = getActiveApplications();
-        handleMicrophoneUsage(recordingApps, activeApps);
+    public static boolean isSeparateProcess(Context context) {
+        return context.getPackageManager().getComponentEnabledSetting(
+                new ComponentName(context, MonitorProcessService.class))
+                == PackageManager.COMPONENT_ENABLED_STATE_ENABLED;
     }
 
-    private void handleMicrophoneUsage(List<String> recordingApps, List<String> activeApps) {
-        try {
-            List<MicrophoneUsageInfo> usageInfoList = new ArrayList<>();
+    /**
+     * Sceglie il processo del servizio. Lo stato è quello del componente, quindi vale per
+     * tutti i processi dell'app; il servizio in esecuzione viene fermato e va riavviato
+     * con {@link #serviceClass}.
+     */
+    public static void setSeparateProcess(Context context, boolean separate) {
+        if (separate == isSeparateProcess(context)) return;
+
+        context.stopService(new Intent(context, serviceClass(context)));
+        context.getPackageManager().setComponentEnabledSetting(
+                new ComponentName(context, MonitorProcessService.class),
+                separate ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED
+                        : PackageManager.COMPONENT_ENABLED_STATE_DEFAULT,
+                PackageManager.DONT_KILL_APP);
+    }
 
-            for (String packageName : recordingApps) {
-                String appName = getAppName(packageName);
-                boolean isActive = activeApps.contains(packageName);
-                boolean isForeground = isAppInForeground(packageName, activeApps);
+    // I profili cambiano solo a fine sessione: salvati con l'heartbeat, se cambiati
+    private void saveBaselines() {
+        AppBaselines baselines = pipeline.getBaselines();
+        if (baselines != null) {
+            baselineStore.save(baselines);
+        }
+    }
 
-                MicrophoneUsageInfo info = new MicrophoneUsageInfo(
-                        packageName,
-                        appName,
-                        System.currentTimeMillis(),
-                        isActive,
-                        isForeground
-                );
+    private List<AlertRule> loadAlertRules() {
+        String spec = getSharedPreferences(ALERT_PREFS, MODE_PRIVATE)
+                .getString(KEY_ALERT_RULES, AlertRule.DEFAULT_RULES);
+        List<AlertRule> rules = AlertRule.parse(spec);
+        Log.d(TAG, "Loaded " + rules.size() + " alert rules");
+        return rules;
+    }
+
+    private PackageFilter loadPackageFilter() {
+        PackageFilter filter = PackageFilter.parse(getSharedPreferences(FILTER_PREFS, MODE_PRIVATE)
+                .getString(KEY_FILTER_RULES, null));
+        Log.d(TAG, "Loaded " + filter.ruleCount() + " package filter rules");
+        return filter;
+    }
+
+    /**
+     * Sostituisce il filtro dei package e lo salva; vale dal prossimo callback.
+     */
+    private void setPackageFilter(String spec) {
+        getSharedPreferences(FILTER_PREFS, MODE_PRIVATE).edit().putString(KEY_FILTER_RULES, spec).apply();
+        PackageFilter filter = PackageFilter.parse(spec);
+        pipeline.setPackageFilter(filter);
+        Log.d(TAG, "Package filter updated: " + filter.ruleCount() + " rules");
+    }
 
-                usageInfoList.add(info);
+    private void showAlert(AlertRulesEngine.Alert alert) {
+        String appName = getAppName(alert.packageName);
+        String text = alert.type == AlertRule.TYPE_BACKGROUND
+                ? appName + " registra in background da più di " + alert.thresholdMs / 1000 + " secondi"
+                : appName + " registra con lo schermo spento";
+        Log.w(TAG, "Alert " + String.join(",", alert.ruleIds) + ": " + alert.packageName);
+        if (!isEventThreadOwner()) return;
 
-                Log.d(TAG, String.format("Mic usage: %s (%s) - Active: %b, Foreground: %b",
-                        appName, packageName, isActive, isForeground));
+        long now = System.currentTimeMillis();
+        if (!alertLimiter.tryAcquire(alert.packageName, now)) {
+            // Finisce nel riepilogo; il callback arriva sul thread degli eventi
+            if (!alertSummaryTimeout.isScheduled()) {
+                timers.schedule(alertSummaryTimeout, now + ALERT_SUMMARY_DELAY);
             }
+            return;
+        }
 
-            // Invia i dati all'attività principale
-            sendUsageInfoToActivity(usageInfoList);
+        ensureAlertChannel();
+        Notification notification = new NotificationCompat.Builder(this, ALERT_CHANNEL_ID)
+                .setContentTitle("Guardian - Uso sospetto del microfono")
+                .setContentText(text)
+                .setSmallIcon(R.drawable.ic_mic_monitoring)
+                .setContentIntent(createContentIntent())
+                .setAutoCancel(true)
+                .setPriority(NotificationCompat.PRIORITY_HIGH)
+                .setWhen(alert.timestamp)
+                .setGroup(ALERT_GROUP)
+                .build();
+        // Un avviso per app: quelli successivi sostituiscono il precedente
+        notificationManager.notify(alert.packageName, NOTIFICATION_ID, notification);
+    }
 
-        } catch (Exception e) {
-            Log.e(TAG, "Error handling microphone usage", e);
+    /**
+     * Riepilogo raggruppato degli avvisi soppressi dal limitatore nella tempesta corrente;
+     * anche il riepilogo consuma un token globale, altrimenti viene rimandato.
+     */
+    private void showAlertSummary() {
+        long now = System.currentTimeMillis();
+        long wait = alertLimiter.tryAcquireGlobal(now);
+        if (wait > 0) {
+            timers.schedule(alertSummaryTimeout, now + wait);
+            return;
         }
+
+        List<AlertRateLimiter.Suppressed> suppressed = alertLimiter.stormSummary();
+        if (suppressed.isEmpty()) return;
+
+        int total = 0;
+        NotificationCompat.InboxStyle style = new NotificationCompat.InboxStyle();
+        for (AlertRateLimiter.Suppressed entry : suppressed) {
+            style.addLine(getAppName(entry.packageName) + ": " + entry.count
+                    + (entry.count == 1 ? " avviso" : " avvisi"));
+            total += entry.count;
+        }
+        String text = total + " avvisi non mostrati da " + suppressed.size() + " app";
+        style.setSummaryText(text);
+
+        ensureAlertChannel();
+        Notification notification = new NotificationCompat.Builder(this, ALERT_CHANNEL_ID)
+                .setContentTitle("Guardian - Avvisi raggruppati")
+                .setContentText(text)
+                .setSmallIcon(R.drawable.ic_mic_monitoring)
+                .setContentIntent(createContentIntent())
+                .setAutoCancel(true)
+                .setStyle(style)
+                .setNumber(total)
+                .setGroup(ALERT_GROUP)
+                .setGroupSummary(true)
+                // Aggiornare il riepilogo durante la stessa tempesta non suona di nuovo
+                .setOnlyAlertOnce(true)
+                .build();
+        notificationManager.notify(ALERT_SUMMARY_NOTIFICATION_ID, notification);
+        Log.d(TAG, "Alert summary: " + total + " suppressed alerts");
     }
 
-    private boolean isAppInForeground(String packageName, List<String> activeApps) {
-        // L'app più recente nella lista delle usage stats è probabilmente in foreground
-        return !activeApps.isEmpty() && activeApps.get(0).equals(packageName);
+    /**
+     * Inizia a registrare gli ingressi della pipeline in files/traces, per riprodurli
+     * con {@link TraceReplayer}.
+     */
+    private void startTrace() {
+        TraceRecorder current = pipeline.getTraceRecorder();
+        if (current != null && !current.isClosed()) return;
+
+        File dir = new File(getFilesDir(), TRACE_DIR);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "Unable to create trace directory");
+            return;
+        }
+        long now = System.currentTimeMillis();
+        try {
+            TraceRecorder recorder = new TraceRecorder(new File(dir, "trace-" + now + ".bin"), now, getPackageName());
+            pipeline.setTraceRecorder(recorder);
+            Log.d(TAG, "Trace started: " + recorder.getFile());
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to start trace", e);
+        }
     }
 
-    private String getAppName(String packageName) {
+    private void stopTrace() {
+        TraceRecorder recorder = pipeline.getTraceRecorder();
+        if (recorder == null) return;
+
+        pipeline.setTraceRecorder(null);
         try {
-            ApplicationInfo appInfo = packageManager.getApplicationInfo(packageName, 0);
-            return packageManager.getApplicationLabel(appInfo).toString();
-        } catch (PackageManager.NameNotFoundException e) {
-            return packageName;
+            recorder.close();
+            Log.d(TAG, "Trace stopped: " + recorder.getFile() + ", " + recorder.getRecords() + " records");
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to close trace", e);
         }
     }
 
+    private String getAppName(String packageName) {
+        return labelCache.getLabel(packageName);
+    }
+
     private String getPackageNameFromUid(int uid) {
-        String[] packages = packageManager.getPackagesForUid(uid);
-        return (packages != null && packages.length > 0) ? packages[0] : null;
+        return labelCache.getPackageForUid(uid);
     }
 
     private void sendUsageInfoToActivity(List<MicrophoneUsageInfo> usageInfoList) {
+        // Il buffer conserva l'ultimo stato per app, per il recupero quando la UI riparte
+        long seq = UsageUpdateBuffer.getInstance().publish(usageInfoList);
+        if (stateRegion != null) {
+            stateRegion.publishUsage(usageInfoList);
+        }
+
         Intent intent = new Intent("MICROPHONE_USAGE_UPDATE");
+        intent.putExtra("seq", seq);
         intent.putParcelableArrayListExtra("usage_info", new ArrayList<>(usageInfoList));
         LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        if (runDumpCommand(writer, args)) return;
+
+        writer.println("Monitoring: " + isMonitoring);
+        writer.println("Process: " + (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU
+                ? Process.myProcessName() : getClass().getSimpleName()) + " pid=" + Process.myPid()
+                + ", rss=" + readResidentKb() + "kB, pss=" + Debug.getPss() + "kB, javaHeap="
+                + (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / 1024 + "kB");
+        if (stateRegion != null) {
+            writer.println("State region: " + stateRegion.describeWriteStats());
+        }
+        for (int op = 0; op < SensitiveOp.COUNT; op++) {
+            writer.println("Active apps (" + SensitiveOp.name(op) + "): " + pipeline.getActiveApps(op));
+        }
+        writer.println("Restart to ready: " + restartToReadyMs + "ms (process start: "
+                + processStartToReadyMs + "ms), restored sessions: " + restoredSessions);
+        writer.println("Startup phases: " + startupTimings.describe());
+        writer.println("Start: " + (startReason != null ? startReason : "restart") + ", duplicate starts ignored: "
+                + duplicateStarts);
+        writer.println("Boot to live: " + MonitoringStarter.describeBootLatency(this));
+        MonitoringProfile current = profile;
+        writer.println("Profile: " + current + (current != selectedProfile ? ", selected=" + selectedProfile.name
+                + " (power save=" + powerSaveMode + ", battery low=" + batteryLow + ")" : ""));
+        writer.println("Profile costs:");
+        for (String line : profileCosts.describe(SystemClock.elapsedRealtime(), Process.getElapsedCpuTime(),
+                wakeupCount())) {
+            writer.println("  " + line);
+        }
+        writer.println("Callback debouncer: " + pipeline.describeDebouncerStats());
+        writer.println("Event timers: " + timers.describeStats());
+        writer.println("Health: " + watchdog.describe(SystemClock.uptimeMillis()));
+        TraceRecorder recorder = pipeline.getTraceRecorder();
+        if (recorder != null) {
+            writer.println("Trace: " + recorder.getFile() + ", " + recorder.getRecords() + " records"
+                    + (recorder.isClosed() ? " (closed)" : ""));
+        }
+        AlertRulesEngine engine = pipeline.getAlertEngine();
+        if (engine != null) {
+            writer.println("Alert rules: " + engine.describeStats());
+        }
+        writer.println("Alert limiter: " + alertLimiter.describeStats());
+        PackageFilter filter = pipeline.getPackageFilter();
+        if (filter != null) {
+            writer.println("Package filter: " + filter.ruleCount() + " rules");
+            for (String line : filter.describeStats()) {
+                writer.println("  " + line);
+            }
+        }
+        AppBaselines baselines = pipeline.getBaselines();
+        if (baselines != null) {
+            writer.println("App baselines: " + baselines.size() + " apps");
+            for (String line : baselines.describeTop(5)) {
+                writer.println("  " + line);
+            }
+        }
+        writer.println("App labels: " + labelCache.describeStats());
+        writer.println("Memory budget:");
+        for (String line : MemoryBudgetRegistry.getInstance(this).describe()) {
+            writer.println("  " + line);
+        }
+        writer.println("History bytes: " + historyStore.totalBytes());
+        writer.println("Last compaction: " + HistoryCompactionJobService.describeLastReport(this));
+
+        // dumpsys activity service .../.MicrophoneMonitoringService background [ore]
+        if (args != null && args.length > 0 && "background".equals(args[0])) {
+            int hours = args.length > 1 ? parseHours(args[1]) : 24;
+            if (hours > 0) {
+                dumpBackgroundSessions(writer, hours);
+            } else {
+                writer.println("Usage: dumpsys activity service " + getPackageName()
+                        + "/.MicrophoneMonitoringService background [hours]");
+            }
+        }
+    }
+
+    /**
+     * Comandi da adb: dump richiede il permesso DUMP, che hanno solo shell e root, mentre
+     * il servizio non è esportato e non riceve intent da fuori. Le azioni vanno sul thread
+     * principale come quelle di onStartCommand.
+     *
+     * @return false se gli argomenti non sono un comando e va stampato lo stato
+     */
+    private boolean runDumpCommand(PrintWriter writer, String[] args) {
+        if (args == null || args.length == 0) return false;
+        String usage = "Usage: dumpsys activity service " + getPackageName() + "/.MicrophoneMonitoringService ";
+        switch (args[0]) {
+            case "profile":
+                if (args.length != 2 || MonitoringProfile.forName(args[1]) == null) {
+                    writer.println(usage + "profile realtime|balanced|battery_saver");
+                } else {
+                    mainHandler.post(() -> setProfile(args[1]));
+                    writer.println("Profile set: " + args[1]);
+                }
+                return true;
+            case "package-filter":
+                // Una regola per argomento; senza regole il filtro viene svuotato
+                String spec = String.join("\n", Arrays.asList(args).subList(1, args.length));
+                mainHandler.post(() -> setPackageFilter(spec));
+                writer.println("Package filter set: " + PackageFilter.parse(spec).ruleCount() + " rules");
+                return true;
+            case "trace":
+                if (args.length == 2 && "start".equals(args[1])) {
+                    mainHandler.post(this::startTrace);
+                    writer.println("Trace starting in " + new File(getFilesDir(), TRACE_DIR));
+                } else if (args.length == 2 && "stop".equals(args[1])) {
+                    mainHandler.post(this::stopTrace);
+                    writer.println("Trace stopping");
+                } else {
+                    writer.println(usage + "trace start|stop");
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // -1 se non è un numero di ore valido
+    private static int parseHours(String arg) {
+        try {
+            return Integer.parseInt(arg);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Solo i segmenti raw hanno le sessioni: oltre la loro conservazione restano i riepiloghi
+    private void dumpBackgroundSessions(PrintWriter writer, int hours) {
+        int maxHours = (int) (HistoryCompactor.RAW_RETENTION / 3600_000L);
+        if (hours > maxHours) {
+            writer.println("Raw history covers only the last " + maxHours + "h, showing " + maxHours + "h");
+            hours = maxHours;
+        }
+        long now = System.currentTimeMillis();
+        try {
+            List<BackgroundRecordingAnalyzer.SessionResult> results =
+                    BackgroundRecordingAnalyzer.joinHistory(historyStore, now - hours * 3600_000L, now);
+            writer.println("Sessions in the last " + hours + "h: " + results.size());
+            for (BackgroundRecordingAnalyzer.SessionResult result : results) {
+                writer.println(String.format("  %s start=%d duration=%dms background=%dms",
+                        result.packageName, result.start, result.end - result.start, result.backgroundMs));
+            }
+        } catch (IOException e) {
+            writer.println("Unable to read history: " + e);
+        }
+    }
+
     private void createNotificationChannel() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             NotificationChannel channel = new NotificationChannel(
@@ -285,44 +1557,104 @@ public class MicrophoneMonitoringService extends Service {
         }
     }
 
-    private Notification createNotification(String content) {
+    // Il canale degli avvisi serve solo al primo avviso (thread degli eventi)
+    private void ensureAlertChannel() {
+        if (isAlertChannelCreated) return;
+        isAlertChannelCreated = true;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel alertChannel = new NotificationChannel(
+                    ALERT_CHANNEL_ID,
+                    "Avvisi Microfono",
+                    NotificationManager.IMPORTANCE_HIGH
+            );
+            alertChannel.setDescription("Avvisi sull'uso sospetto del microfono");
+            notificationManager.createNotificationChannel(alertChannel);
+        }
+    }
+
+    private PendingIntent createContentIntent() {
         Intent notificationIntent = new Intent(this, MainActivity.class);
-        PendingIntent pendingIntent = PendingIntent.getActivity(
+        return PendingIntent.getActivity(
                 this, 0, notificationIntent,
                 PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE
         );
+    }
 
+    private Notification createNotification(String content) {
+        String problem = healthProblem;
         return new NotificationCompat.Builder(this, CHANNEL_ID)
                 .setContentTitle("Guardian - Monitoraggio Microfono")
                 .setContentText(content)
+                .setSubText(problem != null ? "Attenzione: " + problem : null)
                 .setSmallIcon(R.drawable.ic_mic_monitoring)
-                .setContentIntent(pendingIntent)
+                .setContentIntent(createContentIntent())
                 .setOngoing(true)
                 .setSilent(true)
                 .build();
     }
 
+    /**
+     * Aggiorna la notifica al più una volta per intervallo del profilo: i testi intermedi
+     * vengono saltati, l'ultimo arriva alla fine dell'intervallo. Thread degli eventi.
+     */
     private void updateNotification(String content) {
-        if (notificationManager != null) {
-            notificationManager.notify(NOTIFICATION_ID, createNotification(content));
+        // Le notifiche identiche contano comunque nel limite di frequenza di Android
+        if (notificationManager == null) return;
+        if (content.equals(notificationContent)) {
+            pendingNotificationContent = null;
+            timers.cancel(notificationTimeout);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long due = lastNotificationAt + profile.notificationIntervalMs;
+        if (now >= due) {
+            showNotification(content, now);
+        } else {
+            pendingNotificationContent = content;
+            if (!notificationTimeout.isScheduled()) {
+                timers.schedule(notificationTimeout, due);
+            }
         }
     }
 
-    // Classe per le informazioni sull'utilizzo del microfono
+    private void showPendingNotification() {
+        String content = pendingNotificationContent;
+        if (content != null) {
+            showNotification(content, System.currentTimeMillis());
+        }
+    }
+
+    private void showNotification(String content, long now) {
+        pendingNotificationContent = null;
+        notificationContent = content;
+        lastNotificationAt = now;
+        notificationManager.notify(NOTIFICATION_ID, createNotification(content));
+    }
+
+    // Classe per le informazioni sull'utilizzo del microfono (o di un'altra operazione)
     public static class MicrophoneUsageInfo implements android.os.Parcelable {
         public final String packageName;
         public final String appName;
         public final long timestamp;
         public final boolean isActive;
         public final boolean isForeground;
+        public final long backgroundMs;
+        // Sorpresa in bit rispetto al profilo d'uso dell'app, 0 senza profilo
+        public final float anomalyScore;
+        // Operazione in uso, vedi SensitiveOp
+        public final int op;
 
         public MicrophoneUsageInfo(String packageName, String appName, long timestamp,
-                                   boolean isActive, boolean isForeground) {
+                                   boolean isActive, boolean isForeground, long backgroundMs, float anomalyScore,
+                                   int op) {
             this.packageName = packageName;
             this.appName = appName;
             this.timestamp = timestamp;
             this.isActive = isActive;
             this.isForeground = isForeground;
+            this.backgroundMs = backgroundMs;
+            this.anomalyScore = anomalyScore;
+            this.op = op;
         }
 
         // Implementazione Parcelable
@@ -332,6 +1664,9 @@ public class MicrophoneMonitoringService extends Service {
             timestamp = in.readLong();
             isActive = in.readByte() != 0;
             isForeground = in.readByte() != 0;
+            backgroundMs = in.readLong();
+            anomalyScore = in.readFloat();
+            op = in.readInt();
         }
 
         @Override
@@ -341,6 +1676,9 @@ public class MicrophoneMonitoringService extends Service {
             dest.writeLong(timestamp);
             dest.writeByte((byte) (isActive ? 1 : 0));
             dest.writeByte((byte) (isForeground ? 1 : 0));
+            dest.writeLong(backgroundMs);
+            dest.writeFloat(anomalyScore);
+            dest.writeInt(op);
         }
 
         @Override
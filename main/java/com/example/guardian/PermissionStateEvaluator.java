@@ -0,0 +1,142 @@
+package com.example.guardian;
+
+import android.Manifest;
+import android.app.AppOpsManager;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.Process;
+import android.os.SystemClock;
+import androidx.core.content.ContextCompat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Stato dei permessi necessari al monitoraggio, valutato su un thread in background:
+ * AppOps, PowerManager e i controlli dei permessi sono chiamate binder che non devono
+ * stare sul thread principale.
+ *
+ * L'ultimo stato resta in memoria per tutto il processo, così un'attività ricreata
+ * mostra subito lo stato noto; le valutazioni richieste mentre una è già in coda
+ * vengono unite in una sola.
+ */
+public class PermissionStateEvaluator {
+
+    public interface Listener {
+        /**
+         * Chiamato sul thread principale con lo stato appena valutato.
+         */
+        void onPermissionState(State state);
+    }
+
+    public static class State {
+        public final boolean recordAudio;
+        public final boolean postNotifications;
+        public final boolean usageStats;
+        public final boolean batteryOptimizationDisabled;
+        // Durata della valutazione, per il dump
+        public final long evaluationMs;
+
+        State(boolean recordAudio, boolean postNotifications, boolean usageStats,
+              boolean batteryOptimizationDisabled, long evaluationMs) {
+            this.recordAudio = recordAudio;
+            this.postNotifications = postNotifications;
+            this.usageStats = usageStats;
+            this.batteryOptimizationDisabled = batteryOptimizationDisabled;
+            this.evaluationMs = evaluationMs;
+        }
+
+        /**
+         * Permessi runtime ancora da chiedere all'utente.
+         */
+        public List<String> missingRuntimePermissions() {
+            List<String> missing = new ArrayList<>();
+            if (!recordAudio) {
+                missing.add(Manifest.permission.RECORD_AUDIO);
+            }
+            if (!postNotifications) {
+                missing.add(Manifest.permission.POST_NOTIFICATIONS);
+            }
+            return missing;
+        }
+
+        /**
+         * Tutto quello che serve per avviare il servizio (le notifiche sono facoltative).
+         */
+        public boolean canMonitor() {
+            return recordAudio && usageStats && batteryOptimizationDisabled;
+        }
+    }
+
+    private static volatile State lastState;
+
+    private final Context context;
+    private final Listener listener;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicBoolean queued = new AtomicBoolean();
+
+    public PermissionStateEvaluator(Context context, Listener listener) {
+        this.context = context.getApplicationContext();
+        this.listener = listener;
+    }
+
+    /**
+     * Ultimo stato valutato nel processo, o null se non ancora disponibile.
+     */
+    public static State getLastState() {
+        return lastState;
+    }
+
+    /**
+     * Valuta di nuovo lo stato in background e lo consegna al listener.
+     */
+    public void refresh() {
+        if (!queued.compareAndSet(false, true)) return;
+        executor.execute(() -> {
+            queued.set(false);
+            State state = evaluate(context);
+            mainHandler.post(() -> listener.onPermissionState(state));
+        });
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Valutazione sincrona, per quando lo stato serve prima che una valutazione in
+     * background sia finita.
+     */
+    public static State evaluate(Context context) {
+        long start = SystemClock.elapsedRealtime();
+        boolean recordAudio = hasPermission(context, Manifest.permission.RECORD_AUDIO);
+        boolean postNotifications = Build.VERSION.SDK_INT < Build.VERSION_CODES.TIRAMISU
+                || hasPermission(context, Manifest.permission.POST_NOTIFICATIONS);
+
+        AppOpsManager appOps = (AppOpsManager) context.getSystemService(Context.APP_OPS_SERVICE);
+        boolean usageStats = appOps.checkOpNoThrow(AppOpsManager.OPSTR_GET_USAGE_STATS,
+                Process.myUid(), context.getPackageName()) == AppOpsManager.MODE_ALLOWED;
+
+        boolean batteryOptimizationDisabled = true;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+            batteryOptimizationDisabled = pm.isIgnoringBatteryOptimizations(context.getPackageName());
+        }
+
+        State state = new State(recordAudio, postNotifications, usageStats, batteryOptimizationDisabled,
+                SystemClock.elapsedRealtime() - start);
+        lastState = state;
+        return state;
+    }
+
+    private static boolean hasPermission(Context context, String permission) {
+        return ContextCompat.checkSelfPermission(context, permission) == PackageManager.PERMISSION_GRANTED;
+    }
+}
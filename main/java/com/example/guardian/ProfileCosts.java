@@ -0,0 +1,69 @@
+package com.example.guardian;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Costo di ogni profilo di monitoraggio mentre era attivo: tempo, CPU del processo e
+ * risvegli del thread degli eventi (timer e callback), anche per ora di attività così
+ * i profili si confrontano tra loro. I contatori vengono passati dal servizio a ogni
+ * cambio di profilo.
+ */
+class ProfileCosts {
+
+    private static class Totals {
+        long activeMs;
+        long cpuMs;
+        long wakeups;
+    }
+
+    private final Map<String, Totals> totals = new LinkedHashMap<>();
+    private String current;
+    private long since;
+    private long cpuSince;
+    private long wakeupsSince;
+
+    /**
+     * Chiude il periodo del profilo corrente e ne apre uno per {@code profile}.
+     *
+     * @param now     elapsedRealtime
+     * @param cpuMs   tempo di CPU del processo finora
+     * @param wakeups risvegli del thread degli eventi finora
+     */
+    synchronized void switchTo(String profile, long now, long cpuMs, long wakeups) {
+        accumulate(now, cpuMs, wakeups);
+        current = profile;
+    }
+
+    synchronized List<String> describe(long now, long cpuMs, long wakeups) {
+        accumulate(now, cpuMs, wakeups);
+        List<String> lines = new ArrayList<>(totals.size());
+        for (Map.Entry<String, Totals> entry : totals.entrySet()) {
+            Totals t = entry.getValue();
+            double hours = Math.max(t.activeMs, 1) / 3_600_000.0;
+            lines.add(String.format(Locale.US, "%s%s: active=%.1fmin, cpu=%dms (%.0fms/h), wakeups=%d (%.0f/h)",
+                    entry.getKey(), entry.getKey().equals(current) ? " (current)" : "", t.activeMs / 60_000.0,
+                    t.cpuMs, t.cpuMs / hours, t.wakeups, t.wakeups / hours));
+        }
+        return lines;
+    }
+
+    private void accumulate(long now, long cpuMs, long wakeups) {
+        if (current != null) {
+            Totals t = totals.get(current);
+            if (t == null) {
+                t = new Totals();
+                totals.put(current, t);
+            }
+            t.activeMs += now - since;
+            t.cpuMs += cpuMs - cpuSince;
+            t.wakeups += wakeups - wakeupsSince;
+        }
+        since = now;
+        cpuSince = cpuMs;
+        wakeupsSince = wakeups;
+    }
+}
@@ -0,0 +1,170 @@
+package com.example.guardian;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Accorpa le raffiche di onRecordingConfigChanged in un unico snapshot stabile.
+ *
+ * Lo snapshot viene emesso dopo {@code quietWindowMs} senza nuovi callback, e comunque
+ * entro {@code maxDelayMs} dal primo callback della raffica. I fronti intermedi non
+ * vanno persi: ogni comparsa e scomparsa di un'app durante la raffica viene riportata,
+ * in ordine, con l'istante del proprio callback, così on/off/on dà due sessioni e
+ * off/on/off tre fronti.
+ */
+public class RecordingCallbackDebouncer {
+
+    public interface Listener {
+        void onSettled(Snapshot snapshot);
+    }
+
+    // Limiti superiori dei bucket dell'istogramma delle dimensioni delle raffiche
+    private static final int[] BURST_BUCKETS = {1, 4, 16, 64, Integer.MAX_VALUE};
+
+    private final EventSources.Timer timer;
+    private final EventSources.Clock clock;
+    private final Listener listener;
+    private long quietWindowMs;
+    private long maxDelayMs;
+
+    // Stato della raffica in corso
+    private boolean pending = false;
+    private long burstStart;
+    private int burstSize;
+    private List<String> latest = new ArrayList<>();
+    // Fronti delle app dall'inizio della raffica, nell'ordine dei callback
+    private final List<Edge> edges = new ArrayList<>();
+
+    // Statistiche
+    private long callbacks;
+    private long snapshots;
+    private int maxBurst;
+    private final long[] burstHistogram = new long[BURST_BUCKETS.length];
+
+    private final Runnable settleTask = this::settle;
+
+    public RecordingCallbackDebouncer(EventSources.Timer timer, EventSources.Clock clock,
+                                      long quietWindowMs, long maxDelayMs, Listener listener) {
+        this.timer = timer;
+        this.clock = clock;
+        this.listener = listener;
+        configure(quietWindowMs, maxDelayMs);
+    }
+
+    public void configure(long quietWindowMs, long maxDelayMs) {
+        this.quietWindowMs = quietWindowMs;
+        this.maxDelayMs = Math.max(quietWindowMs, maxDelayMs);
+    }
+
+    /**
+     * Registra un nuovo snapshot delle app che stanno registrando.
+     */
+    public void onSnapshot(List<String> recordingApps) {
+        long now = clock.now();
+        callbacks++;
+
+        if (!pending) {
+            pending = true;
+            burstStart = now;
+            burstSize = 0;
+        }
+        burstSize++;
+
+        // Prima si chiude, poi si apre, come nel resto della pipeline
+        for (String packageName : latest) {
+            if (!recordingApps.contains(packageName)) {
+                edges.add(new Edge(packageName, now, false));
+            }
+        }
+        for (String packageName : recordingApps) {
+            if (!latest.contains(packageName)) {
+                edges.add(new Edge(packageName, now, true));
+            }
+        }
+        latest = new ArrayList<>(recordingApps);
+
+        // Silenzio di quietWindowMs, ma mai oltre maxDelayMs dall'inizio della raffica
+        long delay = Math.min(quietWindowMs, burstStart + maxDelayMs - now);
+        timer.cancel(settleTask);
+        timer.schedule(settleTask, Math.max(0, delay));
+    }
+
+    /**
+     * Emette subito lo snapshot in sospeso, se presente.
+     */
+    public void flush() {
+        if (pending) {
+            timer.cancel(settleTask);
+            settle();
+        }
+    }
+
+    private void settle() {
+        if (!pending) return;
+        pending = false;
+        long now = clock.now();
+
+        Snapshot snapshot = new Snapshot(new ArrayList<>(latest), burstSize, burstStart, now, new ArrayList<>(edges));
+        edges.clear();
+
+        snapshots++;
+        maxBurst = Math.max(maxBurst, burstSize);
+        for (int i = 0; i < BURST_BUCKETS.length; i++) {
+            if (burstSize <= BURST_BUCKETS[i]) {
+                burstHistogram[i]++;
+                break;
+            }
+        }
+
+        listener.onSettled(snapshot);
+    }
+
+    public String describeStats() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US,
+                "callbacks=%d, snapshots=%d, coalesced=%d, maxBurst=%d, window=%dms, maxDelay=%dms, bursts[",
+                callbacks, snapshots, callbacks - snapshots, maxBurst, quietWindowMs, maxDelayMs));
+        int lower = 1;
+        for (int i = 0; i < BURST_BUCKETS.length; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(BURST_BUCKETS[i] == Integer.MAX_VALUE ? lower + "+" : lower + "-" + BURST_BUCKETS[i]);
+            sb.append('=').append(burstHistogram[i]);
+            lower = BURST_BUCKETS[i] + 1;
+        }
+        return sb.append(']').toString();
+    }
+
+    public static class Snapshot {
+        public final List<String> recordingApps;
+        public final int burstSize;
+        public final long firstCallbackTime;
+        public final long settledTime;
+        // Fronti della raffica nell'ordine dei callback, anche quelli che si annullano
+        public final List<Edge> edges;
+
+        Snapshot(List<String> recordingApps, int burstSize, long firstCallbackTime, long settledTime,
+                 List<Edge> edges) {
+            this.recordingApps = recordingApps;
+            this.burstSize = burstSize;
+            this.firstCallbackTime = firstCallbackTime;
+            this.settledTime = settledTime;
+            this.edges = edges;
+        }
+    }
+
+    /**
+     * Un'app che inizia o smette di registrare, all'istante del callback che lo riporta.
+     */
+    public static class Edge {
+        public final String packageName;
+        public final long timestamp;
+        public final boolean recording;
+
+        Edge(String packageName, long timestamp, boolean recording) {
+            this.packageName = packageName;
+            this.timestamp = timestamp;
+            this.recording = recording;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.guardian;
+
+import android.app.Activity;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.Display;
+import android.view.FrameMetrics;
+import android.view.Window;
+import androidx.recyclerview.widget.RecyclerView;
+import java.util.Locale;
+
+/**
+ * Durata dei frame mentre una lista scorre, da {@link FrameMetrics} (API 24+). Un frame
+ * è in ritardo se supera l'intervallo di refresh del display; i percentili vengono da
+ * un istogramma a 1 ms.
+ *
+ * Va aggiunto come scroll listener della lista e avviato/fermato con l'attività; i
+ * frame fuori dallo scorrimento vengono ignorati.
+ */
+class ScrollFrameMetrics extends RecyclerView.OnScrollListener implements Window.OnFrameMetricsAvailableListener {
+
+    private static final int BUCKETS = 100; // l'ultimo raccoglie i frame da 99 ms in su
+    private static final long NANOS_PER_MS = 1_000_000;
+
+    private volatile boolean scrolling;
+    private volatile long frameIntervalNanos = 16_666_667;
+    private HandlerThread thread;
+
+    // Scritti dal thread delle metriche, letti dal dump
+    private final long[] histogram = new long[BUCKETS];
+    private long frames;
+    private long janky;
+    private long maxNanos;
+    private long droppedReports;
+
+    void start(Activity activity) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N || thread != null) return;
+        Display display = activity.getWindow().getDecorView().getDisplay();
+        if (display != null && display.getRefreshRate() > 0) {
+            frameIntervalNanos = (long) (1e9 / display.getRefreshRate());
+        }
+        thread = new HandlerThread("FrameMetrics");
+        thread.start();
+        activity.getWindow().addOnFrameMetricsAvailableListener(this, new Handler(thread.getLooper()));
+    }
+
+    void stop(Activity activity) {
+        if (thread == null) return;
+        activity.getWindow().removeOnFrameMetricsAvailableListener(this);
+        thread.quitSafely();
+        thread = null;
+        scrolling = false;
+    }
+
+    @Override
+    public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+        scrolling = newState != RecyclerView.SCROLL_STATE_IDLE;
+    }
+
+    @Override
+    public void onFrameMetricsAvailable(Window window, FrameMetrics metrics, int dropCount) {
+        if (!scrolling || metrics.getMetric(FrameMetrics.FIRST_DRAW_FRAME) == 1) return;
+
+        long total = metrics.getMetric(FrameMetrics.TOTAL_DURATION);
+        synchronized (this) {
+            frames++;
+            droppedReports += dropCount;
+            if (total > frameIntervalNanos) janky++;
+            maxNanos = Math.max(maxNanos, total);
+            histogram[(int) Math.min(total / NANOS_PER_MS, BUCKETS - 1)]++;
+        }
+    }
+
+    synchronized String describe() {
+        if (frames == 0) return "no scrolling frames";
+        return String.format(Locale.US, "%d frames, janky=%d (%.1f%%, > %.1fms), p50=%dms, p90=%dms, p99=%dms, "
+                        + "max=%.1fms, dropped reports=%d", frames, janky, janky * 100.0 / frames,
+                frameIntervalNanos / 1e6, percentile(0.5), percentile(0.9), percentile(0.99),
+                maxNanos / 1e6, droppedReports);
+    }
+
+    // Limite superiore del bucket che contiene il percentile
+    private int percentile(double fraction) {
+        long target = (long) Math.ceil(frames * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += histogram[i];
+            if (seen >= target) return i + 1;
+        }
+        return BUCKETS;
+    }
+}
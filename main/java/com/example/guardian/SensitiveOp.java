@@ -0,0 +1,38 @@
+package com.example.guardian;
+
+/**
+ * Operazioni sensibili osservate dalla {@link DetectionPipeline}. Il microfono è
+ * l'operazione 0: i dati salvati prima dell'introduzione delle altre operazioni (storico,
+ * checkpoint, tracce) vengono letti come microfono.
+ */
+public final class SensitiveOp {
+
+    public static final int MICROPHONE = 0;
+    public static final int CAMERA = 1;
+    public static final int LOCATION = 2;
+    public static final int COUNT = 3;
+
+    private static final String[] NAMES = {"microphone", "camera", "location"};
+    private static final String[] LABELS = {"microfono", "fotocamera", "posizione"};
+
+    private SensitiveOp() {
+    }
+
+    public static boolean isValid(int op) {
+        return op >= 0 && op < COUNT;
+    }
+
+    /**
+     * Nome per log, dump e tracce.
+     */
+    public static String name(int op) {
+        return isValid(op) ? NAMES[op] : "op" + op;
+    }
+
+    /**
+     * Nome per l'interfaccia.
+     */
+    public static String label(int op) {
+        return isValid(op) ? LABELS[op] : name(op);
+    }
+}
@@ -3,7 +3,6 @@ package com.example.guardian;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.os.Build;
 import android.util.Log;
 
 /**
@@ -25,23 +24,7 @@ public class ServiceRestartReceiver extends BroadcastReceiver {
                 "com.htc.intent.action.QUICKBOOT_POWERON".equals(action)) {
 
             Log.d(TAG, "System boot detected, restarting monitoring service");
-            restartService(context);
-        }
-    }
-
-    private void restartService(Context context) {
-        try {
-            Intent serviceIntent = new Intent(context, MicrophoneMonitoringService.class);
-
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                context.startForegroundService(serviceIntent);
-            } else {
-                context.startService(serviceIntent);
-            }
-
-            Log.d(TAG, "Monitoring service restarted successfully");
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to restart monitoring service", e);
+            MonitoringStarter.startFromReceiver(this, context, MonitoringStarter.REASON_BOOT);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,153 @@
+package com.example.guardian;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.os.Build;
+import android.os.SystemClock;
+import android.provider.Settings;
+import android.util.AtomicFile;
+import android.util.Log;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checkpoint delle sessioni di registrazione in corso.
+ *
+ * Viene riscritto a ogni transizione (inizio, fine, cambio foreground) tramite
+ * {@link AtomicFile}, così dopo un kill del servizio la timeline delle sessioni può
+ * riprendere senza perdere o duplicare le sessioni aperte. Le sessioni di un boot
+ * precedente non vengono riprese: sono finite al più tardi allo spegnimento.
+ */
+public class SessionCheckpoint {
+
+    private static final String TAG = "SessionCheckpoint";
+    private static final String FILE_NAME = "sessions.checkpoint";
+    // La versione 1 non aveva l'operazione: le sue sessioni sono del microfono; fino alla 2
+    // mancava l'istante dell'ultimo cambio foreground, fino alla 3 il boot
+    private static final int VERSION = 4;
+
+    /**
+     * Contenuto del checkpoint.
+     */
+    public static class Restored {
+        // Sessioni aperte in questo boot, da riprendere
+        public final List<SessionEntry> sessions;
+        // Sessioni di un boot precedente, da chiudere
+        public final List<SessionEntry> staleSessions;
+        // Istante del salvataggio, 0 senza checkpoint
+        public final long savedAt;
+
+        Restored(List<SessionEntry> sessions, List<SessionEntry> staleSessions, long savedAt) {
+            this.sessions = sessions;
+            this.staleSessions = staleSessions;
+            this.savedAt = savedAt;
+        }
+    }
+
+    private final ContentResolver contentResolver;
+    private final AtomicFile file;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+    // Solo l'ultimo snapshot conta: quelli intermedi non ancora scritti vengono scartati
+    private final AtomicReference<List<SessionEntry>> pending = new AtomicReference<>();
+
+    public SessionCheckpoint(Context context) {
+        contentResolver = context.getContentResolver();
+        file = new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+    }
+
+    /**
+     * Salva in modo asincrono lo stato delle sessioni aperte.
+     */
+    public void save(List<SessionEntry> sessions) {
+        if (pending.getAndSet(new ArrayList<>(sessions)) == null) {
+            writer.execute(() -> write(pending.getAndSet(null)));
+        }
+    }
+
+    private void write(List<SessionEntry> sessions) {
+        FileOutputStream fos = null;
+        try {
+            fos = file.startWrite();
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(bootCount());
+            out.writeLong(SystemClock.elapsedRealtime());
+            out.writeInt(sessions.size());
+            for (SessionEntry entry : sessions) {
+                out.writeByte(entry.op);
+                out.writeUTF(entry.packageName);
+                out.writeLong(entry.startTime);
+                out.writeBoolean(entry.isForeground);
+                out.writeLong(entry.stateTime);
+                out.writeLong(entry.foregroundMs);
+            }
+            out.flush();
+            file.finishWrite(fos);
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing session checkpoint", e);
+            if (fos != null) {
+                file.failWrite(fos);
+            }
+        }
+    }
+
+    /**
+     * Legge il checkpoint in modo sincrono; va chiamato prima di registrare il callback.
+     */
+    public Restored restore() {
+        List<SessionEntry> sessions = new ArrayList<>();
+        long savedAt = 0;
+        boolean sameBoot = true;
+        try {
+            // readFully recupera anche il backup di una scrittura interrotta
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(file.readFully()));
+            int version = in.readInt();
+            if (version < 1 || version > VERSION) return new Restored(sessions, new ArrayList<>(), 0);
+            savedAt = in.readLong();
+            if (version >= 4) {
+                int bootCount = in.readInt();
+                long savedElapsed = in.readLong();
+                sameBoot = bootCount == bootCount() && savedElapsed <= SystemClock.elapsedRealtime();
+            } else {
+                // Senza il boot: salvato prima dell'avvio del sistema in corso
+                sameBoot = savedAt >= System.currentTimeMillis() - SystemClock.elapsedRealtime();
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int op = version == 1 ? SensitiveOp.MICROPHONE : in.readByte();
+                String packageName = in.readUTF();
+                long startTime = in.readLong();
+                boolean isForeground = in.readBoolean();
+                SessionEntry entry = version < 3 ? new SessionEntry(op, packageName, startTime, isForeground)
+                        : new SessionEntry(op, packageName, startTime, isForeground, in.readLong(), in.readLong());
+                if (SensitiveOp.isValid(op)) {
+                    sessions.add(entry);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            return new Restored(sessions, new ArrayList<>(), 0);
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable session checkpoint", e);
+            sessions.clear();
+        }
+        return sameBoot ? new Restored(sessions, new ArrayList<>(), savedAt)
+                : new Restored(new ArrayList<>(), sessions, savedAt);
+    }
+
+    // Numero del boot, -1 prima di API 24: allora distingue solo l'elapsedRealtime
+    private int bootCount() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) return -1;
+        return Settings.Global.getInt(contentResolver, Settings.Global.BOOT_COUNT, -1);
+    }
+}
@@ -0,0 +1,34 @@
+package com.example.guardian;
+
+/**
+ * Sessione aperta di un'app su un'operazione ({@link SensitiveOp}), così come viene
+ * salvata da {@link SessionCheckpoint} e registrata nelle tracce. Solo Java, senza
+ * dipendenze da Android, perché la usa anche {@link TraceReplayer}.
+ */
+public class SessionEntry {
+    public final int op;
+    public final String packageName;
+    public final long startTime;
+    public final boolean isForeground;
+    // Da quando vale isForeground, e tempo in foreground dall'inizio fino ad allora
+    public final long stateTime;
+    public final long foregroundMs;
+
+    public SessionEntry(String packageName, long startTime, boolean isForeground) {
+        this(SensitiveOp.MICROPHONE, packageName, startTime, isForeground);
+    }
+
+    public SessionEntry(int op, String packageName, long startTime, boolean isForeground) {
+        this(op, packageName, startTime, isForeground, startTime, 0);
+    }
+
+    public SessionEntry(int op, String packageName, long startTime, boolean isForeground, long stateTime,
+                        long foregroundMs) {
+        this.op = op;
+        this.packageName = packageName;
+        this.startTime = startTime;
+        this.isForeground = isForeground;
+        this.stateTime = stateTime;
+        this.foregroundMs = foregroundMs;
+    }
+}
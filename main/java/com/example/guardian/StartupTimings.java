@@ -0,0 +1,36 @@
+package com.example.guardian;
+
+import android.os.SystemClock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Fasi dell'avvio del servizio, in millisecondi dalla creazione: il percorso critico
+ * (foreground, sessioni ripristinate, callback registrati) e il lavoro rimandato dopo.
+ * Le fasi possono essere segnate da thread diversi; conta solo la prima occorrenza.
+ */
+class StartupTimings {
+
+    private final long originNanos = SystemClock.elapsedRealtimeNanos();
+    private final List<String> phases = new ArrayList<>();
+    private final List<Long> offsets = new ArrayList<>();
+    private final List<String> threads = new ArrayList<>();
+
+    synchronized void mark(String phase) {
+        if (phases.contains(phase)) return;
+        phases.add(phase);
+        offsets.add(SystemClock.elapsedRealtimeNanos() - originNanos);
+        threads.add(Thread.currentThread().getName());
+    }
+
+    synchronized String describe() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < phases.size(); i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(String.format(Locale.US, "%s=%.1fms [%s]", phases.get(i), offsets.get(i) / 1e6,
+                    threads.get(i)));
+        }
+        return sb.length() > 0 ? sb.toString() : "none";
+    }
+}
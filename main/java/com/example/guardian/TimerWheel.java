@@ -0,0 +1,237 @@
+package com.example.guardian;
+
+/**
+ * Timer wheel gerarchica: quattro livelli da 64 slot, ognuno con una granularità 64
+ * volte quella del precedente. Inserimento e cancellazione costano O(1) qualunque sia
+ * il numero di timer; le scadenze lontane scendono di livello (cascade) solo quando il
+ * loro slot diventa quello corrente. Le scadenze oltre l'ultimo livello vengono
+ * parcheggiate nel suo ultimo slot e ricollocate alla cascade.
+ *
+ * I timer scattano al primo tick non anteriore alla scadenza, quindi con al più un tick
+ * di ritardo. Non è thread-safe: va usata da un solo thread.
+ */
+public class TimerWheel {
+
+    private static final int LEVELS = 4;
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final long MAX_DELTA = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    public static class Timeout {
+        final Runnable task;
+        long deadline;
+        long period;
+        int level = -1;
+        int slot;
+        Timeout prev;
+        Timeout next;
+
+        public Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        public boolean isScheduled() {
+            return level >= 0;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+    }
+
+    private final long tickMs;
+    private final Timeout[][] wheel = new Timeout[LEVELS][SLOTS];
+    private final int[] levelCounts = new int[LEVELS];
+    // Un bit per slot occupato: con 64 slot la ricerca del prossimo è una sola istruzione
+    private final long[] occupied = new long[LEVELS];
+    private long currentTick;
+    private int size;
+    private long fired;
+
+    public TimerWheel(long tickMs, long now) {
+        this.tickMs = tickMs;
+        this.currentTick = now / tickMs;
+    }
+
+    public void schedule(Timeout timeout, long deadline) {
+        schedule(timeout, deadline, 0);
+    }
+
+    /**
+     * Timer periodico a frequenza fissa: dopo ogni esecuzione viene ripianificato alla
+     * prima scadenza successiva non ancora passata.
+     */
+    public void schedulePeriodic(Timeout timeout, long firstDeadline, long periodMs) {
+        schedule(timeout, firstDeadline, periodMs);
+    }
+
+    private void schedule(Timeout timeout, long deadline, long period) {
+        cancel(timeout);
+        timeout.deadline = deadline;
+        timeout.period = period;
+        insert(timeout, currentTick + 1);
+    }
+
+    private void insert(Timeout timeout, long earliestTick) {
+        // Tick per eccesso, e mai in un tick già elaborato
+        long tick = Math.max((timeout.deadline + tickMs - 1) / tickMs, earliestTick);
+        long delta = Math.min(tick - currentTick, MAX_DELTA);
+        tick = currentTick + delta;
+
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        int slot = (int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK);
+
+        Timeout head = wheel[level][slot];
+        timeout.level = level;
+        timeout.slot = slot;
+        timeout.prev = null;
+        timeout.next = head;
+        if (head != null) {
+            head.prev = timeout;
+        }
+        wheel[level][slot] = timeout;
+        occupied[level] |= 1L << slot;
+        levelCounts[level]++;
+        size++;
+    }
+
+    public void cancel(Timeout timeout) {
+        if (timeout.level < 0) return;
+        unlink(timeout);
+        timeout.period = 0;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            wheel[timeout.level][timeout.slot] = timeout.next;
+            if (timeout.next == null) {
+                occupied[timeout.level] &= ~(1L << timeout.slot);
+            }
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        levelCounts[timeout.level]--;
+        size--;
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.level = -1;
+    }
+
+    /**
+     * Esegue i timer scaduti entro {@code now}; ritorna quanti ne ha eseguiti.
+     */
+    public int advance(long now) {
+        long targetTick = now / tickMs;
+        int count = 0;
+
+        while (currentTick < targetTick) {
+            if (size == 0) {
+                currentTick = targetTick;
+                break;
+            }
+            // Salta i tick vuoti fino al prossimo slot occupato, senza oltrepassare la cascade
+            long skipTo = Math.min(targetTick, currentTick | SLOT_MASK);
+            int distance = nextOccupied(0);
+            if (distance > 0) {
+                skipTo = Math.min(skipTo, currentTick + distance - 1);
+            }
+            if (skipTo > currentTick) {
+                currentTick = skipTo;
+                continue;
+            }
+
+            currentTick++;
+            cascade();
+
+            int slot = (int) (currentTick & SLOT_MASK);
+            Timeout timeout;
+            while ((timeout = wheel[0][slot]) != null) {
+                unlink(timeout);
+                if (timeout.period > 0) {
+                    // Salta i periodi persi: una sola esecuzione per recuperare
+                    long missed = Math.max(0, (now - timeout.deadline) / timeout.period);
+                    timeout.deadline += (missed + 1) * timeout.period;
+                    insert(timeout, currentTick + 1);
+                }
+                timeout.task.run();
+                fired++;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // All'inizio di un nuovo giro di un livello, ridistribuisce lo slot corrente del successivo
+    private void cascade() {
+        for (int level = 1; level < LEVELS; level++) {
+            if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) return;
+
+            int slot = (int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+            Timeout timeout = wheel[level][slot];
+            wheel[level][slot] = null;
+            occupied[level] &= ~(1L << slot);
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                levelCounts[level]--;
+                size--;
+                timeout.prev = null;
+                timeout.next = null;
+                timeout.level = -1;
+                // Lo slot del tick corrente viene elaborato subito dopo la cascade
+                insert(timeout, currentTick);
+                timeout = next;
+            }
+        }
+    }
+
+    /**
+     * Istante del tick in cui scatta il primo timer, {@link Long#MAX_VALUE} se non ce ne
+     * sono. Le cascade intermedie non richiedono un advance a parte: le esegue l'advance
+     * di quel tick. Per i livelli superiori scorre il solo primo slot occupato, che
+     * contiene le scadenze più vicine del livello.
+     */
+    public long nextWakeup() {
+        if (size == 0) return Long.MAX_VALUE;
+
+        long best = Long.MAX_VALUE;
+        for (int level = 0; level < LEVELS; level++) {
+            int distance = nextOccupied(level);
+            if (distance == 0) continue;
+
+            int shift = SLOT_BITS * level;
+            long slotStart = ((currentTick >>> shift) + distance) << shift;
+            if (level == 0) {
+                best = Math.min(best, slotStart * tickMs);
+                continue;
+            }
+            for (Timeout t = wheel[level][(int) (slotStart >>> shift) & SLOT_MASK]; t != null; t = t.next) {
+                long tick = Math.max((t.deadline + tickMs - 1) / tickMs, slotStart);
+                best = Math.min(best, tick * tickMs);
+            }
+        }
+        return best;
+    }
+
+    // Distanza in slot (1..64) dal corrente al prossimo slot occupato del livello, 0 se vuoto
+    private int nextOccupied(int level) {
+        long bits = occupied[level];
+        if (bits == 0) return 0;
+        int first = (int) (((currentTick >>> (SLOT_BITS * level)) + 1) & SLOT_MASK);
+        return Long.numberOfTrailingZeros(Long.rotateRight(bits, first)) + 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getFired() {
+        return fired;
+    }
+}
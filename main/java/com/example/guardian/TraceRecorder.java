@@ -0,0 +1,279 @@
+package com.example.guardian;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Registra gli ingressi della {@link DetectionPipeline} in un file di traccia compatto,
+ * riproducibile con {@link TraceReplayer}.
+ *
+ * Formato: intestazione (magic, versione, istante iniziale, package dell'app), poi una
+ * sequenza di record {@code tag + delta di tempo}. Interi e delta sono varint; i nomi
+ * dei package vengono scritti una volta sola e poi riferiti per indice. Le risposte
+ * alle query sugli UsageEvents vengono salvate così come consegnate, perché il
+ * replay le riconsegni identiche.
+ */
+public class TraceRecorder implements Closeable {
+
+    static final int MAGIC = 0x47545243; // "GTRC"
+    // Versione 2: operazione nelle sessioni aperte e record delle operazioni diverse dal
+    // microfono. Versione 3: stato foreground delle sessioni aperte e record dello stato
+    // degli UsageEvents. Le versioni precedenti restano leggibili
+    static final int VERSION = 3;
+
+    static final int TAG_STRING = 1;
+    static final int TAG_RECORDING = 2;
+    static final int TAG_TICK = 3;
+    static final int TAG_USAGE_QUERY = 4;
+    static final int TAG_PACKAGE = 5;
+    static final int TAG_APP_NAME = 6;
+    static final int TAG_FLUSH = 7;
+    static final int TAG_OPEN_SESSIONS = 8;
+    static final int TAG_OP_ACTIVE = 9;
+    static final int TAG_USAGE_STATE = 10;
+
+    private static final long MAX_TRACE_BYTES = 16 * 1024 * 1024; // 16 MB
+
+    private final File file;
+    private final DataOutputStream out;
+    private final Map<String, Integer> strings = new HashMap<>();
+    private final Map<Integer, String> packages = new HashMap<>();
+    private final Map<String, String> appNames = new HashMap<>();
+    private long lastTimestamp;
+    private long records;
+    private boolean closed = false;
+
+    public TraceRecorder(File file, long startTime, String ownPackage) throws IOException {
+        this.file = file;
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        this.lastTimestamp = startTime;
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(startTime);
+        out.writeUTF(ownPackage);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    // Il microfono mantiene il record originale, le altre operazioni aggiungono l'operazione
+    synchronized void recordRecordingConfig(int op, long timestamp, int[] clientUids) {
+        if (!begin(op == SensitiveOp.MICROPHONE ? TAG_RECORDING : TAG_OP_ACTIVE, timestamp)) return;
+        try {
+            if (op != SensitiveOp.MICROPHONE) {
+                writeVarLong(op);
+            }
+            writeVarLong(clientUids.length);
+            for (int uid : clientUids) {
+                writeVarLong(zigZag(uid));
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    synchronized void recordTick(long timestamp) {
+        begin(TAG_TICK, timestamp);
+    }
+
+    synchronized void recordFlush(long timestamp) {
+        begin(TAG_FLUSH, timestamp);
+    }
+
+    synchronized void recordOpenSessions(long timestamp, List<SessionEntry> sessions) {
+        try {
+            for (SessionEntry entry : sessions) {
+                stringId(entry.packageName);
+            }
+            if (!begin(TAG_OPEN_SESSIONS, timestamp)) return;
+            writeVarLong(sessions.size());
+            for (SessionEntry entry : sessions) {
+                writeVarLong(entry.op);
+                writeVarLong(strings.get(entry.packageName));
+                writeVarLong(zigZag(timestamp - entry.startTime));
+                out.writeBoolean(entry.isForeground);
+                writeVarLong(zigZag(timestamp - entry.stateTime));
+                writeVarLong(entry.foregroundMs);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Cursore degli UsageEvents e stato foreground delle app all'inizio della traccia,
+     * perché il replay riparta dalla stessa situazione.
+     */
+    synchronized void recordUsageState(long timestamp, long cursor,
+                                       List<BackgroundRecordingAnalyzer.AppForeground> states) {
+        try {
+            for (BackgroundRecordingAnalyzer.AppForeground state : states) {
+                stringId(state.packageName);
+            }
+            if (!begin(TAG_USAGE_STATE, timestamp)) return;
+            writeVarLong(zigZag(timestamp - cursor));
+            writeVarLong(states.size());
+            for (BackgroundRecordingAnalyzer.AppForeground state : states) {
+                writeVarLong(strings.get(state.packageName));
+                out.writeBoolean(state.foreground);
+                writeVarLong(zigZag(timestamp - state.since));
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Esegue la query sulla sorgente reale, inoltra gli eventi e li salva nella traccia.
+     */
+    void recordUsageQuery(long timestamp, long from, EventSources.UsageEventSource source,
+                          EventSources.UsageEventSink sink) {
+        final List<UsageEvent> events = new ArrayList<>();
+        source.query(from, timestamp, (packageName, eventTime, type) -> {
+            events.add(new UsageEvent(packageName, eventTime, type));
+            sink.onUsageEvent(packageName, eventTime, type);
+        });
+
+        synchronized (this) {
+            try {
+                for (UsageEvent event : events) {
+                    stringId(event.packageName);
+                }
+                if (!begin(TAG_USAGE_QUERY, timestamp)) return;
+                writeVarLong(timestamp - from);
+                writeVarLong(events.size());
+                for (UsageEvent event : events) {
+                    writeVarLong(strings.get(event.packageName));
+                    writeVarLong(zigZag(event.timestamp - from));
+                    writeVarLong(event.type);
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    synchronized void recordPackage(int uid, String packageName) {
+        if (packages.containsKey(uid) && equal(packages.get(uid), packageName)) return;
+        packages.put(uid, packageName);
+        try {
+            int id = packageName == null ? 0 : stringId(packageName) + 1;
+            if (!begin(TAG_PACKAGE, lastTimestamp)) return;
+            writeVarLong(zigZag(uid));
+            writeVarLong(id);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    synchronized void recordAppName(String packageName, String appName) {
+        if (appNames.containsKey(packageName) && equal(appNames.get(packageName), appName)) return;
+        appNames.put(packageName, appName);
+        try {
+            int packageId = stringId(packageName);
+            int nameId = stringId(appName);
+            if (!begin(TAG_APP_NAME, lastTimestamp)) return;
+            writeVarLong(packageId);
+            writeVarLong(nameId);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        out.close();
+    }
+
+    // Scrive tag e delta di tempo; false se la traccia è chiusa o ha raggiunto il limite
+    private boolean begin(int tag, long timestamp) {
+        if (closed) return false;
+        if (out.size() >= MAX_TRACE_BYTES) {
+            try {
+                close();
+            } catch (IOException e) {
+                // Il file viene comunque abbandonato
+            }
+            return false;
+        }
+        try {
+            out.writeByte(tag);
+            writeVarLong(zigZag(timestamp - lastTimestamp));
+            lastTimestamp = timestamp;
+            records++;
+            return true;
+        } catch (IOException e) {
+            fail(e);
+            return false;
+        }
+    }
+
+    private int stringId(String value) throws IOException {
+        Integer id = strings.get(value);
+        if (id != null) return id;
+
+        id = strings.size();
+        strings.put(value, id);
+        if (!closed) {
+            out.writeByte(TAG_STRING);
+            out.writeUTF(value);
+        }
+        return id;
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private void fail(IOException e) {
+        closed = true;
+        try {
+            out.close();
+        } catch (IOException ignored) {
+            // Già in errore
+        }
+    }
+
+    static class UsageEvent {
+        final String packageName;
+        final long timestamp;
+        final int type;
+
+        UsageEvent(String packageName, long timestamp, int type) {
+            this.packageName = packageName;
+            this.timestamp = timestamp;
+            this.type = type;
+        }
+    }
+}
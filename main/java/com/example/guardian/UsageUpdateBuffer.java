@@ -0,0 +1,126 @@
+package com.example.guardian;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ultimi aggiornamenti pubblicati dal servizio, numerati con una sequenza crescente.
+ *
+ * Mentre l'attività è ferma non riceve nulla; quando riparte chiede con
+ * {@link #since(long)} tutto ciò che è cambiato dopo l'ultima sequenza vista, già
+ * accorpato per app (solo l'ultimo stato di ciascuna).
+ *
+ * Sotto pressione di memoria vengono scartate per prime le app aggiornate meno di
+ * recente, come oltre {@link #MAX_APPS}.
+ */
+public class UsageUpdateBuffer implements MemoryBudgetRegistry.Cache {
+
+    private static final int MAX_APPS = 100;
+    // Stima di una voce: chiave, Update, MicrophoneUsageInfo e le sue stringhe
+    private static final int UPDATE_BYTES = 256;
+
+    private static final UsageUpdateBuffer instance = new UsageUpdateBuffer();
+
+    private long sequence = 0;
+    // Ordine di accesso: l'app aggiornata meno di recente viene scartata per prima
+    private final LinkedHashMap<String, Update> latestByApp = new LinkedHashMap<>(16, 0.75f, true);
+    private SessionUpdate session = new SessionUpdate(0, 0, new String[0]);
+
+    public static UsageUpdateBuffer getInstance() {
+        return instance;
+    }
+
+    public synchronized long publish(List<MicrophoneMonitoringService.MicrophoneUsageInfo> usageInfoList) {
+        sequence++;
+        for (MicrophoneMonitoringService.MicrophoneUsageInfo info : usageInfoList) {
+            // Un'app può usare più operazioni insieme: una voce per app e operazione
+            latestByApp.put(info.packageName + "/" + info.op, new Update(sequence, info));
+        }
+        trimToCount(MAX_APPS);
+        return sequence;
+    }
+
+    @Override
+    public synchronized long sizeBytes() {
+        return (long) latestByApp.size() * UPDATE_BYTES;
+    }
+
+    @Override
+    public synchronized void trimTo(long maxBytes) {
+        trimToCount((int) (maxBytes / UPDATE_BYTES));
+    }
+
+    private void trimToCount(int maxApps) {
+        Iterator<Map.Entry<String, Update>> it = latestByApp.entrySet().iterator();
+        while (latestByApp.size() > maxApps && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    public synchronized long publishSession(long startTime, String[] appNames) {
+        sequence++;
+        session = new SessionUpdate(sequence, startTime, appNames);
+        return sequence;
+    }
+
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Ultimo stato di ogni app aggiornata dopo {@code seq}, in ordine di pubblicazione.
+     */
+    public synchronized List<MicrophoneMonitoringService.MicrophoneUsageInfo> since(long seq) {
+        List<Update> changed = new ArrayList<>();
+        for (Update update : latestByApp.values()) {
+            if (update.seq > seq) changed.add(update);
+        }
+        Collections.sort(changed, new Comparator<Update>() {
+            @Override
+            public int compare(Update u1, Update u2) {
+                return Long.compare(u1.seq, u2.seq);
+            }
+        });
+
+        List<MicrophoneMonitoringService.MicrophoneUsageInfo> result = new ArrayList<>(changed.size());
+        for (Update update : changed) {
+            result.add(update.info);
+        }
+        return result;
+    }
+
+    /**
+     * Stato della sessione corrente se cambiato dopo {@code seq}, altrimenti null.
+     */
+    public synchronized SessionUpdate sessionSince(long seq) {
+        return session.seq > seq ? session : null;
+    }
+
+    private static class Update {
+        final long seq;
+        final MicrophoneMonitoringService.MicrophoneUsageInfo info;
+
+        Update(long seq, MicrophoneMonitoringService.MicrophoneUsageInfo info) {
+            this.seq = seq;
+            this.info = info;
+        }
+    }
+
+    public static class SessionUpdate {
+        public final long seq;
+        public final long startTime;
+        public final String[] appNames;
+
+        SessionUpdate(long seq, long startTime, String[] appNames) {
+            this.seq = seq;
+            this.startTime = startTime;
+            this.appNames = appNames;
+        }
+    }
+}
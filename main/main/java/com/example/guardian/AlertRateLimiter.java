@@ -0,0 +1,171 @@
+package com.example.guardian;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Limita le notifiche di allarme con due token bucket: uno per app, contro un'app che
+ * accende e spegne il microfono di continuo, e uno globale, per restare lontani dai
+ * limiti di frequenza delle notifiche di Android (che rallenterebbero anche la notifica
+ * del servizio in foreground).
+ *
+ * Lo stato è in array primitivi indicizzati per id di package. Gli allarmi soppressi
+ * vengono contati per app fino alla fine della "tempesta" (nessuna soppressione per
+ * {@code stormQuietMs}), per il riepilogo raggruppato.
+ */
+public class AlertRateLimiter {
+
+    private final int appBurst;
+    private final long appRefillMs;
+    private final int globalBurst;
+    private final long globalRefillMs;
+    private final long stormQuietMs;
+
+    private final Map<String, Integer> packageIds = new HashMap<>();
+    private String[] packageNames = new String[16];
+    private float[] tokens = new float[16];
+    private long[] refilledAt = new long[16];
+    // Soppressi nella tempesta corrente e dall'avvio
+    private int[] stormSuppressed = new int[16];
+    private long[] totalSuppressed = new long[16];
+
+    private float globalTokens;
+    private long globalRefilledAt;
+    private long lastSuppressedAt;
+    private int stormTotal;
+
+    // Statistiche
+    private long allowed;
+    private long suppressedByApp;
+    private long suppressedByGlobal;
+
+    public AlertRateLimiter(int appBurst, long appRefillMs, int globalBurst, long globalRefillMs,
+                            long stormQuietMs, long now) {
+        this.appBurst = appBurst;
+        this.appRefillMs = appRefillMs;
+        this.globalBurst = globalBurst;
+        this.globalRefillMs = globalRefillMs;
+        this.stormQuietMs = stormQuietMs;
+        this.globalTokens = globalBurst;
+        this.globalRefilledAt = now;
+        this.lastSuppressedAt = now - stormQuietMs - 1;
+    }
+
+    /**
+     * Vero se l'allarme dell'app può essere notificato subito; altrimenti viene contato
+     * tra i soppressi. Il token dell'app e quello globale si consumano solo insieme.
+     */
+    public synchronized boolean tryAcquire(String packageName, long now) {
+        int id = idFor(packageName, now);
+        refillGlobal(now);
+        tokens[id] = Math.min(appBurst, tokens[id] + (float) (now - refilledAt[id]) / appRefillMs);
+        refilledAt[id] = now;
+
+        if (tokens[id] >= 1 && globalTokens >= 1) {
+            tokens[id] -= 1;
+            globalTokens -= 1;
+            allowed++;
+            return true;
+        }
+
+        if (tokens[id] < 1) {
+            suppressedByApp++;
+        } else {
+            suppressedByGlobal++;
+        }
+        if (now - lastSuppressedAt > stormQuietMs) {
+            // Nuova tempesta: il riepilogo riparte da zero
+            Arrays.fill(stormSuppressed, 0);
+            stormTotal = 0;
+        }
+        lastSuppressedAt = now;
+        stormSuppressed[id]++;
+        totalSuppressed[id]++;
+        stormTotal++;
+        return false;
+    }
+
+    /**
+     * Consuma un token globale per una notifica che non riguarda una singola app (il
+     * riepilogo). Ritorna i millisecondi di attesa se non è disponibile, 0 se consumato.
+     */
+    public synchronized long tryAcquireGlobal(long now) {
+        refillGlobal(now);
+        if (globalTokens >= 1) {
+            globalTokens -= 1;
+            return 0;
+        }
+        return Math.max(1, (long) ((1 - globalTokens) * globalRefillMs));
+    }
+
+    public synchronized int stormTotal() {
+        return stormTotal;
+    }
+
+    /**
+     * Allarmi soppressi nella tempesta corrente, per app, in ordine di id.
+     */
+    public synchronized List<Suppressed> stormSummary() {
+        List<Suppressed> result = new ArrayList<>();
+        for (int id = 0; id < packageIds.size(); id++) {
+            if (stormSuppressed[id] > 0) {
+                result.add(new Suppressed(packageNames[id], stormSuppressed[id]));
+            }
+        }
+        return result;
+    }
+
+    public synchronized String describeStats() {
+        StringBuilder sb = new StringBuilder(String.format(Locale.US,
+                "allowed=%d, suppressed=%d (per app %d, global %d), storm=%d, globalTokens=%.1f",
+                allowed, suppressedByApp + suppressedByGlobal, suppressedByApp, suppressedByGlobal,
+                stormTotal, globalTokens));
+        for (int id = 0; id < packageIds.size(); id++) {
+            if (totalSuppressed[id] > 0) {
+                sb.append(String.format(Locale.US, "\n  %s suppressed=%d tokens=%.1f",
+                        packageNames[id], totalSuppressed[id], tokens[id]));
+            }
+        }
+        return sb.toString();
+    }
+
+    private void refillGlobal(long now) {
+        globalTokens = Math.min(globalBurst, globalTokens + (float) (now - globalRefilledAt) / globalRefillMs);
+        globalRefilledAt = now;
+    }
+
+    private int idFor(String packageName, long now) {
+        Integer id = packageIds.get(packageName);
+        if (id != null) return id;
+
+        id = packageIds.size();
+        packageIds.put(packageName, id);
+        if (id >= tokens.length) {
+            int length = tokens.length * 2;
+            packageNames = Arrays.copyOf(packageNames, length);
+            tokens = Arrays.copyOf(tokens, length);
+            refilledAt = Arrays.copyOf(refilledAt, length);
+            stormSuppressed = Arrays.copyOf(stormSuppressed, length);
+            totalSuppressed = Arrays.copyOf(totalSuppressed, length);
+        }
+        // Una nuova app parte con il bucket pieno
+        packageNames[id] = packageName;
+        tokens[id] = appBurst;
+        refilledAt[id] = now;
+        return id;
+    }
+
+    public static class Suppressed {
+        public final String packageName;
+        public final int count;
+
+        Suppressed(String packageName, int count) {
+            this.packageName = packageName;
+            this.count = count;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.example.guardian;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Benchmark di {@link AlertRulesEngine}: lo stesso flusso di transizioni viene valutato
+ * con insiemi di regole sempre più grandi. La valutazione costa O(1) per evento più O(1)
+ * per allarme emesso: con più regole crescono le soglie superate (e quindi gli allarmi),
+ * non il costo di ogni transizione.
+ *
+ * Uso: {@code java -cp <classi> com.example.guardian.AlertRulesBenchmark
+ * [--rules 10,100,1000,10000] [--apps N] [--events N] [--seed N]}
+ */
+public class AlertRulesBenchmark {
+
+    private static final String PACKAGE_PREFIX = "com.example.bench.app";
+    private static final int WARMUP_ROUNDS = 2;
+
+    public static void main(String[] args) {
+        int[] ruleCounts = {10, 100, 1000, 10000};
+        int apps = 500;
+        int events = 2_000_000;
+        long seed = 1;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--rules":
+                    String[] parts = args[i + 1].split(",");
+                    ruleCounts = new int[parts.length];
+                    for (int j = 0; j < parts.length; j++) {
+                        ruleCounts[j] = Integer.parseInt(parts[j].trim());
+                    }
+                    break;
+                case "--apps":
+                    apps = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--events":
+                    events = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(args[i + 1]);
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "{\"apps\":%d,\"events\":%d,\"results\":[", apps, events));
+        for (int i = 0; i < ruleCounts.length; i++) {
+            List<AlertRule> rules = generateRules(ruleCounts[i], apps, new Random(seed));
+            for (int round = 0; round < WARMUP_ROUNDS; round++) {
+                run(rules, apps, events, seed);
+            }
+            if (i > 0) sb.append(',');
+            sb.append(run(rules, apps, events, seed));
+        }
+        System.out.println(sb.append("]}"));
+    }
+
+    /**
+     * Regole miste: per il 10% globali, le altre su app casuali; metà soglie di
+     * background tra 5 s e 10 minuti, metà schermo spento con allowlist.
+     */
+    static List<AlertRule> generateRules(int count, int apps, Random random) {
+        List<AlertRule> rules = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String packageName = random.nextInt(10) == 0 ? null : PACKAGE_PREFIX + random.nextInt(apps);
+            if (random.nextBoolean()) {
+                rules.add(AlertRule.background("bg" + i, packageName, 5000 + random.nextInt(595) * 1000L));
+            } else {
+                Set<String> allowlist = new HashSet<>();
+                for (int j = random.nextInt(5); j > 0; j--) {
+                    allowlist.add(PACKAGE_PREFIX + random.nextInt(apps));
+                }
+                rules.add(AlertRule.screenOff("screen" + i, packageName, allowlist));
+            }
+        }
+        return rules;
+    }
+
+    private static String run(List<AlertRule> rules, int apps, int events, long seed) {
+        final long[] alerts = new long[1];
+        final long[] clock = {1_700_000_000_000L};
+        long time = clock[0];
+        // Nessun timer di base: le scadenze vengono avanzate dal ciclo qui sotto
+        EventTimers timers = new EventTimers(() -> clock[0], new EventSources.Timer() {
+            @Override
+            public void schedule(Runnable task, long delayMs) {
+            }
+
+            @Override
+            public void cancel(Runnable task) {
+            }
+        }, 250);
+
+        long compileStart = System.nanoTime();
+        AlertRulesEngine engine = new AlertRulesEngine(rules, timers, alert -> alerts[0]++);
+        long compileNanos = System.nanoTime() - compileStart;
+
+        String[] packages = new String[apps];
+        for (int i = 0; i < apps; i++) {
+            packages[i] = PACKAGE_PREFIX + i;
+        }
+        // Stato di ogni app: 0 ferma, 1 foreground, 2 background
+        int[] state = new int[apps];
+        Random random = new Random(seed);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < events; i++) {
+            time += random.nextInt(200);
+            clock[0] = time;
+            int app = random.nextInt(apps);
+            String packageName = packages[app];
+            int r = random.nextInt(100);
+
+            if (r < 2) {
+                engine.onScreenChanged(random.nextBoolean(), time);
+            } else if (state[app] == 0) {
+                boolean foreground = random.nextBoolean();
+                engine.onSessionStarted(packageName, time, foreground);
+                state[app] = foreground ? 1 : 2;
+            } else if (r < 40) {
+                engine.onSessionEnded(packageName, time);
+                state[app] = 0;
+            } else {
+                boolean foreground = state[app] == 2;
+                engine.onSessionStateChanged(packageName, time, foreground);
+                state[app] = foreground ? 1 : 2;
+            }
+            // Risveglio dei timer, circa una volta al secondo
+            if ((i & 7) == 0) {
+                timers.advance(time);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        return String.format(Locale.US,
+                "{\"rules\":%d,\"compile_ms\":%.2f,\"ns_per_event\":%.1f,\"events_per_s\":%.0f,"
+                        + "\"alerts\":%d,\"alerts_per_event\":%.2f,\"ns_per_output\":%.1f}",
+                rules.size(), compileNanos / 1e6, (double) elapsed / events, events / (elapsed / 1e9),
+                alerts[0], (double) alerts[0] / events, (double) elapsed / (events + alerts[0]));
+    }
+}
@@ -0,0 +1,320 @@
+package com.example.guardian;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Valuta le {@link AlertRule} a ogni transizione di sessione.
+ *
+ * Le regole vengono compilate una volta in una tabella indicizzata per id di package:
+ * per ogni app le soglie di background (ordinate, con le regole di ciascuna) e le regole
+ * di schermo spento che la riguardano. Una transizione costa quindi una lookup e al più
+ * un timer, qualunque sia il numero di regole; le soglie di background sono scadenze sui
+ * {@link EventTimers} del thread degli eventi, dal quale vanno chiamati anche i metodi
+ * di transizione.
+ */
+public class AlertRulesEngine {
+
+    public interface Listener {
+        void onAlert(Alert alert);
+    }
+
+    private final Listener listener;
+    private final int ruleCount;
+    private final Map<String, Integer> packageIds = new HashMap<>();
+    // Regole compilate per id di package; le app senza regole proprie usano wildcard
+    private CompiledRules[] table;
+    private final CompiledRules wildcard;
+    private PackageState[] states = new PackageState[16];
+    private final EventTimers timers;
+    private boolean screenOn = true;
+    private long alerts;
+
+    public AlertRulesEngine(List<AlertRule> rules, EventTimers timers, Listener listener) {
+        this.listener = listener;
+        this.ruleCount = rules.size();
+        this.timers = timers;
+
+        List<AlertRule> global = new ArrayList<>();
+        Map<String, List<AlertRule>> byPackage = new HashMap<>();
+        for (AlertRule rule : rules) {
+            if (rule.appliesToAll()) {
+                global.add(rule);
+            } else {
+                List<AlertRule> list = byPackage.get(rule.packageName);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    byPackage.put(rule.packageName, list);
+                }
+                list.add(rule);
+            }
+        }
+
+        wildcard = compile(null, global, new ArrayList<AlertRule>());
+        table = new CompiledRules[Math.max(16, byPackage.size())];
+        for (Map.Entry<String, List<AlertRule>> entry : byPackage.entrySet()) {
+            int id = idFor(entry.getKey());
+            table[id] = compile(entry.getKey(), global, entry.getValue());
+        }
+    }
+
+    private static CompiledRules compile(String packageName, List<AlertRule> global, List<AlertRule> own) {
+        TreeMap<Long, List<String>> thresholds = new TreeMap<>();
+        List<String> screenOff = new ArrayList<>();
+        List<AlertRule> all = new ArrayList<>(global);
+        all.addAll(own);
+
+        for (AlertRule rule : all) {
+            if (rule.type == AlertRule.TYPE_BACKGROUND) {
+                List<String> ids = thresholds.get(rule.thresholdMs);
+                if (ids == null) {
+                    ids = new ArrayList<>();
+                    thresholds.put(rule.thresholdMs, ids);
+                }
+                ids.add(rule.id);
+            } else if (rule.type == AlertRule.TYPE_SCREEN_OFF) {
+                // Per le regole globali l'allowlist si risolve qui se il package è noto,
+                // altrimenti alla prima transizione dell'app
+                if (packageName == null || !rule.allowlist.contains(packageName)) {
+                    screenOff.add(rule.id);
+                }
+            }
+        }
+
+        CompiledRules compiled = new CompiledRules();
+        compiled.thresholds = new long[thresholds.size()];
+        compiled.thresholdRuleIds = new String[thresholds.size()][];
+        int i = 0;
+        for (Map.Entry<Long, List<String>> entry : thresholds.entrySet()) {
+            compiled.thresholds[i] = entry.getKey();
+            compiled.thresholdRuleIds[i] = entry.getValue().toArray(new String[0]);
+            i++;
+        }
+        compiled.screenOffRuleIds = screenOff.isEmpty() ? null : screenOff.toArray(new String[0]);
+        compiled.screenOffRules = new ArrayList<>();
+        for (AlertRule rule : all) {
+            if (rule.type == AlertRule.TYPE_SCREEN_OFF && packageName == null) {
+                compiled.screenOffRules.add(rule);
+            }
+        }
+        return compiled;
+    }
+
+    public synchronized void onSessionStarted(String packageName, long timestamp, boolean isForeground) {
+        PackageState state = stateFor(packageName);
+        state.recording = true;
+        state.screenOffAlerted = false;
+        setForeground(state, timestamp, isForeground);
+        if (!screenOn) {
+            alertScreenOff(state, timestamp);
+        }
+    }
+
+    /**
+     * Sessione già aperta quando il motore viene creato (riavvio, thread degli eventi
+     * ricostruito): il periodo in background parte dal suo ultimo cambio di stato. Le
+     * soglie raggiunte entro {@code notifiedUntil}, e l'avviso di schermo spento di una
+     * sessione iniziata entro quell'istante, li aveva già inviati il motore precedente;
+     * -1 se non c'era un motore precedente.
+     */
+    public synchronized void onSessionRestored(SessionEntry session, long notifiedUntil, long now) {
+        PackageState state = stateFor(session.packageName);
+        state.recording = true;
+        state.screenOffAlerted = !screenOn && session.startTime <= notifiedUntil;
+        state.backgroundSince = -1;
+        timers.cancel(state.deadline);
+        if (!session.isForeground) {
+            state.backgroundSince = session.stateTime;
+            long[] thresholds = state.rules.thresholds;
+            int next = 0;
+            while (next < thresholds.length && session.stateTime + thresholds[next] <= notifiedUntil) {
+                next++;
+            }
+            state.nextThreshold = next;
+            scheduleNextThreshold(state);
+        }
+        if (!screenOn) {
+            alertScreenOff(state, now);
+        }
+    }
+
+    public synchronized void onSessionStateChanged(String packageName, long timestamp, boolean isForeground) {
+        PackageState state = stateFor(packageName);
+        if (state.recording) {
+            setForeground(state, timestamp, isForeground);
+        }
+    }
+
+    public synchronized void onSessionEnded(String packageName, long timestamp) {
+        PackageState state = stateFor(packageName);
+        state.recording = false;
+        state.backgroundSince = -1;
+        timers.cancel(state.deadline);
+    }
+
+    /**
+     * Cambio di stato dello schermo: allo spegnimento valuta le sessioni aperte.
+     */
+    public synchronized void onScreenChanged(boolean on, long timestamp) {
+        if (screenOn == on) return;
+        screenOn = on;
+        if (on) return;
+
+        for (PackageState state : states) {
+            if (state != null && state.recording) {
+                alertScreenOff(state, timestamp);
+            }
+        }
+    }
+
+    public synchronized String describeStats() {
+        int compiled = 0;
+        for (CompiledRules rules : table) {
+            if (rules != null) compiled++;
+        }
+        int pending = 0;
+        for (PackageState state : states) {
+            if (state != null && state.deadline.isScheduled()) pending++;
+        }
+        return String.format(Locale.US,
+                "rules=%d, packages=%d (%d with own rules), wildcardThresholds=%d, pendingDeadlines=%d, screenOn=%b, alerts=%d",
+                ruleCount, packageIds.size(), compiled, wildcard.thresholds.length, pending, screenOn, alerts);
+    }
+
+    private void setForeground(PackageState state, long timestamp, boolean isForeground) {
+        if (isForeground) {
+            state.backgroundSince = -1;
+            timers.cancel(state.deadline);
+            return;
+        }
+        if (state.backgroundSince >= 0) return;
+
+        // Inizio di un periodo in background: prima soglia
+        state.backgroundSince = timestamp;
+        state.nextThreshold = 0;
+        scheduleNextThreshold(state);
+    }
+
+    private void scheduleNextThreshold(PackageState state) {
+        long[] thresholds = state.rules.thresholds;
+        if (state.nextThreshold < thresholds.length) {
+            timers.schedule(state.deadline, state.backgroundSince + thresholds[state.nextThreshold]);
+        }
+    }
+
+    private synchronized void onBackgroundDeadline(PackageState state) {
+        if (!state.recording || state.backgroundSince < 0) return;
+
+        int index = state.nextThreshold++;
+        long threshold = state.rules.thresholds[index];
+        emit(new Alert(AlertRule.TYPE_BACKGROUND, state.packageName, state.backgroundSince + threshold,
+                threshold, state.rules.thresholdRuleIds[index]));
+        scheduleNextThreshold(state);
+    }
+
+    private void alertScreenOff(PackageState state, long timestamp) {
+        String[] ruleIds = state.rules.screenOffRuleIds;
+        if (ruleIds == null || state.screenOffAlerted) return;
+        state.screenOffAlerted = true;
+        emit(new Alert(AlertRule.TYPE_SCREEN_OFF, state.packageName, timestamp, 0, ruleIds));
+    }
+
+    private void emit(Alert alert) {
+        alerts++;
+        listener.onAlert(alert);
+    }
+
+    private int idFor(String packageName) {
+        Integer id = packageIds.get(packageName);
+        if (id == null) {
+            id = packageIds.size();
+            packageIds.put(packageName, id);
+        }
+        return id;
+    }
+
+    private PackageState stateFor(String packageName) {
+        int id = idFor(packageName);
+        if (id >= states.length) {
+            states = Arrays.copyOf(states, Math.max(id + 1, states.length * 2));
+        }
+        PackageState state = states[id];
+        if (state == null) {
+            CompiledRules rules = id < table.length ? table[id] : null;
+            if (rules == null) {
+                rules = wildcard.forPackage(packageName);
+            }
+            state = new PackageState(packageName, rules);
+            states[id] = state;
+        }
+        return state;
+    }
+
+    private static class CompiledRules {
+        long[] thresholds;
+        String[][] thresholdRuleIds;
+        String[] screenOffRuleIds;
+        // Solo nella tabella wildcard: regole di schermo spento con allowlist da risolvere
+        List<AlertRule> screenOffRules;
+
+        // Specializza le regole globali per un'app senza regole proprie
+        CompiledRules forPackage(String packageName) {
+            boolean allowlisted = false;
+            for (AlertRule rule : screenOffRules) {
+                if (rule.allowlist.contains(packageName)) {
+                    allowlisted = true;
+                    break;
+                }
+            }
+            if (!allowlisted) return this;
+
+            CompiledRules specialized = new CompiledRules();
+            specialized.thresholds = thresholds;
+            specialized.thresholdRuleIds = thresholdRuleIds;
+            List<String> ids = new ArrayList<>();
+            for (AlertRule rule : screenOffRules) {
+                if (!rule.allowlist.contains(packageName)) ids.add(rule.id);
+            }
+            specialized.screenOffRuleIds = ids.isEmpty() ? null : ids.toArray(new String[0]);
+            specialized.screenOffRules = screenOffRules;
+            return specialized;
+        }
+    }
+
+    private class PackageState {
+        final String packageName;
+        final CompiledRules rules;
+        final TimerWheel.Timeout deadline;
+        boolean recording;
+        boolean screenOffAlerted;
+        long backgroundSince = -1;
+        int nextThreshold;
+
+        PackageState(String packageName, CompiledRules rules) {
+            this.packageName = packageName;
+            this.rules = rules;
+            this.deadline = new TimerWheel.Timeout(() -> onBackgroundDeadline(this));
+        }
+    }
+
+    public static class Alert {
+        public final int type;
+        public final String packageName;
+        public final long timestamp;
+        public final long thresholdMs;
+        public final String[] ruleIds;
+
+        Alert(int type, String packageName, long timestamp, long thresholdMs, String[] ruleIds) {
+            this.type = type;
+            this.packageName = packageName;
+            this.timestamp = timestamp;
+            this.thresholdMs = thresholdMs;
+            this.ruleIds = ruleIds;
+        }
+    }
+}
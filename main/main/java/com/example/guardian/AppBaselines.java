@@ -0,0 +1,283 @@
+package com.example.guardian;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Profilo d'uso del microfono di ogni app, aggiornato in streaming alla fine di ogni
+ * sessione con memoria fissa per app: EWMA (media e varianza) della durata e dell'intervallo
+ * dalla sessione precedente, entrambe in scala logaritmica, e istogramma dell'ora del
+ * giorno di inizio.
+ *
+ * Il punteggio di anomalia di una sessione è la sorpresa, in bit, rispetto al profilo
+ * dell'app: 0 per una sessione tipica, qualche bit per ogni componente fuori norma. La
+ * sessione viene valutata sul profilo precedente, poi entra nel profilo.
+ */
+public class AppBaselines {
+
+    private static final int VERSION = 1;
+    private static final int MAX_APPS = 512;
+    // Prima di questo numero di sessioni il profilo non è affidabile: punteggio 0
+    static final int MIN_SESSIONS = 8;
+    // Peso di una nuova sessione nelle EWMA: circa le ultime 20 sessioni
+    private static final float ALPHA = 0.1f;
+    // Varianza minima in scala logaritmica, per le app molto regolari
+    private static final float MIN_VARIANCE = 0.25f;
+    private static final float MAX_Z = 6f;
+    // Totale oltre il quale l'istogramma viene dimezzato: ogni bin resta in un byte
+    private static final int HOUR_WINDOW = 254;
+    // Conteggio a priori di ogni ora: con poche sessioni le ore mai viste pesano poco
+    private static final float HOUR_PRIOR = 0.25f;
+    private static final double LN2 = Math.log(2);
+
+    private final TimeZone timeZone;
+    // In ordine di accesso: oltre MAX_APPS viene scartata l'app usata meno di recente
+    private final LinkedHashMap<String, Baseline> baselines = new LinkedHashMap<String, Baseline>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Baseline> eldest) {
+            return size() > MAX_APPS;
+        }
+    };
+    private boolean dirty;
+
+    public AppBaselines(TimeZone timeZone) {
+        this.timeZone = timeZone;
+    }
+
+    /**
+     * Punteggio dell'inizio di una sessione: ora del giorno e intervallo dalla precedente.
+     */
+    public synchronized float scoreStart(String packageName, long start) {
+        Baseline baseline = baselines.get(packageName);
+        if (baseline == null || baseline.sessions < MIN_SESSIONS) return 0;
+        return hourBits(baseline, start) + gapBits(baseline, start);
+    }
+
+    /**
+     * Punteggio di una sessione ancora aperta: all'inizio si aggiunge la durata, ma solo
+     * quando supera già quella tipica.
+     */
+    public synchronized float scoreOpen(String packageName, long start, long now) {
+        Baseline baseline = baselines.get(packageName);
+        if (baseline == null || baseline.sessions < MIN_SESSIONS) return 0;
+        float score = hourBits(baseline, start) + gapBits(baseline, start);
+        double x = logSeconds(now - start);
+        if (x > baseline.durationMean) {
+            score += bits(x, baseline.durationMean, baseline.durationVariance);
+        }
+        return score;
+    }
+
+    /**
+     * Valuta la sessione conclusa e la aggiunge al profilo dell'app; O(1).
+     */
+    public synchronized float onSessionEnded(String packageName, long start, long end) {
+        Baseline baseline = baselines.get(packageName);
+        if (baseline == null) {
+            baseline = new Baseline(packageName);
+            baselines.put(packageName, baseline);
+        }
+
+        float score = 0;
+        if (baseline.sessions >= MIN_SESSIONS) {
+            score = hourBits(baseline, start) + gapBits(baseline, start)
+                    + bits(logSeconds(end - start), baseline.durationMean, baseline.durationVariance);
+        }
+
+        double duration = logSeconds(end - start);
+        if (baseline.sessions == 0) {
+            baseline.durationMean = (float) duration;
+        } else {
+            updateEwma(baseline, duration, false);
+        }
+        if (baseline.lastEnd > 0 && start >= baseline.lastEnd) {
+            double gap = logSeconds(start - baseline.lastEnd);
+            if (baseline.gaps == 0) {
+                baseline.gapMean = (float) gap;
+            } else {
+                updateEwma(baseline, gap, true);
+            }
+            baseline.gaps++;
+        }
+
+        int hour = hourOf(start);
+        baseline.hours[hour]++;
+        if (++baseline.hourTotal >= HOUR_WINDOW) {
+            // Dimezzamento: le abitudini recenti pesano di più, ammortizzato O(1)
+            baseline.hourTotal = 0;
+            for (int i = 0; i < 24; i++) {
+                baseline.hours[i] = (byte) ((baseline.hours[i] & 0xFF) >> 1);
+                baseline.hourTotal += baseline.hours[i] & 0xFF;
+            }
+        }
+
+        baseline.lastEnd = Math.max(baseline.lastEnd, end);
+        if (baseline.sessions < Integer.MAX_VALUE) baseline.sessions++;
+        dirty = true;
+        return score;
+    }
+
+    public synchronized int size() {
+        return baselines.size();
+    }
+
+    /**
+     * Vero se il profilo è cambiato dall'ultimo {@link #toByteArray()}.
+     */
+    public synchronized boolean isDirty() {
+        return dirty;
+    }
+
+    // EWMA incrementale di media e varianza (Welford esponenziale)
+    private static void updateEwma(Baseline baseline, double x, boolean gap) {
+        double mean = gap ? baseline.gapMean : baseline.durationMean;
+        double variance = gap ? baseline.gapVariance : baseline.durationVariance;
+        double diff = x - mean;
+        double increment = ALPHA * diff;
+        mean += increment;
+        variance = (1 - ALPHA) * (variance + diff * increment);
+        if (gap) {
+            baseline.gapMean = (float) mean;
+            baseline.gapVariance = (float) variance;
+        } else {
+            baseline.durationMean = (float) mean;
+            baseline.durationVariance = (float) variance;
+        }
+    }
+
+    private float hourBits(Baseline baseline, long start) {
+        float p = ((baseline.hours[hourOf(start)] & 0xFF) + HOUR_PRIOR) / (baseline.hourTotal + 24 * HOUR_PRIOR);
+        // Sorpresa rispetto a un'app senza preferenze orarie
+        return (float) Math.max(0, Math.log(1 / (24 * p)) / LN2);
+    }
+
+    // Solo gli intervalli più lunghi del solito: le sessioni ravvicinate sono normali,
+    // un'app rimasta ferma a lungo che riprende a registrare no
+    private float gapBits(Baseline baseline, long start) {
+        if (baseline.gaps < MIN_SESSIONS || baseline.lastEnd <= 0 || start < baseline.lastEnd) return 0;
+        double x = logSeconds(start - baseline.lastEnd);
+        return x > baseline.gapMean ? bits(x, baseline.gapMean, baseline.gapVariance) : 0;
+    }
+
+    // Sorpresa di una normale: z² / (2 ln 2) bit rispetto al valore medio
+    private static float bits(double x, float mean, float variance) {
+        double z = Math.min(MAX_Z, Math.abs(x - mean) / Math.sqrt(variance + MIN_VARIANCE));
+        return (float) (z * z / (2 * LN2));
+    }
+
+    private static double logSeconds(long ms) {
+        return Math.log(Math.max(1000, ms) / 1000.0);
+    }
+
+    private int hourOf(long timestamp) {
+        long hours = (timestamp + timeZone.getOffset(timestamp)) / 3600_000L;
+        return (int) (((hours % 24) + 24) % 24);
+    }
+
+    /**
+     * Le app con il profilo più ampio, per il dump.
+     */
+    public synchronized List<String> describeTop(int limit) {
+        List<Baseline> sorted = new ArrayList<>(baselines.values());
+        Collections.sort(sorted, new Comparator<Baseline>() {
+            @Override
+            public int compare(Baseline a, Baseline b) {
+                return Integer.compare(b.sessions, a.sessions);
+            }
+        });
+        List<String> lines = new ArrayList<>();
+        for (Baseline baseline : sorted.subList(0, Math.min(limit, sorted.size()))) {
+            int peak = 0;
+            for (int i = 1; i < 24; i++) {
+                if ((baseline.hours[i] & 0xFF) > (baseline.hours[peak] & 0xFF)) peak = i;
+            }
+            lines.add(String.format(Locale.US, "%s sessions=%d duration~%.0fs gap~%.0fs peakHour=%d",
+                    baseline.packageName, baseline.sessions, Math.exp(baseline.durationMean),
+                    Math.exp(baseline.gapMean), peak));
+        }
+        return lines;
+    }
+
+    /**
+     * Stato compatto: circa 60 byte per app oltre al nome del package.
+     */
+    public synchronized byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * baselines.size() + 16);
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(VERSION);
+            out.writeInt(baselines.size());
+            for (Baseline baseline : baselines.values()) {
+                out.writeUTF(baseline.packageName);
+                out.writeInt(baseline.sessions);
+                out.writeInt(baseline.gaps);
+                out.writeLong(baseline.lastEnd);
+                out.writeFloat(baseline.durationMean);
+                out.writeFloat(baseline.durationVariance);
+                out.writeFloat(baseline.gapMean);
+                out.writeFloat(baseline.gapVariance);
+                out.write(baseline.hours);
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        dirty = false;
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Ricarica lo stato salvato con {@link #toByteArray()}, in ordine di accesso.
+     */
+    public synchronized void restore(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readInt() != VERSION) return;
+        int count = in.readInt();
+        baselines.clear();
+        for (int i = 0; i < count; i++) {
+            Baseline baseline = new Baseline(in.readUTF());
+            baseline.sessions = in.readInt();
+            baseline.gaps = in.readInt();
+            baseline.lastEnd = in.readLong();
+            baseline.durationMean = in.readFloat();
+            baseline.durationVariance = in.readFloat();
+            baseline.gapMean = in.readFloat();
+            baseline.gapVariance = in.readFloat();
+            in.readFully(baseline.hours);
+            for (byte hourCount : baseline.hours) {
+                baseline.hourTotal += hourCount & 0xFF;
+            }
+            baselines.put(baseline.packageName, baseline);
+        }
+        dirty = false;
+    }
+
+    private static class Baseline {
+        final String packageName;
+        int sessions;
+        int gaps;
+        long lastEnd;
+        // Logaritmo dei secondi
+        float durationMean;
+        float durationVariance;
+        float gapMean;
+        float gapVariance;
+        final byte[] hours = new byte[24];
+        int hourTotal;
+
+        Baseline(String packageName) {
+            this.packageName = packageName;
+        }
+    }
+}
@@ -14,15 +14,9 @@ public class BootReceiver extends BroadcastReceiver {
         String action = intent.getAction();
         Log.d(TAG, "Received action: " + action);
 
-        if (Intent.ACTION_BOOT_COMPLETED.equals(action) ||
-                Intent.ACTION_MY_PACKAGE_REPLACED.equals(action) ||
-                Intent.ACTION_PACKAGE_REPLACED.equals(action)) {
-
-            // Riavvia il servizio di monitoraggio del microfono
-            Intent serviceIntent = new Intent(context, MicrophoneMonitoringService.class);
-            context.startService(serviceIntent);
-
-            Log.d(TAG, "Microphone monitoring service restarted after boot/update");
+        // Riavvia il servizio dopo un aggiornamento dell'app; il boot passa da ServiceRestartReceiver
+        if (Intent.ACTION_MY_PACKAGE_REPLACED.equals(action)) {
+            MonitoringStarter.startFromReceiver(this, context, MonitoringStarter.REASON_PACKAGE_REPLACED);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,182 @@
+package com.example.guardian;
+
+import java.util.Locale;
+
+/**
+ * Salute del monitoraggio: ritardo dei timer rispetto alla scadenza, età dei messaggi
+ * nella coda del thread degli eventi e tempo dall'ultimo timer, callback e heartbeat.
+ *
+ * Il servizio passa le misure e chiama {@link #check} da un thread separato, che
+ * resta vivo anche se quello degli eventi si blocca; le azioni di recupero (nuovo
+ * thread, timer riarmati, callback registrato di nuovo) restano al servizio. I tempi
+ * sono uptime in millisecondi, così il sonno profondo non sembra un blocco.
+ */
+class HealthWatchdog {
+
+    static final int HEALTHY = 0;
+    static final int DEGRADED = 1;
+    static final int STALLED = 2;
+
+    static final int ACTION_NONE = 0;
+    // Il thread degli eventi non esegue i messaggi: va sostituito
+    static final int ACTION_REBUILD_THREAD = 1;
+    // Il thread risponde ma i timer non scattano più: vanno riarmati
+    static final int ACTION_REARM_TIMERS = 2;
+
+    // Ritardo oltre il quale il monitoraggio è rallentato
+    static final long DEGRADED_LATENCY = 1000;
+    // Messaggio in coda da più di così: il thread è bloccato
+    static final long STALL_TIMEOUT = 10 * 1000;
+    // Tra due ricostruzioni del thread, se la prima non è bastata
+    private static final long REBUILD_BACKOFF = 5 * 60 * 1000;
+
+    private int status = HEALTHY;
+    private String problem;
+
+    // Sonda nella coda del thread degli eventi, -1 se nessuna in attesa
+    private long probePostedAt = -1;
+    private long lastQueueAge;
+    private long maxQueueAge;
+    private long probes;
+
+    private long lastTimerAt;
+    private long lastJitter;
+    private long maxJitter;
+    private long jitterSum;
+    private long timerFires;
+
+    private long lastCallbackAt = -1;
+    private long lastHeartbeatAt = -1;
+    private long lastRebuildAt = -1;
+
+    private int threadRebuilds;
+    private int timerRearms;
+    private int callbackRestores;
+
+    synchronized void start(long now) {
+        status = HEALTHY;
+        problem = null;
+        probePostedAt = -1;
+        lastTimerAt = now;
+    }
+
+    /**
+     * Inizia una sonda del thread degli eventi; -1 se la precedente non è ancora stata
+     * eseguita.
+     */
+    synchronized long beginProbe(long now) {
+        if (probePostedAt >= 0) return -1;
+        probePostedAt = now;
+        return now;
+    }
+
+    // Thread degli eventi
+    synchronized void onProbe(long postedAt, long now) {
+        if (postedAt != probePostedAt) return; // sonda del thread sostituito
+        probePostedAt = -1;
+        lastQueueAge = now - postedAt;
+        maxQueueAge = Math.max(maxQueueAge, lastQueueAge);
+        probes++;
+    }
+
+    /**
+     * Un timer periodico è scattato {@code lateMs} dopo la scadenza, di cui
+     * {@code sleptMs} passati in sonno profondo.
+     */
+    synchronized void onTimer(long lateMs, long sleptMs, long now) {
+        lastTimerAt = now;
+        lastJitter = Math.max(0, lateMs - sleptMs);
+        maxJitter = Math.max(maxJitter, lastJitter);
+        jitterSum += lastJitter;
+        timerFires++;
+    }
+
+    synchronized void onCallback(long now) {
+        lastCallbackAt = now;
+    }
+
+    synchronized void onHeartbeat(long now) {
+        lastHeartbeatAt = now;
+    }
+
+    /**
+     * Uptime della sonda in attesa, -1 se nessuna: il thread degli eventi è fermo almeno
+     * da allora.
+     */
+    synchronized long getStalledSince() {
+        return probePostedAt;
+    }
+
+    synchronized void onThreadRebuilt(long now) {
+        threadRebuilds++;
+        lastRebuildAt = now;
+        probePostedAt = -1;
+        lastTimerAt = now;
+    }
+
+    synchronized void onTimersRearmed(long now) {
+        timerRearms++;
+        lastTimerAt = now;
+    }
+
+    synchronized void onCallbackRestored() {
+        callbackRestores++;
+    }
+
+    /**
+     * Aggiorna lo stato e indica l'azione di recupero necessaria.
+     *
+     * @param timerPeriodMs periodo del timer misurato con {@link #onTimer}
+     */
+    synchronized int check(long now, long timerPeriodMs) {
+        long queued = probePostedAt >= 0 ? now - probePostedAt : 0;
+        if (queued > STALL_TIMEOUT) {
+            status = STALLED;
+            problem = String.format(Locale.US, "thread degli eventi fermo da %ds", queued / 1000);
+            boolean canRebuild = lastRebuildAt < 0 || now - lastRebuildAt > REBUILD_BACKOFF;
+            return canRebuild ? ACTION_REBUILD_THREAD : ACTION_NONE;
+        }
+        long sinceTimer = now - lastTimerAt;
+        if (sinceTimer > 2 * timerPeriodMs + STALL_TIMEOUT) {
+            status = STALLED;
+            problem = String.format(Locale.US, "timer fermi da %ds", sinceTimer / 1000);
+            return ACTION_REARM_TIMERS;
+        }
+        if (lastQueueAge > DEGRADED_LATENCY || queued > DEGRADED_LATENCY) {
+            status = DEGRADED;
+            problem = String.format(Locale.US, "eventi in ritardo di %.1fs", Math.max(lastQueueAge, queued) / 1000.0);
+        } else if (lastJitter > DEGRADED_LATENCY) {
+            status = DEGRADED;
+            problem = String.format(Locale.US, "timer in ritardo di %.1fs", lastJitter / 1000.0);
+        } else {
+            status = HEALTHY;
+            problem = null;
+        }
+        return ACTION_NONE;
+    }
+
+    synchronized int getStatus() {
+        return status;
+    }
+
+    /**
+     * Problema in corso, per la notifica; null se il monitoraggio è in salute.
+     */
+    synchronized String getProblem() {
+        return problem;
+    }
+
+    synchronized String describe(long now) {
+        return String.format(Locale.US, "%s%s, queue age last=%dms max=%dms (%d probes), timer jitter last=%dms "
+                        + "avg=%dms max=%dms (%d fires), since timer=%ds, callback=%s, heartbeat=%s, "
+                        + "thread rebuilds=%d, timer rearms=%d, callback restores=%d",
+                status == HEALTHY ? "healthy" : status == DEGRADED ? "degraded" : "stalled",
+                problem != null ? " (" + problem + ")" : "", lastQueueAge, maxQueueAge, probes, lastJitter,
+                timerFires > 0 ? jitterSum / timerFires : 0, maxJitter, timerFires, (now - lastTimerAt) / 1000,
+                age(lastCallbackAt, now), age(lastHeartbeatAt, now), threadRebuilds, timerRearms, callbackRestores);
+    }
+
+    private static String age(long at, long now) {
+        return at < 0 ? "never" : (now - at) / 1000 + "s ago";
+    }
+}
@@ -0,0 +1,350 @@
+package com.example.guardian;
+
+import android.util.Log;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Applica la politica di retention allo storico: i segmenti raw più vecchi di
+ * {@link #RAW_RETENTION} (o in eccesso rispetto a {@link #MAX_TOTAL_BYTES}) vengono
+ * compattati in riepiloghi giornalieri per app (e per operazione) e poi cancellati; i riepiloghi scadono
+ * dopo {@link #SUMMARY_RETENTION}.
+ *
+ * Il lavoro è ripristinabile: ogni riepilogo registra l'ultimo segmento già incluso
+ * (watermark), quindi se il processo viene terminato tra la scrittura del riepilogo e
+ * la cancellazione del segmento, alla ripresa il segmento viene solo cancellato.
+ */
+public class HistoryCompactor {
+
+    private static final String TAG = "HistoryCompactor";
+
+    static final long DAY = 24L * 60 * 60 * 1000;
+    static final long RAW_RETENTION = DAY; // segmenti raw per 1 giorno
+    static final long SUMMARY_RETENTION = 90 * DAY; // riepiloghi per 90 giorni
+    static final long MAX_TOTAL_BYTES = 8 * 1024 * 1024; // 8 MB
+
+    private static final String STATE_FILE = "compaction.state";
+    private static final int SUMMARY_MAGIC = 0x4D494353; // "MICS"
+    private static final int STATE_VERSION = 1;
+
+    public interface StopSignal {
+        boolean shouldStop();
+    }
+
+    private final MicHistoryStore store;
+    private final File stateFile;
+
+    public HistoryCompactor(MicHistoryStore store) {
+        this.store = store;
+        this.stateFile = new File(store.getRawDir().getParentFile(), STATE_FILE);
+    }
+
+    /**
+     * Esegue (o riprende) la compattazione. Ritorna un report con i totali cumulativi
+     * dell'esecuzione, comprese le parti svolte prima di un'eventuale interruzione.
+     */
+    public Report run(long now, StopSignal stop) {
+        long startedAt = System.nanoTime();
+        Report report = loadState();
+        store.purgePendingDeletes();
+
+        try {
+            if (!compactSegments(now, stop, report) || !expireSummaries(now, stop, report)) {
+                report.completed = false;
+                return report;
+            }
+            report.completed = true;
+            return report;
+        } catch (IOException e) {
+            Log.e(TAG, "Compaction failed", e);
+            report.completed = false;
+            return report;
+        } finally {
+            report.durationMs += (System.nanoTime() - startedAt) / 1_000_000;
+            if (report.completed) {
+                stateFile.delete();
+            } else {
+                saveState(report);
+            }
+            Log.d(TAG, "Compaction " + (report.completed ? "completed" : "suspended") + ": " + report);
+        }
+    }
+
+    private boolean compactSegments(long now, StopSignal stop, Report report) throws IOException {
+        File[] segments = store.listSegments();
+        long totalBytes = store.totalBytes();
+
+        // L'ultimo segmento può essere ancora in scrittura: non va mai toccato
+        for (int i = 0; i < segments.length - 1; i++) {
+            File segment = segments[i];
+            long segmentId = MicHistoryStore.segmentId(segment);
+            boolean expired = segmentId < now - RAW_RETENTION;
+            boolean overBudget = totalBytes > MAX_TOTAL_BYTES;
+            if (!expired && !overBudget) break;
+
+            if (stop.shouldStop()) return false;
+
+            long segmentEnd = MicHistoryStore.segmentId(segments[i + 1]);
+            long segmentBytes = segment.length();
+
+            File summaryFile = summaryFileFor(segmentId);
+            long summaryBefore = summaryFile.length();
+            Summary summary = readSummary(summaryFile);
+            if (summary.watermark < segmentId) {
+                summarizeSegment(segment, segmentId, segmentEnd, summary.apps);
+                summary.watermark = segmentId;
+                writeSummary(summaryFile, summary);
+            }
+            long summaryGrowth = summaryFile.length() - summaryBefore;
+
+            if (MicHistoryStore.deleteAtomically(segment)) {
+                // Il riassunto può crescere più del segmento (primo segmento del giorno, segmento quasi vuoto)
+                report.segmentsCompacted++;
+                report.bytesReclaimed += Math.max(0, segmentBytes - summaryGrowth);
+                totalBytes -= segmentBytes - summaryGrowth;
+            }
+            saveState(report);
+        }
+        return true;
+    }
+
+    private boolean expireSummaries(long now, StopSignal stop, Report report) {
+        long totalBytes = store.totalBytes();
+        File[] summaries = store.listSummaries();
+        long today = now / DAY;
+
+        for (File summary : summaries) {
+            long day = MicHistoryStore.segmentId(summary);
+            boolean expired = day < (now - SUMMARY_RETENTION) / DAY;
+            boolean overBudget = totalBytes > MAX_TOTAL_BYTES && day < today;
+            if (!expired && !overBudget) break;
+
+            if (stop.shouldStop()) return false;
+
+            long bytes = summary.length();
+            if (MicHistoryStore.deleteAtomically(summary)) {
+                report.summariesDeleted++;
+                report.bytesReclaimed += bytes;
+                totalBytes -= bytes;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Ricostruisce le sessioni di un segmento. Le sessioni a cavallo di due segmenti
+     * vengono tagliate ai bordi: inizio del segmento (id) e inizio del successivo.
+     */
+    static void summarizeSegment(File segment, long segmentStart, long segmentEnd,
+                                 Map<String, AppSummary> apps) throws IOException {
+        Map<String, OpenSession> open = new HashMap<>();
+        MicHistoryStore.Record record = new MicHistoryStore.Record();
+
+        try (MicHistoryStore.SegmentReader reader = new MicHistoryStore.SegmentReader(segment)) {
+            while (reader.next(record)) {
+                if (!isSessionRecord(record.type)) continue;
+
+                String key = summaryKey(record);
+                AppSummary app = apps.get(key);
+                if (app == null) {
+                    app = new AppSummary();
+                    apps.put(key, app);
+                }
+                OpenSession session = open.get(key);
+
+                if (record.type == MicHistoryStore.TYPE_SESSION_START) {
+                    if (session != null) {
+                        session.advance(record.timestamp, app);
+                    }
+                    session = new OpenSession(record.timestamp, record.isForeground());
+                    open.put(key, session);
+                    app.sessions++;
+                    app.firstSeen = app.firstSeen == 0 ? record.timestamp : Math.min(app.firstSeen, record.timestamp);
+                } else {
+                    if (session == null) {
+                        // Sessione iniziata in un segmento precedente; lo stato prima del
+                        // cambio è l'opposto di quello registrato dal record
+                        boolean before = record.type == MicHistoryStore.TYPE_SESSION_END
+                                ? record.isForeground()
+                                : record.type == MicHistoryStore.TYPE_BACKGROUND;
+                        session = new OpenSession(segmentStart, before);
+                        open.put(key, session);
+                    }
+                    session.advance(record.timestamp, app);
+
+                    if (record.type == MicHistoryStore.TYPE_SESSION_END) {
+                        open.remove(key);
+                    } else {
+                        session.foreground = record.type == MicHistoryStore.TYPE_FOREGROUND;
+                    }
+                }
+                app.lastSeen = Math.max(app.lastSeen, record.timestamp);
+            }
+        }
+
+        for (Map.Entry<String, OpenSession> entry : open.entrySet()) {
+            AppSummary app = apps.get(entry.getKey());
+            entry.getValue().advance(segmentEnd, app);
+            app.lastSeen = Math.max(app.lastSeen, segmentEnd);
+        }
+    }
+
+    // Le sessioni del microfono restano sotto il nome del package, come prima delle
+    // altre operazioni; le altre vengono riepilogate a parte
+    private static String summaryKey(MicHistoryStore.Record record) {
+        int op = record.op();
+        return op == SensitiveOp.MICROPHONE ? record.packageName : record.packageName + "/" + SensitiveOp.name(op);
+    }
+
+    private static boolean isSessionRecord(byte type) {
+        return type == MicHistoryStore.TYPE_SESSION_START
+                || type == MicHistoryStore.TYPE_SESSION_END
+                || type == MicHistoryStore.TYPE_FOREGROUND
+                || type == MicHistoryStore.TYPE_BACKGROUND;
+    }
+
+    private File summaryFileFor(long segmentId) {
+        long day = segmentId / DAY;
+        return new File(store.getSummaryDir(), MicHistoryStore.SUMMARY_PREFIX + day + MicHistoryStore.FILE_SUFFIX);
+    }
+
+    static Summary readSummary(File file) throws IOException {
+        Summary summary = new Summary();
+        if (!file.exists()) return summary;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != SUMMARY_MAGIC) {
+                throw new IOException("Invalid summary file " + file);
+            }
+            summary.watermark = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String packageName = in.readUTF();
+                AppSummary app = new AppSummary();
+                app.sessions = in.readInt();
+                app.totalMs = in.readLong();
+                app.backgroundMs = in.readLong();
+                app.firstSeen = in.readLong();
+                app.lastSeen = in.readLong();
+                summary.apps.put(packageName, app);
+            }
+        }
+        return summary;
+    }
+
+    // Scrittura atomica: file temporaneo + rename
+    private static void writeSummary(File file, Summary summary) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            out.writeInt(SUMMARY_MAGIC);
+            out.writeLong(summary.watermark);
+            out.writeInt(summary.apps.size());
+            for (Map.Entry<String, AppSummary> entry : summary.apps.entrySet()) {
+                AppSummary app = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeInt(app.sessions);
+                out.writeLong(app.totalMs);
+                out.writeLong(app.backgroundMs);
+                out.writeLong(app.firstSeen);
+                out.writeLong(app.lastSeen);
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+
+    private Report loadState() {
+        Report report = new Report();
+        if (!stateFile.exists()) return report;
+
+        try (DataInputStream in = new DataInputStream(new FileInputStream(stateFile))) {
+            if (in.readInt() == STATE_VERSION) {
+                report.segmentsCompacted = in.readInt();
+                report.summariesDeleted = in.readInt();
+                report.bytesReclaimed = in.readLong();
+                report.durationMs = in.readLong();
+                report.resumed = true;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable compaction state", e);
+        }
+        return report;
+    }
+
+    private void saveState(Report report) {
+        File tmp = new File(stateFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+            out.writeInt(STATE_VERSION);
+            out.writeInt(report.segmentsCompacted);
+            out.writeInt(report.summariesDeleted);
+            out.writeLong(report.bytesReclaimed);
+            out.writeLong(report.durationMs);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to save compaction state", e);
+            return;
+        }
+        tmp.renameTo(stateFile);
+    }
+
+    private static class OpenSession {
+        long lastTimestamp;
+        boolean foreground;
+
+        OpenSession(long start, boolean foreground) {
+            this.lastTimestamp = start;
+            this.foreground = foreground;
+        }
+
+        void advance(long timestamp, AppSummary app) {
+            long delta = Math.max(0, timestamp - lastTimestamp);
+            app.totalMs += delta;
+            if (!foreground) {
+                app.backgroundMs += delta;
+            }
+            lastTimestamp = Math.max(lastTimestamp, timestamp);
+        }
+    }
+
+    static class Summary {
+        long watermark;
+        final Map<String, AppSummary> apps = new HashMap<>();
+    }
+
+    // Riepilogo giornaliero delle sessioni di una singola app
+    public static class AppSummary {
+        public int sessions;
+        public long totalMs;
+        public long backgroundMs;
+        public long firstSeen;
+        public long lastSeen;
+    }
+
+    public static class Report {
+        public int segmentsCompacted;
+        public int summariesDeleted;
+        public long bytesReclaimed;
+        public long durationMs;
+        public boolean resumed;
+        public boolean completed;
+
+        @Override
+        public String toString() {
+            return String.format(java.util.Locale.US,
+                    "segments=%d, summariesDeleted=%d, bytesReclaimed=%d, timeSpent=%dms, resumed=%b",
+                    segmentsCompacted, summariesDeleted, bytesReclaimed, durationMs, resumed);
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package com.example.guardian;
+
+import android.database.AbstractWindowedCursor;
+import android.database.CursorWindow;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Cursore sugli eventi dello storico che riempie le {@link CursorWindow} leggendo i
+ * segmenti solo quando servono, come SQLiteCursor: il conteggio scorre i record una
+ * volta senza costruire righe e annota un punto di ripresa (segmento e offset) ogni
+ * {@link #CHECKPOINT_ROWS} righe; ogni finestra riparte dal punto più vicino. In memoria
+ * c'è al massimo una finestra, anche per scansioni di milioni di record.
+ *
+ * La selezione viene valutata sul record appena letto, prima di costruire la riga, e
+ * solo le colonne della proiezione vengono scritte nella finestra. I limiti sul tempo
+ * saltano interi segmenti: come per {@link HistoryCompactor}, un segmento copre
+ * l'intervallo tra il suo id e quello del successivo.
+ *
+ * Se un segmento sparisce tra il conteggio e la lettura (compattazione), il cursore
+ * termina prima del conteggio.
+ */
+class HistoryCursor extends AbstractWindowedCursor {
+
+    private static final String TAG = "HistoryCursor";
+    static final int CHECKPOINT_ROWS = 256;
+
+    private final File[] segments;
+    private final int firstSegment;
+    private final int endSegment;
+    private final long from;
+    private final long to;
+    private final String packageName;
+    private final HistorySelection selection;
+    private final String[] columnNames;
+    private final int[] columns;
+
+    private final MicHistoryStore.Record record = new MicHistoryStore.Record();
+    private final HistorySelection.Values values = new HistorySelection.Values() {
+        @Override
+        public long getLong(int column) {
+            return eventLong(column);
+        }
+
+        @Override
+        public String getString(int column) {
+            return eventString(column);
+        }
+    };
+
+    private int count = -1;
+    private int checkpoints;
+    private int[] checkpointSegment = new int[16];
+    private long[] checkpointOffset = new long[16];
+
+    // Statistiche, per il benchmark
+    private int windowsFilled;
+    private long recordsScanned;
+
+    /**
+     * @param segments segmenti raw ordinati per id
+     * @param columns  colonne della proiezione, indici in {@link HistoryProvider#EVENT_COLUMNS}
+     */
+    HistoryCursor(File[] segments, HistorySelection selection, int[] columns) {
+        this.segments = segments;
+        this.selection = selection;
+        this.columns = columns;
+        this.from = selection.lowerBound(HistoryProvider.EVENT_TIMESTAMP);
+        this.to = selection.upperBound(HistoryProvider.EVENT_TIMESTAMP);
+        this.packageName = selection.equalTo(HistoryProvider.EVENT_PACKAGE);
+
+        columnNames = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            columnNames[i] = HistoryProvider.EVENT_COLUMNS[columns[i]];
+        }
+
+        int first = 0;
+        while (first + 1 < segments.length && MicHistoryStore.segmentId(segments[first + 1]) <= from) {
+            first++;
+        }
+        int end = first;
+        while (end < segments.length && MicHistoryStore.segmentId(segments[end]) < to) {
+            end++;
+        }
+        firstSegment = first;
+        endSegment = end;
+    }
+
+    @Override
+    public int getCount() {
+        if (count < 0) {
+            count = countRows();
+        }
+        return count;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return columnNames;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        if (!isInWindow(newPosition)) {
+            if (mWindow == null) {
+                setWindow(new CursorWindow("history"));
+            }
+            fillWindow(newPosition, mWindow);
+        }
+        return isInWindow(newPosition);
+    }
+
+    private boolean isInWindow(int position) {
+        return mWindow != null && position >= mWindow.getStartPosition()
+                && position < mWindow.getStartPosition() + mWindow.getNumRows();
+    }
+
+    /**
+     * Riempie la finestra a partire dal punto di ripresa che precede {@code requiredPos},
+     * fino a esaurire la finestra o le righe.
+     */
+    @Override
+    public void fillWindow(int requiredPos, CursorWindow window) {
+        int total = getCount();
+        window.clear();
+        if (requiredPos < 0 || requiredPos >= total) return;
+
+        int checkpoint = requiredPos / CHECKPOINT_ROWS;
+        int position = checkpoint * CHECKPOINT_ROWS;
+        window.setStartPosition(position);
+        window.setNumColumns(columns.length);
+        windowsFilled++;
+
+        Scanner scanner = new Scanner(checkpointSegment[checkpoint], checkpointOffset[checkpoint]);
+        try {
+            while (position < total && scanner.next()) {
+                if (!window.allocRow()) break;
+                if (!putRow(window, position - window.getStartPosition(), position)) {
+                    window.freeLastRow();
+                    break;
+                }
+                position++;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "History changed while reading, cursor ends at " + position, e);
+        } finally {
+            scanner.close();
+        }
+    }
+
+    private int countRows() {
+        int rows = 0;
+        Scanner scanner = new Scanner(firstSegment, 0);
+        try {
+            while (scanner.next()) {
+                if (rows % CHECKPOINT_ROWS == 0) {
+                    addCheckpoint(scanner.segment, scanner.recordOffset);
+                }
+                rows++;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read history", e);
+        } finally {
+            scanner.close();
+        }
+        return rows;
+    }
+
+    private void addCheckpoint(int segment, long offset) {
+        if (checkpoints == checkpointSegment.length) {
+            checkpointSegment = Arrays.copyOf(checkpointSegment, checkpoints * 2);
+            checkpointOffset = Arrays.copyOf(checkpointOffset, checkpoints * 2);
+        }
+        checkpointSegment[checkpoints] = segment;
+        checkpointOffset[checkpoints] = offset;
+        checkpoints++;
+    }
+
+    private boolean putRow(CursorWindow window, int row, int position) {
+        for (int i = 0; i < columns.length; i++) {
+            int column = columns[i];
+            boolean ok;
+            if (column == HistoryProvider.EVENT_ID) {
+                ok = window.putLong(position, row, i);
+            } else if (HistoryProvider.EVENT_NUMERIC[column]) {
+                ok = window.putLong(eventLong(column), row, i);
+            } else {
+                ok = window.putString(eventString(column), row, i);
+            }
+            if (!ok) return false;
+        }
+        return true;
+    }
+
+    private long eventLong(int column) {
+        switch (column) {
+            case HistoryProvider.EVENT_TIMESTAMP:
+                return record.timestamp;
+            case HistoryProvider.EVENT_FOREGROUND:
+                return (record.flags & MicHistoryStore.FLAG_FOREGROUND) != 0 ? 1 : 0;
+            case HistoryProvider.EVENT_BACKFILLED:
+                return (record.flags & MicHistoryStore.FLAG_BACKFILLED) != 0 ? 1 : 0;
+            case HistoryProvider.EVENT_ANOMALOUS:
+                return (record.flags & MicHistoryStore.FLAG_ANOMALOUS) != 0 ? 1 : 0;
+            default:
+                throw new IllegalArgumentException("Not a record column: " + HistoryProvider.EVENT_COLUMNS[column]);
+        }
+    }
+
+    private String eventString(int column) {
+        switch (column) {
+            case HistoryProvider.EVENT_TYPE:
+                return HistoryProvider.typeName(record.type);
+            case HistoryProvider.EVENT_PACKAGE:
+                return record.packageName;
+            case HistoryProvider.EVENT_OP:
+                return SensitiveOp.name(record.op());
+            default:
+                throw new IllegalArgumentException("Not a record column: " + HistoryProvider.EVENT_COLUMNS[column]);
+        }
+    }
+
+    private boolean matches() {
+        if (record.timestamp < from || record.timestamp >= to) return false;
+        if (packageName != null && !packageName.equals(record.packageName)) return false;
+        return selection.matches(values);
+    }
+
+    String describeStats() {
+        return String.format(Locale.US, "segments=%d, records=%d, rows=%d, windows=%d",
+                endSegment - firstSegment, recordsScanned, count, windowsFilled);
+    }
+
+    // Record che soddisfano la selezione, da una posizione (segmento, offset) in avanti
+    private class Scanner {
+        int segment;
+        long recordOffset;
+        private long startOffset;
+        private MicHistoryStore.SegmentReader reader;
+
+        Scanner(int segment, long offset) {
+            this.segment = segment;
+            this.startOffset = offset;
+        }
+
+        boolean next() throws IOException {
+            while (segment < endSegment) {
+                if (reader == null) {
+                    reader = new MicHistoryStore.SegmentReader(segments[segment], startOffset);
+                    startOffset = 0;
+                }
+                recordOffset = reader.position();
+                if (reader.next(record)) {
+                    recordsScanned++;
+                    if (matches()) return true;
+                    continue;
+                }
+                close();
+                segment++;
+            }
+            return false;
+        }
+
+        void close() {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Error closing segment", e);
+                }
+                reader = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package com.example.guardian;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.UriMatcher;
+import android.content.pm.PackageManager;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Binder;
+import android.os.Process;
+import android.util.Log;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Accesso in sola lettura allo storico per agenti MDM e script di audit:
+ * <pre>
+ * adb shell content query --uri "content://com.example.guardian.history/events?from=1700000000000"
+ *     --projection timestamp:type:package --where "op = 'camera' AND foreground = 0"
+ * adb shell content query --uri content://com.example.guardian.history/rollup/com.example.app
+ * </pre>
+ * {@code events} restituisce i record dei segmenti raw (l'ultimo giorno circa, vedi
+ * {@link HistoryCompactor}), {@code events/<package>} solo quelli di un'app; il cursore
+ * legge i segmenti una finestra alla volta ({@link HistoryCursor}). {@code rollup}
+ * restituisce i totali giornalieri per app e operazione: i riepiloghi compattati più
+ * i segmenti raw non ancora compattati, calcolati allo stesso modo.
+ *
+ * Parametri dell'URI {@code from} e {@code to} (ms, il secondo escluso; per {@code rollup}
+ * si applicano all'inizio del giorno) e {@code op}, in aggiunta alla selezione
+ * ({@link HistorySelection}). L'unico ordinamento è quello temporale. Possono leggere la
+ * shell, l'app stessa e chi ha il permesso {@link #PERMISSION_READ_HISTORY}.
+ */
+public class HistoryProvider extends ContentProvider {
+
+    private static final String TAG = "HistoryProvider";
+
+    public static final String AUTHORITY = "com.example.guardian.history";
+    public static final String PERMISSION_READ_HISTORY = "com.example.guardian.permission.READ_HISTORY";
+    public static final String PARAM_FROM = "from";
+    public static final String PARAM_TO = "to";
+    public static final String PARAM_OP = "op";
+
+    // Colonne degli eventi; _id è la posizione nel risultato
+    static final String[] EVENT_COLUMNS = {
+            "_id", "timestamp", "type", "package", "op", "foreground", "backfilled", "anomalous"
+    };
+    static final boolean[] EVENT_NUMERIC = {true, true, false, false, false, true, true, true};
+    static final int EVENT_ID = 0;
+    static final int EVENT_TIMESTAMP = 1;
+    static final int EVENT_TYPE = 2;
+    static final int EVENT_PACKAGE = 3;
+    static final int EVENT_OP = 4;
+    static final int EVENT_FOREGROUND = 5;
+    static final int EVENT_BACKFILLED = 6;
+    static final int EVENT_ANOMALOUS = 7;
+
+    // Colonne dei totali giornalieri; day è l'inizio del giorno (UTC) in ms
+    static final String[] ROLLUP_COLUMNS = {
+            "_id", "day", "package", "op", "sessions", "total_ms", "background_ms", "first_seen", "last_seen"
+    };
+    static final boolean[] ROLLUP_NUMERIC = {true, true, false, false, true, true, true, true, true};
+    static final int ROLLUP_ID = 0;
+    static final int ROLLUP_DAY = 1;
+    static final int ROLLUP_PACKAGE = 2;
+    static final int ROLLUP_OP = 3;
+    static final int ROLLUP_SESSIONS = 4;
+    static final int ROLLUP_TOTAL_MS = 5;
+    static final int ROLLUP_BACKGROUND_MS = 6;
+    static final int ROLLUP_FIRST_SEEN = 7;
+    static final int ROLLUP_LAST_SEEN = 8;
+
+    // Nomi dei tipi di record (MicHistoryStore.TYPE_*)
+    private static final String[] TYPE_NAMES = {
+            "unknown", "session_start", "session_end", "foreground", "background", "app_foreground", "app_background"
+    };
+
+    private static final int MATCH_EVENTS = 1;
+    private static final int MATCH_EVENTS_PACKAGE = 2;
+    private static final int MATCH_ROLLUP = 3;
+    private static final int MATCH_ROLLUP_PACKAGE = 4;
+
+    private static final int ROOT_UID = 0;
+    private static final int SHELL_UID = 2000;
+
+    private final UriMatcher uriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+    private MicHistoryStore store;
+
+    @Override
+    public boolean onCreate() {
+        uriMatcher.addURI(AUTHORITY, "events", MATCH_EVENTS);
+        uriMatcher.addURI(AUTHORITY, "events/*", MATCH_EVENTS_PACKAGE);
+        uriMatcher.addURI(AUTHORITY, "rollup", MATCH_ROLLUP);
+        uriMatcher.addURI(AUTHORITY, "rollup/*", MATCH_ROLLUP_PACKAGE);
+        return true;
+    }
+
+    // Lo storico viene aperto alla prima query, non all'avvio del processo
+    private synchronized MicHistoryStore store() {
+        if (store == null) {
+            store = MicHistoryStore.getInstance(getContext());
+        }
+        return store;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        enforceReadAccess();
+        int match = uriMatcher.match(uri);
+        switch (match) {
+            case MATCH_EVENTS:
+            case MATCH_EVENTS_PACKAGE: {
+                checkSortOrder(sortOrder, EVENT_COLUMNS[EVENT_TIMESTAMP]);
+                HistorySelection events = parseSelection(uri, selection, selectionArgs, EVENT_COLUMNS, EVENT_NUMERIC,
+                        EVENT_TIMESTAMP, EVENT_OP);
+                if (match == MATCH_EVENTS_PACKAGE) {
+                    events.and(EVENT_PACKAGE, HistorySelection.EQ, uri.getLastPathSegment());
+                }
+                return queryEvents(store(), projection, events);
+            }
+            case MATCH_ROLLUP:
+            case MATCH_ROLLUP_PACKAGE: {
+                checkSortOrder(sortOrder, ROLLUP_COLUMNS[ROLLUP_DAY]);
+                HistorySelection rollup = parseSelection(uri, selection, selectionArgs, ROLLUP_COLUMNS, ROLLUP_NUMERIC,
+                        ROLLUP_DAY, ROLLUP_OP);
+                if (match == MATCH_ROLLUP_PACKAGE) {
+                    rollup.and(ROLLUP_PACKAGE, HistorySelection.EQ, uri.getLastPathSegment());
+                }
+                return queryRollup(store(), projection, rollup, System.currentTimeMillis());
+            }
+            default:
+                throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+    }
+
+    /**
+     * Eventi dei segmenti raw; il cursore li legge solo quando vengono richiesti.
+     */
+    Cursor queryEvents(MicHistoryStore store, String[] projection, HistorySelection selection) {
+        int[] columns = resolveProjection(projection, EVENT_COLUMNS);
+        return new HistoryCursor(store.listSegments(), selection, columns);
+    }
+
+    /**
+     * Totali giornalieri per app e operazione. Sono al massimo qualche migliaio di
+     * righe, quindi vengono calcolati subito in un MatrixCursor.
+     */
+    Cursor queryRollup(MicHistoryStore store, String[] projection, HistorySelection selection, long now) {
+        int[] columns = resolveProjection(projection, ROLLUP_COLUMNS);
+        long from = selection.lowerBound(ROLLUP_DAY);
+        long to = selection.upperBound(ROLLUP_DAY);
+        TreeMap<Long, Map<String, HistoryCompactor.AppSummary>> days = new TreeMap<>();
+        Map<Long, Long> watermarks = new HashMap<>();
+
+        try {
+            for (File file : store.listSummaries()) {
+                long dayStart = MicHistoryStore.segmentId(file) * HistoryCompactor.DAY;
+                if (dayStart < from || dayStart >= to) continue;
+
+                HistoryCompactor.Summary summary = HistoryCompactor.readSummary(file);
+                days.put(dayStart, summary.apps);
+                watermarks.put(dayStart, summary.watermark);
+            }
+
+            // Segmenti non ancora compattati, riepilogati come farebbe il compattatore
+            File[] segments = store.listSegments();
+            for (int i = 0; i < segments.length; i++) {
+                long segmentId = MicHistoryStore.segmentId(segments[i]);
+                long dayStart = segmentId / HistoryCompactor.DAY * HistoryCompactor.DAY;
+                if (dayStart < from || dayStart >= to) continue;
+                Long watermark = watermarks.get(dayStart);
+                if (watermark != null && watermark >= segmentId) continue; // già nel riepilogo
+
+                long segmentEnd = i + 1 < segments.length ? MicHistoryStore.segmentId(segments[i + 1]) : now;
+                Map<String, HistoryCompactor.AppSummary> apps = days.get(dayStart);
+                if (apps == null) {
+                    apps = new HashMap<>();
+                    days.put(dayStart, apps);
+                }
+                HistoryCompactor.summarizeSegment(segments[i], segmentId, segmentEnd, apps);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read history rollup", e);
+        }
+
+        String[] names = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            names[i] = ROLLUP_COLUMNS[columns[i]];
+        }
+        MatrixCursor cursor = new MatrixCursor(names);
+        RollupRow row = new RollupRow();
+        for (Map.Entry<Long, Map<String, HistoryCompactor.AppSummary>> day : days.entrySet()) {
+            for (Map.Entry<String, HistoryCompactor.AppSummary> entry : new TreeMap<>(day.getValue()).entrySet()) {
+                row.set(day.getKey(), entry.getKey(), entry.getValue());
+                if (!selection.matches(row)) continue;
+
+                Object[] values = new Object[columns.length];
+                for (int i = 0; i < columns.length; i++) {
+                    values[i] = columns[i] == ROLLUP_ID ? row.id
+                            : ROLLUP_NUMERIC[columns[i]] ? (Object) row.getLong(columns[i]) : row.getString(columns[i]);
+                }
+                cursor.addRow(values);
+                row.id++;
+            }
+        }
+        return cursor;
+    }
+
+    private static HistorySelection parseSelection(Uri uri, String selection, String[] selectionArgs,
+                                                   String[] columns, boolean[] numeric, int timeColumn,
+                                                   int opColumn) {
+        HistorySelection parsed = HistorySelection.parse(selection, selectionArgs, columns, numeric);
+        if (parsed.references(EVENT_ID)) {
+            throw new IllegalArgumentException("Selection on _id is not supported");
+        }
+        String from = uri.getQueryParameter(PARAM_FROM);
+        String to = uri.getQueryParameter(PARAM_TO);
+        String op = uri.getQueryParameter(PARAM_OP);
+        try {
+            if (from != null) parsed.and(timeColumn, HistorySelection.GE, Long.parseLong(from));
+            if (to != null) parsed.and(timeColumn, HistorySelection.LT, Long.parseLong(to));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid time range in " + uri);
+        }
+        if (op != null) parsed.and(opColumn, HistorySelection.EQ, op);
+        return parsed;
+    }
+
+    private static int[] resolveProjection(String[] projection, String[] columns) {
+        if (projection == null) {
+            int[] all = new int[columns.length];
+            for (int i = 0; i < all.length; i++) all[i] = i;
+            return all;
+        }
+        int[] resolved = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            resolved[i] = HistorySelection.indexOf(columns, projection[i]);
+            if (resolved[i] < 0) throw new IllegalArgumentException("Unknown column " + projection[i]);
+        }
+        return resolved;
+    }
+
+    // Solo l'ordine temporale, già quello dei segmenti
+    private static void checkSortOrder(String sortOrder, String timeColumn) {
+        if (sortOrder == null) return;
+        String order = sortOrder.trim();
+        if (!order.equalsIgnoreCase(timeColumn) && !order.equalsIgnoreCase(timeColumn + " ASC")) {
+            throw new IllegalArgumentException("Unsupported sort order " + sortOrder);
+        }
+    }
+
+    static String typeName(byte type) {
+        return type > 0 && type < TYPE_NAMES.length ? TYPE_NAMES[type] : TYPE_NAMES[0];
+    }
+
+    private void enforceReadAccess() {
+        int uid = Binder.getCallingUid();
+        if (uid == Process.myUid() || uid == SHELL_UID || uid == ROOT_UID) return;
+        if (getContext().checkCallingPermission(PERMISSION_READ_HISTORY) == PackageManager.PERMISSION_GRANTED) return;
+        throw new SecurityException("Reading the history requires " + PERMISSION_READ_HISTORY);
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        switch (uriMatcher.match(uri)) {
+            case MATCH_EVENTS:
+            case MATCH_EVENTS_PACKAGE:
+                return "vnd.android.cursor.dir/vnd." + AUTHORITY + ".event";
+            case MATCH_ROLLUP:
+            case MATCH_ROLLUP_PACKAGE:
+                return "vnd.android.cursor.dir/vnd." + AUTHORITY + ".rollup";
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("History is read-only");
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("History is read-only");
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("History is read-only");
+    }
+
+    // dumpsys activity provider com.example.guardian/.HistoryProvider [bench [record]]
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        if (args != null && args.length > 0 && "bench".equals(args[0])) {
+            int records = args.length > 1 ? parseRecords(args[1]) : HistoryProviderBenchmark.DEFAULT_RECORDS;
+            if (records <= 0) {
+                writer.println("Usage: dumpsys activity provider " + getContext().getPackageName()
+                        + "/.HistoryProvider bench [records]");
+                return;
+            }
+            File dir = new File(getContext().getCacheDir(), "history-bench");
+            writer.println(HistoryProviderBenchmark.run(this, dir, records));
+            return;
+        }
+        MicHistoryStore history = store();
+        writer.println("History: " + history.listSegments().length + " raw segments, "
+                + history.listSummaries().length + " daily summaries, " + history.totalBytes() + " bytes");
+    }
+
+    // -1 se non è un numero di record valido
+    private static int parseRecords(String arg) {
+        try {
+            return Integer.parseInt(arg);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Totali di un'app in un giorno, come righe per la selezione
+    private static class RollupRow implements HistorySelection.Values {
+        long id;
+        long day;
+        String packageName;
+        String op;
+        HistoryCompactor.AppSummary app;
+
+        void set(long day, String key, HistoryCompactor.AppSummary app) {
+            this.day = day;
+            this.app = app;
+            // Chiave del compattatore: il package per il microfono, "package/operazione" per le altre
+            int slash = key.indexOf('/');
+            packageName = slash < 0 ? key : key.substring(0, slash);
+            op = slash < 0 ? SensitiveOp.name(SensitiveOp.MICROPHONE) : key.substring(slash + 1);
+        }
+
+        @Override
+        public long getLong(int column) {
+            switch (column) {
+                case ROLLUP_DAY:
+                    return day;
+                case ROLLUP_SESSIONS:
+                    return app.sessions;
+                case ROLLUP_TOTAL_MS:
+                    return app.totalMs;
+                case ROLLUP_BACKGROUND_MS:
+                    return app.backgroundMs;
+                case ROLLUP_FIRST_SEEN:
+                    return app.firstSeen;
+                case ROLLUP_LAST_SEEN:
+                    return app.lastSeen;
+                default:
+                    return id;
+            }
+        }
+
+        @Override
+        public String getString(int column) {
+            return column == ROLLUP_PACKAGE ? packageName : op;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.example.guardian;
+
+import android.database.Cursor;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Throughput delle scansioni di {@link HistoryProvider} su uno storico sintetico: un
+ * giorno di record in segmenti da 64 KB, interrogato con gli stessi percorsi delle query
+ * esterne (selezione, proiezione, cursore a finestre) e letto fino in fondo, come fa
+ * un client con {@code moveToNext}.
+ *
+ * Scenari: scansione completa con tutte le colonne e con due colonne, un intervallo del
+ * 10% del tempo (segmenti saltati), un solo package (selezione valutata prima della
+ * riga) e i totali giornalieri. Per ognuno righe al secondo, MB/s rispetto all'intero
+ * storico (per gli scenari filtrati misura il guadagno del pushdown), record letti e
+ * finestre riempite.
+ *
+ * Uso: {@code adb shell dumpsys activity provider com.example.guardian/.HistoryProvider
+ * bench [record]}; lo storico sintetico sta nella cache e viene cancellato alla fine.
+ */
+public class HistoryProviderBenchmark {
+
+    static final int DEFAULT_RECORDS = 500_000;
+    private static final int APPS = 50;
+    private static final long START_TIME = 1_700_000_000_000L;
+    private static final long SEGMENT_BYTES = 64 * 1024; // come MicHistoryStore
+    private static final int WARMUP_ROUNDS = 1;
+
+    static String run(HistoryProvider provider, File dir, int records) {
+        deleteRecursively(dir);
+        MicHistoryStore store = new MicHistoryStore(dir);
+        try {
+            long end = generate(store, records);
+            long bytes = store.totalBytes();
+            String[] all = null;
+            String[] narrow = {"timestamp", "package"};
+            long rangeFrom = START_TIME + (end - START_TIME) * 45 / 100;
+            long rangeTo = START_TIME + (end - START_TIME) * 55 / 100;
+
+            List<String> results = new ArrayList<>();
+            for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+                results.clear();
+                results.add(scan(provider, store, "full_all_columns", all, null, bytes));
+                results.add(scan(provider, store, "full_two_columns", narrow, null, bytes));
+                results.add(scan(provider, store, "range_10pct", all, "timestamp >= " + rangeFrom
+                        + " AND timestamp < " + rangeTo, bytes));
+                results.add(scan(provider, store, "one_package", all, "package = '" + packageName(7) + "'", bytes));
+                results.add(rollup(provider, store, end));
+            }
+            return String.format(Locale.US, "{\"records\":%d,\"bytes\":%d,\"segments\":%d,\"scans\":[%s]}",
+                    records, bytes, store.listSegments().length, String.join(",", results));
+        } catch (IOException e) {
+            return "Benchmark failed: " + e;
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    private static String scan(HistoryProvider provider, MicHistoryStore store, String name, String[] projection,
+                               String selection, long totalBytes) {
+        long start = System.nanoTime();
+        HistorySelection parsed = HistorySelection.parse(selection, null, HistoryProvider.EVENT_COLUMNS,
+                HistoryProvider.EVENT_NUMERIC);
+        HistoryCursor cursor = (HistoryCursor) provider.queryEvents(store, projection, parsed);
+        long rows = 0;
+        long checksum = 0;
+        try {
+            int count = cursor.getCount();
+            long counted = System.nanoTime();
+            String[] names = cursor.getColumnNames();
+            boolean[] numeric = new boolean[names.length];
+            for (int i = 0; i < names.length; i++) {
+                int column = HistorySelection.indexOf(HistoryProvider.EVENT_COLUMNS, names[i]);
+                numeric[i] = HistoryProvider.EVENT_NUMERIC[column];
+            }
+            while (cursor.moveToNext()) {
+                // Legge ogni colonna, come un client che copia la riga
+                for (int i = 0; i < names.length; i++) {
+                    checksum += numeric[i] ? cursor.getLong(i) : cursor.getString(i).length();
+                }
+                rows++;
+            }
+            long elapsed = System.nanoTime() - start;
+            return String.format(Locale.US,
+                    "{\"name\":\"%s\",\"rows\":%d,\"count_ms\":%.1f,\"total_ms\":%.1f,\"rows_per_s\":%.0f,"
+                            + "\"store_mb_per_s\":%.1f,\"stats\":\"%s\",\"checksum\":%d}",
+                    name, count, (counted - start) / 1e6, elapsed / 1e6, rows / (elapsed / 1e9),
+                    totalBytes / 1048576.0 / (elapsed / 1e9), cursor.describeStats(), checksum);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static String rollup(HistoryProvider provider, MicHistoryStore store, long now) {
+        long start = System.nanoTime();
+        HistorySelection parsed = HistorySelection.parse(null, null, HistoryProvider.ROLLUP_COLUMNS,
+                HistoryProvider.ROLLUP_NUMERIC);
+        Cursor cursor = provider.queryRollup(store, null, parsed, now);
+        int rows = 0;
+        try {
+            while (cursor.moveToNext()) rows++;
+        } finally {
+            cursor.close();
+        }
+        return String.format(Locale.US, "{\"name\":\"rollup\",\"rows\":%d,\"total_ms\":%.1f}",
+                rows, (System.nanoTime() - start) / 1e6);
+    }
+
+    /**
+     * Sessioni di APPS app in sequenza: inizio, passaggi foreground/background, fine.
+     * Ritorna il timestamp dell'ultimo record.
+     */
+    private static long generate(MicHistoryStore store, int records) throws IOException {
+        Random random = new Random(1);
+        long time = START_TIME;
+        MicHistoryStore.SegmentWriter out = store.openSegment(time);
+        try {
+            for (int i = 0; i < records; i++) {
+                time += 1 + random.nextInt(350);
+                if (out.size() >= SEGMENT_BYTES) {
+                    out.close();
+                    out = store.openSegment(time);
+                }
+                int app = random.nextInt(APPS);
+                byte type = (byte) (MicHistoryStore.TYPE_SESSION_START + i % 4);
+                byte flags = (byte) (MicHistoryStore.opFlags(app % SensitiveOp.COUNT)
+                        | (random.nextBoolean() ? MicHistoryStore.FLAG_FOREGROUND : 0));
+                out.write(type, time, packageName(app), flags);
+            }
+        } finally {
+            out.close();
+        }
+        return time;
+    }
+
+    private static String packageName(int app) {
+        return "com.example.bench.app" + app;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) deleteRecursively(child);
+        }
+        file.delete();
+    }
+}
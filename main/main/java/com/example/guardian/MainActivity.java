@@ -1,22 +1,33 @@
 package com.example.guardian;
 
-import android.Manifest;
-import android.app.AppOpsManager;
+import android.app.ActivityManager;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
+import android.graphics.Rect;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.PowerManager;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.Settings;
+import android.system.ErrnoException;
+import android.text.TextUtils;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.widget.Button;
+import android.widget.ImageView;
 import android.widget.Switch;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -28,8 +39,11 @@ import androidx.core.content.ContextCompat;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
@@ -40,27 +54,124 @@ public class MainActivity extends AppCompatActivity {
     private static final int PERMISSION_REQUEST_CODE = 1001;
     private static final int USAGE_STATS_REQUEST_CODE = 1002;
     private static final int BATTERY_OPTIMIZATION_REQUEST_CODE = 1003;
+    // Con il servizio nel processo :monitor la UI legge la regione condivisa a intervalli
+    private static final long STATE_POLL_INTERVAL = 250;
+    private static final String ICON_CACHE_NAME = "log icons";
 
     private Switch monitoringSwitch;
+    private Switch processSwitch;
+    private Button profileButton;
     private TextView statusText;
     private RecyclerView logsRecyclerView;
     private Button clearLogsButton;
     private Button settingsButton;
+    private View sessionCard;
+    private TextView activationTimeText;
+    private TextView usageDurationText;
+    private TextView activeAppsText;
 
     private LogAdapter logAdapter;
+    private AppIconLoader iconLoader;
+    private final ScrollFrameMetrics scrollMetrics = new ScrollFrameMetrics();
+    private PermissionStateEvaluator permissionEvaluator;
+    // Ultimo stato dei permessi noto; null finché la prima valutazione non è finita
+    private PermissionStateEvaluator.State permissionState;
+    // Alla prossima valutazione prosegue con le richieste all'utente
+    private boolean continuePermissionFlow = false;
+    // Impostazione di sistema da cui l'utente è appena tornato, verificata alla prossima valutazione
+    private int pendingSettingsResult = 0;
+
+    // Tempi di avvio: primo frame, e interattività (primo frame più stato dei permessi)
+    private long createdAt;
+    private long createToFirstFrameMs = -1;
+    private long processStartToFirstFrameMs = -1;
+    private long createToInteractiveMs = -1;
+    private boolean isPermissionStateEvaluated = false;
+    private final ViewTreeObserver.OnDrawListener firstFrameListener = this::onFirstDraw;
     private List<LogEntry> logEntries = new ArrayList<>();
     private boolean isServiceRunning = false;
+    // Ultima sequenza di aggiornamenti applicata alla UI
+    private long lastSeenSeq = 0;
+
+    // Sessione corrente: il servizio invia solo l'inizio, la durata è calcolata qui
+    private long sessionStartTime = 0;
+    private boolean isStarted = false;
+    private boolean isSessionTickScheduled = false;
+    private final Rect visibleRect = new Rect();
+
+    // Stato del servizio nel processo :monitor, letto dalla memoria condivisa
+    private boolean isSeparateProcess = false;
+    private boolean isBound = false;
+    private MonitorStateRegion stateRegion;
+    private long stateRegionCreatedAt = 0;
+    private long nextEventIndex = 0;
+    private long lastSnapshotSeq = -1;
+    private final MonitorStateRegion.Snapshot snapshot = new MonitorStateRegion.Snapshot();
+    private String[] shownAppNames = new String[0];
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable statePoller = new Runnable() {
+        @Override
+        public void run() {
+            pollStateRegion();
+            handler.postDelayed(this, STATE_POLL_INTERVAL);
+        }
+    };
+
+    private final ServiceConnection stateConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            openStateRegion(binder);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            // Il processo :monitor è terminato: la connessione riprende al riavvio
+            closeStateRegion();
+        }
+    };
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss", Locale.getDefault());
+
+    // Aggiorna la durata una volta al secondo, allineata ai frame, solo se la card è visibile
+    private final Choreographer.FrameCallback sessionTicker = frameTimeNanos -> {
+        isSessionTickScheduled = false;
+        renderSessionDuration();
+        scheduleSessionTick();
+    };
+
+    private final ViewTreeObserver.OnScrollChangedListener sessionCardVisibilityListener =
+            this::onSessionCardVisibilityChanged;
+    private final ViewTreeObserver.OnGlobalLayoutListener sessionCardLayoutListener =
+            this::onSessionCardVisibilityChanged;
 
     // Receiver per ricevere aggiornamenti dal servizio
     private BroadcastReceiver usageReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
             if ("MICROPHONE_USAGE_UPDATE".equals(intent.getAction())) {
+                long seq = intent.getLongExtra("seq", 0);
+                if (seq <= lastSeenSeq) return; // già incluso nel recupero
+
                 List<MicrophoneMonitoringService.MicrophoneUsageInfo> usageInfoList =
                         intent.getParcelableArrayListExtra("usage_info");
                 if (usageInfoList != null) {
                     handleMicrophoneUsageUpdate(usageInfoList);
                 }
+                lastSeenSeq = seq;
+            }
+        }
+    };
+
+    // Receiver per inizio/fine delle sessioni di registrazione
+    private BroadcastReceiver sessionReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if ("MICROPHONE_SESSION_UPDATE".equals(intent.getAction())) {
+                long seq = intent.getLongExtra("seq", 0);
+                if (seq <= lastSeenSeq) return; // già incluso nel recupero
+
+                showSession(intent.getLongExtra("session_start", 0),
+                        intent.getStringArrayExtra("active_apps"));
+                lastSeenSeq = seq;
             }
         }
     };
@@ -68,76 +179,140 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        createdAt = SystemClock.elapsedRealtime();
         setContentView(R.layout.activity_main);
 
         initializeViews();
         setupRecyclerView();
         setupListeners();
+        getWindow().getDecorView().getViewTreeObserver().addOnDrawListener(firstFrameListener);
+
+        // I permessi vengono controllati in background da onResume; intanto la UI mostra
+        // l'ultimo stato noto nel processo
+        permissionEvaluator = new PermissionStateEvaluator(this, this::onPermissionState);
+        permissionState = PermissionStateEvaluator.getLastState();
+        if (permissionState != null) {
+            renderPermissionState(permissionState);
+        }
+    }
 
-        // Registra il receiver per gli aggiornamenti
-        LocalBroadcastManager.getInstance(this).registerReceiver(
-                usageReceiver, new IntentFilter("MICROPHONE_USAGE_UPDATE"));
+    private void onFirstDraw() {
+        if (createToFirstFrameMs >= 0) return;
+        long now = SystemClock.elapsedRealtime();
+        createToFirstFrameMs = now - createdAt;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            processStartToFirstFrameMs = now - android.os.Process.getStartElapsedRealtime();
+        }
+        // Il listener non può essere rimosso durante il disegno
+        handler.post(() -> getWindow().getDecorView().getViewTreeObserver().removeOnDrawListener(firstFrameListener));
+        maybeReportInteractive();
+    }
 
-        // Controlla i permessi all'avvio
-        checkAndRequestPermissions();
+    private void maybeReportInteractive() {
+        if (createToInteractiveMs >= 0 || createToFirstFrameMs < 0 || !isPermissionStateEvaluated) return;
+        createToInteractiveMs = SystemClock.elapsedRealtime() - createdAt;
+        reportFullyDrawn();
+        Log.d(TAG, "Startup: first frame onCreate+" + createToFirstFrameMs + "ms (process start+"
+                + processStartToFirstFrameMs + "ms), interactive onCreate+" + createToInteractiveMs + "ms");
     }
 
     @Override
-    protected void onDestroy() {
-        super.onDestroy();
-        LocalBroadcastManager.getInstance(this).unregisterReceiver(usageReceiver);
+    protected void onStart() {
+        super.onStart();
+        isStarted = true;
+        connectToService();
+
+        ViewTreeObserver observer = sessionCard.getViewTreeObserver();
+        observer.addOnScrollChangedListener(sessionCardVisibilityListener);
+        observer.addOnGlobalLayoutListener(sessionCardLayoutListener);
+        renderSessionDuration();
+        scheduleSessionTick();
+        scrollMetrics.start(this);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        isStarted = false;
+        disconnectFromService();
+        stopSessionTick();
+        scrollMetrics.stop(this);
+        ViewTreeObserver observer = sessionCard.getViewTreeObserver();
+        observer.removeOnScrollChangedListener(sessionCardVisibilityListener);
+        observer.removeOnGlobalLayoutListener(sessionCardLayoutListener);
     }
 
     private void initializeViews() {
         monitoringSwitch = findViewById(R.id.monitoring_switch);
+        processSwitch = findViewById(R.id.process_switch);
+        profileButton = findViewById(R.id.profile_button);
         statusText = findViewById(R.id.status_text);
         logsRecyclerView = findViewById(R.id.logs_recycler_view);
         clearLogsButton = findViewById(R.id.clear_logs_button);
         settingsButton = findViewById(R.id.settings_button);
+        sessionCard = findViewById(R.id.session_card);
+        activationTimeText = sessionCard.findViewById(R.id.activationTime);
+        usageDurationText = sessionCard.findViewById(R.id.usageDuration);
+        activeAppsText = sessionCard.findViewById(R.id.activeApps);
 
         updateStatusText("Servizio non attivo");
     }
 
     private void setupRecyclerView() {
-        logAdapter = new LogAdapter(logEntries);
+        ActivityManager activityManager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+        iconLoader = new AppIconLoader(this, getResources().getDimensionPixelSize(R.dimen.log_icon_size),
+                activityManager.getMemoryClass());
+        MemoryBudgetRegistry.getInstance(this).register(ICON_CACHE_NAME, MemoryBudgetRegistry.PRIORITY_DISPOSABLE,
+                iconLoader);
+        logAdapter = new LogAdapter(logEntries, iconLoader);
         logsRecyclerView.setLayoutManager(new LinearLayoutManager(this));
         logsRecyclerView.setAdapter(logAdapter);
+        logsRecyclerView.addOnScrollListener(scrollMetrics);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        MemoryBudgetRegistry.getInstance(this).unregister(ICON_CACHE_NAME);
+        iconLoader.shutdown();
+        permissionEvaluator.shutdown();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        MemoryBudgetRegistry.getInstance(this).onTrimMemory(level);
     }
 
     private void setupListeners() {
         monitoringSwitch.setOnCheckedChangeListener((buttonView, isChecked) -> {
             if (isChecked) {
-                if (checkAllPermissions()) {
+                PermissionStateEvaluator.State state = currentPermissionState();
+                if (state.canMonitor()) {
                     startMonitoringService();
                 } else {
                     monitoringSwitch.setChecked(false);
-                    checkAndRequestPermissions();
+                    checkAndRequestPermissions(state);
                 }
             } else {
                 stopMonitoringService();
             }
         });
 
+        processSwitch.setChecked(MicrophoneMonitoringService.isSeparateProcess(this));
+        processSwitch.setOnCheckedChangeListener((buttonView, isChecked) -> setSeparateProcess(isChecked));
+
+        showProfile(MonitoringProfile.forName(MicrophoneMonitoringService.getSelectedProfile(this)));
+        profileButton.setOnClickListener(v -> showProfileDialog());
+
         clearLogsButton.setOnClickListener(v -> clearLogs());
 
         settingsButton.setOnClickListener(v -> openSettings());
     }
 
-    private void checkAndRequestPermissions() {
-        List<String> missingPermissions = new ArrayList<>();
-
-        // Controlla permessi base
-        if (!hasPermission(Manifest.permission.RECORD_AUDIO)) {
-            missingPermissions.add(Manifest.permission.RECORD_AUDIO);
-        }
-
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
-            if (!hasPermission(Manifest.permission.POST_NOTIFICATIONS)) {
-                missingPermissions.add(Manifest.permission.POST_NOTIFICATIONS);
-            }
-        }
-
+    private void checkAndRequestPermissions(PermissionStateEvaluator.State state) {
         // Richiedi permessi mancanti
+        List<String> missingPermissions = state.missingRuntimePermissions();
         if (!missingPermissions.isEmpty()) {
             ActivityCompat.requestPermissions(this,
                     missingPermissions.toArray(new String[0]), PERMISSION_REQUEST_CODE);
@@ -145,13 +320,13 @@ public class MainActivity extends AppCompatActivity {
         }
 
         // Controlla Usage Stats permission
-        if (!hasUsageStatsPermission()) {
+        if (!state.usageStats) {
             showUsageStatsPermissionDialog();
             return;
         }
 
         // Controlla ottimizzazione batteria
-        if (!isBatteryOptimizationDisabled()) {
+        if (!state.batteryOptimizationDisabled) {
             showBatteryOptimizationDialog();
             return;
         }
@@ -160,29 +335,47 @@ public class MainActivity extends AppCompatActivity {
         updateStatusText("Permessi OK - Pronto per il monitoraggio");
     }
 
-    private boolean hasPermission(String permission) {
-        return ContextCompat.checkSelfPermission(this, permission) == PackageManager.PERMISSION_GRANTED;
+    /**
+     * Chiede una nuova valutazione dei permessi in background; con {@code continueFlow}
+     * al termine prosegue con le richieste all'utente.
+     */
+    private void refreshPermissionState(boolean continueFlow) {
+        continuePermissionFlow |= continueFlow;
+        permissionEvaluator.refresh();
     }
 
-    private boolean hasUsageStatsPermission() {
-        AppOpsManager appOps = (AppOpsManager) getSystemService(Context.APP_OPS_SERVICE);
-        int mode = appOps.checkOpNoThrow(AppOpsManager.OPSTR_GET_USAGE_STATS,
-                android.os.Process.myUid(), getPackageName());
-        return mode == AppOpsManager.MODE_ALLOWED;
+    private void onPermissionState(PermissionStateEvaluator.State state) {
+        permissionState = state;
+        isPermissionStateEvaluated = true;
+        maybeReportInteractive();
+        if (isFinishing() || isDestroyed()) return;
+
+        boolean continueFlow = continuePermissionFlow;
+        int settingsResult = pendingSettingsResult;
+        continuePermissionFlow = false;
+        pendingSettingsResult = 0;
+
+        if (settingsResult == USAGE_STATS_REQUEST_CODE && !state.usageStats) {
+            Toast.makeText(this, "Permesso Usage Stats necessario", Toast.LENGTH_LONG).show();
+            renderPermissionState(state);
+        } else if (continueFlow) {
+            checkAndRequestPermissions(state);
+        } else {
+            renderPermissionState(state);
+        }
     }
 
-    private boolean isBatteryOptimizationDisabled() {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
-            return pm.isIgnoringBatteryOptimizations(getPackageName());
-        }
-        return true;
+    private void renderPermissionState(PermissionStateEvaluator.State state) {
+        if (isServiceRunning) return;
+        updateStatusText(state.canMonitor() ? "Permessi OK - Pronto per il monitoraggio" : "Permessi mancanti");
     }
 
-    private boolean checkAllPermissions() {
-        return hasPermission(Manifest.permission.RECORD_AUDIO) &&
-                hasUsageStatsPermission() &&
-                isBatteryOptimizationDisabled();
+    // Lo switch può essere toccato prima della fine della prima valutazione
+    private PermissionStateEvaluator.State currentPermissionState() {
+        if (permissionState == null) {
+            permissionState = PermissionStateEvaluator.evaluate(this);
+        }
+        return permissionState;
     }
 
     private void showUsageStatsPermissionDialog() {
@@ -229,10 +422,11 @@ public class MainActivity extends AppCompatActivity {
             }
 
             if (allGranted) {
-                checkAndRequestPermissions(); // Continua con altri controlli
+                refreshPermissionState(true); // Continua con altri controlli
             } else {
                 Toast.makeText(this, "Permessi necessari per il funzionamento", Toast.LENGTH_LONG).show();
                 updateStatusText("Permessi mancanti");
+                refreshPermissionState(false);
             }
         }
     }
@@ -241,27 +435,19 @@ public class MainActivity extends AppCompatActivity {
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
 
+        // La valutazione in background decide se continuare con gli altri controlli
         if (requestCode == USAGE_STATS_REQUEST_CODE) {
-            if (hasUsageStatsPermission()) {
-                checkAndRequestPermissions(); // Continua con altri controlli
-            } else {
-                Toast.makeText(this, "Permesso Usage Stats necessario", Toast.LENGTH_LONG).show();
-            }
+            pendingSettingsResult = requestCode;
+            refreshPermissionState(true);
         } else if (requestCode == BATTERY_OPTIMIZATION_REQUEST_CODE) {
             // Continua indipendentemente dal risultato
-            checkAndRequestPermissions();
+            refreshPermissionState(true);
         }
     }
 
     private void startMonitoringService() {
         if (!isServiceRunning) {
-            Intent serviceIntent = new Intent(this, MicrophoneMonitoringService.class);
-
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                startForegroundService(serviceIntent);
-            } else {
-                startService(serviceIntent);
-            }
+            MonitoringStarter.start(this, MonitoringStarter.REASON_USER);
 
             isServiceRunning = true;
             updateStatusText("Servizio di monitoraggio attivo");
@@ -271,7 +457,7 @@ public class MainActivity extends AppCompatActivity {
 
     private void stopMonitoringService() {
         if (isServiceRunning) {
-            Intent serviceIntent = new Intent(this, MicrophoneMonitoringService.class);
+            Intent serviceIntent = new Intent(this, MicrophoneMonitoringService.serviceClass(this));
             stopService(serviceIntent);
 
             isServiceRunning = false;
@@ -280,26 +466,200 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    /**
+     * Sposta il servizio nel processo :monitor o lo riporta nel processo dell'app,
+     * riavviandolo se era attivo.
+     */
+    private void setSeparateProcess(boolean separate) {
+        if (separate == MicrophoneMonitoringService.isSeparateProcess(this)) return;
+
+        boolean wasRunning = isServiceRunning;
+        if (isStarted) disconnectFromService();
+        MicrophoneMonitoringService.setSeparateProcess(this, separate);
+        isServiceRunning = false;
+        if (wasRunning) startMonitoringService();
+        if (isStarted) connectToService();
+        Log.d(TAG, "Monitoring service process: " + (separate ? ":monitor" : "main"));
+    }
+
+    private void showProfileDialog() {
+        MonitoringProfile[] profiles = MonitoringProfile.ALL;
+        String selected = MicrophoneMonitoringService.getSelectedProfile(this);
+        CharSequence[] labels = new CharSequence[profiles.length];
+        int checked = 0;
+        for (int i = 0; i < profiles.length; i++) {
+            labels[i] = profiles[i].label;
+            if (profiles[i].name.equals(selected)) checked = i;
+        }
+        new AlertDialog.Builder(this)
+                .setTitle("Profilo di monitoraggio")
+                .setSingleChoiceItems(labels, checked, (dialog, which) -> {
+                    setProfile(profiles[which]);
+                    dialog.dismiss();
+                })
+                .setNegativeButton("Annulla", null)
+                .show();
+    }
+
+    /**
+     * Salva il profilo scelto; il servizio attivo lo applica subito, senza riavviarsi.
+     */
+    private void setProfile(MonitoringProfile profile) {
+        MicrophoneMonitoringService.saveSelectedProfile(this, profile.name);
+        if (isServiceRunning) {
+            Intent intent = new Intent(this, MicrophoneMonitoringService.serviceClass(this));
+            intent.setAction(MicrophoneMonitoringService.ACTION_SET_PROFILE);
+            intent.putExtra(MicrophoneMonitoringService.EXTRA_PROFILE, profile.name);
+            ContextCompat.startForegroundService(this, intent);
+        }
+        showProfile(profile);
+        Log.d(TAG, "Monitoring profile selected: " + profile.name);
+    }
+
+    private void showProfile(MonitoringProfile profile) {
+        profileButton.setText(profile != null ? profile.label : MonitoringProfile.BALANCED.label);
+    }
+
+    /**
+     * Riceve gli aggiornamenti in tempo reale fino a onStop e recupera in un solo
+     * passaggio ciò che è cambiato mentre l'attività era ferma: nello stesso processo
+     * con i broadcast locali e il buffer, dal processo :monitor con la regione condivisa.
+     */
+    private void connectToService() {
+        isSeparateProcess = MicrophoneMonitoringService.isSeparateProcess(this);
+        if (isSeparateProcess) {
+            // Senza BIND_AUTO_CREATE il bind non avvia il servizio né lo tiene in vita
+            isBound = bindService(new Intent(this, MonitorProcessService.class), stateConnection, 0);
+            return;
+        }
+        LocalBroadcastManager.getInstance(this).registerReceiver(
+                usageReceiver, new IntentFilter("MICROPHONE_USAGE_UPDATE"));
+        LocalBroadcastManager.getInstance(this).registerReceiver(
+                sessionReceiver, new IntentFilter("MICROPHONE_SESSION_UPDATE"));
+        catchUpUpdates();
+    }
+
+    private void disconnectFromService() {
+        if (isSeparateProcess) {
+            if (isBound) {
+                unbindService(stateConnection);
+                isBound = false;
+            }
+            closeStateRegion();
+            return;
+        }
+        LocalBroadcastManager.getInstance(this).unregisterReceiver(usageReceiver);
+        LocalBroadcastManager.getInstance(this).unregisterReceiver(sessionReceiver);
+    }
+
+    private void openStateRegion(IBinder binder) {
+        closeStateRegion();
+        try {
+            stateRegion = MonitorStateRegion.fetch(binder);
+        } catch (RemoteException | ErrnoException e) {
+            Log.e(TAG, "Unable to map monitor state", e);
+        }
+        if (stateRegion == null) return;
+
+        // Un servizio riavviato ricomincia la numerazione degli aggiornamenti
+        if (stateRegion.getCreatedAt() != stateRegionCreatedAt) {
+            stateRegionCreatedAt = stateRegion.getCreatedAt();
+            nextEventIndex = 0;
+            lastSnapshotSeq = -1;
+        }
+        statePoller.run();
+    }
+
+    private void closeStateRegion() {
+        handler.removeCallbacks(statePoller);
+        if (stateRegion != null) {
+            stateRegion.close();
+            stateRegion = null;
+        }
+    }
+
+    private void pollStateRegion() {
+        if (stateRegion.getEventHead() != nextEventIndex) {
+            List<MicrophoneMonitoringService.MicrophoneUsageInfo> changed = new ArrayList<>();
+            nextEventIndex = stateRegion.readEvents(nextEventIndex, changed);
+            if (!changed.isEmpty()) {
+                handleMicrophoneUsageUpdate(changed);
+            }
+        }
+        if (stateRegion.getSnapshotSequence() != lastSnapshotSeq && stateRegion.readSnapshot(snapshot)) {
+            lastSnapshotSeq = snapshot.seq;
+            // L'istantanea cambia anche per la memoria e i contatori: la card solo se serve
+            if (snapshot.sessionStart != sessionStartTime || !Arrays.equals(snapshot.appNames, shownAppNames)) {
+                shownAppNames = snapshot.appNames;
+                showSession(snapshot.sessionStart, snapshot.appNames);
+            }
+        }
+    }
+
+    // dumpsys activity com.example.guardian/.MainActivity
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        writer.println(prefix + "Monitor process: " + (isSeparateProcess ? ":monitor" : "main"));
+        if (stateRegion != null) {
+            writer.println(prefix + "Monitor state reads: " + stateRegion.describeReadStats());
+            writer.println(prefix + "Monitor memory: pid=" + snapshot.pid + ", rss=" + snapshot.rssKb + "kB");
+        }
+        writer.println(prefix + "Startup: first frame onCreate+" + createToFirstFrameMs + "ms (process start+"
+                + processStartToFirstFrameMs + "ms), interactive onCreate+" + createToInteractiveMs + "ms");
+        if (permissionState != null) {
+            writer.println(prefix + "Permission check: " + permissionState.evaluationMs + "ms off the main thread");
+        }
+        writer.println(prefix + "Log icons: " + iconLoader.describeStats());
+        writer.println(prefix + "Log scrolling: " + scrollMetrics.describe());
+        writer.println(prefix + "Memory budget:");
+        for (String line : MemoryBudgetRegistry.getInstance(this).describe()) {
+            writer.println(prefix + "  " + line);
+        }
+    }
+
+    private void catchUpUpdates() {
+        UsageUpdateBuffer buffer = UsageUpdateBuffer.getInstance();
+        long seq = buffer.getSequence();
+        if (seq == lastSeenSeq) return;
+
+        List<MicrophoneMonitoringService.MicrophoneUsageInfo> changed = buffer.since(lastSeenSeq);
+        if (!changed.isEmpty()) {
+            handleMicrophoneUsageUpdate(changed);
+        }
+        UsageUpdateBuffer.SessionUpdate session = buffer.sessionSince(lastSeenSeq);
+        if (session != null) {
+            showSession(session.startTime, session.appNames);
+        }
+        lastSeenSeq = seq;
+        Log.d(TAG, "Caught up " + changed.size() + " app updates");
+    }
+
     private void handleMicrophoneUsageUpdate(List<MicrophoneMonitoringService.MicrophoneUsageInfo> usageInfoList) {
         for (MicrophoneMonitoringService.MicrophoneUsageInfo info : usageInfoList) {
             addLogEntry(info);
         }
+
+        // Una sola notifica all'adapter per tutto il blocco di aggiornamenti
+        logAdapter.notifyDataSetChanged();
+        logsRecyclerView.scrollToPosition(0);
     }
 
     private void addLogEntry(MicrophoneMonitoringService.MicrophoneUsageInfo info) {
-        String status = "";
+        String state = "";
         if (info.isForeground) {
-            status = "FOREGROUND";
+            state = "FOREGROUND";
         } else if (info.isActive) {
-            status = "BACKGROUND";
+            state = "BACKGROUND";
         } else {
-            status = "INACTIVE";
+            state = "INACTIVE";
         }
 
         LogEntry entry = new LogEntry(
                 info.appName,
                 info.packageName,
-                status,
+                state,
+                info.op,
                 info.timestamp
         );
 
@@ -310,15 +670,58 @@ public class MainActivity extends AppCompatActivity {
             logEntries.remove(logEntries.size() - 1);
         }
 
-        runOnUiThread(() -> {
-            logAdapter.notifyDataSetChanged();
-            if (logEntries.size() > 0) {
-                logsRecyclerView.scrollToPosition(0);
-            }
-        });
-
         Log.d(TAG, String.format("Log added: %s (%s) - %s",
-                info.appName, info.packageName, status));
+                info.appName, info.packageName, entry.getStatusText()));
+    }
+
+    private void showSession(long startTime, String[] appNames) {
+        sessionStartTime = startTime;
+        if (startTime == 0) {
+            stopSessionTick();
+            sessionCard.setVisibility(View.GONE);
+            return;
+        }
+
+        activationTimeText.setText("Attivato alle: " + timeFormat.format(new Date(startTime)));
+        activeAppsText.setText(appNames != null && appNames.length > 0
+                ? TextUtils.join("\n", appNames) : "-");
+        sessionCard.setVisibility(View.VISIBLE);
+        renderSessionDuration();
+        scheduleSessionTick();
+    }
+
+    private void renderSessionDuration() {
+        if (sessionStartTime == 0) return;
+        long elapsed = Math.max(0, System.currentTimeMillis() - sessionStartTime) / 1000;
+        usageDurationText.setText(String.format(Locale.getDefault(), "Durata utilizzo: %02d:%02d:%02d",
+                elapsed / 3600, (elapsed / 60) % 60, elapsed % 60));
+    }
+
+    private void scheduleSessionTick() {
+        if (isSessionTickScheduled || !isStarted || sessionStartTime == 0 || !isSessionCardVisible()) {
+            return;
+        }
+        // Il prossimo frame utile dopo lo scatto del secondo
+        long delay = 1000 - Math.max(0, System.currentTimeMillis() - sessionStartTime) % 1000;
+        Choreographer.getInstance().postFrameCallbackDelayed(sessionTicker, delay);
+        isSessionTickScheduled = true;
+    }
+
+    private void stopSessionTick() {
+        Choreographer.getInstance().removeFrameCallback(sessionTicker);
+        isSessionTickScheduled = false;
+    }
+
+    private boolean isSessionCardVisible() {
+        return sessionCard.isShown() && sessionCard.getGlobalVisibleRect(visibleRect);
+    }
+
+    private void onSessionCardVisibilityChanged() {
+        if (isSessionCardVisible()) {
+            scheduleSessionTick();
+        } else {
+            stopSessionTick();
+        }
     }
 
     private void clearLogs() {
@@ -346,34 +749,45 @@ public class MainActivity extends AppCompatActivity {
         // Aggiorna lo stato dello switch basandosi sul servizio
         monitoringSwitch.setChecked(isServiceRunning);
 
-        // Ricontrolla i permessi quando l'utente torna all'app
-        if (!isServiceRunning) {
-            checkAndRequestPermissions();
-        }
+        // Ricontrolla i permessi quando l'utente torna all'app (in background: la UI
+        // resta sull'ultimo stato noto finché la valutazione non è pronta)
+        refreshPermissionState(!isServiceRunning);
     }
 
     // Classe per rappresentare una voce di log
     public static class LogEntry {
         public final String appName;
         public final String packageName;
-        public final String status;
+        // FOREGROUND, BACKGROUND o INACTIVE: decide il colore
+        public final String state;
+        // Operazione in uso, vedi SensitiveOp
+        public final int op;
         public final long timestamp;
 
-        public LogEntry(String appName, String packageName, String status, long timestamp) {
+        public LogEntry(String appName, String packageName, String state, int op, long timestamp) {
             this.appName = appName;
             this.packageName = packageName;
-            this.status = status;
+            this.state = state;
+            this.op = op;
             this.timestamp = timestamp;
         }
+
+        // Testo mostrato: le operazioni diverse dal microfono portano il loro nome
+        public String getStatusText() {
+            if (op == SensitiveOp.MICROPHONE) return state;
+            return SensitiveOp.label(op).toUpperCase(Locale.ITALY) + " - " + state;
+        }
     }
 
     // Adapter per il RecyclerView dei log
     private static class LogAdapter extends RecyclerView.Adapter<LogAdapter.LogViewHolder> {
         private final List<LogEntry> logs;
+        private final AppIconLoader iconLoader;
         private final SimpleDateFormat dateFormat = new SimpleDateFormat("HH:mm:ss", Locale.getDefault());
 
-        public LogAdapter(List<LogEntry> logs) {
+        public LogAdapter(List<LogEntry> logs, AppIconLoader iconLoader) {
             this.logs = logs;
+            this.iconLoader = iconLoader;
         }
 
         @NonNull
@@ -388,14 +802,15 @@ public class MainActivity extends AppCompatActivity {
         public void onBindViewHolder(@NonNull LogViewHolder holder, int position) {
             LogEntry entry = logs.get(position);
 
+            iconLoader.load(holder.iconView, entry.packageName);
             holder.appNameText.setText(entry.appName);
             holder.packageNameText.setText(entry.packageName);
-            holder.statusText.setText(entry.status);
+            holder.statusText.setText(entry.getStatusText());
             holder.timestampText.setText(dateFormat.format(new Date(entry.timestamp)));
 
             // Colora lo status in base al tipo
             int statusColor;
-            switch (entry.status) {
+            switch (entry.state) {
                 case "FOREGROUND":
                     statusColor = ContextCompat.getColor(holder.itemView.getContext(), android.R.color.holo_green_dark);
                     break;
@@ -409,12 +824,19 @@ public class MainActivity extends AppCompatActivity {
             holder.statusText.setTextColor(statusColor);
         }
 
+        @Override
+        public void onViewRecycled(@NonNull LogViewHolder holder) {
+            // L'icona richiesta per la riga precedente non serve più
+            iconLoader.cancel(holder.iconView);
+        }
+
         @Override
         public int getItemCount() {
             return logs.size();
         }
 
         static class LogViewHolder extends RecyclerView.ViewHolder {
+            ImageView iconView;
             TextView appNameText;
             TextView packageNameText;
             TextView statusText;
@@ -422,6 +844,7 @@ public class MainActivity extends AppCompatActivity {
 
             public LogViewHolder(@NonNull View itemView) {
                 super(itemView);
+                iconView = itemView.findViewById(R.id.app_icon);
                 appNameText = itemView.findViewById(R.id.app_name_text);
                 packageNameText = itemView.findViewById(R.id.package_name_text);
                 statusText = itemView.findViewById(R.id.status_text);
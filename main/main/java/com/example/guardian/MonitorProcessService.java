@@ -0,0 +1,13 @@
+package com.example.guardian;
+
+/**
+ * Lo stesso servizio di monitoraggio, dichiarato nel manifest con
+ * {@code android:process=":monitor"}: il processo resta leggero perché non carica la UI
+ * (layout, RecyclerView, componenti Material) e le pause del GC dell'attività non
+ * ritardano i callback. La UI legge lo stato dalla {@link MonitorStateRegion}.
+ *
+ * Disabilitato per impostazione predefinita; vedi
+ * {@link MicrophoneMonitoringService#setSeparateProcess}.
+ */
+public class MonitorProcessService extends MicrophoneMonitoringService {
+}
@@ -0,0 +1,474 @@
+package com.example.guardian;
+
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.os.SharedMemory;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Stato del servizio pubblicato in una regione {@link SharedMemory}, leggibile dalla UI
+ * anche quando il servizio gira nel processo {@code :monitor}: una lettura è un accesso
+ * alla memoria mappata, senza transazioni Binder né copie di Parcel.
+ *
+ * La regione contiene un'istantanea (sessione corrente, app attive per operazione,
+ * memoria del processo) protetta da un seqlock e un anello con gli ultimi aggiornamenti
+ * delle app, con un seqlock per slot. Scrive solo il servizio, dal thread degli eventi;
+ * chi legge riprova se incontra una scrittura in corso e, se resta indietro di più di un
+ * giro dell'anello, riparte dall'aggiornamento più vecchio ancora presente.
+ *
+ * La regione arriva alla UI una volta sola, con il bind al servizio: vedi
+ * {@link StateBinder} e {@link #fetch(IBinder)}.
+ */
+public class MonitorStateRegion {
+
+    private static final int MAGIC = 0x47524453; // "GRDS"
+    private static final int VERSION = 1;
+    static final String DESCRIPTOR = "com.example.guardian.MonitorStateRegion";
+    static final int TRANSACTION_GET_REGION = IBinder.FIRST_CALL_TRANSACTION;
+
+    // Intestazione
+    private static final int OFF_MAGIC = 0;
+    private static final int OFF_VERSION = 4;
+    private static final int OFF_CREATED_AT = 8; // distingue le istanze del servizio
+    private static final int OFF_SNAPSHOT_SEQ = 16;
+    private static final int OFF_RING_HEAD = 24; // aggiornamenti scritti dall'avvio
+    private static final int HEADER_SIZE = 64;
+
+    // Istantanea
+    private static final int SNAPSHOT = HEADER_SIZE;
+    private static final int OFF_PUBLISHED_AT = SNAPSHOT;
+    private static final int OFF_SESSION_START = SNAPSHOT + 8;
+    private static final int OFF_RSS_KB = SNAPSHOT + 16;
+    private static final int OFF_PID = SNAPSHOT + 24;
+    private static final int OFF_ACTIVE_COUNTS = SNAPSHOT + 28;
+    private static final int OFF_APP_COUNT = OFF_ACTIVE_COUNTS + 4 * SensitiveOp.COUNT;
+    private static final int OFF_APP_NAMES = OFF_APP_COUNT + 4;
+    private static final int SNAPSHOT_SIZE = 2048;
+    private static final int MAX_APP_NAME_BYTES = 126;
+
+    // Anello degli aggiornamenti: slot di dimensione fissa
+    private static final int RING = SNAPSHOT + SNAPSHOT_SIZE;
+    private static final int RING_SLOTS = 256;
+    private static final int SLOT_SIZE = 256;
+    private static final int SLOT_SEQ = 0;
+    private static final int SLOT_PUBLISHED_AT = 8;
+    private static final int SLOT_TIMESTAMP = 16;
+    private static final int SLOT_BACKGROUND_MS = 24;
+    private static final int SLOT_ANOMALY = 32;
+    private static final int SLOT_OP = 36;
+    private static final int SLOT_FLAGS = 37;
+    private static final int SLOT_STRINGS = 38;
+    private static final int MAX_PACKAGE_BYTES = 126;
+    private static final int MAX_SLOT_NAME_BYTES = SLOT_SIZE - SLOT_STRINGS - MAX_PACKAGE_BYTES - 4;
+    private static final byte FLAG_ACTIVE = 1;
+    private static final byte FLAG_FOREGROUND = 2;
+
+    public static final int SIZE = RING + RING_SLOTS * SLOT_SIZE;
+    // Tentativi di lettura prima di rinunciare (lo scrittore è fermo a metà scrittura)
+    private static final int MAX_READ_ATTEMPTS = 64;
+
+    // La memoria condivisa è fuori dal modello di memoria Java: una scrittura volatile
+    // seguita da una lettura volatile fa da barriera completa tra dati e sequenza
+    private static volatile int fence;
+
+    private final SharedMemory memory;
+    private final ByteBuffer buffer;
+    private final boolean writable;
+
+    // Lato servizio: copia dell'istantanea, riscritta per intero a ogni cambiamento
+    private long sessionStart;
+    private String[] appNames = new String[0];
+    private final int[] activeCounts = new int[SensitiveOp.COUNT];
+    private int pid;
+    private long rssKb;
+    private long snapshotWrites;
+
+    // Lato UI: statistiche di lettura
+    private final byte[] scratch = new byte[SLOT_SIZE];
+    private long slotPublishedAt;
+    private long reads;
+    private long retries;
+    private long failedReads;
+    private long lostEvents;
+    private long readNanos;
+    private long maxReadNanos;
+    private long events;
+    private long stalenessNanos;
+    private long maxStalenessNanos;
+
+    private MonitorStateRegion(SharedMemory memory, ByteBuffer buffer, boolean writable) {
+        this.memory = memory;
+        this.buffer = buffer.order(ByteOrder.nativeOrder());
+        this.writable = writable;
+    }
+
+    /**
+     * Crea la regione lato servizio. Le mappature successive (quelle della UI) sono in
+     * sola lettura.
+     */
+    public static MonitorStateRegion create(String name) throws ErrnoException {
+        SharedMemory memory = SharedMemory.create(name, SIZE);
+        ByteBuffer buffer = memory.mapReadWrite();
+        memory.setProtect(OsConstants.PROT_READ);
+        MonitorStateRegion region = new MonitorStateRegion(memory, buffer, true);
+        region.buffer.putInt(OFF_VERSION, VERSION);
+        region.buffer.putLong(OFF_CREATED_AT, SystemClock.elapsedRealtimeNanos());
+        fence();
+        region.buffer.putInt(OFF_MAGIC, MAGIC);
+        return region;
+    }
+
+    /**
+     * Mappa in sola lettura una regione ricevuta dal servizio; null se non è una regione
+     * di questa versione.
+     */
+    public static MonitorStateRegion open(SharedMemory memory) throws ErrnoException {
+        if (memory.getSize() < SIZE) return null;
+        ByteBuffer buffer = memory.mapReadOnly();
+        MonitorStateRegion region = new MonitorStateRegion(memory, buffer, false);
+        if (region.buffer.getInt(OFF_MAGIC) != MAGIC || region.buffer.getInt(OFF_VERSION) != VERSION) {
+            region.close();
+            return null;
+        }
+        return region;
+    }
+
+    /**
+     * Chiede la regione al servizio tramite il binder restituito da onBind; null se la
+     * versione non corrisponde.
+     */
+    public static MonitorStateRegion fetch(IBinder binder) throws RemoteException, ErrnoException {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(DESCRIPTOR);
+            binder.transact(TRANSACTION_GET_REGION, data, reply, 0);
+            reply.readException();
+            return open(SharedMemory.CREATOR.createFromParcel(reply));
+        } finally {
+            reply.recycle();
+            data.recycle();
+        }
+    }
+
+    public SharedMemory getSharedMemory() {
+        return memory;
+    }
+
+    public void close() {
+        SharedMemory.unmap(buffer);
+        memory.close();
+    }
+
+    // Scrittura, dal thread degli eventi del servizio
+
+    public synchronized void publishSession(long sessionStart, String[] appNames) {
+        this.sessionStart = sessionStart;
+        this.appNames = appNames != null ? appNames : new String[0];
+        writeSnapshot();
+    }
+
+    public synchronized void publishActiveCounts(int[] counts) {
+        System.arraycopy(counts, 0, activeCounts, 0, activeCounts.length);
+        writeSnapshot();
+    }
+
+    public synchronized void publishMemory(int pid, long rssKb) {
+        this.pid = pid;
+        this.rssKb = rssKb;
+        writeSnapshot();
+    }
+
+    /**
+     * Aggiunge gli aggiornamenti all'anello, sovrascrivendo i più vecchi.
+     */
+    public synchronized void publishUsage(List<MicrophoneMonitoringService.MicrophoneUsageInfo> usageInfoList) {
+        checkWritable();
+        long head = buffer.getLong(OFF_RING_HEAD);
+        long now = SystemClock.elapsedRealtimeNanos();
+        for (MicrophoneMonitoringService.MicrophoneUsageInfo info : usageInfoList) {
+            int slot = slotOffset(head);
+            buffer.putLong(slot + SLOT_SEQ, 2 * head + 1);
+            fence();
+            buffer.putLong(slot + SLOT_PUBLISHED_AT, now);
+            buffer.putLong(slot + SLOT_TIMESTAMP, info.timestamp);
+            buffer.putLong(slot + SLOT_BACKGROUND_MS, info.backgroundMs);
+            buffer.putFloat(slot + SLOT_ANOMALY, info.anomalyScore);
+            buffer.put(slot + SLOT_OP, (byte) info.op);
+            buffer.put(slot + SLOT_FLAGS, (byte) ((info.isActive ? FLAG_ACTIVE : 0)
+                    | (info.isForeground ? FLAG_FOREGROUND : 0)));
+            int offset = slot + SLOT_STRINGS;
+            offset += putString(offset, info.packageName, MAX_PACKAGE_BYTES);
+            putString(offset, info.appName, MAX_SLOT_NAME_BYTES);
+            fence();
+            buffer.putLong(slot + SLOT_SEQ, 2 * head + 2);
+            head++;
+        }
+        fence();
+        buffer.putLong(OFF_RING_HEAD, head);
+    }
+
+    public synchronized String describeWriteStats() {
+        return String.format(Locale.US, "size=%d, snapshots=%d, events=%d", SIZE, snapshotWrites,
+                buffer.getLong(OFF_RING_HEAD));
+    }
+
+    private void writeSnapshot() {
+        checkWritable();
+        long seq = buffer.getLong(OFF_SNAPSHOT_SEQ);
+        buffer.putLong(OFF_SNAPSHOT_SEQ, seq + 1);
+        fence();
+        buffer.putLong(OFF_PUBLISHED_AT, SystemClock.elapsedRealtimeNanos());
+        buffer.putLong(OFF_SESSION_START, sessionStart);
+        buffer.putLong(OFF_RSS_KB, rssKb);
+        buffer.putInt(OFF_PID, pid);
+        for (int op = 0; op < SensitiveOp.COUNT; op++) {
+            buffer.putInt(OFF_ACTIVE_COUNTS + 4 * op, activeCounts[op]);
+        }
+        // Le app che non entrano nell'istantanea vengono omesse
+        int offset = OFF_APP_NAMES;
+        int count = 0;
+        for (String name : appNames) {
+            if (offset + 2 + MAX_APP_NAME_BYTES > SNAPSHOT + SNAPSHOT_SIZE) break;
+            offset += putString(offset, name, MAX_APP_NAME_BYTES);
+            count++;
+        }
+        buffer.putInt(OFF_APP_COUNT, count);
+        fence();
+        buffer.putLong(OFF_SNAPSHOT_SEQ, seq + 2);
+        snapshotWrites++;
+    }
+
+    // Lunghezza (short) e UTF-8, troncato a un confine di carattere
+    private int putString(int offset, String value, int maxBytes) {
+        byte[] bytes = (value != null ? value : "").getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, maxBytes);
+        if (length < bytes.length) {
+            while (length > 0 && (bytes[length] & 0xC0) == 0x80) length--;
+        }
+        buffer.putShort(offset, (short) length);
+        for (int i = 0; i < length; i++) {
+            buffer.put(offset + 2 + i, bytes[i]);
+        }
+        return 2 + length;
+    }
+
+    private void checkWritable() {
+        if (!writable) throw new IllegalStateException("Read-only state region");
+    }
+
+    // Lettura, dalla UI
+
+    /**
+     * Istante di creazione della regione: cambia se il servizio riparte, e con esso la
+     * numerazione degli aggiornamenti.
+     */
+    public long getCreatedAt() {
+        return buffer.getLong(OFF_CREATED_AT);
+    }
+
+    /**
+     * Sequenza dell'istantanea: se non cambia, non serve rileggerla.
+     */
+    public long getSnapshotSequence() {
+        return buffer.getLong(OFF_SNAPSHOT_SEQ);
+    }
+
+    public long getEventHead() {
+        return buffer.getLong(OFF_RING_HEAD);
+    }
+
+    /**
+     * Legge l'istantanea in {@code out}; false se lo scrittore era sempre a metà
+     * scrittura.
+     */
+    public synchronized boolean readSnapshot(Snapshot out) {
+        long start = System.nanoTime();
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            long seq = buffer.getLong(OFF_SNAPSHOT_SEQ);
+            if ((seq & 1) != 0) {
+                retries++;
+                continue;
+            }
+            fence();
+            out.publishedAtNanos = buffer.getLong(OFF_PUBLISHED_AT);
+            out.sessionStart = buffer.getLong(OFF_SESSION_START);
+            out.rssKb = buffer.getLong(OFF_RSS_KB);
+            out.pid = buffer.getInt(OFF_PID);
+            for (int op = 0; op < SensitiveOp.COUNT; op++) {
+                out.activeCounts[op] = buffer.getInt(OFF_ACTIVE_COUNTS + 4 * op);
+            }
+            // Una lettura strappata può contenere valori qualsiasi: limiti prima di usarli
+            int count = Math.max(0, Math.min(buffer.getInt(OFF_APP_COUNT), SNAPSHOT_SIZE / 2));
+            String[] names = new String[count];
+            int offset = OFF_APP_NAMES;
+            for (int i = 0; i < count && offset + 2 <= SNAPSHOT + SNAPSHOT_SIZE; i++) {
+                int length = getLength(offset, Math.min(MAX_APP_NAME_BYTES, SNAPSHOT + SNAPSHOT_SIZE - offset - 2));
+                names[i] = getString(offset, length);
+                offset += 2 + length;
+            }
+            fence();
+            if (buffer.getLong(OFF_SNAPSHOT_SEQ) == seq) {
+                out.seq = seq;
+                out.appNames = names;
+                recordRead(start, out.publishedAtNanos);
+                return true;
+            }
+            retries++;
+        }
+        failedReads++;
+        return false;
+    }
+
+    /**
+     * Aggiunge a {@code out} gli aggiornamenti a partire dall'indice {@code from} e
+     * ritorna l'indice da cui ripartire. Quelli già sovrascritti vengono contati come
+     * persi.
+     */
+    public synchronized long readEvents(long from,
+                                        List<MicrophoneMonitoringService.MicrophoneUsageInfo> out) {
+        long start = System.nanoTime();
+        long head = buffer.getLong(OFF_RING_HEAD);
+        fence();
+        if (from > head) from = 0; // regione di un'altra istanza del servizio
+        if (head - from > RING_SLOTS) {
+            lostEvents += head - RING_SLOTS - from;
+            from = head - RING_SLOTS;
+        }
+        long newest = 0;
+        for (long index = from; index < head; index++) {
+            MicrophoneMonitoringService.MicrophoneUsageInfo info = readSlot(index);
+            if (info == null) {
+                lostEvents++; // sovrascritto durante la lettura
+                continue;
+            }
+            out.add(info);
+            newest = Math.max(newest, slotPublishedAt);
+        }
+        if (head > from) recordRead(start, newest);
+        return head;
+    }
+
+    private MicrophoneMonitoringService.MicrophoneUsageInfo readSlot(long index) {
+        int slot = slotOffset(index);
+        long expected = 2 * index + 2;
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            long seq = buffer.getLong(slot + SLOT_SEQ);
+            if (seq != expected) {
+                if (seq > expected + 1) return null; // già riusato per un indice successivo
+                retries++;
+                continue;
+            }
+            fence();
+            long publishedAt = buffer.getLong(slot + SLOT_PUBLISHED_AT);
+            long timestamp = buffer.getLong(slot + SLOT_TIMESTAMP);
+            long backgroundMs = buffer.getLong(slot + SLOT_BACKGROUND_MS);
+            float anomalyScore = buffer.getFloat(slot + SLOT_ANOMALY);
+            int op = buffer.get(slot + SLOT_OP);
+            byte flags = buffer.get(slot + SLOT_FLAGS);
+            int offset = slot + SLOT_STRINGS;
+            int packageLength = getLength(offset, MAX_PACKAGE_BYTES);
+            String packageName = getString(offset, packageLength);
+            offset += 2 + packageLength;
+            String appName = getString(offset, getLength(offset, MAX_SLOT_NAME_BYTES));
+            fence();
+            if (buffer.getLong(slot + SLOT_SEQ) == expected) {
+                slotPublishedAt = publishedAt;
+                return new MicrophoneMonitoringService.MicrophoneUsageInfo(packageName, appName, timestamp,
+                        (flags & FLAG_ACTIVE) != 0, (flags & FLAG_FOREGROUND) != 0, backgroundMs,
+                        anomalyScore, op);
+            }
+            retries++;
+        }
+        failedReads++;
+        return null;
+    }
+
+    private int getLength(int offset, int maxBytes) {
+        return Math.max(0, Math.min(buffer.getShort(offset), maxBytes));
+    }
+
+    private String getString(int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            scratch[i] = buffer.get(offset + 2 + i);
+        }
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // Costo della lettura e ritardo tra pubblicazione e lettura (orologio comune ai processi)
+    private void recordRead(long startNanos, long publishedAtNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        reads++;
+        readNanos += elapsed;
+        maxReadNanos = Math.max(maxReadNanos, elapsed);
+        if (publishedAtNanos > 0) {
+            long staleness = Math.max(0, SystemClock.elapsedRealtimeNanos() - publishedAtNanos);
+            events++;
+            stalenessNanos += staleness;
+            maxStalenessNanos = Math.max(maxStalenessNanos, staleness);
+        }
+    }
+
+    public synchronized String describeReadStats() {
+        return String.format(Locale.US,
+                "reads=%d, avgRead=%.1fus, maxRead=%.1fus, avgPublishToRead=%.1fms, maxPublishToRead=%.1fms, "
+                        + "retries=%d, failed=%d, lostEvents=%d",
+                reads, reads > 0 ? readNanos / 1e3 / reads : 0, maxReadNanos / 1e3,
+                events > 0 ? stalenessNanos / 1e6 / events : 0, maxStalenessNanos / 1e6,
+                retries, failedReads, lostEvents);
+    }
+
+    private static int slotOffset(long index) {
+        return RING + (int) (index % RING_SLOTS) * SLOT_SIZE;
+    }
+
+    private static void fence() {
+        fence = 0;
+        if (fence != 0) throw new AssertionError();
+    }
+
+    /**
+     * Istantanea letta dalla UI.
+     */
+    public static class Snapshot {
+        public long seq;
+        public long publishedAtNanos;
+        public long sessionStart;
+        public long rssKb;
+        public int pid;
+        public final int[] activeCounts = new int[SensitiveOp.COUNT];
+        public String[] appNames = new String[0];
+    }
+
+    /**
+     * Binder restituito da onBind del servizio: un'unica transazione, scritta a mano
+     * senza AIDL, che passa la regione (il file descriptor) a chi fa il bind.
+     */
+    public static class StateBinder extends Binder {
+        private final MonitorStateRegion region;
+
+        public StateBinder(MonitorStateRegion region) {
+            this.region = region;
+        }
+
+        @Override
+        protected boolean onTransact(int code, Parcel data, Parcel reply, int flags) throws RemoteException {
+            if (code != TRANSACTION_GET_REGION) {
+                return super.onTransact(code, data, reply, flags);
+            }
+            data.enforceInterface(DESCRIPTOR);
+            reply.writeNoException();
+            region.getSharedMemory().writeToParcel(reply, 0);
+            return true;
+        }
+    }
+}
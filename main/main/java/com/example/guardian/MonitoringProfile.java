@@ -0,0 +1,115 @@
+package com.example.guardian;
+
+import java.util.Locale;
+
+/**
+ * Profilo di monitoraggio: quanto spesso il servizio si sveglia, quanto aspetta prima
+ * di chiudere una raffica di callback, quanto spesso scrive su disco e aggiorna la
+ * notifica, e quali operazioni osserva. Il microfono è sempre osservato.
+ *
+ * Il profilo si cambia a servizio avviato, senza perdere le sessioni aperte:
+ * <pre>
+ * adb shell dumpsys activity service com.example.guardian/.MicrophoneMonitoringService profile battery_saver
+ * </pre>
+ */
+public final class MonitoringProfile {
+
+    // Modalità di scrittura dello storico, vedi MicHistoryStore.setDurability
+    public static final int DURABILITY_SYNC = 0;
+    public static final int DURABILITY_FLUSH = 1;
+    public static final int DURABILITY_BUFFERED = 2;
+
+    public static final MonitoringProfile REALTIME = new MonitoringProfile("realtime", "Tempo reale",
+            500, 30 * 1000, 50, 200, DURABILITY_SYNC, 0, 15 * 1000, allOps());
+    public static final MonitoringProfile BALANCED = new MonitoringProfile("balanced", "Bilanciato",
+            1000, 60 * 1000, DetectionPipeline.CALLBACK_QUIET_WINDOW, DetectionPipeline.CALLBACK_MAX_DELAY,
+            DURABILITY_FLUSH, 1000, 30 * 1000, allOps());
+    // Solo il microfono; lo storico resta nel buffer fino all'heartbeat
+    public static final MonitoringProfile BATTERY_SAVER = new MonitoringProfile("battery_saver", "Risparmio batteria",
+            5000, 5 * 60 * 1000, 500, 2000, DURABILITY_BUFFERED, 10 * 1000, 2 * 60 * 1000,
+            1 << SensitiveOp.MICROPHONE);
+
+    public static final MonitoringProfile[] ALL = {REALTIME, BALANCED, BATTERY_SAVER};
+
+    public final String name;
+    public final String label;
+    // Controllo periodico mentre qualche app registra
+    public final long tickIntervalMs;
+    // Heartbeat del backfill, salvataggio dei profili d'uso e scrittura dello storico bufferizzato
+    public final long heartbeatIntervalMs;
+    public final long callbackQuietWindowMs;
+    public final long callbackMaxDelayMs;
+    public final int historyDurability;
+    // Intervallo minimo tra due aggiornamenti della notifica, 0 per aggiornarla subito
+    public final long notificationIntervalMs;
+    // Controlli del watchdog sulla salute del monitoraggio
+    public final long watchdogIntervalMs;
+    // Bit (1 << op) delle operazioni osservate
+    private final int watchedOps;
+
+    private MonitoringProfile(String name, String label, long tickIntervalMs, long heartbeatIntervalMs,
+                              long callbackQuietWindowMs, long callbackMaxDelayMs, int historyDurability,
+                              long notificationIntervalMs, long watchdogIntervalMs, int watchedOps) {
+        this.name = name;
+        this.label = label;
+        this.tickIntervalMs = tickIntervalMs;
+        this.heartbeatIntervalMs = heartbeatIntervalMs;
+        this.callbackQuietWindowMs = callbackQuietWindowMs;
+        this.callbackMaxDelayMs = callbackMaxDelayMs;
+        this.historyDurability = historyDurability;
+        this.notificationIntervalMs = notificationIntervalMs;
+        this.watchdogIntervalMs = watchdogIntervalMs;
+        this.watchedOps = watchedOps | 1 << SensitiveOp.MICROPHONE;
+    }
+
+    /**
+     * Profilo con questo nome, o null se sconosciuto.
+     */
+    public static MonitoringProfile forName(String name) {
+        for (MonitoringProfile profile : ALL) {
+            if (profile.name.equals(name)) return profile;
+        }
+        return null;
+    }
+
+    public boolean watches(int op) {
+        return (watchedOps & 1 << op) != 0;
+    }
+
+    /**
+     * Osserva almeno un'operazione AppOps (fotocamera o posizione).
+     */
+    public boolean watchesAppOps() {
+        return watches(SensitiveOp.CAMERA) || watches(SensitiveOp.LOCATION);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder ops = new StringBuilder();
+        for (int op = 0; op < SensitiveOp.COUNT; op++) {
+            if (watches(op)) {
+                if (ops.length() > 0) ops.append('+');
+                ops.append(SensitiveOp.name(op));
+            }
+        }
+        return String.format(Locale.US, "%s (tick=%dms, heartbeat=%ds, debounce=%d/%dms, history=%s, "
+                        + "notification=%dms, watchdog=%ds, ops=%s)", name, tickIntervalMs, heartbeatIntervalMs / 1000,
+                callbackQuietWindowMs, callbackMaxDelayMs, durabilityName(historyDurability),
+                notificationIntervalMs, watchdogIntervalMs / 1000, ops);
+    }
+
+    private static String durabilityName(int durability) {
+        switch (durability) {
+            case DURABILITY_SYNC:
+                return "sync";
+            case DURABILITY_FLUSH:
+                return "flush";
+            default:
+                return "buffered";
+        }
+    }
+
+    private static int allOps() {
+        return (1 << SensitiveOp.COUNT) - 1;
+    }
+}
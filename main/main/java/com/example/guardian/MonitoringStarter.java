@@ -0,0 +1,143 @@
+package com.example.guardian;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Unico punto di avvio del servizio di monitoraggio, per i receiver di boot e di
+ * aggiornamento e per l'attività.
+ *
+ * I receiver rispondono subito con {@code goAsync} e avviano il servizio da un thread
+ * dedicato; più receiver dello stesso boot producono un solo avvio. Il servizio ignora
+ * gli avvii quando sta già monitorando e, alla prima attivazione dopo un boot, salva
+ * quanto è passato dal boot a ogni fase (broadcast, richiesta di avvio, onCreate,
+ * callback registrati).
+ */
+public final class MonitoringStarter {
+
+    private static final String TAG = "MonitoringStarter";
+
+    public static final String REASON_BOOT = "boot";
+    public static final String REASON_PACKAGE_REPLACED = "package_replaced";
+    public static final String REASON_USER = "user";
+
+    static final String EXTRA_START_REASON = "start_reason";
+    // elapsedRealtime di ricezione del broadcast (o della richiesta dell'utente)
+    static final String EXTRA_RECEIVED_AT = "received_at";
+    static final String EXTRA_REQUESTED_AT = "requested_at";
+
+    private static final String PREFS_NAME = "boot_latency";
+    // Due stime dell'ora di boot più vicine di così appartengono allo stesso boot
+    private static final long SAME_BOOT_TOLERANCE = 60 * 1000;
+
+    // Avvii dei receiver serializzati: il controllo dei duplicati non ha bisogno di lock
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor();
+    private static boolean bootStartRequested = false;
+
+    private MonitoringStarter() {
+    }
+
+    /**
+     * Avvia il servizio dal receiver senza bloccarlo: il lavoro continua in background
+     * finché il PendingResult non viene chiuso.
+     */
+    public static void startFromReceiver(BroadcastReceiver receiver, Context context, String reason) {
+        long receivedAt = SystemClock.elapsedRealtime();
+        Context appContext = context.getApplicationContext();
+        BroadcastReceiver.PendingResult result = receiver.goAsync();
+        EXECUTOR.execute(() -> {
+            try {
+                if (REASON_BOOT.equals(reason)) {
+                    if (bootStartRequested) {
+                        Log.d(TAG, "Boot start already requested, ignoring duplicate");
+                        return;
+                    }
+                    bootStartRequested = true;
+                }
+                start(appContext, reason, receivedAt);
+            } finally {
+                result.finish();
+            }
+        });
+    }
+
+    /**
+     * Avvia il servizio (nel processo scelto) come servizio in foreground.
+     */
+    public static void start(Context context, String reason) {
+        start(context, reason, SystemClock.elapsedRealtime());
+    }
+
+    private static void start(Context context, String reason, long receivedAt) {
+        Intent serviceIntent = new Intent(context, MicrophoneMonitoringService.serviceClass(context));
+        serviceIntent.putExtra(EXTRA_START_REASON, reason);
+        serviceIntent.putExtra(EXTRA_RECEIVED_AT, receivedAt);
+        serviceIntent.putExtra(EXTRA_REQUESTED_AT, SystemClock.elapsedRealtime());
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                context.startForegroundService(serviceIntent);
+            } else {
+                context.startService(serviceIntent);
+            }
+            Log.d(TAG, "Monitoring service start requested (" + reason + ")");
+        } catch (RuntimeException e) {
+            // Es. ForegroundServiceStartNotAllowedException fuori dalle eccezioni di boot
+            Log.e(TAG, "Failed to start monitoring service (" + reason + ")", e);
+        }
+    }
+
+    /**
+     * Salva i tempi dal boot della prima attivazione del monitoraggio in questo boot;
+     * le attivazioni successive (riavvii, avvii dall'attività) vengono ignorate.
+     * Tutti i tempi sono elapsedRealtime, cioè millisecondi dal boot.
+     */
+    static void recordLive(Context context, String reason, long receivedAt, long requestedAt, long createdAt,
+                           long liveAt) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        long bootWallTime = System.currentTimeMillis() - liveAt;
+        if (prefs.contains("boot_wall_time")
+                && Math.abs(prefs.getLong("boot_wall_time", 0) - bootWallTime) < SAME_BOOT_TOLERANCE
+                && prefs.getLong("live_ms", 0) <= liveAt) {
+            return;
+        }
+
+        SharedPreferences.Editor editor = prefs.edit()
+                .putLong("boot_wall_time", bootWallTime)
+                .putString("reason", reason != null ? reason : "restart")
+                .putLong("received_ms", receivedAt)
+                .putLong("requested_ms", requestedAt)
+                .putLong("created_ms", createdAt)
+                .putLong("live_ms", liveAt);
+        // Solo gli avvii dal boot contano per il caso peggiore
+        if (REASON_BOOT.equals(reason)) {
+            editor.putInt("boots_measured", prefs.getInt("boots_measured", 0) + 1)
+                    .putLong("worst_live_ms", Math.max(prefs.getLong("worst_live_ms", 0), liveAt));
+        }
+        editor.apply();
+        Log.d(TAG, "Monitoring live " + liveAt + "ms after boot (" + reason + ")");
+    }
+
+    static String describeBootLatency(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        if (!prefs.contains("boot_wall_time")) {
+            return "never measured";
+        }
+        return String.format(java.util.Locale.US,
+                "reason=%s, broadcast=%dms, startRequested=%dms, onCreate=%dms, live=%dms after boot "
+                        + "(boots=%d, worst=%dms)",
+                prefs.getString("reason", "?"),
+                prefs.getLong("received_ms", -1),
+                prefs.getLong("requested_ms", -1),
+                prefs.getLong("created_ms", -1),
+                prefs.getLong("live_ms", -1),
+                prefs.getInt("boots_measured", 0),
+                prefs.getLong("worst_live_ms", 0));
+    }
+}
@@ -0,0 +1,279 @@
+package com.example.guardian;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Benchmark del costo di ogni operazione osservata dalla {@link DetectionPipeline}: la
+ * stessa giornata simulata (orologio virtuale, come {@link TraceReplayer}) viene
+ * elaborata con ogni operazione da sola e con tutte insieme.
+ *
+ * Per l'esecuzione combinata riporta tick (risvegli del controllo periodico), query
+ * sugli UsageEvents e risoluzioni degli uid, confrontati con la somma delle esecuzioni
+ * separate, cioè con un servizio per operazione: i tick coprono l'unione dei periodi
+ * attivi invece della somma, e le query vengono condivise. Il tempo di CPU per ingresso
+ * e per app attiva a ogni tick mostra che un'operazione in più non aggiunge costi fissi.
+ *
+ * Uso: {@code java -cp <classi> com.example.guardian.OpMonitoringBenchmark
+ * [--apps N] [--hours N] [--sessions-per-hour N] [--seed N]}
+ */
+public class OpMonitoringBenchmark {
+
+    private static final String PACKAGE_PREFIX = "com.example.bench.app";
+    private static final int FIRST_UID = 10000;
+    private static final long TICK_INTERVAL = 1000; // come MONITORING_INTERVAL del servizio
+    private static final long START_TIME = 1_700_000_000_000L;
+    private static final int WARMUP_ROUNDS = 2;
+    // Durata media delle sessioni per operazione: microfono, fotocamera, posizione
+    private static final long[] MEAN_SESSION_MS = {120_000, 30_000, 300_000};
+
+    public static void main(String[] args) {
+        int apps = 50;
+        int hours = 24;
+        int sessionsPerHour = 60;
+        long seed = 1;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--apps":
+                    apps = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--hours":
+                    hours = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--sessions-per-hour":
+                    sessionsPerHour = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(args[i + 1]);
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        List<Transition> workload = generate(apps, hours * 3600_000L, sessionsPerHour, seed);
+        int all = (1 << SensitiveOp.COUNT) - 1;
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            run(workload, apps, all);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "{\"apps\":%d,\"hours\":%d,\"sessions_per_hour_per_op\":%d,\"runs\":[",
+                apps, hours, sessionsPerHour));
+        Stats separate = new Stats(0);
+        for (int op = 0; op < SensitiveOp.COUNT; op++) {
+            Stats single = run(workload, apps, 1 << op);
+            separate.add(single);
+            sb.append(single.toJson()).append(',');
+        }
+        Stats combined = run(workload, apps, all);
+        sb.append(combined.toJson()).append(']');
+        sb.append(String.format(Locale.US,
+                ",\"combined_vs_separate\":{\"ticks\":%.2f,\"usage_queries\":%.2f,\"uid_lookups\":%.2f,"
+                        + "\"cpu\":%.2f}}",
+                ratio(combined.ticks, separate.ticks), ratio(combined.usageQueries, separate.usageQueries),
+                ratio(combined.uidLookups, separate.uidLookups), ratio(combined.nanos, separate.nanos)));
+        System.out.println(sb);
+    }
+
+    /**
+     * Sessioni a intervalli esponenziali, indipendenti per operazione, su app casuali;
+     * ogni app usa al massimo una sessione per operazione alla volta.
+     */
+    static List<Transition> generate(int apps, long durationMs, int sessionsPerHour, long seed) {
+        List<Transition> transitions = new ArrayList<>();
+        for (int op = 0; op < SensitiveOp.COUNT; op++) {
+            Random random = new Random(seed * 31 + op);
+            long[] busyUntil = new long[apps];
+            double meanGap = 3600_000.0 / sessionsPerHour;
+            long time = START_TIME;
+            while (true) {
+                time += (long) (-Math.log(1 - random.nextDouble()) * meanGap);
+                if (time >= START_TIME + durationMs) break;
+                int app = random.nextInt(apps);
+                if (busyUntil[app] > time) continue;
+
+                long end = time + 1000 + (long) (-Math.log(1 - random.nextDouble()) * MEAN_SESSION_MS[op]);
+                busyUntil[app] = end;
+                transitions.add(new Transition(time, op, app, true));
+                transitions.add(new Transition(end, op, app, false));
+            }
+        }
+        Collections.sort(transitions);
+        return transitions;
+    }
+
+    private static Stats run(List<Transition> workload, int apps, int opMask) {
+        final Stats stats = new Stats(opMask);
+        final TraceReplayer.VirtualTime time = new TraceReplayer.VirtualTime(START_TIME);
+
+        EventSources.PackageResolver resolver = new EventSources.PackageResolver() {
+            @Override
+            public String packageForUid(int uid) {
+                stats.uidLookups++;
+                return PACKAGE_PREFIX + (uid - FIRST_UID);
+            }
+
+            @Override
+            public String appName(String packageName) {
+                return packageName;
+            }
+        };
+        // Un cambio di foreground per ogni secondo interrogato, come nel generatore di carico
+        EventSources.UsageEventSource usageEvents = (from, to, sink) -> {
+            stats.usageQueries++;
+            int app = (int) ((to / 1000) % apps);
+            sink.onUsageEvent(PACKAGE_PREFIX + app, to - 1, (to / 1000) % 2 == 0
+                    ? EventSources.USAGE_ACTIVITY_RESUMED : EventSources.USAGE_ACTIVITY_PAUSED);
+        };
+        final DetectionPipeline pipeline = new DetectionPipeline(time, time, resolver, usageEvents,
+                message -> { }, "com.example.guardian", new CountingListener(stats));
+
+        // Tick periodico solo mentre qualche app è attiva, come nel servizio
+        final boolean[] ticking = {false};
+        final Runnable tick = new Runnable() {
+            @Override
+            public void run() {
+                stats.ticks++;
+                pipeline.tick();
+                if (pipeline.hasActiveApps()) {
+                    time.schedule(this, TICK_INTERVAL);
+                } else {
+                    ticking[0] = false;
+                }
+            }
+        };
+
+        boolean[][] active = new boolean[SensitiveOp.COUNT][apps];
+        int[] activeCount = new int[SensitiveOp.COUNT];
+        long start = System.nanoTime();
+        for (Transition transition : workload) {
+            if ((opMask & (1 << transition.op)) == 0) continue;
+
+            time.advanceTo(transition.timestamp);
+            active[transition.op][transition.app] = transition.on;
+            activeCount[transition.op] += transition.on ? 1 : -1;
+            int[] uids = new int[activeCount[transition.op]];
+            for (int i = 0, n = 0; i < apps; i++) {
+                if (active[transition.op][i]) uids[n++] = FIRST_UID + i;
+            }
+            pipeline.onOpActiveChanged(transition.op, uids);
+            stats.inputs++;
+
+            if (transition.on && !ticking[0]) {
+                ticking[0] = true;
+                time.schedule(tick, TICK_INTERVAL);
+            }
+        }
+        time.drain();
+        stats.nanos = System.nanoTime() - start;
+        return stats;
+    }
+
+    private static double ratio(double value, double total) {
+        return total > 0 ? value / total : 0;
+    }
+
+    static class Transition implements Comparable<Transition> {
+        final long timestamp;
+        final int op;
+        final int app;
+        final boolean on;
+
+        Transition(long timestamp, int op, int app, boolean on) {
+            this.timestamp = timestamp;
+            this.op = op;
+            this.app = app;
+            this.on = on;
+        }
+
+        @Override
+        public int compareTo(Transition other) {
+            int c = Long.compare(timestamp, other.timestamp);
+            return c != 0 ? c : Integer.compare(op, other.op);
+        }
+    }
+
+    private static class Stats {
+        final int opMask;
+        long inputs;
+        long ticks;
+        long usageQueries;
+        long uidLookups;
+        long sessions;
+        long samples;
+        long nanos;
+
+        Stats(int opMask) {
+            this.opMask = opMask;
+        }
+
+        void add(Stats other) {
+            inputs += other.inputs;
+            ticks += other.ticks;
+            usageQueries += other.usageQueries;
+            uidLookups += other.uidLookups;
+            sessions += other.sessions;
+            samples += other.samples;
+            nanos += other.nanos;
+        }
+
+        String toJson() {
+            List<String> ops = new ArrayList<>();
+            for (int op = 0; op < SensitiveOp.COUNT; op++) {
+                if ((opMask & (1 << op)) != 0) ops.add(SensitiveOp.name(op));
+            }
+            return String.format(Locale.US,
+                    "{\"ops\":\"%s\",\"inputs\":%d,\"sessions\":%d,\"ticks\":%d,\"usage_queries\":%d,"
+                            + "\"uid_lookups\":%d,\"samples\":%d,\"cpu_ms\":%.1f,\"ns_per_input\":%.0f,"
+                            + "\"ns_per_sample\":%.0f}",
+                    String.join("+", ops), inputs, sessions, ticks, usageQueries, uidLookups, samples,
+                    nanos / 1e6, inputs > 0 ? (double) nanos / inputs : 0,
+                    samples > 0 ? (double) nanos / samples : 0);
+        }
+    }
+
+    private static class CountingListener implements DetectionPipeline.Listener {
+        private final Stats stats;
+
+        CountingListener(Stats stats) {
+            this.stats = stats;
+        }
+
+        @Override
+        public void onSessionStarted(int op, String packageName, long timestamp, boolean isForeground,
+                                     float anomalyScore) {
+        }
+
+        @Override
+        public void onSessionStateChanged(int op, String packageName, long timestamp, boolean isForeground) {
+        }
+
+        @Override
+        public void onSessionEnded(int op, String packageName, long timestamp, boolean isForeground,
+                                   BackgroundRecordingAnalyzer.SessionResult result, float anomalyScore) {
+            stats.sessions++;
+        }
+
+        @Override
+        public void onAppForegroundChanged(String packageName, long timestamp, boolean isForeground) {
+        }
+
+        @Override
+        public void onUsage(List<DetectionPipeline.UsageSample> samples) {
+            stats.samples += samples.size();
+        }
+
+        @Override
+        public void onSessionsChanged(long sessionStart, String[] appNames) {
+        }
+
+        @Override
+        public void onActiveAppsChanged(int op, List<String> activeApps) {
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.example.guardian;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Filtro dei package che registrano, valutato per primo dalla pipeline: i package
+ * ignorati non arrivano al debounce, alla risoluzione del nome né alle sessioni.
+ *
+ * Formato testuale, una regola per riga ({@code #} per i commenti):
+ * <pre>
+ * deny  com.google.android.*
+ * allow com.google.android.apps.recorder
+ * deny  com.android.dialer
+ * </pre>
+ * {@code deny} ignora il package, {@code allow} lo riporta comunque; {@code .*} finale
+ * indica tutti i package sotto quel prefisso e {@code *} tutti i package. Vince la
+ * regola più specifica (il pattern più lungo che corrisponde), a parità l'ultima; senza
+ * regole il package viene riportato.
+ *
+ * Le regole vengono compilate in un trie piatto sui caratteri; l'esito per ogni package
+ * viene memorizzato per id di package, quindi dopo la prima volta un controllo costa
+ * una lookup e un accesso ad array, senza allocazioni.
+ */
+public class PackageFilter {
+
+    public static final String ALL_PACKAGES = "*";
+    private static final String PREFIX_SUFFIX = ".*";
+    // Esito non ancora calcolato, nessuna regola
+    private static final int UNKNOWN = -2;
+    private static final int NO_RULE = -1;
+
+    private final String[] patterns;
+    private final boolean[] deny;
+    private final long[] hits;
+    private long defaultHits;
+
+    // Trie compilato: i figli di ogni nodo sono contigui e ordinati per carattere
+    private final int[] firstEdge;
+    private final int[] edgeCount;
+    private final char[] edgeChar;
+    private final int[] edgeTarget;
+    private final int[] prefixRule;
+    private final int[] exactRule;
+
+    private final Map<String, Integer> packageIds = new HashMap<>();
+    private int[] matchedRule = new int[16];
+
+    private PackageFilter(List<String> patterns, List<Boolean> deny) {
+        int count = patterns.size();
+        this.patterns = patterns.toArray(new String[0]);
+        this.deny = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            this.deny[i] = deny.get(i);
+        }
+        this.hits = new long[count];
+        Arrays.fill(matchedRule, UNKNOWN);
+
+        // Trie temporaneo, poi appiattito in array
+        List<TreeMap<Character, Integer>> children = new ArrayList<>();
+        List<Integer> prefix = new ArrayList<>();
+        List<Integer> exact = new ArrayList<>();
+        children.add(new TreeMap<Character, Integer>());
+        prefix.add(NO_RULE);
+        exact.add(NO_RULE);
+        for (int rule = 0; rule < count; rule++) {
+            String pattern = this.patterns[rule];
+            boolean isPrefix = pattern.equals(ALL_PACKAGES) || pattern.endsWith(PREFIX_SUFFIX);
+            // "com.google.*" corrisponde a "com.google.x", non a "com.googlex"
+            String key = pattern.equals(ALL_PACKAGES) ? "" : isPrefix ? pattern.substring(0, pattern.length() - 1) : pattern;
+
+            int node = 0;
+            for (int i = 0; i < key.length(); i++) {
+                Integer next = children.get(node).get(key.charAt(i));
+                if (next == null) {
+                    next = children.size();
+                    children.add(new TreeMap<Character, Integer>());
+                    prefix.add(NO_RULE);
+                    exact.add(NO_RULE);
+                    children.get(node).put(key.charAt(i), next);
+                }
+                node = next;
+            }
+            // A parità di pattern vince l'ultima regola
+            (isPrefix ? prefix : exact).set(node, rule);
+        }
+
+        int nodes = children.size();
+        firstEdge = new int[nodes];
+        edgeCount = new int[nodes];
+        edgeChar = new char[nodes - 1];
+        edgeTarget = new int[nodes - 1];
+        prefixRule = new int[nodes];
+        exactRule = new int[nodes];
+        int edge = 0;
+        for (int node = 0; node < nodes; node++) {
+            firstEdge[node] = edge;
+            edgeCount[node] = children.get(node).size();
+            for (Map.Entry<Character, Integer> entry : children.get(node).entrySet()) {
+                edgeChar[edge] = entry.getKey();
+                edgeTarget[edge] = entry.getValue();
+                edge++;
+            }
+            prefixRule[node] = prefix.get(node);
+            exactRule[node] = exact.get(node);
+        }
+    }
+
+    /**
+     * Legge le regole dal formato testuale; le righe non valide vengono ignorate.
+     */
+    public static PackageFilter parse(String spec) {
+        List<String> patterns = new ArrayList<>();
+        List<Boolean> deny = new ArrayList<>();
+        if (spec != null) {
+            for (String line : spec.split("\n")) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+
+                String[] parts = line.split("\\s+");
+                if (parts.length != 2) continue;
+                if ("deny".equals(parts[0]) || "allow".equals(parts[0])) {
+                    patterns.add(parts[1]);
+                    deny.add("deny".equals(parts[0]));
+                }
+            }
+        }
+        return new PackageFilter(patterns, deny);
+    }
+
+    public int ruleCount() {
+        return patterns.length;
+    }
+
+    /**
+     * Vero se il package va ignorato. Conta la corrispondenza nella regola che decide.
+     */
+    public synchronized boolean isIgnored(String packageName) {
+        Integer id = packageIds.get(packageName);
+        if (id == null) {
+            id = packageIds.size();
+            packageIds.put(packageName, id);
+            if (id >= matchedRule.length) {
+                int oldLength = matchedRule.length;
+                matchedRule = Arrays.copyOf(matchedRule, oldLength * 2);
+                Arrays.fill(matchedRule, oldLength, matchedRule.length, UNKNOWN);
+            }
+        }
+        int rule = matchedRule[id];
+        if (rule == UNKNOWN) {
+            rule = match(packageName);
+            matchedRule[id] = rule;
+        }
+
+        if (rule == NO_RULE) {
+            defaultHits++;
+            return false;
+        }
+        hits[rule]++;
+        return deny[rule];
+    }
+
+    // Regola più specifica: la corrispondenza esatta, altrimenti il prefisso più lungo
+    private int match(String packageName) {
+        int node = 0;
+        int best = prefixRule[0];
+        for (int i = 0; i < packageName.length(); i++) {
+            node = child(node, packageName.charAt(i));
+            if (node < 0) return best;
+            if (prefixRule[node] != NO_RULE) best = prefixRule[node];
+        }
+        return exactRule[node] != NO_RULE ? exactRule[node] : best;
+    }
+
+    private int child(int node, char c) {
+        int low = firstEdge[node];
+        int high = low + edgeCount[node] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            char midChar = edgeChar[mid];
+            if (midChar < c) {
+                low = mid + 1;
+            } else if (midChar > c) {
+                high = mid - 1;
+            } else {
+                return edgeTarget[mid];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Una riga per regola con le corrispondenze, più quelle senza regola.
+     */
+    public synchronized List<String> describeStats() {
+        List<String> lines = new ArrayList<>(patterns.length + 1);
+        for (int i = 0; i < patterns.length; i++) {
+            lines.add(String.format(Locale.US, "%s %s hits=%d", deny[i] ? "deny" : "allow", patterns[i], hits[i]));
+        }
+        lines.add(String.format(Locale.US, "(no rule) hits=%d, packages=%d", defaultHits, packageIds.size()));
+        return lines;
+    }
+}
@@ -0,0 +1,531 @@
+package com.example.guardian;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Generatore di carico sintetico per la {@link DetectionPipeline}: simula app che
+ * accendono e spengono il microfono a un ritmo dato e misura fino a quale ritmo la
+ * pipeline regge.
+ *
+ * Come nel servizio, callback, timer del debounce e controllo periodico girano su un
+ * unico thread (qui un event loop con coda limitata, al posto del thread degli eventi).
+ * Per ogni ritmo della serie riporta throughput sostenuto, profondità della coda,
+ * latenza di rilevamento (dal cambio di stato all'uscita della pipeline) ed eventi
+ * scartati, in JSON.
+ *
+ * La latenza resta entro il ritardo massimo del debounce più l'attesa in coda del primo
+ * callback della raffica e il tempo di elaborazione. Un passo di riscaldamento non
+ * riportato precede la serie: senza, caricamento delle classi e compilazione JIT
+ * allungano le prime raffiche di qualche decina di millisecondi oltre il limite.
+ *
+ * Uso: {@code java -cp <classi> com.example.guardian.PipelineLoadGenerator
+ * [--apps N] [--rates 100,1000,...] [--duration s] [--warmup s] [--pattern steady|burst|flap]
+ * [--burst-size N] [--queue N] [--quiet ms] [--max-delay ms] [--seed N]}
+ *
+ * Misura solo la pipeline: storico, broadcast e notifica del servizio non sono inclusi.
+ */
+public class PipelineLoadGenerator {
+
+    private static final String PACKAGE_PREFIX = "com.example.load.app";
+    private static final int FIRST_UID = 10000;
+    private static final long TICK_INTERVAL = 1000; // come MONITORING_INTERVAL del servizio
+    private static final long DRAIN_TIMEOUT = 10000;
+    // In ritardo se il throughput resta sotto questa frazione del ritmo offerto
+    private static final double BEHIND_RATIO = 0.95;
+
+    public enum Pattern {
+        // Transizioni distribuite uniformemente su app casuali
+        STEADY,
+        // Raffiche di burstSize transizioni consecutive, poi pausa
+        BURST,
+        // Una sola app che si accende e si spegne di continuo
+        FLAP
+    }
+
+    public static class Config {
+        public int apps = 20;
+        public int[] rates = {100, 1000, 10000, 50000};
+        public long durationMs = 5000;
+        public long warmupMs = 1000;
+        public Pattern pattern = Pattern.STEADY;
+        public int burstSize = 16;
+        public int queueCapacity = 10000;
+        public long quietWindowMs = DetectionPipeline.CALLBACK_QUIET_WINDOW;
+        public long maxDelayMs = DetectionPipeline.CALLBACK_MAX_DELAY;
+        public long seed = 1;
+    }
+
+    private final Config config;
+
+    public PipelineLoadGenerator(Config config) {
+        this.config = config;
+    }
+
+    /**
+     * Esegue un passo per ogni ritmo della serie e ritorna il report JSON.
+     */
+    public String run() throws InterruptedException {
+        if (config.warmupMs > 0 && config.rates.length > 0) {
+            runStep(config.rates[0], config.warmupMs);
+        }
+        List<StepResult> steps = new ArrayList<>();
+        int saturation = 0;
+        for (int rate : config.rates) {
+            StepResult step = runStep(rate, config.durationMs);
+            steps.add(step);
+            if (!step.behind && !step.generatorLimited) {
+                saturation = Math.max(saturation, rate);
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US,
+                "{\"config\":{\"apps\":%d,\"duration_ms\":%d,\"warmup_ms\":%d,\"pattern\":\"%s\",\"burst_size\":%d,"
+                        + "\"queue_capacity\":%d,\"quiet_ms\":%d,\"max_delay_ms\":%d,\"seed\":%d},\"steps\":[",
+                config.apps, config.durationMs, config.warmupMs, config.pattern.name().toLowerCase(Locale.US), config.burstSize,
+                config.queueCapacity, config.quietWindowMs, config.maxDelayMs, config.seed));
+        for (int i = 0; i < steps.size(); i++) {
+            if (i > 0) sb.append(',');
+            sb.append(steps.get(i).toJson());
+        }
+        sb.append(String.format(Locale.US, "],\"max_sustained_rate\":%d}", saturation));
+        return sb.toString();
+    }
+
+    private StepResult runStep(int rate, long durationMs) throws InterruptedException {
+        final StepResult result = new StepResult(rate);
+        final EventLoop loop = new EventLoop(config.queueCapacity);
+        final Detections detections = new Detections(config.apps);
+        final Random random = new Random(config.seed);
+
+        EventSources.PackageResolver resolver = new EventSources.PackageResolver() {
+            @Override
+            public String packageForUid(int uid) {
+                int index = uid - FIRST_UID;
+                return index >= 0 && index < config.apps ? PACKAGE_PREFIX + index : null;
+            }
+
+            @Override
+            public String appName(String packageName) {
+                return packageName;
+            }
+        };
+        // Un cambio di foreground ogni tanto, per esercitare anche l'analisi background
+        EventSources.UsageEventSource usageEvents = (from, to, sink) -> {
+            int app = (int) ((to / 1000) % config.apps);
+            sink.onUsageEvent(PACKAGE_PREFIX + app, to - 1, (to / 1000) % 2 == 0
+                    ? EventSources.USAGE_ACTIVITY_RESUMED : EventSources.USAGE_ACTIVITY_PAUSED);
+        };
+
+        final DetectionPipeline pipeline = new DetectionPipeline(System::currentTimeMillis, loop, resolver,
+                usageEvents, message -> { }, "com.example.guardian", detections);
+        pipeline.configureDebouncer(config.quietWindowMs, config.maxDelayMs);
+
+        loop.start();
+        Ticker ticker = new Ticker(loop, pipeline);
+        loop.schedule(ticker, TICK_INTERVAL);
+
+        // Generazione a ciclo aperto: il ritmo non rallenta se la pipeline è in ritardo
+        boolean[] recording = new boolean[config.apps];
+        int activeCount = 0;
+        long intervalNanos = 1_000_000_000L / rate;
+        long startNanos = System.nanoTime();
+        long endNanos = startNanos + durationMs * 1_000_000L;
+        long nextNanos = startNanos;
+        int inBurst = 0;
+
+        while (nextNanos < endNanos) {
+            long now = System.nanoTime();
+            if (now < nextNanos) {
+                LockSupport.parkNanos(Math.min(nextNanos - now, 1_000_000));
+                continue;
+            }
+
+            int app = config.pattern == Pattern.FLAP ? 0 : random.nextInt(config.apps);
+            recording[app] = !recording[app];
+            activeCount += recording[app] ? 1 : -1;
+
+            int[] uids = new int[activeCount];
+            for (int i = 0, n = 0; i < config.apps; i++) {
+                if (recording[i]) uids[n++] = FIRST_UID + i;
+            }
+
+            detections.expect(app, now);
+            result.sent++;
+            if (!loop.post(() -> pipeline.onRecordingConfigChanged(uids))) {
+                detections.cancelLast(app);
+                result.dropped++;
+            }
+
+            // Nel pattern a raffiche le transizioni di una raffica partono insieme
+            if (config.pattern == Pattern.BURST && ++inBurst < config.burstSize) {
+                continue;
+            }
+            inBurst = 0;
+            nextNanos += config.pattern == Pattern.BURST ? intervalNanos * config.burstSize : intervalNanos;
+        }
+        long sendNanos = System.nanoTime() - startNanos;
+        result.queueDepthAtEnd = loop.inputDepth();
+
+        // Svuota la coda e chiude la raffica in corso
+        ticker.stop();
+        loop.post(pipeline::flush);
+        boolean drained = loop.awaitIdle(DRAIN_TIMEOUT);
+        loop.stop();
+
+        // Il flush finale non è una transizione
+        result.processed = loop.processedInputs() - 1;
+        result.sendSeconds = sendNanos / 1e9;
+        result.offeredRate = result.sent / result.sendSeconds;
+        result.throughput = result.processed / ((loop.lastInputNanos - startNanos) / 1e9);
+        result.queueDepthMax = loop.maxDepth;
+        result.queueDepthMean = loop.depthSamples > 0 ? (double) loop.depthSum / loop.depthSamples : 0;
+        result.latenciesMicros = detections.latencies();
+        result.undetected = detections.pending();
+        result.sessions = detections.sessions;
+        result.drained = drained;
+        // In ritardo: la coda non si è svuotata al ritmo offerto
+        result.behind = !drained || result.dropped > 0 || result.throughput < result.offeredRate * BEHIND_RATIO;
+        // Il generatore stesso non ha raggiunto il ritmo richiesto
+        result.generatorLimited = result.offeredRate < rate * BEHIND_RATIO;
+        return result;
+    }
+
+    /**
+     * Abbina ogni transizione generata alla prima uscita della pipeline per la stessa app.
+     * Le transizioni accorpate in una raffica vengono rilevate tutte da quell'uscita.
+     */
+    private static class Detections implements DetectionPipeline.Listener {
+        private final List<ArrayDeque<Long>> pending;
+        private long[] latencies = new long[1024];
+        private int latencyCount;
+        long sessions;
+
+        Detections(int apps) {
+            pending = new ArrayList<>(apps);
+            for (int i = 0; i < apps; i++) {
+                pending.add(new ArrayDeque<>());
+            }
+        }
+
+        synchronized void expect(int app, long nanos) {
+            pending.get(app).addLast(nanos);
+        }
+
+        synchronized void cancelLast(int app) {
+            pending.get(app).pollLast();
+        }
+
+        synchronized long pending() {
+            long count = 0;
+            for (ArrayDeque<Long> queue : pending) {
+                count += queue.size();
+            }
+            return count;
+        }
+
+        synchronized long[] latencies() {
+            return Arrays.copyOf(latencies, latencyCount);
+        }
+
+        private synchronized void detected(String packageName) {
+            int app = Integer.parseInt(packageName.substring(PACKAGE_PREFIX.length()));
+            long now = System.nanoTime();
+            Long sent;
+            while ((sent = pending.get(app).pollFirst()) != null) {
+                if (latencyCount == latencies.length) {
+                    latencies = Arrays.copyOf(latencies, latencyCount * 2);
+                }
+                latencies[latencyCount++] = (now - sent) / 1000;
+            }
+        }
+
+        @Override
+        public void onSessionStarted(int op, String packageName, long timestamp, boolean isForeground,
+                                     float anomalyScore) {
+            detected(packageName);
+        }
+
+        @Override
+        public void onSessionStateChanged(int op, String packageName, long timestamp, boolean isForeground) {
+        }
+
+        @Override
+        public void onSessionEnded(int op, String packageName, long timestamp, boolean isForeground,
+                                   BackgroundRecordingAnalyzer.SessionResult result, float anomalyScore) {
+            sessions++;
+            detected(packageName);
+        }
+
+        @Override
+        public void onAppForegroundChanged(String packageName, long timestamp, boolean isForeground) {
+        }
+
+        @Override
+        public void onUsage(List<DetectionPipeline.UsageSample> samples) {
+        }
+
+        @Override
+        public void onSessionsChanged(long sessionStart, String[] appNames) {
+        }
+
+        @Override
+        public void onActiveAppsChanged(int op, List<String> activeApps) {
+        }
+    }
+
+    // Controllo periodico sul thread dell'event loop, come il timer del servizio
+    private static class Ticker implements Runnable {
+        private final EventLoop loop;
+        private final DetectionPipeline pipeline;
+        private volatile boolean stopped;
+
+        Ticker(EventLoop loop, DetectionPipeline pipeline) {
+            this.loop = loop;
+            this.pipeline = pipeline;
+        }
+
+        @Override
+        public void run() {
+            if (stopped) return;
+            pipeline.tick();
+            loop.schedule(this, TICK_INTERVAL);
+        }
+
+        // Dopo lo stop la coda dei task ritardati può svuotarsi
+        void stop() {
+            stopped = true;
+            loop.cancel(this);
+        }
+    }
+
+    /**
+     * Event loop a thread singolo, equivalente al thread degli eventi del servizio: esegue gli
+     * ingressi in ordine e i task ritardati alla scadenza. Gli ingressi oltre la capacità
+     * vengono scartati.
+     */
+    private static class EventLoop implements EventSources.Timer {
+        private final int capacity;
+        private final ArrayDeque<Runnable> inputs = new ArrayDeque<>();
+        private final PriorityQueue<Delayed> delayed = new PriorityQueue<>();
+        private final Thread thread = new Thread(this::loop, "LoadEventLoop");
+        private boolean running = true;
+        private boolean busy = false;
+        private long sequence;
+        private long processed;
+        volatile long lastInputNanos;
+        // Statistiche della coda, campionate a ogni ingresso eseguito
+        int maxDepth;
+        long depthSum;
+        long depthSamples;
+
+        EventLoop(int capacity) {
+            this.capacity = capacity;
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        synchronized boolean post(Runnable input) {
+            if (inputs.size() >= capacity) return false;
+            inputs.addLast(input);
+            notifyAll();
+            return true;
+        }
+
+        @Override
+        public synchronized void schedule(Runnable task, long delayMs) {
+            delayed.add(new Delayed(System.nanoTime() + delayMs * 1_000_000L, sequence++, task));
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void cancel(Runnable task) {
+            delayed.removeIf(d -> d.task == task);
+        }
+
+        synchronized int inputDepth() {
+            return inputs.size();
+        }
+
+        synchronized long processedInputs() {
+            return processed;
+        }
+
+        synchronized boolean awaitIdle(long timeoutMs) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (busy || !inputs.isEmpty() || !delayed.isEmpty()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) return false;
+                wait(remaining);
+            }
+            return true;
+        }
+
+        synchronized void stop() {
+            running = false;
+            notifyAll();
+        }
+
+        private void loop() {
+            while (true) {
+                Runnable task;
+                boolean isInput = false;
+                synchronized (this) {
+                    task = null;
+                    while (running && task == null) {
+                        Delayed next = delayed.peek();
+                        long now = System.nanoTime();
+                        if (next != null && next.due <= now) {
+                            task = delayed.poll().task;
+                        } else if (!inputs.isEmpty()) {
+                            int depth = inputs.size();
+                            maxDepth = Math.max(maxDepth, depth);
+                            depthSum += depth;
+                            depthSamples++;
+                            task = inputs.pollFirst();
+                            isInput = true;
+                            processed++;
+                        } else {
+                            notifyAll();
+                            try {
+                                if (next != null) {
+                                    long waitNanos = next.due - now;
+                                    wait(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+                                } else {
+                                    wait();
+                                }
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                        }
+                    }
+                    if (!running) return;
+                    busy = true;
+                }
+                task.run();
+                if (isInput) {
+                    lastInputNanos = System.nanoTime();
+                }
+                synchronized (this) {
+                    busy = false;
+                }
+            }
+        }
+    }
+
+    private static class Delayed implements Comparable<Delayed> {
+        final long due;
+        final long seq;
+        final Runnable task;
+
+        Delayed(long due, long seq, Runnable task) {
+            this.due = due;
+            this.seq = seq;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            int c = Long.compare(due, other.due);
+            return c != 0 ? c : Long.compare(seq, other.seq);
+        }
+    }
+
+    private static class StepResult {
+        final int rate;
+        long sent;
+        long dropped;
+        long processed;
+        double sendSeconds;
+        double offeredRate;
+        double throughput;
+        int queueDepthAtEnd;
+        int queueDepthMax;
+        double queueDepthMean;
+        long[] latenciesMicros;
+        long undetected;
+        long sessions;
+        boolean drained;
+        boolean behind;
+        boolean generatorLimited;
+
+        StepResult(int rate) {
+            this.rate = rate;
+        }
+
+        String toJson() {
+            Arrays.sort(latenciesMicros);
+            return String.format(Locale.US,
+                    "{\"target_rate\":%d,\"sent\":%d,\"offered_rate\":%.1f,\"processed\":%d,\"dropped\":%d,"
+                            + "\"throughput\":%.1f,\"queue_depth_max\":%d,\"queue_depth_mean\":%.2f,"
+                            + "\"queue_depth_at_end\":%d,\"latency_ms\":{\"p50\":%.3f,\"p99\":%.3f,\"p999\":%.3f,"
+                            + "\"max\":%.3f},\"detected\":%d,\"undetected\":%d,\"sessions\":%d,"
+                            + "\"drained\":%b,\"behind\":%b,\"generator_limited\":%b}",
+                    rate, sent, offeredRate, processed, dropped, throughput, queueDepthMax, queueDepthMean,
+                    queueDepthAtEnd, percentile(0.50), percentile(0.99), percentile(0.999),
+                    percentile(1.0), latenciesMicros.length, undetected, sessions, drained, behind, generatorLimited);
+        }
+
+        private double percentile(double p) {
+            if (latenciesMicros.length == 0) return 0;
+            int index = (int) Math.ceil(p * latenciesMicros.length) - 1;
+            return latenciesMicros[Math.max(0, Math.min(index, latenciesMicros.length - 1))] / 1000.0;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Config config = new Config();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--apps":
+                    config.apps = Integer.parseInt(value);
+                    break;
+                case "--rates":
+                    String[] parts = value.split(",");
+                    config.rates = new int[parts.length];
+                    for (int j = 0; j < parts.length; j++) {
+                        config.rates[j] = Integer.parseInt(parts[j].trim());
+                    }
+                    break;
+                case "--duration":
+                    config.durationMs = (long) (Double.parseDouble(value) * 1000);
+                    break;
+                case "--warmup":
+                    config.warmupMs = (long) (Double.parseDouble(value) * 1000);
+                    break;
+                case "--pattern":
+                    config.pattern = Pattern.valueOf(value.toUpperCase(Locale.US));
+                    break;
+                case "--burst-size":
+                    config.burstSize = Integer.parseInt(value);
+                    break;
+                case "--queue":
+                    config.queueCapacity = Integer.parseInt(value);
+                    break;
+                case "--quiet":
+                    config.quietWindowMs = Long.parseLong(value);
+                    break;
+                case "--max-delay":
+                    config.maxDelayMs = Long.parseLong(value);
+                    break;
+                case "--seed":
+                    config.seed = Long.parseLong(value);
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+        System.out.println(new PipelineLoadGenerator(config).run());
+    }
+}
@@ -0,0 +1,504 @@
+package com.example.guardian;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.zip.CRC32;
+
+/**
+ * Riproduce una traccia di {@link TraceRecorder} attraverso la stessa
+ * {@link DetectionPipeline} del servizio, su una JVM qualsiasi.
+ *
+ * L'orologio è virtuale: avanza all'istante di ogni record e i timer scadono in ordine
+ * senza attese reali, quindi la stessa traccia produce sempre le stesse uscite. Con una
+ * velocità diversa da 0 il replay attende il tempo reale diviso per la velocità.
+ *
+ * Uso: {@code java -cp <classi> com.example.guardian.TraceReplayer trace.bin [--speed N] [--verbose]}
+ */
+public class TraceReplayer {
+
+    private final Map<Integer, String> packages = new HashMap<>();
+    private final Map<String, String> appNames = new HashMap<>();
+    private final ArrayDeque<TraceRecorder.UsageEvent[]> usageResponses = new ArrayDeque<>();
+    private final List<Record> records = new ArrayList<>();
+    private String ownPackage;
+    private long startTime;
+
+    public static TraceReplayer load(File file) throws IOException {
+        TraceReplayer replayer = new TraceReplayer();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            replayer.read(in);
+        }
+        return replayer;
+    }
+
+    private void read(DataInputStream in) throws IOException {
+        if (in.readInt() != TraceRecorder.MAGIC) {
+            throw new IOException("Unsupported trace format");
+        }
+        int version = in.readInt();
+        if (version < 1 || version > TraceRecorder.VERSION) {
+            throw new IOException("Unsupported trace version " + version);
+        }
+        startTime = in.readLong();
+        ownPackage = in.readUTF();
+
+        List<String> strings = new ArrayList<>();
+        long timestamp = startTime;
+        while (true) {
+            int tag = in.read();
+            if (tag < 0) break;
+            try {
+                if (tag == TraceRecorder.TAG_STRING) {
+                    strings.add(in.readUTF());
+                    continue;
+                }
+                timestamp += unZigZag(readVarLong(in));
+
+                switch (tag) {
+                    case TraceRecorder.TAG_RECORDING:
+                    case TraceRecorder.TAG_OP_ACTIVE: {
+                        int op = tag == TraceRecorder.TAG_OP_ACTIVE ? (int) readVarLong(in) : SensitiveOp.MICROPHONE;
+                        int[] uids = new int[(int) readVarLong(in)];
+                        for (int i = 0; i < uids.length; i++) {
+                            uids[i] = (int) unZigZag(readVarLong(in));
+                        }
+                        records.add(new Record(tag, timestamp, op, uids, null));
+                        break;
+                    }
+                    case TraceRecorder.TAG_TICK:
+                    case TraceRecorder.TAG_FLUSH:
+                        records.add(new Record(tag, timestamp, SensitiveOp.MICROPHONE, null, null));
+                        break;
+                    case TraceRecorder.TAG_USAGE_QUERY: {
+                        long from = timestamp - readVarLong(in);
+                        TraceRecorder.UsageEvent[] events = new TraceRecorder.UsageEvent[(int) readVarLong(in)];
+                        for (int i = 0; i < events.length; i++) {
+                            String packageName = strings.get((int) readVarLong(in));
+                            long eventTime = from + unZigZag(readVarLong(in));
+                            events[i] = new TraceRecorder.UsageEvent(packageName, eventTime, (int) readVarLong(in));
+                        }
+                        // Le risposte vengono consegnate nell'ordine delle query
+                        usageResponses.add(events);
+                        break;
+                    }
+                    case TraceRecorder.TAG_PACKAGE: {
+                        int uid = (int) unZigZag(readVarLong(in));
+                        int id = (int) readVarLong(in);
+                        packages.put(uid, id == 0 ? null : strings.get(id - 1));
+                        break;
+                    }
+                    case TraceRecorder.TAG_APP_NAME: {
+                        String packageName = strings.get((int) readVarLong(in));
+                        appNames.put(packageName, strings.get((int) readVarLong(in)));
+                        break;
+                    }
+                    case TraceRecorder.TAG_OPEN_SESSIONS: {
+                        int count = (int) readVarLong(in);
+                        List<SessionEntry> sessions = new ArrayList<>(count);
+                        for (int i = 0; i < count; i++) {
+                            int op = version >= 2 ? (int) readVarLong(in) : SensitiveOp.MICROPHONE;
+                            String packageName = strings.get((int) readVarLong(in));
+                            long start = timestamp - unZigZag(readVarLong(in));
+                            boolean isForeground = in.readBoolean();
+                            sessions.add(version < 3 ? new SessionEntry(op, packageName, start, isForeground)
+                                    : new SessionEntry(op, packageName, start, isForeground,
+                                    timestamp - unZigZag(readVarLong(in)), readVarLong(in)));
+                        }
+                        records.add(new Record(tag, timestamp, SensitiveOp.MICROPHONE, null, sessions));
+                        break;
+                    }
+                    case TraceRecorder.TAG_USAGE_STATE: {
+                        Record record = new Record(tag, timestamp, SensitiveOp.MICROPHONE, null, null);
+                        record.usageCursor = timestamp - unZigZag(readVarLong(in));
+                        int count = (int) readVarLong(in);
+                        record.foreground = new ArrayList<>(count);
+                        for (int i = 0; i < count; i++) {
+                            String packageName = strings.get((int) readVarLong(in));
+                            boolean foreground = in.readBoolean();
+                            record.foreground.add(new BackgroundRecordingAnalyzer.AppForeground(packageName,
+                                    foreground, timestamp - unZigZag(readVarLong(in))));
+                        }
+                        records.add(record);
+                        break;
+                    }
+                    default:
+                        throw new IOException("Unknown trace record " + tag);
+                }
+            } catch (EOFException e) {
+                // Traccia troncata (processo terminato durante la scrittura): si usa
+                // tutto ciò che è stato scritto per intero
+                break;
+            }
+        }
+    }
+
+    /**
+     * Esegue il replay. Con {@code speed <= 0} procede alla massima velocità.
+     */
+    public Result replay(double speed, DetectionPipeline.Listener observer) throws InterruptedException {
+        Result result = new Result();
+        result.traceStart = startTime;
+        ResultListener listener = new ResultListener(result, observer);
+        final ArrayDeque<TraceRecorder.UsageEvent[]> responses = new ArrayDeque<>(usageResponses);
+
+        EventSources.PackageResolver resolver = new EventSources.PackageResolver() {
+            @Override
+            public String packageForUid(int uid) {
+                return packages.get(uid);
+            }
+
+            @Override
+            public String appName(String packageName) {
+                String appName = appNames.get(packageName);
+                return appName != null ? appName : packageName;
+            }
+        };
+        EventSources.UsageEventSource usageEvents = (from, to, sink) -> {
+            TraceRecorder.UsageEvent[] events = responses.poll();
+            if (events == null) return;
+            for (TraceRecorder.UsageEvent event : events) {
+                sink.onUsageEvent(event.packageName, event.timestamp, event.type);
+            }
+        };
+
+        VirtualTime time = new VirtualTime(startTime);
+        DetectionPipeline pipeline = new DetectionPipeline(time, time, resolver, usageEvents,
+                message -> { }, ownPackage, listener);
+
+        long wallStart = System.nanoTime();
+        long previous = startTime;
+        for (Record record : records) {
+            if (speed > 0 && record.timestamp > previous) {
+                Thread.sleep((long) ((record.timestamp - previous) / speed));
+            }
+            previous = Math.max(previous, record.timestamp);
+
+            time.advanceTo(record.timestamp);
+            switch (record.tag) {
+                case TraceRecorder.TAG_RECORDING:
+                case TraceRecorder.TAG_OP_ACTIVE:
+                    pipeline.onOpActiveChanged(record.op, record.uids);
+                    break;
+                case TraceRecorder.TAG_TICK:
+                    pipeline.tick();
+                    break;
+                case TraceRecorder.TAG_FLUSH:
+                    pipeline.flush();
+                    break;
+                case TraceRecorder.TAG_OPEN_SESSIONS:
+                    pipeline.restore(record.sessions);
+                    break;
+                case TraceRecorder.TAG_USAGE_STATE:
+                    pipeline.restoreUsageState(record.usageCursor, record.foreground);
+                    break;
+            }
+            result.inputs++;
+        }
+        time.drain();
+
+        result.traceEnd = previous;
+        result.wallMs = (System.nanoTime() - wallStart) / 1_000_000.0;
+        result.unusedUsageResponses = responses.size();
+        return result;
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: TraceReplayer <trace> [--speed N] [--verbose]");
+            System.exit(2);
+        }
+        double speed = 0;
+        boolean verbose = false;
+        for (int i = 1; i < args.length; i++) {
+            if ("--speed".equals(args[i]) && i + 1 < args.length) {
+                speed = Double.parseDouble(args[++i]);
+            } else if ("--verbose".equals(args[i])) {
+                verbose = true;
+            }
+        }
+
+        TraceReplayer replayer = load(new File(args[0]));
+        Result result = replayer.replay(speed, verbose ? new PrintingListener() : null);
+        System.out.println(result);
+    }
+
+    private static class Record {
+        final int tag;
+        final long timestamp;
+        final int op;
+        final int[] uids;
+        final List<SessionEntry> sessions;
+        // Solo TAG_USAGE_STATE
+        long usageCursor;
+        List<BackgroundRecordingAnalyzer.AppForeground> foreground;
+
+        Record(int tag, long timestamp, int op, int[] uids, List<SessionEntry> sessions) {
+            this.tag = tag;
+            this.timestamp = timestamp;
+            this.op = op;
+            this.uids = uids;
+            this.sessions = sessions;
+        }
+    }
+
+    // Orologio e timer virtuali: i task scadono in ordine di tempo, poi di inserimento.
+    // Usati anche da OpMonitoringBenchmark
+    static class VirtualTime implements EventSources.Clock, EventSources.Timer {
+        private final PriorityQueue<Task> queue = new PriorityQueue<>();
+        private long now;
+        private long sequence;
+
+        VirtualTime(long now) {
+            this.now = now;
+        }
+
+        @Override
+        public long now() {
+            return now;
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayMs) {
+            queue.add(new Task(now + Math.max(0, delayMs), sequence++, task));
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            queue.removeIf(t -> t.task == task);
+        }
+
+        void advanceTo(long timestamp) {
+            Task task;
+            while ((task = queue.peek()) != null && task.due <= timestamp) {
+                queue.poll();
+                now = Math.max(now, task.due);
+                task.task.run();
+            }
+            now = Math.max(now, timestamp);
+        }
+
+        void drain() {
+            Task task;
+            while ((task = queue.poll()) != null) {
+                now = Math.max(now, task.due);
+                task.task.run();
+            }
+        }
+    }
+
+    private static class Task implements Comparable<Task> {
+        final long due;
+        final long seq;
+        final Runnable task;
+
+        Task(long due, long seq, Runnable task) {
+            this.due = due;
+            this.seq = seq;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            int c = Long.compare(due, other.due);
+            return c != 0 ? c : Long.compare(seq, other.seq);
+        }
+    }
+
+    /**
+     * Riepilogo del replay. Il digest copre tutte le uscite della pipeline, in ordine:
+     * due versioni che producono lo stesso digest sulla stessa traccia si comportano
+     * allo stesso modo.
+     */
+    public static class Result {
+        public long inputs;
+        public long sessions;
+        public long usageUpdates;
+        public long sessionUpdates;
+        public long foregroundChanges;
+        public long recordingMs;
+        public long backgroundMs;
+        public long traceStart;
+        public long traceEnd;
+        public double wallMs;
+        public int unusedUsageResponses;
+        final CRC32 digest = new CRC32();
+
+        public long getDigest() {
+            return digest.getValue();
+        }
+
+        @Override
+        public String toString() {
+            double traceSeconds = (traceEnd - traceStart) / 1000.0;
+            return String.format(Locale.US,
+                    "{\"inputs\":%d,\"sessions\":%d,\"usage_updates\":%d,\"session_updates\":%d,"
+                            + "\"foreground_changes\":%d,\"recording_ms\":%d,\"background_ms\":%d,"
+                            + "\"trace_s\":%.1f,\"wall_ms\":%.1f,\"speedup\":%.0f,"
+                            + "\"unused_usage_responses\":%d,\"digest\":\"%08x\"}",
+                    inputs, sessions, usageUpdates, sessionUpdates, foregroundChanges, recordingMs,
+                    backgroundMs, traceSeconds, wallMs, wallMs > 0 ? traceSeconds * 1000 / wallMs : 0,
+                    unusedUsageResponses, getDigest());
+        }
+    }
+
+    private static class ResultListener implements DetectionPipeline.Listener {
+        private final Result result;
+        private final DetectionPipeline.Listener observer;
+
+        ResultListener(Result result, DetectionPipeline.Listener observer) {
+            this.result = result;
+            this.observer = observer;
+        }
+
+        private void update(String kind, String packageName, long timestamp, long value) {
+            result.digest.update(kind.getBytes(StandardCharsets.UTF_8));
+            if (packageName != null) {
+                result.digest.update(packageName.getBytes(StandardCharsets.UTF_8));
+            }
+            for (int shift = 0; shift < 64; shift += 8) {
+                result.digest.update((int) (timestamp >>> shift));
+                result.digest.update((int) (value >>> shift));
+            }
+        }
+
+        // Le uscite del microfono hanno le stesse etichette di prima delle altre
+        // operazioni, così le tracce del solo microfono mantengono il digest
+        private static String kind(int op, String kind) {
+            return op == SensitiveOp.MICROPHONE ? kind : SensitiveOp.name(op) + ":" + kind;
+        }
+
+        // I profili d'uso delle app non fanno parte della traccia: il punteggio di anomalia
+        // resta fuori dal digest
+        @Override
+        public void onSessionStarted(int op, String packageName, long timestamp, boolean isForeground,
+                                     float anomalyScore) {
+            update(kind(op, "start"), packageName, timestamp, isForeground ? 1 : 0);
+            if (observer != null) observer.onSessionStarted(op, packageName, timestamp, isForeground, anomalyScore);
+        }
+
+        @Override
+        public void onSessionStateChanged(int op, String packageName, long timestamp, boolean isForeground) {
+            update(kind(op, "state"), packageName, timestamp, isForeground ? 1 : 0);
+            if (observer != null) observer.onSessionStateChanged(op, packageName, timestamp, isForeground);
+        }
+
+        @Override
+        public void onSessionEnded(int op, String packageName, long timestamp, boolean isForeground,
+                                   BackgroundRecordingAnalyzer.SessionResult session, float anomalyScore) {
+            result.sessions++;
+            if (session != null) {
+                result.recordingMs += session.end - session.start;
+                result.backgroundMs += session.backgroundMs;
+            }
+            update(kind(op, "end"), packageName, timestamp, session != null ? session.backgroundMs : -1);
+            if (observer != null) {
+                observer.onSessionEnded(op, packageName, timestamp, isForeground, session, anomalyScore);
+            }
+        }
+
+        @Override
+        public void onAppForegroundChanged(String packageName, long timestamp, boolean isForeground) {
+            result.foregroundChanges++;
+            update("app", packageName, timestamp, isForeground ? 1 : 0);
+            if (observer != null) observer.onAppForegroundChanged(packageName, timestamp, isForeground);
+        }
+
+        @Override
+        public void onUsage(List<DetectionPipeline.UsageSample> samples) {
+            result.usageUpdates++;
+            for (DetectionPipeline.UsageSample sample : samples) {
+                update(kind(sample.op, sample.isActive ? "active" : "usage"), sample.packageName, sample.timestamp,
+                        sample.backgroundMs);
+            }
+            if (observer != null) observer.onUsage(samples);
+        }
+
+        @Override
+        public void onSessionsChanged(long sessionStart, String[] appNames) {
+            result.sessionUpdates++;
+            update("sessions", String.join(",", appNames), sessionStart, appNames.length);
+            if (observer != null) observer.onSessionsChanged(sessionStart, appNames);
+        }
+
+        @Override
+        public void onActiveAppsChanged(int op, List<String> activeApps) {
+            update(kind(op, "recording"), String.join(",", activeApps), 0, activeApps.size());
+            if (observer != null) observer.onActiveAppsChanged(op, activeApps);
+        }
+    }
+
+    // Stampa ogni uscita della pipeline, per confrontare due replay riga per riga
+    private static class PrintingListener implements DetectionPipeline.Listener {
+        @Override
+        public void onSessionStarted(int op, String packageName, long timestamp, boolean isForeground,
+                                     float anomalyScore) {
+            System.out.println(timestamp + " start " + packageName + opSuffix(op) + " fg=" + isForeground);
+        }
+
+        @Override
+        public void onSessionStateChanged(int op, String packageName, long timestamp, boolean isForeground) {
+            System.out.println(timestamp + " state " + packageName + opSuffix(op) + " fg=" + isForeground);
+        }
+
+        @Override
+        public void onSessionEnded(int op, String packageName, long timestamp, boolean isForeground,
+                                   BackgroundRecordingAnalyzer.SessionResult session, float anomalyScore) {
+            System.out.println(timestamp + " end " + packageName + opSuffix(op)
+                    + (session != null ? " duration=" + (session.end - session.start)
+                    + "ms background=" + session.backgroundMs + "ms" : ""));
+        }
+
+        @Override
+        public void onAppForegroundChanged(String packageName, long timestamp, boolean isForeground) {
+            System.out.println(timestamp + " app " + packageName + " fg=" + isForeground);
+        }
+
+        @Override
+        public void onUsage(List<DetectionPipeline.UsageSample> samples) {
+            for (DetectionPipeline.UsageSample sample : samples) {
+                System.out.println(sample.timestamp + " usage " + sample.packageName + opSuffix(sample.op) + " active="
+                        + sample.isActive + " fg=" + sample.isForeground + " background=" + sample.backgroundMs + "ms");
+            }
+        }
+
+        @Override
+        public void onSessionsChanged(long sessionStart, String[] appNames) {
+            System.out.println("sessions start=" + sessionStart + " apps=" + String.join(", ", appNames));
+        }
+
+        @Override
+        public void onActiveAppsChanged(int op, List<String> activeApps) {
+            System.out.println((op == SensitiveOp.MICROPHONE ? "recording " : SensitiveOp.name(op) + " ") + activeApps);
+        }
+
+        private static String opSuffix(int op) {
+            return op == SensitiveOp.MICROPHONE ? "" : " [" + SensitiveOp.name(op) + "]";
+        }
+    }
+}
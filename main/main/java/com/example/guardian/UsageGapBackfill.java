@@ -0,0 +1,239 @@
+package com.example.guardian;
+
+import android.app.usage.UsageEvents;
+import android.app.usage.UsageStatsManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Ricostruisce gli intervalli foreground/background delle app nel periodo in cui il
+ * servizio era fermo (boot, aggiornamento, kill), leggendo gli UsageEvents a partire
+ * dall'ultimo istante coperto. Gli intervalli vengono scritti nello storico con
+ * {@link MicHistoryStore#FLAG_BACKFILLED}.
+ *
+ * Il lavoro procede a blocchi su un thread a bassa priorità e salva il cursore dopo
+ * ogni blocco, così non ritarda l'avvio e riprende da dove era arrivato se il processo
+ * viene terminato, con le app rimaste in foreground alla fine dell'ultimo blocco
+ * scritto. Ogni blocco viene scritto in un segmento invisibile alla
+ * compattazione finché non è completo.
+ */
+public class UsageGapBackfill {
+
+    private static final String TAG = "UsageGapBackfill";
+    private static final String PREFS_NAME = "usage_backfill";
+    private static final String KEY_LAST_ALIVE = "last_alive";
+    private static final String KEY_PENDING_FROM = "pending_from";
+    private static final String KEY_PENDING_END = "pending_end";
+    // App in foreground al cursore: il loro intervallo si chiude in un blocco successivo
+    private static final String KEY_PENDING_OPEN = "pending_open";
+
+    private static final long CHUNK = 15 * 60 * 1000; // 15 minuti di eventi per blocco
+    // Oltre, i segmenti raw sarebbero cancellati dalla compattazione appena scritti
+    private static final long MAX_GAP = HistoryCompactor.RAW_RETENTION;
+    static final long HEARTBEAT_INTERVAL = 60 * 1000; // 1 minuto
+
+    private final UsageStatsManager usageStatsManager;
+    private final MicHistoryStore historyStore;
+    private final SharedPreferences prefs;
+
+    private HandlerThread thread;
+    private Handler handler;
+    private long lastHeartbeat = 0;
+
+    // Stato del backfill in corso (solo sul thread dedicato)
+    private final Set<String> foregroundApps = new HashSet<>();
+    // Buchi da coprire dopo quello in corso, come {inizio, fine}
+    private final ArrayDeque<long[]> gaps = new ArrayDeque<>();
+    private MicHistoryStore.SegmentWriter chunkWriter;
+    private long gapEnd;
+    private long intervalsWritten;
+    private long startedAt;
+
+    public UsageGapBackfill(Context context, UsageStatsManager usageStatsManager, MicHistoryStore historyStore) {
+        this.usageStatsManager = usageStatsManager;
+        this.historyStore = historyStore;
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Avvia il backfill del buco fino a {@code serviceStart}. Non blocca il chiamante.
+     */
+    public void start(long serviceStart) {
+        long lastAlive = prefs.getLong(KEY_LAST_ALIVE, 0);
+        long pendingFrom = prefs.getLong(KEY_PENDING_FROM, 0);
+        long pendingEnd = prefs.getLong(KEY_PENDING_END, 0);
+        Set<String> pendingOpen = new HashSet<>(prefs.getStringSet(KEY_PENDING_OPEN, new HashSet<String>()));
+        heartbeat(serviceStart, true);
+
+        long oldest = serviceStart - MAX_GAP;
+        // Un backfill interrotto ha precedenza e finisce all'avvio del servizio di allora:
+        // da lì all'ultimo heartbeat gli intervalli sono già stati scritti dal vivo
+        if (pendingFrom > 0) {
+            addGap(pendingFrom, pendingEnd, oldest);
+        }
+        if (lastAlive > 0) {
+            addGap(Math.max(lastAlive, pendingEnd), serviceStart, oldest);
+        }
+        if (gaps.isEmpty()) {
+            prefs.edit().remove(KEY_PENDING_FROM).remove(KEY_PENDING_END).remove(KEY_PENDING_OPEN).apply();
+            Log.d(TAG, "No gap to backfill");
+            return;
+        }
+
+        thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+
+        startedAt = System.currentTimeMillis();
+        handler.post(() -> {
+            // Blocchi di un processo terminato a metà: verranno riscritti
+            historyStore.discardPendingSegments();
+            // Aperte nei blocchi già pubblicati del buco ripreso, che è il primo della coda
+            if (pendingFrom > 0) {
+                foregroundApps.addAll(pendingOpen);
+            }
+            nextGap();
+        });
+    }
+
+    /**
+     * Ultimo heartbeat salvato, 0 se nessuno: l'ultimo istante in cui il servizio
+     * sapeva di essere vivo.
+     */
+    public static long getLastAlive(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).getLong(KEY_LAST_ALIVE, 0);
+    }
+
+    private void addGap(long from, long end, long oldest) {
+        from = Math.max(from, oldest);
+        if (from < end) {
+            gaps.add(new long[] {from, end});
+        }
+    }
+
+    private void nextGap() {
+        long[] gap = gaps.poll();
+        gapEnd = gap[1];
+        prefs.edit().putLong(KEY_PENDING_FROM, gap[0]).putLong(KEY_PENDING_END, gapEnd)
+                .putStringSet(KEY_PENDING_OPEN, new HashSet<>(foregroundApps)).apply();
+        Log.d(TAG, "Backfilling usage gap of " + (gapEnd - gap[0]) / 1000 + "s");
+        handler.post(() -> processChunk(gap[0]));
+    }
+
+    public void stop() {
+        heartbeat(System.currentTimeMillis(), true);
+        quitThread();
+    }
+
+    private void quitThread() {
+        if (thread != null) {
+            thread.quitSafely();
+            thread = null;
+        }
+    }
+
+    /**
+     * Registra che il servizio era vivo a {@code now}; scritto al massimo una volta
+     * al minuto per limitare le scritture.
+     */
+    public void heartbeat(long now) {
+        heartbeat(now, false);
+    }
+
+    private void heartbeat(long now, boolean force) {
+        if (force || now - lastHeartbeat >= HEARTBEAT_INTERVAL) {
+            lastHeartbeat = now;
+            prefs.edit().putLong(KEY_LAST_ALIVE, now).apply();
+        }
+    }
+
+    private void processChunk(long chunkStart) {
+        long chunkEnd = Math.min(chunkStart + CHUNK, gapEnd);
+
+        try {
+            UsageEvents events = usageStatsManager.queryEvents(chunkStart, chunkEnd);
+            UsageEvents.Event event = new UsageEvents.Event();
+
+            while (events != null && events.hasNextEvent()) {
+                events.getNextEvent(event);
+                String packageName = event.getPackageName();
+                int type = event.getEventType();
+
+                if (type == UsageEvents.Event.ACTIVITY_RESUMED) {
+                    if (foregroundApps.add(packageName)) {
+                        write(chunkStart, MicHistoryStore.TYPE_APP_FOREGROUND, event.getTimeStamp(), packageName);
+                    }
+                } else if (type == UsageEvents.Event.ACTIVITY_PAUSED
+                        || type == UsageEvents.Event.ACTIVITY_STOPPED) {
+                    if (foregroundApps.remove(packageName)) {
+                        write(chunkStart, MicHistoryStore.TYPE_APP_BACKGROUND, event.getTimeStamp(), packageName);
+                        intervalsWritten++;
+                    }
+                }
+            }
+
+            if (chunkEnd >= gapEnd) {
+                // Chiude gli intervalli ancora aperti alla fine del buco
+                for (String packageName : foregroundApps) {
+                    write(chunkStart, MicHistoryStore.TYPE_APP_BACKGROUND, gapEnd, packageName);
+                    intervalsWritten++;
+                }
+                foregroundApps.clear();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing backfilled intervals", e);
+        } finally {
+            closeChunkWriter();
+        }
+
+        if (chunkEnd >= gapEnd && !gaps.isEmpty()) {
+            nextGap();
+        } else if (chunkEnd >= gapEnd) {
+            prefs.edit().remove(KEY_PENDING_FROM).remove(KEY_PENDING_END).remove(KEY_PENDING_OPEN).apply();
+            Log.d(TAG, "Backfill completed: " + intervalsWritten + " intervals in "
+                    + (System.currentTimeMillis() - startedAt) + "ms");
+            quitThread();
+        } else {
+            // Cursore e app aperte insieme, così una ripresa chiude gli intervalli già iniziati
+            prefs.edit().putLong(KEY_PENDING_FROM, chunkEnd)
+                    .putStringSet(KEY_PENDING_OPEN, new HashSet<>(foregroundApps)).apply();
+            // Ripubblica il blocco successivo per non monopolizzare il thread
+            handler.post(() -> processChunk(chunkEnd));
+        }
+    }
+
+    // Il segmento del blocco viene creato solo se ci sono intervalli da scrivere
+    private void write(long chunkStart, byte type, long timestamp, String packageName) throws IOException {
+        if (chunkWriter == null) {
+            chunkWriter = historyStore.openPendingSegment(chunkStart);
+        }
+        byte flags = MicHistoryStore.FLAG_BACKFILLED;
+        if (type == MicHistoryStore.TYPE_APP_FOREGROUND) {
+            flags |= MicHistoryStore.FLAG_FOREGROUND;
+        }
+        chunkWriter.write(type, timestamp, packageName, flags);
+    }
+
+    // Il segmento diventa visibile solo chiuso; se la chiusura fallisce il blocco non viene pubblicato
+    private void closeChunkWriter() {
+        if (chunkWriter != null) {
+            try {
+                chunkWriter.close();
+                if (!historyStore.publishSegment(chunkWriter)) {
+                    Log.w(TAG, "Could not publish backfill segment " + chunkWriter.file);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Error closing backfill segment", e);
+            }
+            chunkWriter = null;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.example.guardian;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AlertRateLimiterTest {
+
+    private static final long MINUTE = 60 * 1000L;
+
+    @Test
+    public void appBucketRefills() {
+        AlertRateLimiter limiter = new AlertRateLimiter(2, MINUTE, 100, 1000, MINUTE, 0);
+
+        assertTrue(limiter.tryAcquire("com.a", 0));
+        assertTrue(limiter.tryAcquire("com.a", 0));
+        assertFalse(limiter.tryAcquire("com.a", 1000));
+        // Un'altra app ha il suo bucket
+        assertTrue(limiter.tryAcquire("com.b", 1000));
+        assertTrue(limiter.tryAcquire("com.a", MINUTE));
+        assertFalse(limiter.tryAcquire("com.a", MINUTE));
+    }
+
+    @Test
+    public void globalBucketLimitsAllApps() {
+        AlertRateLimiter limiter = new AlertRateLimiter(5, MINUTE, 3, 1000, MINUTE, 0);
+
+        assertTrue(limiter.tryAcquire("com.a", 0));
+        assertTrue(limiter.tryAcquire("com.b", 0));
+        assertTrue(limiter.tryAcquire("com.c", 0));
+        assertFalse(limiter.tryAcquire("com.d", 0));
+        assertEquals(1000, limiter.tryAcquireGlobal(0));
+        assertEquals(500, limiter.tryAcquireGlobal(500));
+        assertEquals(0, limiter.tryAcquireGlobal(1000));
+    }
+
+    @Test
+    public void globalRejectionKeepsAppToken() {
+        AlertRateLimiter limiter = new AlertRateLimiter(1, MINUTE, 1, 1000, MINUTE, 0);
+
+        assertTrue(limiter.tryAcquire("com.a", 0));
+        assertFalse(limiter.tryAcquire("com.b", 0));
+        // Il token di com.b non è stato consumato dal rifiuto globale
+        assertTrue(limiter.tryAcquire("com.b", 1000));
+    }
+
+    @Test
+    public void stormSummaryResetsAfterQuiet() {
+        AlertRateLimiter limiter = new AlertRateLimiter(1, MINUTE, 100, 1000, 10000, 0);
+        limiter.tryAcquire("com.a", 0);
+        limiter.tryAcquire("com.b", 0);
+        for (int i = 1; i <= 3; i++) {
+            limiter.tryAcquire("com.a", i * 1000);
+        }
+        limiter.tryAcquire("com.b", 4000);
+
+        assertEquals(4, limiter.stormTotal());
+        List<AlertRateLimiter.Suppressed> summary = limiter.stormSummary();
+        assertEquals(2, summary.size());
+        assertEquals("com.a", summary.get(0).packageName);
+        assertEquals(3, summary.get(0).count);
+        assertEquals("com.b", summary.get(1).packageName);
+        assertEquals(1, summary.get(1).count);
+
+        // Dopo stormQuietMs senza soppressioni riparte una nuova tempesta
+        assertFalse(limiter.tryAcquire("com.b", 4000 + 10001));
+        assertEquals(1, limiter.stormTotal());
+        summary = limiter.stormSummary();
+        assertEquals(1, summary.size());
+        assertEquals("com.b", summary.get(0).packageName);
+    }
+
+    @Test
+    public void manyAppsGrowTheArrays() {
+        AlertRateLimiter limiter = new AlertRateLimiter(1, MINUTE, 1000, 1, MINUTE, 0);
+        for (int i = 0; i < 40; i++) {
+            assertTrue(limiter.tryAcquire("com.app" + i, 0));
+        }
+        for (int i = 0; i < 40; i++) {
+            assertFalse(limiter.tryAcquire("com.app" + i, 0));
+        }
+        assertEquals(40, limiter.stormSummary().size());
+    }
+}
@@ -0,0 +1,104 @@
+package com.example.guardian;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class EventTimersTest {
+
+    private static final long TICK = 10;
+
+    private long now;
+    // Il timer di base tiene un solo risveglio: se ne arrivano due è un errore
+    private Runnable armedTask;
+    private long armedAt;
+    private EventTimers timers;
+
+    @Before
+    public void setUp() {
+        now = 0;
+        armedTask = null;
+        EventSources.Clock clock = new EventSources.Clock() {
+            @Override
+            public long now() {
+                return now;
+            }
+        };
+        EventSources.Timer wakeupTimer = new EventSources.Timer() {
+            @Override
+            public void schedule(Runnable task, long delayMs) {
+                if (armedTask != null) throw new AssertionError("two wakeups armed");
+                armedTask = task;
+                armedAt = now + delayMs;
+            }
+
+            @Override
+            public void cancel(Runnable task) {
+                if (task == armedTask) armedTask = null;
+            }
+        };
+        timers = new EventTimers(clock, wakeupTimer, TICK);
+    }
+
+    private void runWakeup() {
+        Runnable task = armedTask;
+        armedTask = null;
+        now = armedAt;
+        task.run();
+    }
+
+    @Test
+    public void armsOnlyTheNearestDeadline() {
+        timers.schedule(new TimerWheel.Timeout(noop()), 500);
+        assertEquals(500, armedAt);
+        timers.schedule(new TimerWheel.Timeout(noop()), 120);
+        assertEquals(120, armedAt);
+        timers.schedule(new TimerWheel.Timeout(noop()), 300);
+        assertEquals(120, armedAt);
+    }
+
+    @Test
+    public void cancelMovesTheWakeupToTheNextDeadline() {
+        TimerWheel.Timeout first = new TimerWheel.Timeout(noop());
+        timers.schedule(first, 95);
+        timers.schedule(new TimerWheel.Timeout(noop()), 64 * 64 * TICK + 3);
+        assertEquals(100, armedAt);
+
+        timers.cancel(first);
+        assertEquals(64 * 64 * TICK + TICK, armedAt);
+        assertEquals(1, timers.pending());
+    }
+
+    @Test
+    public void wakeupRunsDueTimersAndRearms() {
+        final int[] runs = new int[1];
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                runs[0]++;
+            }
+        };
+        timers.schedule(task, 100);
+        timers.schedule(new TimerWheel.Timeout(noop()), 5000);
+
+        runWakeup();
+        assertEquals(100, now);
+        assertEquals(1, runs[0]);
+        assertEquals(5000, armedAt);
+        assertEquals(1, timers.getWakeups());
+
+        // Lo stesso Runnable riusa il suo Timeout
+        timers.schedule(task, 50);
+        assertEquals(150, armedAt);
+        assertEquals(2, timers.pending());
+    }
+
+    private static Runnable noop() {
+        return new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+    }
+}
@@ -0,0 +1,97 @@
+package com.example.guardian;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PackageFilterTest {
+
+    @Test
+    public void noRulesReportsEverything() {
+        PackageFilter filter = PackageFilter.parse(null);
+        assertEquals(0, filter.ruleCount());
+        assertFalse(filter.isIgnored("com.example.app"));
+    }
+
+    @Test
+    public void longestPrefixWins() {
+        PackageFilter filter = PackageFilter.parse(
+                "deny com.google.*\n"
+                + "allow com.google.android.*\n"
+                + "deny com.google.android.gms.*\n");
+
+        assertTrue(filter.isIgnored("com.google.maps"));
+        assertFalse(filter.isIgnored("com.google.android.youtube"));
+        assertTrue(filter.isIgnored("com.google.android.gms.location"));
+        assertFalse(filter.isIgnored("com.example.app"));
+    }
+
+    @Test
+    public void precedenceDoesNotDependOnOrder() {
+        PackageFilter filter = PackageFilter.parse(
+                "allow com.google.android.apps.recorder\n"
+                + "deny com.google.android.*\n");
+
+        assertFalse(filter.isIgnored("com.google.android.apps.recorder"));
+        assertTrue(filter.isIgnored("com.google.android.apps.messaging"));
+    }
+
+    @Test
+    public void exactRuleBeatsPrefixOnSamePackage() {
+        PackageFilter filter = PackageFilter.parse(
+                "deny *\n"
+                + "allow com.android.dialer\n"
+                + "deny com.android.dialer.*\n");
+
+        assertFalse(filter.isIgnored("com.android.dialer"));
+        assertTrue(filter.isIgnored("com.android.dialer.extra"));
+        assertTrue(filter.isIgnored("org.example"));
+    }
+
+    @Test
+    public void prefixMatchesWholeSegments() {
+        PackageFilter filter = PackageFilter.parse("deny com.google.*");
+
+        assertTrue(filter.isIgnored("com.google.x"));
+        assertFalse(filter.isIgnored("com.googlex"));
+        assertFalse(filter.isIgnored("com.google"));
+    }
+
+    @Test
+    public void samePatternLastRuleWins() {
+        PackageFilter filter = PackageFilter.parse(
+                "deny com.example.*\n"
+                + "allow com.example.*\n");
+
+        assertFalse(filter.isIgnored("com.example.app"));
+    }
+
+    @Test
+    public void invalidLinesAreSkipped() {
+        PackageFilter filter = PackageFilter.parse(
+                "# commento\n"
+                + "\n"
+                + "block com.example.app\n"
+                + "deny\n"
+                + "  deny   com.example.app  \n");
+
+        assertEquals(1, filter.ruleCount());
+        assertTrue(filter.isIgnored("com.example.app"));
+    }
+
+    @Test
+    public void cachedResultIsStable() {
+        PackageFilter filter = PackageFilter.parse("deny com.example.*");
+        // Oltre la capacità iniziale della cache per id
+        for (int i = 0; i < 100; i++) {
+            assertTrue(filter.isIgnored("com.example.app" + i));
+            assertFalse(filter.isIgnored("org.example.app" + i));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertTrue(filter.isIgnored("com.example.app" + i));
+        }
+        assertEquals("deny com.example.* hits=200", filter.describeStats().get(0));
+    }
+}
@@ -0,0 +1,156 @@
+package com.example.guardian;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimerWheelTest {
+
+    private static final long TICK = 10;
+
+    private static class Counter implements Runnable {
+        int runs;
+
+        @Override
+        public void run() {
+            runs++;
+        }
+    }
+
+    @Test
+    public void emptyWheelHasNoWakeup() {
+        TimerWheel wheel = new TimerWheel(TICK, 0);
+        assertEquals(Long.MAX_VALUE, wheel.nextWakeup());
+        assertEquals(0, wheel.advance(1000));
+    }
+
+    @Test
+    public void firesAtFirstTickNotBeforeDeadline() {
+        TimerWheel wheel = new TimerWheel(TICK, 0);
+        Counter counter = new Counter();
+        wheel.schedule(new TimerWheel.Timeout(counter), 25);
+
+        assertEquals(30, wheel.nextWakeup());
+        assertEquals(0, wheel.advance(29));
+        assertEquals(1, wheel.advance(30));
+        assertEquals(1, counter.runs);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void farDeadlinesCascadeDownToTheirTick() {
+        TimerWheel wheel = new TimerWheel(TICK, 0);
+        // Livello 1, livello 2, livello 3 e oltre l'ultimo livello (parcheggiato)
+        long[] deadlines = {64 * TICK + 5, 3 * 64 * 64 * TICK + 7, 5 * 64 * 64 * 64 * TICK + 3, 70L * 64 * 64 * 64 * TICK};
+        Counter[] counters = new Counter[deadlines.length];
+        for (int i = 0; i < deadlines.length; i++) {
+            counters[i] = new Counter();
+            wheel.schedule(new TimerWheel.Timeout(counters[i]), deadlines[i]);
+        }
+
+        for (int i = 0; i < deadlines.length; i++) {
+            long due = (deadlines[i] + TICK - 1) / TICK * TICK;
+            assertEquals("wakeup " + i, due, wheel.nextWakeup());
+            assertEquals(0, wheel.advance(due - 1));
+            assertEquals(0, counters[i].runs);
+            assertEquals(1, wheel.advance(due));
+            assertEquals(1, counters[i].runs);
+        }
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void nextWakeupFollowsCancel() {
+        TimerWheel wheel = new TimerWheel(TICK, 0);
+        TimerWheel.Timeout near = new TimerWheel.Timeout(new Counter());
+        TimerWheel.Timeout far = new TimerWheel.Timeout(new Counter());
+        wheel.schedule(near, 100);
+        wheel.schedule(far, 64 * 64 * TICK + 1);
+
+        assertEquals(100, wheel.nextWakeup());
+        wheel.cancel(near);
+        assertFalse(near.isScheduled());
+        assertEquals(64 * 64 * TICK + TICK, wheel.nextWakeup());
+        wheel.cancel(far);
+        assertEquals(Long.MAX_VALUE, wheel.nextWakeup());
+        assertEquals(0, wheel.advance(1000000));
+    }
+
+    @Test
+    public void periodicSkipsMissedPeriods() {
+        TimerWheel wheel = new TimerWheel(TICK, 0);
+        Counter counter = new Counter();
+        TimerWheel.Timeout timeout = new TimerWheel.Timeout(counter);
+        wheel.schedulePeriodic(timeout, 100, 100);
+
+        assertEquals(1, wheel.advance(100));
+        assertEquals(200, timeout.getDeadline());
+        // Cinque periodi persi: una sola esecuzione, poi la prossima scadenza futura
+        assertEquals(1, wheel.advance(650));
+        assertEquals(2, counter.runs);
+        assertEquals(700, timeout.getDeadline());
+        assertTrue(timeout.isScheduled());
+    }
+
+    @Test
+    public void randomScheduleAndCancel() {
+        Random random = new Random(42);
+        TimerWheel wheel = new TimerWheel(TICK, 0);
+        final long[] now = {0};
+        final List<String> errors = new ArrayList<>();
+        List<TimerWheel.Timeout> timeouts = new ArrayList<>();
+        final List<Long> expected = new ArrayList<>();
+
+        for (int i = 0; i < 2000; i++) {
+            final int index = i;
+            expected.add(Long.MAX_VALUE);
+            timeouts.add(new TimerWheel.Timeout(new Runnable() {
+                @Override
+                public void run() {
+                    long due = expected.get(index);
+                    if (due == Long.MAX_VALUE || due > now[0]) {
+                        errors.add("timer " + index + " due " + due + " fired at " + now[0]);
+                    }
+                    expected.set(index, Long.MAX_VALUE);
+                }
+            }));
+        }
+
+        for (int round = 0; round < 500; round++) {
+            for (int i = 0; i < 20; i++) {
+                int index = random.nextInt(timeouts.size());
+                if (random.nextInt(4) == 0) {
+                    wheel.cancel(timeouts.get(index));
+                    expected.set(index, Long.MAX_VALUE);
+                } else {
+                    long deadline = now[0] + 1 + (long) (random.nextDouble() * random.nextDouble() * 64 * 64 * 64 * TICK);
+                    wheel.schedule(timeouts.get(index), deadline);
+                    expected.set(index, (deadline + TICK - 1) / TICK * TICK);
+                }
+            }
+
+            long first = Long.MAX_VALUE;
+            for (long due : expected) {
+                first = Math.min(first, due);
+            }
+            assertEquals("round " + round, first, wheel.nextWakeup());
+
+            now[0] += random.nextInt(3) == 0 ? first - now[0] : 1 + random.nextInt(20000);
+            wheel.advance(now[0]);
+            for (int i = 0; i < expected.size(); i++) {
+                // Nessun timer in ritardo oltre il tick della sua scadenza
+                if (expected.get(i) <= now[0]) {
+                    errors.add("timer " + i + " due " + expected.get(i) + " not fired by " + now[0]);
+                }
+            }
+        }
+        assertTrue(wheel.getFired() > 1000);
+        assertEquals("errors " + errors, 0, errors.size());
+    }
+}